@@ -1,48 +1,206 @@
 package jags.ratpacktest;
 
-import static ratpack.jackson.Jackson.fromJson;
 import static ratpack.jackson.Jackson.json;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import jags.ratpacktest.backup.BookmarkCodec;
+import jags.ratpacktest.backup.Journal;
+import jags.ratpacktest.backup.SnapshotManager;
 import jags.ratpacktest.domain.Bookmark;
-import jags.ratpacktest.domain.Tag;
+import jags.ratpacktest.exception.DuplicateBookmarkException;
+import jags.ratpacktest.exception.TenantMovedException;
 import jags.ratpacktest.exception.ValidationException;
+import jags.ratpacktest.exception.VersionConflictException;
+import jags.ratpacktest.limit.WriteLimitHandler;
+import jags.ratpacktest.metrics.Metrics;
+import jags.ratpacktest.metrics.SlowQueryLog;
 import jags.ratpacktest.service.BookmarkService;
+import jags.ratpacktest.service.MappedBookmarkIndex;
+import jags.ratpacktest.service.TenantRouter;
+import jags.ratpacktest.service.TenantRouter.ServiceCall;
+import jags.ratpacktest.service.UrlMetadataFetcher;
 import jags.ratpacktest.view.FreemarkerModel;
 import jags.ratpacktest.view.FreemarkerRenderer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ratpack.exec.Promise;
 import ratpack.form.Form;
 import ratpack.handling.Context;
+import ratpack.http.TypedData;
 import ratpack.jackson.Jackson;
 import ratpack.server.RatpackServer;
 import ratpack.server.ServerConfig;
 import ratpack.util.MultiValueMap;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class App {
 
-  private static BookmarkService bookmarkService = new BookmarkService();
+  private static final Logger LOGGER = LoggerFactory.getLogger(App.class);
+
+  private static final String TENANT_HEADER = "X-Tenant";
+
+  /** Initialized on first use, which {@link #main} triggers early on a pool thread. */
+  private static class RouterHolder {
+    private static final TenantRouter INSTANCE = TenantRouter.fromSystemProperties();
+    private static final SlowQueryLog SLOW_QUERIES = SlowQueryLog.fromSystemProperties();
+    // restores a snapshot, if asked to, before any service creates its tables
+    private static final SnapshotManager SNAPSHOTS = StartupTimer.time("snapshot restore",
+        () -> SnapshotManager.fromSystemProperties(INSTANCE));
+    private static final Journal JOURNAL;
+
+    static {
+      INSTANCE.setTimingCollector(SLOW_QUERIES);
+      JOURNAL = StartupTimer.time("journal replay",
+          () -> Journal.fromSystemProperties(INSTANCE, SNAPSHOTS));
+      StartupTimer.time("bookmark service",
+          () -> INSTANCE.service(TenantRouter.DEFAULT_TENANT));
+      Runtime.getRuntime().addShutdownHook(new Thread(RouterHolder::close, "store-shutdown"));
+    }
 
-  public static void main(String[] args) throws Exception {
-    ObjectMapper mapper = new ObjectMapper();
-    mapper.registerModule(new Jdk8Module());
-    mapper.enable(SerializationFeature.INDENT_OUTPUT);
+    /** Stops snapshots and compaction, forces and closes the journal, then the shards. */
+    private static void close() {
+      SNAPSHOTS.close();
+      if (JOURNAL != null) {
+        JOURNAL.close();
+      }
+      INSTANCE.close();
+    }
+  }
+
+  private static BookmarkService bookmarkService() {
+    return bookmarkService(TenantRouter.DEFAULT_TENANT);
+  }
+
+  private static BookmarkService bookmarkService(String tenant) {
+    return RouterHolder.INSTANCE.service(tenant);
+  }
+
+  /** The {@code X-Tenant} header, which {@link #checkTenant} has validated. */
+  private static String tenantOf(Context ctx) {
+    String tenant = ctx.getRequest().getHeaders().get(TENANT_HEADER);
+    return tenant == null || tenant.isEmpty() ? TenantRouter.DEFAULT_TENANT : tenant;
+  }
+
+  /**
+   * Same as {@link #service} for a call that writes, after which the tenant's reads no longer
+   * come from its warm index.
+   */
+  private static <T> Promise<T> write(Context ctx, ServiceCall<T> call) {
+    if (!warmIndexes.isEmpty()) {
+      writtenTenants.add(tenantOf(ctx));
+    }
+    return service(ctx, call);
+  }
+
+  private static class ExecutionHolder {
+    private static final ServiceExecution INSTANCE =
+        ServiceExecution.fromSystemProperties(RouterHolder.INSTANCE);
+  }
+
+  /** Runs {@code call} on the request tenant's service off the event loop. */
+  private static <T> Promise<T> service(Context ctx, ServiceCall<T> call) {
+    String tenant = tenantOf(ctx);
+    return ExecutionHolder.INSTANCE.call(ctx, tenant,
+        () -> RouterHolder.INSTANCE.call(tenant, call));
+  }
+
+  /**
+   * The indexes of the snapshot being restored, by tenant, which answer listings while the
+   * restore and journal replay are still running; emptied once the live store is ready.
+   */
+  private static volatile Map<String, MappedBookmarkIndex> warmIndexes = Collections.emptyMap();
+
+  /**
+   * Tenants written to since startup: their snapshot no longer shows what they stored, so a
+   * client would not see its own changes in it.
+   */
+  private static final Set<String> writtenTenants = ConcurrentHashMap.newKeySet();
+
+  /**
+   * The request tenant's warm index, or {@code null} once the live store serves it or the tenant
+   * has been written to.
+   */
+  private static MappedBookmarkIndex warmIndex(Context ctx) {
+    Map<String, MappedBookmarkIndex> indexes = warmIndexes;
+    if (indexes.isEmpty()) {
+      return null;
+    }
+    String tenant = tenantOf(ctx);
+    return writtenTenants.contains(tenant) ? null : indexes.get(tenant);
+  }
 
+  /** Reads from a warm index off the event loop, since mapped pages may still be on disk. */
+  private static <T> Promise<T> warm(Context ctx, Callable<T> read) {
+    Metrics.counter("warmStart.reads").increment();
+    return ctx.blocking(read);
+  }
+
+  /** Only started once a client asks for a title to be fetched. */
+  private static class FetcherHolder {
+    private static final UrlMetadataFetcher INSTANCE = UrlMetadataFetcher.fromSystemProperties();
+  }
 
+  public static void main(String[] args) throws Exception {
+    ServerProfile.applyNettyProperties();
+    if (Boolean.parseBoolean(System.getProperty("ratpacktest.warmStart", "true"))) {
+      warmIndexes = StartupTimer.time("snapshot indexes", SnapshotManager::openIndexes);
+    }
+    // the data source and schema, the templates and the object mapper don't depend on each other
+    CompletableFuture<BookmarkService> service =
+        CompletableFuture.supplyAsync(() -> bookmarkService());
+    CompletableFuture<FreemarkerRenderer> renderer = CompletableFuture.supplyAsync(
+        () -> StartupTimer.time("freemarker templates", App::freemarkerRenderer));
+    ObjectMapper mapper = StartupTimer.time("object mapper", App::objectMapper);
+    WriteLimitHandler writeLimitHandler = WriteLimitHandler.fromSystemProperties();
+    if (warmIndexes.isEmpty()) {
+      service.join();
+      StartupTimer.time("service execution", () -> ExecutionHolder.INSTANCE);
+    } else {
+      // serve reads from the snapshot's indexes until the live store has caught up
+      service.whenComplete((ready, failure) -> {
+        if (failure != null) {
+          LOGGER.error("the bookmark store could not be started", failure);
+        } else {
+          StartupTimer.time("service execution", () -> ExecutionHolder.INSTANCE);
+          LOGGER.info("live store ready {} ms after JVM start",
+              StartupTimer.millisSinceJvmStart());
+        }
+        warmIndexes = Collections.emptyMap();
+      });
+    }
+    FreemarkerRenderer freemarkerRenderer = renderer.join();
 
-    RatpackServer.start(server -> {
+    RatpackServer ratpackServer = RatpackServer.start(server -> {
 
           URL publicResource = App.class.getClassLoader().getResource("public/public.resource");
           assert publicResource != null;
           File publicPath = new File(publicResource.getFile()).getParentFile();
 
           server
-              .serverConfig(ServerConfig.baseDir(publicPath))
+              .serverConfig(ServerProfile.configure(ServerConfig.baseDir(publicPath)))
 
               .registryOf(
                   registrySpec -> Jackson.Init.register(registrySpec, mapper, mapper.writer()))
@@ -55,20 +213,59 @@ public class App {
 
                       .get("hello", ctx -> ctx.render("Hello, Ratpack"))
 
+                      .get("admin/metrics", ctx -> ctx.render(json(Metrics.snapshot())))
+
+                      .get("admin/slow-queries",
+                          ctx -> ctx.render(json(RouterHolder.SLOW_QUERIES.recent())))
+
+                      .post("admin/tenants/:tenant/move", App::moveTenant)
+
+                      .path("admin/snapshots", ctx -> ctx
+                          .byMethod(method -> method
+                              .post(() -> takeSnapshot(ctx))
+                              .get(() -> listSnapshots(ctx))))
+
+                      .path("api/:rest:.*", App::checkTenant)
+
+                      .path("freemarker/:rest:.*", App::checkTenant)
+
+                      .path("go/:rest:.*", App::checkTenant)
+
+                      .get("go/:id", App::visitBookmark)
+
+                      .path("api/bookmarks", writeLimitHandler)
+
+                      .path("api/bookmarks/import", writeLimitHandler)
+
+                      // digits only, so the import isn't limited twice
+                      .path("api/bookmarks/:id:\\d+", writeLimitHandler)
+
+                      .path("api/bookmarks/:id/restore", writeLimitHandler)
+
                       .path("api/bookmarks", ctx -> ctx
                           .byMethod(method -> method
                               .post(() -> createBookmark(ctx))
                               .get(() -> getBookmarks(ctx))))
 
+                      .get("api/bookmarks/lookup", App::lookupBookmark)
+
+                      .get("api/bookmarks/export", App::exportBookmarks)
+
+                      .post("api/bookmarks/import", App::importBookmarks)
+
                       .path("api/bookmarks/:id", ctx -> ctx
                           .byMethod(method -> method
                               .delete(() -> deleteBookmark(ctx))
                               .put(() -> updateBookmark(ctx))
                               .get(() -> getBookmark(ctx))))
 
+                      .post("api/bookmarks/:id/restore", App::undeleteBookmark)
+
+                      .get("api/bookmarks/:id/related", App::getRelatedBookmarks)
+
                       .get("api/tags", App::getTags)
 
-                      .register(new FreemarkerRenderer().register())
+                      .register(freemarkerRenderer.register())
 
                       .path("freemarker/bookmarks", ctx -> ctx
                           .byMethod(method -> method
@@ -84,84 +281,411 @@ public class App {
               );
         }
     );
+    LOGGER.info("server started {} ms after JVM start", StartupTimer.millisSinceJvmStart());
+
+    if (Boolean.getBoolean("ratpacktest.exitAfterStartup")) {
+      // training run for the class data sharing archive and the startup benchmark
+      requestBookmarks(ratpackServer.getBindPort());
+      ratpackServer.stop();
+      System.exit(0);
+    }
+    int benchmarkClients = Integer.getInteger("ratpacktest.benchmark.concurrency", 0);
+    if (benchmarkClients > 0) {
+      LoadBenchmark.run(ratpackServer.getBindPort(), bookmarkService(),
+          ExecutionHolder.INSTANCE.mode(), benchmarkClients,
+          Integer.getInteger("ratpacktest.benchmark.seconds", 30));
+      ratpackServer.stop();
+      System.exit(0);
+    }
+  }
+
+  private static ObjectMapper objectMapper() {
+    ObjectMapper mapper = new ObjectMapper();
+    mapper.registerModule(new Jdk8Module());
+    mapper.enable(SerializationFeature.INDENT_OUTPUT);
+    return mapper;
+  }
+
+  private static FreemarkerRenderer freemarkerRenderer() {
+    try {
+      return new FreemarkerRenderer().preload();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void requestBookmarks(int port) throws IOException {
+    URL url = new URL("http://localhost:" + port + "/api/bookmarks");
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    try (InputStream in = connection.getInputStream()) {
+      while (in.read() != -1) {
+        // drain the body
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private static void checkTenant(Context ctx) {
+    String tenant = ctx.getRequest().getHeaders().get(TENANT_HEADER);
+    if (tenant == null || tenant.isEmpty() || TenantRouter.isValidTenant(tenant)) {
+      ctx.next();
+    } else {
+      ctx.getResponse().status(HttpURLConnection.HTTP_BAD_REQUEST);
+      ctx.getResponse().send("invalid tenant");
+    }
+  }
+
+  private static void moveTenant(Context ctx) {
+    String tenant = ctx.getPathTokens().get("tenant");
+    int shard;
+    try {
+      shard = Integer.parseInt(ctx.getRequest().getQueryParams().get("shard"));
+    } catch (NumberFormatException e) {
+      ctx.getResponse().status(HttpURLConnection.HTTP_BAD_REQUEST);
+      ctx.getResponse().send(String.valueOf(e.getMessage()));
+      return;
+    }
+    // copies the whole tenant, so off the event loop
+    ctx.blocking(() -> {
+      RouterHolder.INSTANCE.moveTenant(tenant, shard);
+      Map<String, Object> moved = new LinkedHashMap<>();
+      moved.put("tenant", tenant);
+      moved.put("shard", shard);
+      return moved;
+    }).onError(e -> {
+      if (e instanceof IllegalArgumentException) {
+        ctx.getResponse().status(HttpURLConnection.HTTP_BAD_REQUEST);
+        ctx.getResponse().send(String.valueOf(e.getMessage()));
+      } else {
+        ctx.error(e);
+      }
+    }).then(moved -> ctx.render(json(moved)));
+  }
+
+  private static void takeSnapshot(Context ctx) {
+    ctx.blocking(RouterHolder.SNAPSHOTS::snapshot).then(snapshot -> {
+      ctx.getResponse().status(HttpURLConnection.HTTP_CREATED);
+      ctx.getResponse().send(snapshot.getFileName().toString());
+    });
+  }
+
+  private static void listSnapshots(Context ctx) {
+    List<String> names = new ArrayList<>();
+    for (Path snapshot : RouterHolder.SNAPSHOTS.list()) {
+      names.add(snapshot.getFileName().toString());
+    }
+    ctx.render(json(names));
   }
 
   private static void deleteBookmark(Context ctx) {
     long id = Long.parseLong(ctx.getPathTokens().get("id"));
-    bookmarkService.deleteBookmark(id);
-    ctx.getResponse().status(HttpURLConnection.HTTP_OK);
-    ctx.getResponse().send();
+    write(ctx, service -> {
+      service.deleteBookmark(id);
+      return id;
+    }).then(deleted -> {
+      ctx.getResponse().status(HttpURLConnection.HTTP_OK);
+      ctx.getResponse().send();
+    });
   }
 
   private static void getBookmark(Context ctx) {
     long id = Long.parseLong(ctx.getPathTokens().get("id"));
-    Bookmark bookmark = bookmarkService.getBookmark(id);
+    // always the live store: the snapshot has no version to answer with, and may be stale
+    service(ctx, service -> service.getBookmark(id))
+        .then(bookmark -> renderBookmark(ctx, bookmark));
+  }
+
+  private static void renderBookmark(Context ctx, Bookmark bookmark) {
     if (bookmark == null) {
       ctx.getResponse().status(HttpURLConnection.HTTP_NOT_FOUND);
       ctx.getResponse().send();
     } else {
+      setETag(ctx, bookmark.getVersion());
       ctx.render(json(bookmark));
     }
   }
 
-  private static void updateBookmark(Context ctx) {
+  /** The bookmark's version as a strong entity tag, which an update can name in If-Match. */
+  private static void setETag(Context ctx, Long version) {
+    if (version != null) {
+      ctx.getResponse().getHeaders().set("ETag", "\"" + version + "\"");
+    }
+  }
+
+  /**
+   * Takes the version an update expects from {@code If-Match} rather than the body; {@code *}
+   * updates whatever version is current.
+   *
+   * @return {@code false} once a header not naming one version has been answered
+   */
+  private static boolean readIfMatch(Context ctx, Bookmark bookmark) {
+    String ifMatch = ctx.getRequest().getHeaders().get("If-Match");
+    if (ifMatch == null) {
+      return true;
+    }
+    String tag = ifMatch.trim();
+    if ("*".equals(tag)) {
+      bookmark.setVersion(null);
+      return true;
+    }
+    if (tag.startsWith("W/")) {
+      tag = tag.substring(2);
+    }
     try {
-      Bookmark bookmark = ctx.parse(fromJson(Bookmark.class));
-      bookmark.setId(Long.parseLong(ctx.getPathTokens().get("id")));
-      Bookmark updated = bookmarkService.updateBookmark(bookmark);
-      if (updated == null) {
+      bookmark.setVersion(Long.parseLong(tag.replace("\"", "")));
+      return true;
+    } catch (NumberFormatException e) {
+      ctx.getResponse().status(HttpURLConnection.HTTP_BAD_REQUEST);
+      ctx.getResponse().send("If-Match must name one version");
+      return false;
+    }
+  }
+
+  /** Counts a visit and redirects to the bookmarked page. */
+  private static void visitBookmark(Context ctx) {
+    long id = Long.parseLong(ctx.getPathTokens().get("id"));
+    write(ctx, service -> {
+      Bookmark bookmark = service.getBookmark(id);
+      if (bookmark != null) {
+        service.recordVisit(id);
+      }
+      return bookmark;
+    }).then(bookmark -> {
+      if (bookmark == null) {
         ctx.getResponse().status(HttpURLConnection.HTTP_NOT_FOUND);
         ctx.getResponse().send();
       } else {
-        ctx.getResponse().status(HttpURLConnection.HTTP_NO_CONTENT);
+        ctx.redirect(bookmark.getUrl());
+      }
+    });
+  }
+
+  private static void lookupBookmark(Context ctx) {
+    String url = ctx.getRequest().getQueryParams().get("url");
+    service(ctx, service -> service.findByUrl(url)).then(bookmark -> {
+      if (bookmark == null) {
+        ctx.getResponse().status(HttpURLConnection.HTTP_NOT_FOUND);
         ctx.getResponse().send();
+      } else {
+        ctx.render(json(bookmark));
       }
-    } catch (ValidationException e) {
-      ctx.getResponse().send(e.getMessage());
-      ctx.getResponse().status(HttpURLConnection.HTTP_BAD_REQUEST);
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+    });
+  }
+
+  /** Writes the tenant's bookmarks in {@link BookmarkCodec}'s format to a file, then sends it. */
+  private static void exportBookmarks(Context ctx) {
+    service(ctx, service -> {
+      Path export = Files.createTempFile("bookmarks-", ".bkmx");
+      try (FileChannel channel = FileChannel.open(export, StandardOpenOption.WRITE)) {
+        BookmarkCodec.write(service.exportBookmarks(BookmarkCodec.BLOCK_SIZE), channel);
+      } catch (IOException | RuntimeException e) {
+        Files.deleteIfExists(export);
+        throw e;
+      }
+      return export;
+    }).then(export -> {
+      ctx.onClose(outcome -> Files.deleteIfExists(export));
+      ctx.getResponse().getHeaders()
+          .set("Content-Disposition", "attachment; filename=\"bookmarks.bkmx\"");
+      ctx.getResponse().contentType(BookmarkCodec.MEDIA_TYPE);
+      ctx.getResponse().sendFile(export);
+    });
+  }
+
+  /** Imports a body written by {@link #exportBookmarks} and answers the number imported. */
+  private static void importBookmarks(Context ctx) {
+    TypedData body = RequestBodies.importBody(ctx);
+    if (body == null) {
+      return;
+    }
+    write(ctx, service -> {
+      try (ReadableByteChannel channel = Channels.newChannel(body.getInputStream())) {
+        return service.importBookmarks(BookmarkCodec.read(channel));
+      }
+    }).onError(e -> {
+      if (e instanceof IOException || e instanceof UncheckedIOException) {
+        ctx.getResponse().status(HttpURLConnection.HTTP_BAD_REQUEST);
+        ctx.getResponse().send(e.getMessage());
+      } else if (e instanceof TenantMovedException) {
+        // the blocks before the move stay imported, and sending it again skips them
+        ctx.getResponse().status(HttpURLConnection.HTTP_UNAVAILABLE);
+        ctx.getResponse().send("the tenant was moved during the import; send it again");
+      } else {
+        sendValidationError(ctx, e);
+      }
+    }).then(count -> ctx.getResponse().send(String.valueOf(count)));
+  }
+
+  private static void updateBookmark(Context ctx) {
+    Bookmark bookmark = RequestBodies.bookmark(ctx);
+    if (bookmark == null) {
+      return;
+    }
+    bookmark.setId(Long.parseLong(ctx.getPathTokens().get("id")));
+    if (!readIfMatch(ctx, bookmark)) {
+      return;
     }
+    write(ctx, service -> service.updateBookmark(bookmark))
+        .onError(e -> sendValidationError(ctx, e))
+        .then(updated -> {
+          if (updated == null) {
+            ctx.getResponse().status(HttpURLConnection.HTTP_NOT_FOUND);
+            ctx.getResponse().send();
+          } else {
+            setETag(ctx, updated.getVersion());
+            ctx.getResponse().status(HttpURLConnection.HTTP_NO_CONTENT);
+            ctx.getResponse().send();
+          }
+        });
   }
 
   private static void createBookmark(Context ctx) {
-    try {
-      Bookmark bookmark = ctx.parse(fromJson(Bookmark.class));
-      Bookmark created = bookmarkService.createBookmark(bookmark);
-      ctx.getResponse().status(HttpURLConnection.HTTP_CREATED);
-      ctx.getResponse().send("/api/bookmarks/" + created.getId());
-    } catch (ValidationException e) {
+    Bookmark bookmark = RequestBodies.bookmark(ctx);
+    if (bookmark == null) {
+      return;
+    }
+    boolean fetchTitle = "true".equals(ctx.getRequest().getQueryParams().get("fetch_title"));
+    if (fetchTitle) {
+      usePlaceholderTitle(bookmark);
+    }
+    write(ctx, service -> service.createBookmark(bookmark))
+        .onError(e -> sendValidationError(ctx, e))
+        .then(created -> {
+          if (fetchTitle) {
+            fetchMetadata(tenantOf(ctx), created);
+          }
+          ctx.getResponse().status(HttpURLConnection.HTTP_CREATED);
+          ctx.getResponse().send("/api/bookmarks/" + created.getId());
+        });
+  }
+
+  /** Undoes the delete of a bookmark that has not been purged yet and answers it. */
+  private static void undeleteBookmark(Context ctx) {
+    long id = Long.parseLong(ctx.getPathTokens().get("id"));
+    write(ctx, service -> service.undeleteBookmark(id))
+        .onError(e -> sendValidationError(ctx, e))
+        .then(bookmark -> renderBookmark(ctx, bookmark));
+  }
+
+  /** Answers the bookmarks sharing the most tags with a bookmark, 10 unless {@code limit}. */
+  private static void getRelatedBookmarks(Context ctx) {
+    long id = Long.parseLong(ctx.getPathTokens().get("id"));
+    Integer limit = intParam(ctx, "limit", 10);
+    if (limit == null) {
+      return;
+    }
+    service(ctx, service -> service.getRelatedBookmarks(id, limit)).then(related -> {
+      if (related == null) {
+        ctx.getResponse().status(HttpURLConnection.HTTP_NOT_FOUND);
+        ctx.getResponse().send();
+      } else {
+        ctx.render(json(related));
+      }
+    });
+  }
+
+  /**
+   * Answers 400 with the message of a {@link ValidationException}. A
+   * {@link DuplicateBookmarkException} gets 409 with the existing bookmark's location and a
+   * {@link VersionConflictException} 409 with the current version's {@code ETag}. Anything else
+   * is passed on.
+   */
+  private static void sendValidationError(Context ctx, Throwable e) {
+    if (e instanceof DuplicateBookmarkException) {
+      String existing = "/api/bookmarks/" + ((DuplicateBookmarkException) e).getExistingId();
+      ctx.getResponse().status(HttpURLConnection.HTTP_CONFLICT);
+      ctx.getResponse().getHeaders().set("Location", existing);
+      ctx.getResponse().send(existing);
+    } else if (e instanceof VersionConflictException) {
+      setETag(ctx, ((VersionConflictException) e).getCurrentVersion());
+      ctx.getResponse().status(HttpURLConnection.HTTP_CONFLICT);
+      ctx.getResponse().send(e.getMessage());
+    } else if (e instanceof ValidationException) {
       ctx.getResponse().status(HttpURLConnection.HTTP_BAD_REQUEST);
       ctx.getResponse().send(e.getMessage());
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+    } else {
+      ctx.error(e);
     }
   }
 
   private static void getTags(Context ctx) {
-    List<Tag> tags = bookmarkService.getTags();
-    ctx.render(json(tags));
+    MappedBookmarkIndex index = warmIndex(ctx);
+    (index != null ? warm(ctx, index::getTags) : service(ctx, BookmarkService::getTags))
+        .then(tags -> ctx.render(json(tags)));
   }
 
   private static void getBookmarks(Context ctx) {
     MultiValueMap<String, String> params = ctx.getRequest().getQueryParams();
     String tags = params.get("tags");
     String order = params.get("order");
-    List<Bookmark> bookmarks = bookmarkService.getBookmarksOrderByTitle(tags, order);
-    ctx.render(json(bookmarks));
+    Integer offset = intParam(ctx, "offset", 0);
+    Integer limit = intParam(ctx, "limit", -1);
+    if (offset == null || limit == null) {
+      return;
+    }
+    MappedBookmarkIndex index = warmIndex(ctx);
+    (index != null && !"visit_count".equals(order)
+        ? warm(ctx, () -> findWarm(index, tags, order, offset, limit))
+        : service(ctx, service -> service.getBookmarksOrderByTitle(tags, order, offset, limit)))
+        .then(bookmarks -> {
+          ctx.render(json(bookmarks));
+          StartupTimer.firstResponse("/api/bookmarks");
+        });
   }
 
   private static void freemarkerBookmarkList(Context ctx) {
     MultiValueMap<String, String> params = ctx.getRequest().getQueryParams();
     String tags = params.get("tags");
     String order = params.get("order");
-    List<Bookmark> bookmarks = bookmarkService.getBookmarksOrderByTitle(tags, order);
-    List<Tag> tagList = bookmarkService.getTags();
-    FreemarkerModel model = new FreemarkerModel();
-    model.put("bookmarks", bookmarks);
-    model.put("tags", tagList);
-    model.put("content_template", "bookmark_list.ftl");
-    ctx.render(model);
+    Integer offset = intParam(ctx, "offset", 0);
+    Integer limit = intParam(ctx, "limit", -1);
+    if (offset == null || limit == null) {
+      return;
+    }
+    MappedBookmarkIndex index = warmIndex(ctx);
+    if (index != null && !"visit_count".equals(order)) {
+      warm(ctx, () -> {
+        FreemarkerModel model = new FreemarkerModel();
+        model.put("bookmarks", findWarm(index, tags, order, offset, limit));
+        model.put("tags", index.getTags());
+        model.put("content_template", "bookmark_list.ftl");
+        return model;
+      }).then(ctx::render);
+      return;
+    }
+    service(ctx, service -> {
+      FreemarkerModel model = new FreemarkerModel();
+      model.put("bookmarks", service.getBookmarksOrderByTitle(tags, order, offset, limit));
+      model.put("tags", service.getTags());
+      model.put("content_template", "bookmark_list.ftl");
+      return model;
+    }).then(ctx::render);
+  }
+
+  /** Same as {@link BookmarkService#getBookmarksOrderByTitle} on a warm index. */
+  private static List<Bookmark> findWarm(MappedBookmarkIndex index, String tags, String order,
+      int offset, int limit) {
+    return index.find(BookmarkService.getTagFilter(tags), "creation_timestamp".equals(order),
+        offset, limit);
+  }
+
+  /**
+   * The query parameter as a number, {@code defaultValue} if it is missing, or {@code null} once
+   * the request has been answered with 400 because it is not a number.
+   */
+  private static Integer intParam(Context ctx, String name, int defaultValue) {
+    String value = ctx.getRequest().getQueryParams().get(name);
+    if (value == null || value.isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      ctx.getResponse().status(HttpURLConnection.HTTP_BAD_REQUEST);
+      ctx.getResponse().send(name + " is not a number: " + value);
+      return null;
+    }
   }
 
   private static void freemarkerBookmarkNew(Context ctx) {
@@ -173,66 +697,135 @@ public class App {
 
   private static void freemarkerBookmarkEdit(Context ctx) {
     long id = Long.parseLong(ctx.getPathTokens().get("id"));
-    Bookmark bookmark = bookmarkService.getBookmark(id);
-    if (bookmark == null) {
-      ctx.getResponse().status(HttpURLConnection.HTTP_NOT_FOUND);
-      ctx.getResponse().send();
-    } else {
-      FreemarkerModel model = new FreemarkerModel();
-      model.put("bookmark", bookmark);
-      model.put("content_template", "bookmark_form_edit.ftl");
-      ctx.render(model);
-    }
+    service(ctx, service -> service.getBookmark(id)).then(bookmark -> {
+      if (bookmark == null) {
+        ctx.getResponse().status(HttpURLConnection.HTTP_NOT_FOUND);
+        ctx.getResponse().send();
+      } else {
+        FreemarkerModel model = new FreemarkerModel();
+        model.put("bookmark", bookmark);
+        model.put("content_template", "bookmark_form_edit.ftl");
+        ctx.render(model);
+      }
+    });
   }
 
   private static void freemarkerCreateBookmark(Context ctx) throws Exception {
-    Form form = ctx.parse(Form.class);
+    Form form = RequestBodies.form(ctx);
+    if (form == null) {
+      return;
+    }
     String title = form.get("title");
     String url = form.get("url");
     String tags = form.get("tags");
-    bookmarkService.createBookmark(new Bookmark(title, url, tags));
-    ctx.getResponse().status(HttpURLConnection.HTTP_CREATED);
-    ctx.insert(App::freemarkerBookmarkList);
+    boolean fetchTitle = "true".equals(form.get("fetch_title"));
+    Bookmark bookmark = new Bookmark(title, url, tags);
+    if (fetchTitle) {
+      usePlaceholderTitle(bookmark);
+    }
+    write(ctx, service -> service.createBookmark(bookmark)).then(created -> {
+      if (fetchTitle) {
+        fetchMetadata(tenantOf(ctx), created);
+      }
+      ctx.getResponse().status(HttpURLConnection.HTTP_CREATED);
+      ctx.insert(App::freemarkerBookmarkList);
+    });
+  }
+
+  /** Lets a bookmark whose title will be fetched be created without one. */
+  private static void usePlaceholderTitle(Bookmark bookmark) {
+    String url = bookmark.getUrl();
+    if ((bookmark.getTitle() == null || bookmark.getTitle().isEmpty()) && url != null) {
+      bookmark.setTitle(url.length() > 80 ? url.substring(0, 80) : url);
+    }
+  }
+
+  /**
+   * Fetches the page off the request path and updates the bookmark once it arrives, unless the
+   * bookmark was changed since it was created.
+   */
+  private static void fetchMetadata(String tenant, Bookmark created) {
+    long id = created.getId();
+    long version = created.getVersion();
+    FetcherHolder.INSTANCE.fetch(created.getUrl()).whenComplete((metadata, error) -> {
+      if (error != null) {
+        LOGGER.info("could not fetch metadata of bookmark {}: {}", id, error.toString());
+        return;
+      }
+      try {
+        RouterHolder.INSTANCE.call(tenant,
+            service -> service.applyMetadata(id, version, metadata));
+      } catch (VersionConflictException e) {
+        LOGGER.info("dropping metadata fetched for version {} of bookmark {}, now at version {}",
+            version, id, e.getCurrentVersion());
+      } catch (ValidationException e) {
+        LOGGER.info("ignoring metadata fetched for bookmark {}: {}", id, e.getMessage());
+      } catch (Exception e) {
+        LOGGER.error("could not apply metadata fetched for bookmark {}", id, e);
+      }
+    });
   }
 
   private static void freemarkerUpdateOrDeleteBookmark(Context ctx) throws Exception {
-    Form form = ctx.parse(Form.class);
+    Form form = RequestBodies.form(ctx);
+    if (form == null) {
+      return;
+    }
     String method = form.get("_method");
     if ("put".equals(method)) {
       freemarkerUpdateBookmark(ctx);
-    }
-    if ("delete".equals(method)) {
+    } else if ("delete".equals(method)) {
       freemarkerDeleteBookmark(ctx);
     } else {
       ctx.getResponse().status(HttpURLConnection.HTTP_BAD_REQUEST);
+      ctx.getResponse().send();
     }
   }
 
   private static void freemarkerDeleteBookmark(Context ctx) {
     long id = Long.parseLong(ctx.getPathTokens().get("id"));
-    bookmarkService.deleteBookmark(id);
-    ctx.getResponse().status(HttpURLConnection.HTTP_OK);
-    ctx.insert(App::freemarkerBookmarkList);
+    write(ctx, service -> {
+      service.deleteBookmark(id);
+      return id;
+    }).then(deleted -> {
+      ctx.getResponse().status(HttpURLConnection.HTTP_OK);
+      ctx.insert(App::freemarkerBookmarkList);
+    });
   }
 
   private static void freemarkerUpdateBookmark(Context ctx) throws Exception {
     long id = Long.parseLong(ctx.getPathTokens().get("id"));
-    Form form = ctx.parse(Form.class);
+    // parsed by freemarkerUpdateOrDeleteBookmark already
+    Form form = RequestBodies.form(ctx);
     String title = form.get("title");
     String url = form.get("url");
     String tags = form.get("tags");
-    Bookmark bookmark = bookmarkService.updateBookmark(new Bookmark(id, title, url, tags));
-    if (bookmark == null) {
-      ctx.getResponse().status(HttpURLConnection.HTTP_NOT_FOUND);
-      ctx.getResponse().send();
-    } else {
-      ctx.getResponse().status(HttpURLConnection.HTTP_OK);
-      ctx.insert(App::freemarkerBookmarkList);
+    String version = form.get("version");
+    Bookmark update = new Bookmark(id, title, url, tags);
+    if (version != null && !version.isEmpty()) {
+      try {
+        update.setVersion(Long.valueOf(version.trim()));
+      } catch (NumberFormatException e) {
+        ctx.getResponse().status(HttpURLConnection.HTTP_BAD_REQUEST);
+        ctx.getResponse().send("version is not a number: " + version);
+        return;
+      }
     }
+    write(ctx, service -> service.updateBookmark(update))
+        .onError(e -> sendValidationError(ctx, e))
+        .then(bookmark -> {
+          if (bookmark == null) {
+            ctx.getResponse().status(HttpURLConnection.HTTP_NOT_FOUND);
+            ctx.getResponse().send();
+          } else {
+            ctx.getResponse().status(HttpURLConnection.HTTP_OK);
+            ctx.insert(App::freemarkerBookmarkList);
+          }
+        });
   }
 
   public static void addTags(Bookmark bookmark) {
-    bookmarkService.addTags(bookmark);
+    bookmarkService().addTags(bookmark);
   }
 
 
@@ -0,0 +1,132 @@
+package jags.ratpacktest;
+
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.exception.ValidationException;
+import jags.ratpacktest.metrics.Metrics;
+import jags.ratpacktest.service.BookmarkService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closed-loop load against a started server: {@code concurrency} clients each send a request,
+ * wait for the answer and send the next one, alternating a page of {@code /api/bookmarks} with a
+ * single bookmark. Compares the {@link ServiceExecution} modes at high concurrency, e.g.
+ * {@code gradle loadBenchmark -Pexecution=virtual -Pconcurrency=2000}.
+ */
+final class LoadBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LoadBenchmark.class);
+  private static final int BOOKMARKS = 200;
+
+  private LoadBenchmark() {
+  }
+
+  static void run(int port, BookmarkService service, ServiceExecution.Mode mode,
+      int concurrency, int seconds) throws Exception {
+    String base = "http://localhost:" + port + "/api/bookmarks";
+    long[] ids = seed(service);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    AtomicLong errors = new AtomicLong();
+    long[][] latencies = new long[concurrency][];
+    Thread[] clients = new Thread[concurrency];
+    for (int c = 0; c < concurrency; c++) {
+      int client = c;
+      clients[c] = new Thread(() -> latencies[client] = load(base, ids, deadline, errors));
+      clients[c].setDaemon(true);
+      clients[c].start();
+    }
+    int count = 0;
+    for (int c = 0; c < concurrency; c++) {
+      clients[c].join();
+      count += latencies[c].length;
+    }
+    long[] all = new long[count];
+    int next = 0;
+    for (long[] clientLatencies : latencies) {
+      System.arraycopy(clientLatencies, 0, all, next, clientLatencies.length);
+      next += clientLatencies.length;
+    }
+    Arrays.sort(all);
+    Map<String, Long> metrics = Metrics.snapshot();
+    LOGGER.info("{} clients, {} execution: {} requests/s, p50 {} ms, p99 {} ms, {} errors, "
+            + "{} admission waits", concurrency, mode.name().toLowerCase(Locale.ROOT),
+        count / seconds, millis(percentile(all, 0.50)), millis(percentile(all, 0.99)),
+        errors.get(), metrics.getOrDefault("execution.waits", 0L));
+  }
+
+  /**
+   * Stores the bookmarks the clients read through the service, since the write limit would turn
+   * most of them away over HTTP, and returns their ids.
+   */
+  private static long[] seed(BookmarkService service) throws ValidationException {
+    long[] ids = new long[BOOKMARKS];
+    for (int i = 0; i < BOOKMARKS; i++) {
+      String url = "http://example.com/" + i;
+      // left over from an earlier run on a file database
+      Bookmark bookmark = service.findByUrl(url);
+      if (bookmark == null) {
+        bookmark = service.createBookmark(new Bookmark(null, "Bookmark " + i, url,
+            "tag" + (i % 10)));
+      }
+      ids[i] = bookmark.getId();
+    }
+    return ids;
+  }
+
+  private static long[] load(String base, long[] ids, long deadline, AtomicLong errors) {
+    long[] latencies = new long[1024];
+    int count = 0;
+    while (System.nanoTime() < deadline) {
+      String url = count % 2 == 0 ? base + "?limit=20"
+          : base + "/" + ids[ThreadLocalRandom.current().nextInt(ids.length)];
+      long start = System.nanoTime();
+      try {
+        get(url);
+      } catch (IOException e) {
+        errors.incrementAndGet();
+        continue;
+      }
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, count * 2);
+      }
+      latencies[count++] = System.nanoTime() - start;
+    }
+    return Arrays.copyOf(latencies, count);
+  }
+
+  private static void get(String url) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    int status = connection.getResponseCode();
+    if (status != HttpURLConnection.HTTP_OK) {
+      // a 404 or 429 did none of the work being measured
+      connection.disconnect();
+      throw new IOException(url + " answered " + status);
+    }
+    try (InputStream in = connection.getInputStream()) {
+      byte[] buffer = new byte[8192];
+      while (in.read(buffer) != -1) {
+        // drain the body so the connection is kept alive
+      }
+    }
+  }
+
+  private static long percentile(long[] sorted, double fraction) {
+    return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1,
+        Math.round(fraction * (sorted.length - 1)))];
+  }
+
+  private static String millis(long nanos) {
+    return String.format("%.1f", nanos / 1e6);
+  }
+}
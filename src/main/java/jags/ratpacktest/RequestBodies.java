@@ -0,0 +1,114 @@
+package jags.ratpacktest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.metrics.Metrics;
+import ratpack.form.Form;
+import ratpack.handling.Context;
+import ratpack.http.Request;
+import ratpack.http.TypedData;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Reads request bodies once per request: the parsed body is kept in the request registry, so a
+ * handler that passes the request on, like the form {@code _method} dispatch, doesn't have the
+ * next one parse it again. Each kind of body has a size limit, checked against
+ * {@code Content-Length} or the received bytes before anything is decoded; a body over it is
+ * answered with {@code 413} without reaching a service.
+ *
+ * <p>Ratpack 0.9 receives a body completely before its handlers run, up to the server's
+ * {@code maxContentLength}, so these limits keep requests from costing decoding and service
+ * work, not memory. The server profiles set {@code maxContentLength} to the import limit, the
+ * largest here; a larger {@code ratpacktest.body.maxImportBytes} needs a larger one too. JSON is bound to {@link Bookmark} by one shared {@link ObjectReader}
+ * straight from the token stream, without building a tree first.
+ */
+final class RequestBodies {
+
+  private static final int REQUEST_ENTITY_TOO_LARGE = 413;
+  // a 2048 character url percent-encoded as UTF-8 is up to 18 KiB
+  private static final long MAX_BOOKMARK_BYTES =
+      Long.getLong("ratpacktest.body.maxBookmarkBytes", 32 * 1024);
+  private static final long MAX_IMPORT_BYTES =
+      Long.getLong("ratpacktest.body.maxImportBytes", 64L * 1024 * 1024);
+  private static final ObjectReader BOOKMARK_READER = new ObjectMapper().reader(Bookmark.class);
+
+  private RequestBodies() {
+  }
+
+  /** The JSON body as a new bookmark, or {@code null} once the request has been answered. */
+  static Bookmark bookmark(Context ctx) {
+    Request request = ctx.getRequest();
+    Bookmark cached = request.maybeGet(Bookmark.class).orElse(null);
+    if (cached != null) {
+      return cached;
+    }
+    if (!withinLimit(ctx, MAX_BOOKMARK_BYTES)) {
+      return null;
+    }
+    Bookmark bookmark;
+    try {
+      bookmark = BOOKMARK_READER.readValue(request.getBody().getInputStream());
+    } catch (JsonProcessingException e) {
+      Metrics.counter("body.rejected.malformed").increment();
+      ctx.getResponse().status(HttpURLConnection.HTTP_BAD_REQUEST);
+      ctx.getResponse().send("malformed bookmark: " + e.getOriginalMessage());
+      return null;
+    } catch (IOException e) {
+      // the body is in memory already, so this is not the client's fault
+      ctx.error(e);
+      return null;
+    }
+    if (bookmark == null) {
+      Metrics.counter("body.rejected.malformed").increment();
+      ctx.getResponse().status(HttpURLConnection.HTTP_BAD_REQUEST);
+      ctx.getResponse().send("missing bookmark");
+      return null;
+    }
+    request.add(Bookmark.class, bookmark);
+    return bookmark;
+  }
+
+  /** The url-encoded or multipart form, or {@code null} once the request has been answered. */
+  static Form form(Context ctx) throws Exception {
+    Request request = ctx.getRequest();
+    Form cached = request.maybeGet(Form.class).orElse(null);
+    if (cached != null) {
+      return cached;
+    }
+    if (!withinLimit(ctx, MAX_BOOKMARK_BYTES)) {
+      return null;
+    }
+    Form form = ctx.parse(Form.class);
+    request.add(Form.class, form);
+    return form;
+  }
+
+  /** The body of a bookmark import, or {@code null} once the request has been answered. */
+  static TypedData importBody(Context ctx) {
+    return withinLimit(ctx, MAX_IMPORT_BYTES) ? ctx.getRequest().getBody() : null;
+  }
+
+  private static boolean withinLimit(Context ctx, long maxBytes) {
+    String contentLength = ctx.getRequest().getHeaders().get("Content-Length");
+    long length;
+    try {
+      length = contentLength != null ? Long.parseLong(contentLength.trim())
+          : ctx.getRequest().getBody().getBuffer().readableBytes();
+    } catch (NumberFormatException e) {
+      ctx.getResponse().status(HttpURLConnection.HTTP_BAD_REQUEST);
+      ctx.getResponse().send();
+      return false;
+    }
+    if (length <= maxBytes) {
+      return true;
+    }
+    Metrics.counter("body.rejected.tooLarge").increment();
+    ctx.getResponse().status(REQUEST_ENTITY_TOO_LARGE);
+    ctx.getResponse().send("request body over " + maxBytes + " bytes");
+    return false;
+  }
+}
@@ -0,0 +1,64 @@
+package jags.ratpacktest;
+
+import com.google.common.io.Resources;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ratpack.server.ServerConfig;
+
+import java.net.URL;
+
+/**
+ * Server settings loaded from {@code server/<profile>.yml} next to this class, picked with
+ * {@code -Dratpacktest.serverProfile} (default {@code default}). Ratpack's own environment
+ * variables ({@code RATPACK_THREADS}) and system properties ({@code -Dratpack.threads}) are
+ * added after the file, so they override it.
+ *
+ * <p>Netty's buffer allocator is chosen from system properties when its classes load, so those
+ * are set here before the server starts rather than through {@link ServerConfig}.
+ */
+public final class ServerProfile {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ServerProfile.class);
+
+  private ServerProfile() {
+  }
+
+  /** Must run before any Netty class is loaded. */
+  public static void applyNettyProperties() {
+    if (Boolean.parseBoolean(System.getProperty("ratpacktest.netty.pooledDirect", "true"))) {
+      // Netty 4.0 otherwise allocates unpooled buffers for every request and response
+      setIfAbsent("io.netty.allocator.type", "pooled");
+      setIfAbsent("io.netty.noPreferDirect", "false");
+    }
+  }
+
+  public static ServerConfig.Builder configure(ServerConfig.Builder builder) {
+    String name = System.getProperty("ratpacktest.serverProfile", "default");
+    URL profile = ServerProfile.class.getResource("server/" + name + ".yml");
+    if (profile == null) {
+      throw new IllegalArgumentException("no server profile named " + name);
+    }
+    // read through the URL: inside a jar the profile is no file a Path could name
+    builder.yaml(Resources.asByteSource(profile));
+    LOGGER.info("server profile '{}', allocator {}, native epoll transport {}", name,
+        System.getProperty("io.netty.allocator.type", "default"),
+        isEpollAvailable() ? "available" : "unavailable");
+    return builder.env().sysProps();
+  }
+
+  /** Ratpack uses epoll by itself when netty-transport-native-epoll is on a Linux classpath. */
+  private static boolean isEpollAvailable() {
+    try {
+      Class<?> epoll = Class.forName("io.netty.channel.epoll.Epoll");
+      return (Boolean) epoll.getMethod("isAvailable").invoke(null);
+    } catch (ReflectiveOperationException | LinkageError e) {
+      return false;
+    }
+  }
+
+  private static void setIfAbsent(String key, String value) {
+    if (System.getProperty(key) == null) {
+      System.setProperty(key, value);
+    }
+  }
+}
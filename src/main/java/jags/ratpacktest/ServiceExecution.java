@@ -0,0 +1,147 @@
+package jags.ratpacktest;
+
+import jags.ratpacktest.metrics.Metrics;
+import jags.ratpacktest.service.ParallelTagQuery;
+import jags.ratpacktest.service.TenantRouter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ratpack.exec.Promise;
+import ratpack.handling.Context;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs the handlers' blocking service calls off the event loop, on Ratpack's blocking pool or,
+ * with {@code -Dratpacktest.execution=virtual} on JDK 21 or later, on a virtual thread per call.
+ * Older JDKs fall back to the blocking pool.
+ *
+ * <p>Both start threads without bound, so calls are admitted per shard by a semaphore sized to
+ * what the shard's connection pool can serve: a call holds up to three connections at once, and
+ * callers beyond that would only wait inside the pool, or deadlock there holding connections the
+ * others need. The connections {@link ParallelTagQuery}'s fork-join pool may hold for tag
+ * queries, one per pool thread, are set aside first.
+ *
+ * <p>H2 runs every statement inside {@code synchronized} blocks, and its lock and pool waits
+ * happen there too, so a virtual thread waiting in H2 pins its carrier. In virtual mode calls
+ * are also limited to one per carrier, so pinned waiters can't starve the thread they wait for.
+ * {@code -Dratpacktest.execution.tracePinning=true} sets {@code jdk.tracePinnedThreads=short},
+ * which prints the stack of every virtual thread that blocks while pinned.
+ */
+public final class ServiceExecution {
+
+  public enum Mode {
+    PLATFORM, VIRTUAL
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ServiceExecution.class);
+  // a new tenant's service creates its tables on three DAOs; writes hold one handle
+  private static final int CONNECTIONS_PER_CALL = 3;
+
+  private final TenantRouter router;
+  private final Mode mode;
+  private final ExecutorService virtualThreads;
+  private final int permitsPerShard;
+  private final Semaphore[] shardPermits;
+  private final Semaphore carrierPermits;
+
+  public ServiceExecution(TenantRouter router, Mode mode) {
+    this.router = router;
+    this.virtualThreads = mode == Mode.VIRTUAL ? newVirtualThreadPerTaskExecutor() : null;
+    this.mode = virtualThreads != null ? Mode.VIRTUAL : Mode.PLATFORM;
+    this.permitsPerShard = Math.max(1,
+        (router.maxConnections() - ParallelTagQuery.poolThreads()) / CONNECTIONS_PER_CALL);
+    this.shardPermits = new Semaphore[router.shardCount()];
+    for (int i = 0; i < shardPermits.length; i++) {
+      shardPermits[i] = new Semaphore(permitsPerShard);
+    }
+    this.carrierPermits = virtualThreads != null
+        ? new Semaphore(Runtime.getRuntime().availableProcessors()) : null;
+    Metrics.gauge("execution.inFlight", () -> {
+      long inFlight = 0;
+      for (Semaphore permits : shardPermits) {
+        inFlight += permitsPerShard - permits.availablePermits();
+      }
+      return inFlight;
+    });
+    LOGGER.info("service calls run on {} threads, {} at a time per shard",
+        this.mode.name().toLowerCase(Locale.ROOT), permitsPerShard);
+  }
+
+  /** Reads {@code -Dratpacktest.execution}, {@code platform} or {@code virtual}. */
+  public static ServiceExecution fromSystemProperties(TenantRouter router) {
+    Mode mode = Mode.valueOf(System.getProperty("ratpacktest.execution", "platform")
+        .toUpperCase(Locale.ROOT));
+    if (mode == Mode.VIRTUAL && Boolean.getBoolean("ratpacktest.execution.tracePinning")
+        && System.getProperty("jdk.tracePinnedThreads") == null) {
+      // read when the first virtual thread starts
+      System.setProperty("jdk.tracePinnedThreads", "short");
+    }
+    return new ServiceExecution(router, mode);
+  }
+
+  public Mode mode() {
+    return mode;
+  }
+
+  /** Runs {@code work} for {@code tenant} once its shard admits it, off the event loop. */
+  public <T> Promise<T> call(Context ctx, String tenant, Callable<T> work) {
+    Semaphore permits = shardPermits[router.shardOf(tenant)];
+    if (virtualThreads == null) {
+      return ctx.blocking(() -> admitted(permits, work));
+    }
+    return ctx.promise(fulfiller -> virtualThreads.execute(() -> {
+      T result;
+      try {
+        result = admitted(permits, work);
+      } catch (Throwable e) {
+        fulfiller.error(e);
+        return;
+      }
+      fulfiller.success(result);
+    }));
+  }
+
+  private <T> T admitted(Semaphore permits, Callable<T> work) throws Exception {
+    acquire(permits);
+    try {
+      if (carrierPermits == null) {
+        return work.call();
+      }
+      acquire(carrierPermits);
+      try {
+        return work.call();
+      } finally {
+        carrierPermits.release();
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  private static void acquire(Semaphore permits) throws InterruptedException {
+    if (permits.tryAcquire()) {
+      return;
+    }
+    long start = System.nanoTime();
+    permits.acquire();
+    Metrics.counter("execution.waits").increment();
+    Metrics.counter("execution.waitNanos").add(System.nanoTime() - start);
+  }
+
+  /** {@code Executors.newVirtualThreadPerTaskExecutor()}, or {@code null} before JDK 21. */
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      // missing, or a preview feature that isn't enabled
+      LOGGER.warn("virtual threads are not available on Java {}, using the blocking pool",
+          System.getProperty("java.version"));
+      return null;
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package jags.ratpacktest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Logs how long each startup phase takes and how long after JVM launch the first successful
+ * {@code /api/bookmarks} response went out, which is what matters for a new instance.
+ */
+public final class StartupTimer {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StartupTimer.class);
+  private static final AtomicBoolean FIRST_RESPONSE = new AtomicBoolean();
+
+  private StartupTimer() {
+  }
+
+  public static <T> T time(String phase, Supplier<T> supplier) {
+    long start = System.nanoTime();
+    T result = supplier.get();
+    LOGGER.info("startup phase '{}' took {} ms on {}", phase,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+        Thread.currentThread().getName());
+    return result;
+  }
+
+  public static long millisSinceJvmStart() {
+    return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+  }
+
+  /** Records the first successful response; later calls are a single volatile read. */
+  public static void firstResponse(String path) {
+    if (!FIRST_RESPONSE.get() && FIRST_RESPONSE.compareAndSet(false, true)) {
+      LOGGER.info("first successful {} response {} ms after JVM start", path,
+          millisSinceJvmStart());
+    }
+  }
+}
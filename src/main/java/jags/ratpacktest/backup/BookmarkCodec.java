@@ -0,0 +1,338 @@
+package jags.ratpacktest.backup;
+
+import jags.ratpacktest.domain.Bookmark;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Compact binary export format of bookmarks with their tags, written to and read from NIO
+ * channels through one fixed buffer, so neither side holds more than a block in memory.
+ *
+ * <p>The stream is the magic {@code BKMX}, a version byte, then blocks of up to
+ * {@link #BLOCK_SIZE} bookmarks stored column by column, and a block count of 0 at the end:
+ * <pre>
+ * block   := count ids created urls titles tags
+ * ids     := count x zigzag varint, the difference to the previous id
+ * created := count x zigzag varint, the difference to the previous creation time in millis
+ * urls    := count x (varint byte length, UTF-8)
+ * titles  := count x (varint byte length + 1, UTF-8), 0 for no title
+ * tags    := count x (varint n, n x varint label code)
+ * </pre>
+ * Exports run in id order, so ids take one byte each. Tag labels are dictionary-encoded: the
+ * code of a label is the order in which it first appeared, and the code one past the current
+ * dictionary introduces a new label, followed by its length and bytes.
+ */
+public final class BookmarkCodec {
+
+  public static final String MEDIA_TYPE = "application/x-bookmarks";
+  public static final int BLOCK_SIZE = 4096;
+
+  private static final byte[] MAGIC = {'B', 'K', 'M', 'X'};
+  private static final byte VERSION = 1;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // bounds what a corrupt length can make the reader allocate
+  private static final int MAX_STRING_BYTES = 1 << 20;
+  private static final int MAX_LABELS = 1 << 22;
+
+  private BookmarkCodec() {
+  }
+
+  /**
+   * Writes the bookmarks of every block to {@code channel}, splitting blocks larger than
+   * {@link #BLOCK_SIZE}.
+   *
+   * @return the number of bookmarks written
+   */
+  public static long write(Iterator<List<Bookmark>> blocks, WritableByteChannel channel)
+      throws IOException {
+    Writer writer = new Writer(channel);
+    writer.ensure(MAGIC.length + 1);
+    writer.buffer.put(MAGIC).put(VERSION);
+    long count = 0;
+    while (blocks.hasNext()) {
+      List<Bookmark> block = blocks.next();
+      for (int from = 0; from < block.size(); from += BLOCK_SIZE) {
+        List<Bookmark> part = block.subList(from, Math.min(block.size(), from + BLOCK_SIZE));
+        writer.writeBlock(part);
+        count += part.size();
+      }
+    }
+    writer.writeVarLong(0);
+    writer.flush();
+    return count;
+  }
+
+  /**
+   * Reads the blocks of {@code channel} one by one. The iterator throws
+   * {@link UncheckedIOException} when the stream is truncated or corrupt.
+   */
+  public static Iterator<List<Bookmark>> read(ReadableByteChannel channel) throws IOException {
+    Reader reader = new Reader(channel);
+    reader.require(MAGIC.length + 1);
+    for (byte expected : MAGIC) {
+      if (reader.buffer.get() != expected) {
+        throw new IOException("not a bookmark export");
+      }
+    }
+    byte version = reader.buffer.get();
+    if (version != VERSION) {
+      throw new IOException("unsupported bookmark export version " + version);
+    }
+    return reader;
+  }
+
+  private static final class Writer {
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final Map<String, Integer> labelCodes = new HashMap<>();
+    private long previousId;
+    private long previousCreated;
+
+    private Writer(WritableByteChannel channel) {
+      this.channel = channel;
+    }
+
+    private void writeBlock(List<Bookmark> block) throws IOException {
+      writeVarLong(block.size());
+      for (Bookmark bookmark : block) {
+        writeVarLong(zigzag(bookmark.getId() - previousId));
+        previousId = bookmark.getId();
+      }
+      for (Bookmark bookmark : block) {
+        long created = bookmark.getCreationTimestamp() == null
+            ? 0 : bookmark.getCreationTimestamp().getTime();
+        writeVarLong(zigzag(created - previousCreated));
+        previousCreated = created;
+      }
+      for (Bookmark bookmark : block) {
+        writeBytes(bookmark.getUrl().getBytes(StandardCharsets.UTF_8), 0);
+      }
+      for (Bookmark bookmark : block) {
+        if (bookmark.getTitle() == null) {
+          writeVarLong(0);
+        } else {
+          writeBytes(bookmark.getTitle().getBytes(StandardCharsets.UTF_8), 1);
+        }
+      }
+      for (Bookmark bookmark : block) {
+        List<String> labels = labels(bookmark.getTags());
+        writeVarLong(labels.size());
+        for (String label : labels) {
+          Integer code = labelCodes.get(label);
+          if (code != null) {
+            writeVarLong(code);
+          } else {
+            writeVarLong(labelCodes.size());
+            writeBytes(label.getBytes(StandardCharsets.UTF_8), 0);
+            labelCodes.put(label, labelCodes.size());
+          }
+        }
+      }
+    }
+
+    private void writeBytes(byte[] bytes, int lengthOffset) throws IOException {
+      writeVarLong(bytes.length + lengthOffset);
+      for (int from = 0; from < bytes.length; ) {
+        ensure(1);
+        int length = Math.min(buffer.remaining(), bytes.length - from);
+        buffer.put(bytes, from, length);
+        from += length;
+      }
+    }
+
+    private void writeVarLong(long value) throws IOException {
+      ensure(10);
+      while ((value & ~0x7FL) != 0) {
+        buffer.put((byte) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      buffer.put((byte) value);
+    }
+
+    private void ensure(int bytes) throws IOException {
+      if (buffer.remaining() < bytes) {
+        flush();
+      }
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+
+  private static final class Reader implements Iterator<List<Bookmark>> {
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final List<String> labels = new ArrayList<>();
+    private long previousId;
+    private long previousCreated;
+    private List<Bookmark> next;
+    private boolean ended;
+
+    private Reader(ReadableByteChannel channel) {
+      this.channel = channel;
+      buffer.flip();
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next == null && !ended) {
+        try {
+          next = readBlock();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        ended = next == null;
+      }
+      return next != null;
+    }
+
+    @Override
+    public List<Bookmark> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      List<Bookmark> block = next;
+      next = null;
+      return block;
+    }
+
+    private List<Bookmark> readBlock() throws IOException {
+      int count = (int) readVarLong();
+      if (count == 0) {
+        return null;
+      }
+      if (count < 0 || count > BLOCK_SIZE) {
+        throw new IOException("corrupt block of " + count + " bookmarks");
+      }
+      long[] ids = new long[count];
+      for (int i = 0; i < count; i++) {
+        previousId += unzigzag(readVarLong());
+        ids[i] = previousId;
+      }
+      long[] created = new long[count];
+      for (int i = 0; i < count; i++) {
+        previousCreated += unzigzag(readVarLong());
+        created[i] = previousCreated;
+      }
+      List<Bookmark> block = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        block.add(new Bookmark(ids[i], null, readString(0), new Date(created[i])));
+      }
+      for (Bookmark bookmark : block) {
+        bookmark.setTitle(readString(1));
+      }
+      StringBuilder tags = new StringBuilder();
+      for (Bookmark bookmark : block) {
+        tags.setLength(0);
+        long labelCount = readVarLong();
+        for (long i = 0; i < labelCount; i++) {
+          if (i > 0) {
+            tags.append(',');
+          }
+          tags.append(readLabel());
+        }
+        bookmark.setTags(tags.toString());
+      }
+      return block;
+    }
+
+    private String readLabel() throws IOException {
+      long code = readVarLong();
+      if (code < labels.size()) {
+        return labels.get((int) code);
+      }
+      if (code != labels.size() || labels.size() == MAX_LABELS) {
+        throw new IOException("corrupt tag label code " + code);
+      }
+      String label = readString(0);
+      labels.add(label);
+      return label;
+    }
+
+    /** A string whose length was written plus {@code lengthOffset}; {@code null} for 0 then. */
+    private String readString(int lengthOffset) throws IOException {
+      long length = readVarLong() - lengthOffset;
+      if (length < 0) {
+        return null;
+      }
+      if (length > MAX_STRING_BYTES) {
+        throw new IOException("corrupt string length " + length);
+      }
+      byte[] bytes = new byte[(int) length];
+      for (int from = 0; from < bytes.length; ) {
+        require(1);
+        int chunk = Math.min(buffer.remaining(), bytes.length - from);
+        buffer.get(bytes, from, chunk);
+        from += chunk;
+      }
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private long readVarLong() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        require(1);
+        byte b = buffer.get();
+        value |= (long) (b & 0x7F) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+      throw new IOException("corrupt varint");
+    }
+
+    private void require(int bytes) throws IOException {
+      if (buffer.remaining() >= bytes) {
+        return;
+      }
+      buffer.compact();
+      try {
+        while (buffer.position() < bytes) {
+          if (channel.read(buffer) < 0) {
+            throw new EOFException("bookmark export ends before its end marker");
+          }
+        }
+      } finally {
+        buffer.flip();
+      }
+    }
+  }
+
+  private static List<String> labels(String tags) {
+    List<String> labels = new ArrayList<>();
+    if (tags != null) {
+      for (String label : tags.split(",")) {
+        if (!label.isEmpty()) {
+          labels.add(label);
+        }
+      }
+    }
+    return labels;
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
@@ -0,0 +1,108 @@
+package jags.ratpacktest.backup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jags.ratpacktest.domain.Bookmark;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares {@link BookmarkCodec} with a JSON array of the same bookmarks, as the API writes and
+ * parses them: file size, and the best of several runs writing and reading the file. Run with
+ * {@code gradle exportBenchmark -Pbookmarks=1000000}.
+ */
+public final class ExportBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ExportBenchmark.class);
+  private static final int RUNS = 5;
+
+  private ExportBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int count = Integer.getInteger("ratpacktest.benchmark.bookmarks", 200000);
+    List<Bookmark> bookmarks = bookmarks(count);
+    ObjectMapper mapper = new ObjectMapper();
+
+    Path binary = Files.createTempFile("benchmark-", ".bkmx");
+    Path json = Files.createTempFile("benchmark-", ".json");
+    long binaryEncode = Long.MAX_VALUE;
+    long binaryDecode = Long.MAX_VALUE;
+    long jsonEncode = Long.MAX_VALUE;
+    long jsonDecode = Long.MAX_VALUE;
+    try {
+      for (int run = 0; run < RUNS; run++) {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(binary, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+          BookmarkCodec.write(Collections.singletonList(bookmarks).iterator(), channel);
+        }
+        binaryEncode = Math.min(binaryEncode, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        int read = 0;
+        try (FileChannel channel = FileChannel.open(binary, StandardOpenOption.READ)) {
+          Iterator<List<Bookmark>> blocks = BookmarkCodec.read(channel);
+          while (blocks.hasNext()) {
+            read += blocks.next().size();
+          }
+        }
+        binaryDecode = Math.min(binaryDecode, System.nanoTime() - start);
+        check(read, count);
+
+        start = System.nanoTime();
+        mapper.writeValue(json.toFile(), bookmarks);
+        jsonEncode = Math.min(jsonEncode, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        read = mapper.readValue(json.toFile(), Bookmark[].class).length;
+        jsonDecode = Math.min(jsonDecode, System.nanoTime() - start);
+        check(read, count);
+      }
+      LOGGER.info("{} bookmarks: binary {} bytes, write {} ms, read {} ms; "
+              + "json {} bytes, write {} ms, read {} ms", count, Files.size(binary),
+          binaryEncode / 1000000, binaryDecode / 1000000, Files.size(json),
+          jsonEncode / 1000000, jsonDecode / 1000000);
+    } finally {
+      Files.delete(binary);
+      Files.delete(json);
+    }
+  }
+
+  /** Bookmarks shaped like real ones: ascending ids and times, a few of 200 tags each. */
+  private static List<Bookmark> bookmarks(int count) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    List<Bookmark> bookmarks = new ArrayList<>(count);
+    long created = System.currentTimeMillis() - 365L * 24 * 3600 * 1000;
+    for (int i = 1; i <= count; i++) {
+      created += random.nextInt(60000);
+      Bookmark bookmark = new Bookmark((long) i, null,
+          "https://www.example" + random.nextInt(1000) + ".com/articles/" + i
+              + "/some-article-title", new Date(created));
+      bookmark.setTitle("Some article title number " + i);
+      StringBuilder tags = new StringBuilder();
+      for (int t = random.nextInt(4); t >= 0; t--) {
+        tags.append(tags.length() > 0 ? "," : "").append("tag").append(random.nextInt(200));
+      }
+      bookmark.setTags(tags.toString());
+      bookmarks.add(bookmark);
+    }
+    return bookmarks;
+  }
+
+  private static void check(int read, int count) {
+    if (read != count) {
+      throw new IllegalStateException("read " + read + " of " + count + " bookmarks");
+    }
+  }
+}
@@ -0,0 +1,441 @@
+package jags.ratpacktest.backup;
+
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.metrics.Metrics;
+import jags.ratpacktest.service.BookmarkChangeListener;
+import jags.ratpacktest.service.BookmarkService;
+import jags.ratpacktest.service.TenantRouter;
+import jags.ratpacktest.util.LongArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary journal of bookmark changes, so an in-memory database survives restarts.
+ * It is written ahead: {@link BookmarkService} hands each change to the journal, which appends
+ * it and, by its {@link SyncPolicy}, forces it to disk, before the change is committed. A crash
+ * in between leaves a record of a change the store never had; replay applies it, as the writer
+ * could not tell whether it had happened.
+ *
+ * <p>Each record is {@code [length][crc32][type][tenant][id]} followed, for a {@code PUT}, by the
+ * bookmark's creation time, url, title, tags and version, {@code -1} if unknown; a {@code DELETE}
+ * has nothing more. Records written before versions were kept end after the tags. Records hold
+ * whole states, so replaying the latest one per bookmark is enough. Replay stops at the first
+ * torn or corrupt record of a segment.
+ *
+ * <p>The journal is a series of segment files. Compaction starts a new segment, takes a
+ * {@link SnapshotManager snapshot} and deletes the older segments: the snapshot copies each
+ * tenant once its running writes are done, so everything they recorded is in it. Startup
+ * restores the latest snapshot and replays the remaining segments on top of it.
+ */
+public class Journal implements AutoCloseable {
+
+  /** When an append is forced to disk before the write returns. */
+  public enum SyncPolicy {
+    /** Every record is forced on its own. */
+    ALWAYS,
+    /** Concurrent writers wait for one force that covers all of their records. */
+    GROUP,
+    /** Left to the operating system; a crash loses the records it hadn't written yet. */
+    NONE
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(Journal.class);
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final String PREFIX = "journal-";
+  private static final String SUFFIX = ".log";
+
+  private final Path directory;
+  private final SyncPolicy policy;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition synced = lock.newCondition();
+  // all guarded by lock
+  private FileChannel channel;
+  private long segment;
+  private long appended;
+  private long forced;
+  private boolean forcing;
+  private ScheduledExecutorService compactor;
+
+  public Journal(Path directory, SyncPolicy policy) {
+    this.directory = directory;
+    this.policy = policy;
+  }
+
+  /**
+   * Opens the journal in {@code ratpacktest.journal.dir} if it is set, replays it into
+   * {@code router}, journals every later change and compacts into {@code snapshots} every
+   * {@code ratpacktest.journal.compactMinutes} (10). {@code ratpacktest.journal.sync} picks the
+   * {@link SyncPolicy}, {@code GROUP} by default.
+   *
+   * @return the journal, or {@code null} if journaling is off
+   */
+  public static Journal fromSystemProperties(TenantRouter router, SnapshotManager snapshots) {
+    String directory = System.getProperty("ratpacktest.journal.dir");
+    if (directory == null || directory.isEmpty()) {
+      return null;
+    }
+    SyncPolicy policy = SyncPolicy.valueOf(
+        System.getProperty("ratpacktest.journal.sync", "GROUP").toUpperCase(Locale.ROOT));
+    Journal journal = new Journal(Paths.get(directory), policy);
+    journal.replay(router);
+    journal.open();
+    router.setChangeListeners(journal::listener);
+    journal.scheduleCompaction(snapshots,
+        Integer.getInteger("ratpacktest.journal.compactMinutes", 10));
+    return journal;
+  }
+
+  /** Starts a new segment after the existing ones, which are only read by {@link #replay}. */
+  public void open() {
+    lock.lock();
+    try {
+      List<Long> segments = segments();
+      startSegment(segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Records the changes of one tenant's bookmarks. */
+  public BookmarkChangeListener listener(String tenant) {
+    return new BookmarkChangeListener() {
+      @Override
+      public void changed(Bookmark bookmark) {
+        append(encode(PUT, tenant, bookmark.getId(), bookmark));
+      }
+
+      @Override
+      public void deleted(long id) {
+        append(encode(DELETE, tenant, id, null));
+      }
+    };
+  }
+
+  private void append(byte[] record) {
+    long position;
+    lock.lock();
+    try {
+      if (channel == null) {
+        // shut down: the write fails and is rolled back
+        throw new IllegalStateException("the journal is closed");
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(record);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      position = ++appended;
+      if (policy == SyncPolicy.ALWAYS) {
+        channel.force(false);
+        forced = position;
+        Metrics.counter("journal.syncs").increment();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      lock.unlock();
+    }
+    Metrics.counter("journal.appends").increment();
+    Metrics.counter("journal.bytes").add(record.length);
+    if (policy == SyncPolicy.GROUP) {
+      awaitForced(position);
+    }
+  }
+
+  /**
+   * Group commit: the first writer to find its record unforced forces the channel for every
+   * record appended so far while the others wait for it.
+   */
+  private void awaitForced(long position) {
+    lock.lock();
+    try {
+      while (forced < position) {
+        if (forcing) {
+          synced.awaitUninterruptibly();
+          continue;
+        }
+        forcing = true;
+        long target = appended;
+        FileChannel current = channel;
+        boolean done = false;
+        lock.unlock();
+        try {
+          force(current);
+          done = true;
+        } finally {
+          lock.lock();
+          forcing = false;
+          if (done) {
+            forced = Math.max(forced, target);
+          }
+          synced.signalAll();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static void force(FileChannel channel) {
+    try {
+      channel.force(false);
+      Metrics.counter("journal.syncs").increment();
+    } catch (ClosedChannelException e) {
+      // a new segment was started, which forces the previous one first
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static byte[] encode(byte type, String tenant, long id, Bookmark bookmark) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(0);
+      out.writeInt(0);
+      out.writeByte(type);
+      writeString(out, tenant);
+      out.writeLong(id);
+      if (type == PUT) {
+        Date created = bookmark.getCreationTimestamp();
+        out.writeLong(created == null ? System.currentTimeMillis() : created.getTime());
+        writeString(out, bookmark.getUrl());
+        writeString(out, bookmark.getTitle());
+        writeString(out, bookmark.getTags() == null ? "" : bookmark.getTags());
+        out.writeLong(bookmark.getVersion() == null ? -1 : bookmark.getVersion());
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), 8, record.capacity() - 8);
+    record.putInt(0, record.capacity() - 8);
+    record.putInt(4, (int) crc.getValue());
+    return record.array();
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Folds every segment into the latest state per bookmark, then applies each tenant's states
+   * in one bulk load. Must run before {@link #open}.
+   */
+  public void replay(TenantRouter router) {
+    long start = System.nanoTime();
+    // tenant -> bookmark id -> latest state, null once deleted
+    Map<String, Map<Long, Bookmark>> states = new HashMap<>();
+    int records = 0;
+    for (long segment : segments()) {
+      records += readSegment(segmentFile(segment), states);
+    }
+    for (Map.Entry<String, Map<Long, Bookmark>> tenant : states.entrySet()) {
+      List<Bookmark> bookmarks = new ArrayList<>();
+      LongArrayList deleted = new LongArrayList();
+      for (Map.Entry<Long, Bookmark> state : tenant.getValue().entrySet()) {
+        if (state.getValue() == null) {
+          deleted.add(state.getKey());
+        } else {
+          bookmarks.add(state.getValue());
+        }
+      }
+      router.service(tenant.getKey()).restore(bookmarks, deleted);
+    }
+    LOGGER.info("replayed {} journal records in {} ms", records,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  private static int readSegment(Path file, Map<String, Map<Long, Bookmark>> states) {
+    int records = 0;
+    try (InputStream stream = Files.newInputStream(file);
+         DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+        int checksum = in.readInt();
+        byte[] body = new byte[length];
+        in.readFully(body);
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, length);
+        if ((int) crc.getValue() != checksum) {
+          throw new IOException("bad checksum");
+        }
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = record.readByte();
+        String tenant = readString(record);
+        long id = record.readLong();
+        Map<Long, Bookmark> tenantStates =
+            states.computeIfAbsent(tenant, t -> new LinkedHashMap<>());
+        if (type == PUT) {
+          Date created = new Date(record.readLong());
+          Bookmark bookmark = new Bookmark(id, null, readString(record), created);
+          bookmark.setTitle(readString(record));
+          bookmark.setTags(readString(record));
+          if (record.available() >= 8) {
+            long version = record.readLong();
+            bookmark.setVersion(version < 0 ? null : version);
+          }
+          tenantStates.put(id, bookmark);
+        } else {
+          tenantStates.put(id, null);
+        }
+        records++;
+      }
+    } catch (IOException | RuntimeException e) {
+      // a torn write at the tail of the segment that was being appended to at a crash
+      LOGGER.warn("journal segment {} ends with an unreadable record after {} records: {}",
+          file, records, e.toString());
+    }
+    return records;
+  }
+
+  public synchronized void scheduleCompaction(SnapshotManager snapshots, long intervalMinutes) {
+    if (intervalMinutes <= 0 || compactor != null) {
+      return;
+    }
+    compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "journal-compaction");
+      thread.setDaemon(true);
+      return thread;
+    });
+    compactor.scheduleWithFixedDelay(() -> {
+      try {
+        compact(snapshots);
+      } catch (RuntimeException e) {
+        LOGGER.error("journal compaction failed", e);
+      }
+    }, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+  }
+
+  /** Folds the journal into a new snapshot and deletes the segments it covers. */
+  public void compact(SnapshotManager snapshots) {
+    long first;
+    lock.lock();
+    try {
+      first = segment + 1;
+      startSegment(first);
+    } finally {
+      lock.unlock();
+    }
+    snapshots.snapshot();
+    for (long old : segments()) {
+      if (old < first) {
+        try {
+          Files.deleteIfExists(segmentFile(old));
+        } catch (IOException e) {
+          LOGGER.warn("could not delete journal segment {}", old, e);
+        }
+      }
+    }
+    Metrics.counter("journal.compactions").increment();
+  }
+
+  /** Forces and closes the current segment, if any, and starts segment {@code number}. */
+  private void startSegment(long number) {
+    try {
+      Files.createDirectories(directory);
+      if (channel != null) {
+        channel.force(false);
+        channel.close();
+        forced = appended;
+        synced.signalAll();
+      }
+      channel = FileChannel.open(segmentFile(number), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      segment = number;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private List<Long> segments() {
+    List<Long> segments = new ArrayList<>();
+    if (!Files.isDirectory(directory)) {
+      return segments;
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        segments.add(Long.parseLong(name.substring(PREFIX.length(),
+            name.length() - SUFFIX.length())));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  private Path segmentFile(long number) {
+    return directory.resolve(String.format("%s%020d%s", PREFIX, number, SUFFIX));
+  }
+
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (compactor != null) {
+        compactor.shutdownNow();
+      }
+    }
+    lock.lock();
+    try {
+      if (channel != null) {
+        channel.force(false);
+        channel.close();
+        channel = null;
+        forced = appended;
+        synced.signalAll();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      lock.unlock();
+    }
+  }
+}
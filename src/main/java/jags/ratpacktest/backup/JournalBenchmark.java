@@ -0,0 +1,142 @@
+package jags.ratpacktest.backup;
+
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.exception.ValidationException;
+import jags.ratpacktest.service.BookmarkService;
+import jags.ratpacktest.service.TenantRouter;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.skife.jdbi.v2.DBI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Compares the journaled in-memory store, under each {@link Journal.SyncPolicy}, with H2 keeping
+ * the same tables in a file: bookmarks created per second by concurrent writers, and how long a
+ * restart takes until the store serves them again. Run with
+ * {@code gradle journalBenchmark -Pbookmarks=2000 -Pthreads=8}.
+ *
+ * <p>H2 1.3 doesn't force its file to disk on commit; {@code WRITE_DELAY=0} only writes it out,
+ * and by default a commit may wait up to half a second in memory.
+ */
+public final class JournalBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JournalBenchmark.class);
+
+  private JournalBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int count = Integer.getInteger("ratpacktest.benchmark.bookmarks", 2000);
+    int threads = Integer.getInteger("ratpacktest.benchmark.threads", 8);
+    for (Journal.SyncPolicy policy : Journal.SyncPolicy.values()) {
+      journaled(policy, count, threads);
+    }
+    file(";WRITE_DELAY=0", count, threads);
+    file("", count, threads);
+  }
+
+  private static void journaled(Journal.SyncPolicy policy, int count, int threads)
+      throws Exception {
+    Path directory = Files.createTempDirectory("benchmark-journal-");
+    try {
+      TenantRouter router = new TenantRouter(1);
+      Journal journal = new Journal(directory, policy);
+      journal.open();
+      router.setChangeListeners(journal::listener);
+      long writeNanos = create(router.service(TenantRouter.DEFAULT_TENANT), count, threads);
+      journal.close();
+      router.close();
+
+      long start = System.nanoTime();
+      TenantRouter restarted = new TenantRouter(1);
+      new Journal(directory, policy).replay(restarted);
+      check(restarted.service(TenantRouter.DEFAULT_TENANT), count);
+      long restartNanos = System.nanoTime() - start;
+      restarted.close();
+      report("in memory, journal " + policy, count, writeNanos, restartNanos);
+    } finally {
+      deleteRecursively(directory.toFile());
+    }
+  }
+
+  private static void file(String options, int count, int threads) throws Exception {
+    Path directory = Files.createTempDirectory("benchmark-h2-");
+    Supplier<JdbcConnectionPool> open = () -> JdbcConnectionPool.create("jdbc:h2:file:"
+        + directory.resolve("bookmarks").toAbsolutePath() + options, "sa", "");
+    try {
+      JdbcConnectionPool pool = open.get();
+      long writeNanos = create(new BookmarkService(new DBI(pool)), count, threads);
+      pool.dispose();
+
+      long start = System.nanoTime();
+      JdbcConnectionPool reopened = open.get();
+      check(new BookmarkService(new DBI(reopened)), count);
+      long restartNanos = System.nanoTime() - start;
+      reopened.dispose();
+      report("file" + (options.isEmpty() ? "" : ", " + options.substring(1)), count, writeNanos,
+          restartNanos);
+    } finally {
+      deleteRecursively(directory.toFile());
+    }
+  }
+
+  /** Creates {@code count} bookmarks from {@code threads} writers; returns the nanoseconds. */
+  private static long create(BookmarkService service, int count, int threads) throws Exception {
+    AtomicInteger next = new AtomicInteger();
+    ExecutorService writers = Executors.newFixedThreadPool(threads);
+    long start = System.nanoTime();
+    try {
+      List<Future<?>> done = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        done.add(writers.submit(() -> {
+          for (int i = next.getAndIncrement(); i < count; i = next.getAndIncrement()) {
+            service.createBookmark(new Bookmark(null, "Article " + i,
+                "https://news" + i % 97 + ".example/articles/" + i,
+                "topic" + i % 50 + ",source" + i % 97));
+          }
+          return null;
+        }));
+      }
+      for (Future<?> writer : done) {
+        writer.get();
+      }
+    } finally {
+      writers.shutdownNow();
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static void check(BookmarkService service, int count) throws ValidationException {
+    int found = service.getBookmarksOrderByTitle(null, null).size();
+    if (found != count) {
+      throw new IllegalStateException("found " + found + " of " + count + " bookmarks");
+    }
+  }
+
+  private static void report(String store, int count, long writeNanos, long restartNanos) {
+    LOGGER.info(String.format("%-30s %8.0f writes/s, restart %6d ms", store,
+        count / (writeNanos / 1e9), TimeUnit.NANOSECONDS.toMillis(restartNanos)));
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
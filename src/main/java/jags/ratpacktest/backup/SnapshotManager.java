@@ -0,0 +1,416 @@
+package jags.ratpacktest.backup;
+
+import jags.ratpacktest.dao.BookmarkDAO;
+import jags.ratpacktest.dao.TagDAO;
+import jags.ratpacktest.dao.TaggingDAO;
+import jags.ratpacktest.metrics.Metrics;
+import jags.ratpacktest.service.MappedBookmarkIndex;
+import jags.ratpacktest.service.TenantRouter;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Takes online snapshots of every shard as H2 {@code SCRIPT ... COMPRESSION DEFLATE} files and
+ * restores them with {@code RUNSCRIPT}, a bulk load far cheaper than creating bookmarks one by
+ * one.
+ *
+ * <p>H2 runs one command at a time per database, so scripting a shard directly would hold up
+ * its writers for as long as compressing and writing the whole file takes. Instead each
+ * tenant's tables are read while its writes are {@link TenantRouter#whileFrozen frozen}, which
+ * takes as long as reading the rows into a result, and copied into a private in-memory database
+ * that is scripted while the shard goes on taking writes. Each tenant's tables are consistent
+ * with each other; tenants are copied one after the other.
+ *
+ * <p>A snapshot is a directory with one file per shard. It is written under a temporary name
+ * and renamed when complete, so an interrupted snapshot is never restored.
+ *
+ * <p>Next to the shard files a snapshot holds a {@link MappedBookmarkIndex} of every tenant,
+ * written from the same copy as its shard file. {@link #openIndexes} maps them at startup, so
+ * listings can be served before the much slower restore and journal replay are done.
+ */
+public class SnapshotManager implements AutoCloseable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotManager.class);
+  private static final String PREFIX = "snapshot-";
+  private static final String TEMPORARY_PREFIX = ".tmp-";
+  private static final String INDEX_PREFIX = "index-";
+  private static final String INDEX_SUFFIX = ".bkix";
+  // parents before children, so the copy's foreign keys hold
+  private static final String[] TABLES = {"tag", "bookmark", "tagging"};
+  private static final int COPY_BATCH = 1000;
+  private static final AtomicLong COPIES = new AtomicLong();
+
+  private final TenantRouter router;
+  private final Path directory;
+  private final int keep;
+  private final AtomicLong lastDurationMillis = new AtomicLong();
+  private ScheduledExecutorService scheduler;
+
+  public SnapshotManager(TenantRouter router, Path directory, int keep) {
+    this.router = router;
+    this.directory = directory;
+    this.keep = keep;
+    Metrics.gauge("snapshot.lastDurationMillis", lastDurationMillis::get);
+  }
+
+  /**
+   * Reads {@code ratpacktest.snapshot.dir} ({@code snapshots}) and {@code keep} (5), restores
+   * {@code ratpacktest.snapshot.restore} ({@code latest} or a snapshot name) if it is set, then
+   * schedules a snapshot every {@code ratpacktest.snapshot.intervalMinutes} (60, 0 disables it).
+   * With a {@link Journal} the latest snapshot is restored by default, since compaction folds
+   * the journal into snapshots. Must run before the router hands out any service.
+   */
+  public static SnapshotManager fromSystemProperties(TenantRouter router) {
+    SnapshotManager manager = new SnapshotManager(router, directoryFromSystemProperties(),
+        Integer.getInteger("ratpacktest.snapshot.keep", 5));
+    String restore = restoreFromSystemProperties();
+    if (restore != null) {
+      manager.restore(restore);
+    }
+    manager.schedule(Integer.getInteger("ratpacktest.snapshot.intervalMinutes", 60));
+    return manager;
+  }
+
+  /**
+   * Maps the bookmark indexes of the snapshot {@link #fromSystemProperties} is going to restore,
+   * by tenant. Empty if nothing is to be restored or the snapshot has no readable indexes.
+   */
+  public static Map<String, MappedBookmarkIndex> openIndexes() {
+    Map<String, MappedBookmarkIndex> indexes = new HashMap<>();
+    String restore = restoreFromSystemProperties();
+    Path snapshot = restore == null ? null : resolve(directoryFromSystemProperties(), restore);
+    if (snapshot == null || !Files.isDirectory(snapshot)) {
+      return indexes;
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(snapshot,
+        INDEX_PREFIX + "*" + INDEX_SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        String tenant = name.substring(INDEX_PREFIX.length(),
+            name.length() - INDEX_SUFFIX.length());
+        indexes.put(tenant, MappedBookmarkIndex.open(tenant, file));
+      }
+    } catch (IOException e) {
+      LOGGER.warn("not serving from the indexes of {}", snapshot, e);
+      indexes.clear();
+    }
+    return indexes;
+  }
+
+  private static Path directoryFromSystemProperties() {
+    return Paths.get(System.getProperty("ratpacktest.snapshot.dir", "snapshots"));
+  }
+
+  private static String restoreFromSystemProperties() {
+    boolean journaled = System.getProperty("ratpacktest.journal.dir") != null;
+    String restore = System.getProperty("ratpacktest.snapshot.restore",
+        journaled ? "latest" : null);
+    return restore == null || restore.isEmpty() ? null : restore;
+  }
+
+  public synchronized void schedule(long intervalMinutes) {
+    if (intervalMinutes <= 0 || scheduler != null) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "snapshot");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        snapshot();
+      } catch (RuntimeException e) {
+        LOGGER.error("scheduled snapshot failed", e);
+      }
+    }, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Writes a snapshot of all shards and the indexes of their tenants, and prunes the oldest
+   * snapshots beyond {@code keep}.
+   */
+  public synchronized Path snapshot() {
+    long start = System.nanoTime();
+    String name = PREFIX + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+    Path temporary = directory.resolve(TEMPORARY_PREFIX + name);
+    Path target = directory.resolve(name);
+    try {
+      Files.createDirectories(temporary);
+      for (int shard = 0; shard < router.shardCount(); shard++) {
+        copyShard(shard, temporary);
+      }
+      Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+      prune();
+    } catch (IOException | RuntimeException e) {
+      Metrics.counter("snapshot.failed").increment();
+      deleteRecursively(temporary);
+      throw e instanceof IOException ? new UncheckedIOException((IOException) e)
+          : (RuntimeException) e;
+    }
+    lastDurationMillis.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    Metrics.counter("snapshot.taken").increment();
+    LOGGER.info("snapshot {} written in {} ms", target, lastDurationMillis.get());
+    return target;
+  }
+
+  /**
+   * Reads the shard's tenants tenant by tenant, each while it is frozen, and copies the rows and
+   * the shard's schema into a scratch database. Scripts that to the shard's file in
+   * {@code snapshot}, and writes each tenant's index from the same copy, so the index a warm
+   * start serves holds exactly what the restore loads.
+   */
+  private void copyShard(int shard, Path snapshot) {
+    String scratchUrl = "jdbc:h2:mem:snapshot-" + COPIES.incrementAndGet();
+    // open result sets keep the rows read while frozen; H2 has them complete once the query ran
+    try (Connection source = router.shard(shard).getConnection();
+         Connection scratch = DriverManager.getConnection(scratchUrl, "sa", "")) {
+      List<Statement> reads = new ArrayList<>();
+      List<ResultSet> rows = new ArrayList<>();
+      List<String> tenants = new ArrayList<>();
+      try {
+        List<String> ddl = router.withoutMoves(() -> {
+          tenants.addAll(router.tenantsOn(shard));
+          for (String tenant : tenants) {
+            String schema = TenantRouter.schemaOf(tenant);
+            router.whileFrozen(tenant, () -> {
+              for (String table : TABLES) {
+                Statement read = source.createStatement();
+                reads.add(read);
+                rows.add(read.executeQuery("select * from " + schema + "." + table));
+              }
+              return null;
+            });
+          }
+          // after the reads, so the sequences are past every id copied
+          return schemaScript(source);
+        });
+        try (Statement statement = scratch.createStatement()) {
+          for (String sql : ddl) {
+            statement.execute(sql);
+          }
+        }
+        for (ResultSet table : rows) {
+          copy(table, scratch);
+        }
+      } finally {
+        // closing a statement closes its result set
+        for (Statement read : reads) {
+          read.close();
+        }
+      }
+      try (Statement statement = scratch.createStatement()) {
+        statement.execute("script to '" + quote(shardFile(snapshot, shard))
+            + "' compression deflate");
+      }
+      for (String tenant : tenants) {
+        writeIndex(scratchUrl, tenant, snapshot.resolve(INDEX_PREFIX + tenant + INDEX_SUFFIX));
+      }
+    } catch (Exception e) {
+      throw new IllegalStateException("could not snapshot shard " + shard, e);
+    }
+  }
+
+  /** Writes a {@link MappedBookmarkIndex} of {@code tenant}'s copied tables to {@code file}. */
+  private static void writeIndex(String scratchUrl, String tenant, Path file)
+      throws IOException {
+    try (Handle handle = DBI.open(scratchUrl, "sa", "")) {
+      handle.execute("set schema " + TenantRouter.schemaOf(tenant));
+      MappedBookmarkIndex.write(file, handle.attach(BookmarkDAO.class).findOrderByTitle(),
+          handle.attach(TagDAO.class).findOrderByLabel(),
+          handle.attach(TaggingDAO.class).findAll());
+    }
+  }
+
+  private static List<String> schemaScript(Connection source) throws SQLException {
+    List<String> ddl = new ArrayList<>();
+    try (Statement statement = source.createStatement();
+         ResultSet script = statement.executeQuery("script nodata")) {
+      while (script.next()) {
+        String sql = script.getString(1);
+        // row count comments
+        if (!sql.startsWith("--")) {
+          ddl.add(sql);
+        }
+      }
+    }
+    return ddl;
+  }
+
+  private static void copy(ResultSet rows, Connection target) throws SQLException {
+    ResultSetMetaData columns = rows.getMetaData();
+    StringBuilder names = new StringBuilder();
+    StringBuilder values = new StringBuilder();
+    for (int column = 1; column <= columns.getColumnCount(); column++) {
+      names.append(column == 1 ? "" : ", ").append(columns.getColumnName(column));
+      values.append(column == 1 ? "?" : ", ?");
+    }
+    String table = columns.getSchemaName(1) + "." + columns.getTableName(1);
+    try (PreparedStatement insert = target.prepareStatement("insert into " + table + "("
+        + names + ") values(" + values + ")")) {
+      int batched = 0;
+      while (rows.next()) {
+        for (int column = 1; column <= columns.getColumnCount(); column++) {
+          insert.setObject(column, rows.getObject(column));
+        }
+        insert.addBatch();
+        if (++batched % COPY_BATCH == 0) {
+          insert.executeBatch();
+        }
+      }
+      insert.executeBatch();
+    } finally {
+      rows.close();
+    }
+  }
+
+  /** Completed snapshots, oldest first. */
+  public List<Path> list() {
+    return list(directory);
+  }
+
+  private static List<Path> list(Path directory) {
+    List<Path> snapshots = new ArrayList<>();
+    if (!Files.isDirectory(directory)) {
+      return snapshots;
+    }
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, PREFIX + "*")) {
+      for (Path entry : entries) {
+        snapshots.add(entry);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    // the timestamped names sort chronologically
+    Collections.sort(snapshots);
+    return snapshots;
+  }
+
+  /**
+   * Loads a snapshot into the shards, which must not have any tables yet, then routes the
+   * tenants found in it. {@code name} is a snapshot directory name or {@code latest}.
+   */
+  public void restore(String name) {
+    Path snapshot = resolve(directory, name);
+    if (snapshot == null) {
+      LOGGER.info("no snapshot to restore in {}", directory);
+      return;
+    }
+    if (Files.exists(shardFile(snapshot, router.shardCount()))
+        || !Files.exists(shardFile(snapshot, router.shardCount() - 1))) {
+      throw new IllegalStateException(snapshot + " was not taken with "
+          + router.shardCount() + " shards");
+    }
+    long start = System.nanoTime();
+    for (int shard = 0; shard < router.shardCount(); shard++) {
+      execute(shard, "runscript from '" + quote(shardFile(snapshot, shard)) + "' "
+          + "compression deflate");
+      dropDanglingTaggings(shard);
+    }
+    router.discoverTenants();
+    LOGGER.info("restored snapshot {} in {} ms", snapshot,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  /** The snapshot called {@code name}, or the latest one; {@code null} if there is none. */
+  private static Path resolve(Path directory, String name) {
+    if (!"latest".equals(name)) {
+      return directory.resolve(name);
+    }
+    List<Path> snapshots = list(directory);
+    return snapshots.isEmpty() ? null : snapshots.get(snapshots.size() - 1);
+  }
+
+  private void dropDanglingTaggings(int shard) {
+    try (Connection connection = router.shard(shard).getConnection();
+         Statement statement = connection.createStatement();
+         ResultSet schemas = statement.executeQuery("select table_schema "
+             + "from information_schema.tables where table_name = 'TAGGING'")) {
+      List<String> tagged = new ArrayList<>();
+      while (schemas.next()) {
+        tagged.add(schemas.getString(1));
+      }
+      for (String schema : tagged) {
+        statement.executeUpdate("delete from " + schema + ".tagging t where "
+            + "not exists(select 1 from " + schema + ".bookmark b where b.id = t.bookmark_id) or "
+            + "not exists(select 1 from " + schema + ".tag g where g.id = t.tag_id)");
+      }
+    } catch (SQLException e) {
+      throw new IllegalStateException("could not check the taggings of shard " + shard, e);
+    }
+  }
+
+  private void prune() {
+    List<Path> snapshots = list();
+    for (int i = 0; i < snapshots.size() - keep; i++) {
+      deleteRecursively(snapshots.get(i));
+    }
+  }
+
+  private void execute(int shard, String sql) {
+    try (Connection connection = router.shard(shard).getConnection();
+         Statement statement = connection.createStatement()) {
+      statement.execute(sql);
+    } catch (SQLException e) {
+      throw new IllegalStateException("could not run '" + sql + "' on shard " + shard, e);
+    }
+  }
+
+  private static Path shardFile(Path snapshot, int shard) {
+    return snapshot.resolve("shard-" + shard + ".sql.zip");
+  }
+
+  private static String quote(Path path) {
+    return path.toAbsolutePath().toString().replace("'", "''");
+  }
+
+  private static void deleteRecursively(Path path) {
+    File[] children = path.toFile().listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child.toPath());
+      }
+    }
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      LOGGER.warn("could not delete {}", path, e);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package jags.ratpacktest.dao;
+
+import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizer;
+import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizerFactory;
+import org.skife.jdbi.v2.sqlobject.SqlStatementCustomizingAnnotation;
+
+import java.lang.annotation.Annotation;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Method;
+
+/**
+ * Like {@link org.skife.jdbi.v2.unstable.BindIn} for a {@code long[]}: writes the ids into the
+ * {@code in(<name>)} list as literals rather than binding one boxed {@code Long} per id. Digits
+ * can't inject anything, and an empty array becomes {@code null}, which matches no row.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+@SqlStatementCustomizingAnnotation(BindLongIn.CustomizerFactory.class)
+public @interface BindLongIn {
+
+  String value();
+
+  final class CustomizerFactory implements SqlStatementCustomizerFactory {
+
+    @Override
+    public SqlStatementCustomizer createForMethod(Annotation annotation, Class sqlObjectType,
+        Method method) {
+      throw new UnsupportedOperationException("not supported on a method");
+    }
+
+    @Override
+    public SqlStatementCustomizer createForType(Annotation annotation, Class sqlObjectType) {
+      throw new UnsupportedOperationException("not supported on a type");
+    }
+
+    @Override
+    public SqlStatementCustomizer createForParameter(Annotation annotation, Class sqlObjectType,
+        Method method, Object arg) {
+      String name = ((BindLongIn) annotation).value();
+      String ids = literals((long[]) arg);
+      return statement -> statement.define(name, ids);
+    }
+
+    static String literals(long[] ids) {
+      if (ids.length == 0) {
+        return "null";
+      }
+      StringBuilder literals = new StringBuilder(ids.length * 8);
+      for (int i = 0; i < ids.length; i++) {
+        if (i > 0) {
+          literals.append(',');
+        }
+        literals.append(ids[i]);
+      }
+      return literals.toString();
+    }
+  }
+}
@@ -22,56 +22,230 @@ public interface BookmarkDAO extends AutoCloseable {
   @Override
   void close();
 
-  @SqlUpdate("create table bookmark("
+  @SqlUpdate("create table if not exists bookmark("
       + "id identity primary key,"
       + "url varchar(2048) not null,"
       + "title varchar(80) not null,"
-      + "creation_timestamp timestamp not null)")
+      + "creation_timestamp timestamp not null,"
+      + "url_hash bigint,"
+      + "visit_count bigint default 0 not null,"
+      + "version bigint default 0 not null,"
+      + "deleted_at timestamp)")
   void createBookmarkTable();
 
-  @SqlQuery("select id, url, title, creation_timestamp from bookmark where id = :id")
+  // tables restored from snapshots taken before versions were kept
+  @SqlUpdate("alter table bookmark add column if not exists version bigint default 0 not null")
+  void addVersionColumn();
+
+  // null for a live bookmark; deleted ones are kept for undo until they are purged
+  @SqlUpdate("alter table bookmark add column if not exists deleted_at timestamp")
+  void addDeletedAtColumn();
+
+  @SqlUpdate("create index if not exists bookmark_deleted_at_idx on bookmark(deleted_at)")
+  void createDeletedAtIndex();
+
+  @SqlUpdate("create index if not exists bookmark_url_hash_idx on bookmark(url_hash)")
+  void createUrlHashIndex();
+
+  @SqlUpdate("create index if not exists bookmark_visit_count_idx on bookmark(visit_count)")
+  void createVisitCountIndex();
+
+  @SqlUpdate("create index if not exists bookmark_title_idx on bookmark(title, id)")
+  void createTitleIndex();
+
+  @SqlUpdate("create index if not exists bookmark_creation_timestamp_idx "
+      + "on bookmark(creation_timestamp, id)")
+  void createCreationTimestampIndex();
+
+  @SqlQuery("select id, url, title, creation_timestamp, version from bookmark "
+      + "where id = :id and deleted_at is null")
   @Mapper(Bookmark.Mapper.class)
   Bookmark findById(@Bind("id") Long id);
 
-  @SqlQuery("select id, url, title, creation_timestamp from bookmark order by title")
+  @SqlQuery("select id, url, title, creation_timestamp, version from bookmark "
+      + "where deleted_at is null order by title, id")
   @Mapper(Bookmark.Mapper.class)
   List<Bookmark> findOrderByTitle();
 
-  @SqlQuery("select id, url, title, creation_timestamp from bookmark order by creation_timestamp")
+  @SqlQuery("select id, url, title, creation_timestamp, version from bookmark "
+      + "where deleted_at is null order by title, id limit :limit offset :offset")
+  @Mapper(Bookmark.Mapper.class)
+  List<Bookmark> findOrderByTitle(@Bind("offset") int offset, @Bind("limit") int limit);
+
+  @SqlQuery("select id, url, title, creation_timestamp, version from bookmark "
+      + "where deleted_at is null order by creation_timestamp, id")
   @Mapper(Bookmark.Mapper.class)
   List<Bookmark> findOrderByCreationTimestamp();
 
-  @SqlUpdate("insert into bookmark(url, title, creation_timestamp) values(:url, :title, current_timestamp())")
+  @SqlQuery("select id, url, title, creation_timestamp, version from bookmark "
+      + "where deleted_at is null order by creation_timestamp, id limit :limit offset :offset")
+  @Mapper(Bookmark.Mapper.class)
+  List<Bookmark> findOrderByCreationTimestamp(@Bind("offset") int offset,
+      @Bind("limit") int limit);
+
+  @SqlQuery("select id, url, title, creation_timestamp, version from bookmark "
+      + "where deleted_at is null order by visit_count desc, id limit :limit offset :offset")
+  @Mapper(Bookmark.Mapper.class)
+  List<Bookmark> findOrderByVisitCount(@Bind("offset") int offset, @Bind("limit") int limit);
+
+  @SqlQuery("select id, url, title, creation_timestamp, version from bookmark "
+      + "where id > :afterId and deleted_at is null order by id limit :limit")
+  @Mapper(Bookmark.Mapper.class)
+  List<Bookmark> findAfterId(@Bind("afterId") long afterId, @Bind("limit") int limit);
+
+  @SqlQuery("select id, url, title, creation_timestamp, version from bookmark "
+      + "where id in(<ids>) and deleted_at is null")
+  @Mapper(Bookmark.Mapper.class)
+  List<Bookmark> findByIds(@BindLongIn("ids") long[] ids);
+
+  // ids is an array of distinct ids, which H2 joins as a table
+  @SqlQuery("select b.id id, b.url url, b.title title, b.creation_timestamp creation_timestamp, "
+      + "b.version version "
+      + "from table(id bigint = :ids) i join bookmark b on(b.id = i.id) "
+      + "where b.deleted_at is null "
+      + "order by b.title, b.id "
+      + "limit :limit offset :offset")
+  @Mapper(Bookmark.Mapper.class)
+  List<Bookmark> findByIdsOrderByTitle(@Bind("ids") Object[] ids, @Bind("offset") int offset,
+      @Bind("limit") int limit);
+
+  @SqlQuery("select b.id id, b.url url, b.title title, b.creation_timestamp creation_timestamp, "
+      + "b.version version "
+      + "from table(id bigint = :ids) i join bookmark b on(b.id = i.id) "
+      + "where b.deleted_at is null "
+      + "order by b.creation_timestamp, b.id "
+      + "limit :limit offset :offset")
+  @Mapper(Bookmark.Mapper.class)
+  List<Bookmark> findByIdsOrderByCreationTimestamp(@Bind("ids") Object[] ids,
+      @Bind("offset") int offset, @Bind("limit") int limit);
+
+  // the deleted_at test sits in the probe so that H2 walks the title index in order, probing
+  // each bookmark's taggings, and stops once it has the page
+  @SqlQuery("select b.id id, b.url url, b.title title, b.creation_timestamp creation_timestamp, "
+      + "b.version version "
+      + "from bookmark b "
+      + "where exists(select 1 from tagging where tagging.bookmark_id = b.id "
+      + "and tagging.tag_id in(<tagIds>) and b.deleted_at is null) "
+      + "order by b.title, b.id "
+      + "limit :limit offset :offset")
+  @Mapper(Bookmark.Mapper.class)
+  List<Bookmark> probeByTagIdsOrderByTitle(@BindLongIn("tagIds") long[] tagIds,
+      @Bind("offset") int offset, @Bind("limit") int limit);
+
+  @SqlQuery("select b.id id, b.url url, b.title title, b.creation_timestamp creation_timestamp, "
+      + "b.version version "
+      + "from bookmark b "
+      + "where exists(select 1 from tagging where tagging.bookmark_id = b.id "
+      + "and tagging.tag_id in(<tagIds>) and b.deleted_at is null) "
+      + "order by b.creation_timestamp, b.id "
+      + "limit :limit offset :offset")
+  @Mapper(Bookmark.Mapper.class)
+  List<Bookmark> probeByTagIdsOrderByCreationTimestamp(@BindLongIn("tagIds") long[] tagIds,
+      @Bind("offset") int offset, @Bind("limit") int limit);
+
+  @SqlQuery("select id, url, title, creation_timestamp, version from bookmark "
+      + "where url_hash = :urlHash and deleted_at is null")
+  @Mapper(Bookmark.Mapper.class)
+  List<Bookmark> findByUrlHash(@Bind("urlHash") long urlHash);
+
+  @SqlUpdate("insert into bookmark(url, title, creation_timestamp, url_hash) "
+      + "values(:url, :title, current_timestamp(), :urlHash)")
   @GetGeneratedKeys
   long insert(@BindBean Bookmark bookmark);
 
-  @SqlUpdate("update bookmark set url = :url, title = :title where id = :id")
-  void update(@BindBean Bookmark bookmark);
+  @SqlUpdate("insert into bookmark(url, title, creation_timestamp, url_hash) "
+      + "values(:url, :title, coalesce(:creationTimestamp, current_timestamp()), :urlHash)")
+  @GetGeneratedKeys
+  long insertWithCreationTimestamp(@BindBean Bookmark bookmark);
+
+  @SqlUpdate("update bookmark set url = :url, title = :title, url_hash = :urlHash, "
+      + "version = version + 1 where id = :id and deleted_at is null")
+  int update(@BindBean Bookmark bookmark);
+
+  @SqlUpdate("update bookmark set url = :url, title = :title, url_hash = :urlHash, "
+      + "version = version + 1 where id = :id and version = :version and deleted_at is null")
+  int updateIfVersion(@BindBean Bookmark bookmark);
+
+  @SqlQuery("select version from bookmark where id = :id and deleted_at is null")
+  Long findVersion(@Bind("id") long id);
 
-  @SqlUpdate("delete from bookmark where id = :id")
-  void deleteById(@Bind("id") Long id);
+  @SqlUpdate("update bookmark set deleted_at = current_timestamp(), version = version + 1 "
+      + "where id = :id and deleted_at is null")
+  int softDeleteById(@Bind("id") long id);
 
-  @SqlQuery("select distinct b.id id, b.url url, b.title title, b.creation_timestamp creation_timestamp "
+  @SqlQuery("select id, url, title, creation_timestamp, version from bookmark "
+      + "where id = :id and deleted_at is not null")
+  @Mapper(Bookmark.Mapper.class)
+  Bookmark findDeletedById(@Bind("id") long id);
+
+  @SqlUpdate("update bookmark set deleted_at = null, version = version + 1 "
+      + "where id = :id and deleted_at is not null")
+  int undeleteById(@Bind("id") long id);
+
+  @SqlQuery("select distinct b.id id, b.url url, b.title title, b.creation_timestamp creation_timestamp, "
+      + "b.version version "
       + "from bookmark b "
       + "join tagging on(b.id = tagging.bookmark_id) "
       + "join tag t on(t.id = tagging.tag_id) "
-      + "where t.label in(<labels>) "
-      + "order by b.title")
+      + "where t.label in(<labels>) and b.deleted_at is null "
+      + "order by b.title, b.id")
   @Mapper(Bookmark.Mapper.class)
   List<Bookmark> findByTagLabelsOrderByTitle(@BindIn("labels") Collection<String> labels);
 
-  @SqlQuery("select distinct b.id id, b.url url, b.title title, b.creation_timestamp creation_timestamp "
+  @SqlQuery("select distinct b.id id, b.url url, b.title title, b.creation_timestamp creation_timestamp, "
+      + "b.version version "
+      + "from bookmark b "
+      + "join tagging on(b.id = tagging.bookmark_id) "
+      + "join tag t on(t.id = tagging.tag_id) "
+      + "where t.label in(<labels>) and b.deleted_at is null "
+      + "order by b.title, b.id "
+      + "limit :limit offset :offset")
+  @Mapper(Bookmark.Mapper.class)
+  List<Bookmark> findByTagLabelsOrderByTitle(@BindIn("labels") Collection<String> labels,
+      @Bind("offset") int offset, @Bind("limit") int limit);
+
+  @SqlQuery("select distinct b.id id, b.url url, b.title title, b.creation_timestamp creation_timestamp, "
+      + "b.version version "
       + "from bookmark b "
       + "join tagging on(b.id = tagging.bookmark_id) "
       + "join tag t on(t.id = tagging.tag_id) "
-      + "where t.label in(<labels>) "
-      + "order by b.creation_timestamp")
+      + "where t.label in(<labels>) and b.deleted_at is null "
+      + "order by b.creation_timestamp, b.id")
   @Mapper(Bookmark.Mapper.class)
   List<Bookmark> findByTagLabelsOrderByCreationTimestamp(@BindIn("labels") Collection<String> labels);
 
-  @SqlQuery("select count(*) from bookmark")
+  @SqlQuery("select distinct b.id id, b.url url, b.title title, b.creation_timestamp creation_timestamp, "
+      + "b.version version "
+      + "from bookmark b "
+      + "join tagging on(b.id = tagging.bookmark_id) "
+      + "join tag t on(t.id = tagging.tag_id) "
+      + "where t.label in(<labels>) and b.deleted_at is null "
+      + "order by b.creation_timestamp, b.id "
+      + "limit :limit offset :offset")
+  @Mapper(Bookmark.Mapper.class)
+  List<Bookmark> findByTagLabelsOrderByCreationTimestamp(
+      @BindIn("labels") Collection<String> labels, @Bind("offset") int offset,
+      @Bind("limit") int limit);
+
+  @SqlQuery("select distinct b.id id, b.url url, b.title title, b.creation_timestamp creation_timestamp, "
+      + "b.version version, b.visit_count visit_count "
+      + "from bookmark b "
+      + "join tagging on(b.id = tagging.bookmark_id) "
+      + "join tag t on(t.id = tagging.tag_id) "
+      + "where t.label in(<labels>) and b.deleted_at is null "
+      + "order by b.visit_count desc, b.id "
+      + "limit :limit offset :offset")
+  @Mapper(Bookmark.Mapper.class)
+  List<Bookmark> findByTagLabelsOrderByVisitCount(@BindIn("labels") Collection<String> labels,
+      @Bind("offset") int offset, @Bind("limit") int limit);
+
+  @SqlQuery("select count(*) from bookmark where deleted_at is null")
   int count();
 
+  @SqlQuery("select row_count_estimate from information_schema.tables "
+      + "where table_schema = schema() and table_name = 'BOOKMARK'")
+  long estimateCount();
+
   @SqlUpdate("delete from bookmark")
   void delete();
 }
@@ -0,0 +1,24 @@
+package jags.ratpacktest.dao;
+
+import jags.ratpacktest.util.LongArrayList;
+import org.skife.jdbi.v2.Folder2;
+import org.skife.jdbi.v2.StatementContext;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Folds the first column of every row straight into a {@link LongArrayList}, so id queries
+ * don't box each value the way a {@code List<Long>} result does.
+ */
+public class LongColumnFolder implements Folder2<LongArrayList> {
+
+  public static final LongColumnFolder INSTANCE = new LongColumnFolder();
+
+  @Override
+  public LongArrayList fold(LongArrayList accumulator, ResultSet rs, StatementContext ctx)
+      throws SQLException {
+    accumulator.add(rs.getLong(1));
+    return accumulator;
+  }
+}
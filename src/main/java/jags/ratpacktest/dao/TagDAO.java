@@ -18,9 +18,9 @@ public interface TagDAO extends AutoCloseable {
   @Override
   void close();
 
-  @SqlUpdate("create table tag("
+  @SqlUpdate("create table if not exists tag("
       + "id identity primary key,"
-      + "label varchar(80) not null)")
+      + "label varchar(80) not null unique)")
   void createTagTable();
 
   @SqlQuery("select id, label from tag join tagging on(tag.id = tagging.tag_id) "
@@ -36,17 +36,28 @@ public interface TagDAO extends AutoCloseable {
   @GetGeneratedKeys
   long insert(@BindBean Tag tag);
 
+  @SqlUpdate("merge into tag(label) key(label) values(:label)")
+  void merge(@Bind("label") String label);
+
   @SqlUpdate("delete from tag where id = :id")
-  void deleteById(@Bind("id") Long id);
+  void deleteById(@Bind("id") long id);
 
   @SqlQuery("select id, label from tag where label = :label")
   @Mapper(Tag.Mapper.class)
   Tag findByLabel(@Bind("label") String label);
 
-  @SqlQuery("select id, label from tag order by label")
+  // tags whose bookmarks are all deleted stay until the purge, but are not listed
+  @SqlQuery("select id, label from tag where exists(select 1 from tagging "
+      + "join bookmark b on(b.id = tagging.bookmark_id) "
+      + "where tagging.tag_id = tag.id and b.deleted_at is null) "
+      + "order by label")
   @Mapper(Tag.Mapper.class)
   List<Tag> findOrderByLabel();
 
+  @SqlQuery("select id, label from tag")
+  @Mapper(Tag.Mapper.class)
+  List<Tag> findAll();
+
   @SqlQuery("select count(*) from tag")
   int count();
 
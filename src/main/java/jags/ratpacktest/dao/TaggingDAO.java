@@ -5,20 +5,29 @@ import org.skife.jdbi.v2.sqlobject.Bind;
 import org.skife.jdbi.v2.sqlobject.BindBean;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
+import org.skife.jdbi.v2.sqlobject.customizers.Mapper;
+import org.skife.jdbi.v2.sqlobject.mixins.GetHandle;
 
 import java.util.List;
 
 /**
  * Created by jose abelardo gutierrez on 7/27/15.
  */
-public interface TaggingDAO extends AutoCloseable {
+public interface TaggingDAO extends AutoCloseable, GetHandle {
+
+  String FIND_TAG_ID_BY_BOOKMARK_ID = "select tag_id from tagging where bookmark_id = :bookmarkId";
+  String FIND_BOOKMARK_ID_BY_TAG_ID = "select bookmark_id from tagging where tag_id = :tagId";
+  String COUNT_BY_TAG_ID = "select tag_id, count(*) from tagging group by tag_id";
+  String FIND_LIVE_ORDER_BY_BOOKMARK_ID = "select tagging.bookmark_id, tagging.tag_id "
+      + "from tagging join bookmark on(bookmark.id = tagging.bookmark_id) "
+      + "where bookmark.deleted_at is null order by tagging.bookmark_id, tagging.tag_id";
 
   @Override
   void close();
 
-  @SqlUpdate("create table tagging("
+  @SqlUpdate("create table if not exists tagging("
       + "bookmark_id integer not null,"
-      + "tag_id integer not null,"
+      + "tag_id integer not null references tag(id),"
       + "primary key(bookmark_id, tag_id))")
   void createTaggingTable();
 
@@ -26,14 +35,18 @@ public interface TaggingDAO extends AutoCloseable {
   long insert(@BindBean Tagging tagging);
 
   @SqlUpdate("delete from tagging where bookmark_id = :bookmarkId and tag_id = :tagId")
-  void delete(@Bind("bookmarkId") Long bookmarkId, @Bind("tagId") Long tagId);
+  int delete(@Bind("bookmarkId") long bookmarkId, @Bind("tagId") long tagId);
 
   @SqlQuery("select count(*) from tagging where tag_id = :tagId")
-  int countByTagId(@Bind("tagId") Long tagId);
+  int countByTagId(@Bind("tagId") long tagId);
 
-  @SqlQuery("select tag_id from tagging where bookmark_id = :bookmarkId")
+  @SqlQuery(FIND_TAG_ID_BY_BOOKMARK_ID)
   List<Long> findTagIdByBookmarkId(@Bind("bookmarkId") Long  bookmarkId);
 
+  @SqlQuery("select bookmark_id, tag_id from tagging")
+  @Mapper(Tagging.Mapper.class)
+  List<Tagging> findAll();
+
   @SqlQuery("select count(*) from tagging")
   int count();
 
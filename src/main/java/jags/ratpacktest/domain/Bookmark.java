@@ -1,5 +1,7 @@
 package jags.ratpacktest.domain;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import jags.ratpacktest.util.UrlCanonicalizer;
 import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.tweak.ResultSetMapper;
 
@@ -16,6 +18,8 @@ public class Bookmark {
   private String title;
   private Date creationTimestamp;
   private String tags;
+  private String tenant;
+  private Long version;
 
   public Bookmark(Long id, String title, String url) {
     this.id = id;
@@ -71,6 +75,12 @@ public class Bookmark {
     this.url = url;
   }
 
+  /** Hash of the canonical url, stored in the indexed {@code url_hash} column. */
+  @JsonIgnore
+  public long getUrlHash() {
+    return UrlCanonicalizer.hashOf(url);
+  }
+
   public Date getCreationTimestamp() {
     return creationTimestamp;
   }
@@ -87,11 +97,41 @@ public class Bookmark {
     this.id = id;
   }
 
+  /**
+   * The tenant whose shard the bookmark was read from, see {@code TenantRouter}. Internal, so
+   * it is neither sent to nor read from clients.
+   */
+  @JsonIgnore
+  public String getTenant() {
+    return tenant;
+  }
+
+  @JsonIgnore
+  public void setTenant(String tenant) {
+    this.tenant = tenant;
+  }
+
+  /**
+   * Counts the updates of the bookmark; an update naming a version only applies to that one.
+   * {@code null} for a bookmark not read from the database.
+   */
+  public Long getVersion() {
+    return version;
+  }
+
+  public void setVersion(Long version) {
+    this.version = version;
+  }
+
   public static class Mapper implements ResultSetMapper<Bookmark> {
     @Override
     public Bookmark map(int idx, ResultSet rs, StatementContext sc)
         throws SQLException {
-      return new Bookmark(rs.getLong("id"), rs.getString("title"), rs.getString("url"), rs.getDate("creation_timestamp"));
+      Bookmark bookmark = new Bookmark(rs.getLong("id"), rs.getString("title"), rs.getString("url"),
+          rs.getTimestamp("creation_timestamp"));
+      bookmark.setVersion(rs.getLong("version"));
+      bookmark.setTenant((String) sc.getAttribute("tenant"));
+      return bookmark;
     }
   }
 }
@@ -1,5 +1,6 @@
 package jags.ratpacktest.domain;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.tweak.ResultSetMapper;
 
@@ -12,6 +13,7 @@ import java.sql.SQLException;
 public class Tag {
   private Long id;
   private String label;
+  private String tenant;
 
   public Tag() {
   }
@@ -41,11 +43,23 @@ public class Tag {
     this.id = id;
   }
 
+  @JsonIgnore
+  public String getTenant() {
+    return tenant;
+  }
+
+  @JsonIgnore
+  public void setTenant(String tenant) {
+    this.tenant = tenant;
+  }
+
   public static class Mapper implements ResultSetMapper<Tag> {
     @Override
     public Tag map(int idx, ResultSet rs, StatementContext sc)
         throws SQLException {
-      return new Tag(rs.getLong("id"), rs.getString("label"));
+      Tag tag = new Tag(rs.getLong("id"), rs.getString("label"));
+      tag.setTenant((String) sc.getAttribute("tenant"));
+      return tag;
     }
   }
 }
@@ -1,5 +1,6 @@
 package jags.ratpacktest.domain;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.tweak.ResultSetMapper;
 
@@ -12,6 +13,7 @@ import java.sql.SQLException;
 public class Tagging {
   private Long bookmarkId;
   private Long tagId;
+  private String tenant;
 
   public Tagging(Long bookmarkId, Long tagId) {
     this.bookmarkId = bookmarkId;
@@ -26,11 +28,23 @@ public class Tagging {
     return tagId;
   }
 
+  @JsonIgnore
+  public String getTenant() {
+    return tenant;
+  }
+
+  @JsonIgnore
+  public void setTenant(String tenant) {
+    this.tenant = tenant;
+  }
+
   public static class Mapper implements ResultSetMapper<Tagging> {
     @Override
     public Tagging map(int idx, ResultSet rs, StatementContext sc)
         throws SQLException {
-      return new Tagging(rs.getLong("bookmark_id"), rs.getLong("tag_id"));
+      Tagging tagging = new Tagging(rs.getLong("bookmark_id"), rs.getLong("tag_id"));
+      tagging.setTenant((String) sc.getAttribute("tenant"));
+      return tagging;
     }
   }
 }
@@ -0,0 +1,22 @@
+package jags.ratpacktest.domain;
+
+/**
+ * Title and canonical URL read from a bookmarked page. Either may be {@code null}.
+ */
+public class UrlMetadata {
+  private final String title;
+  private final String canonicalUrl;
+
+  public UrlMetadata(String title, String canonicalUrl) {
+    this.title = title;
+    this.canonicalUrl = canonicalUrl;
+  }
+
+  public String getTitle() {
+    return title;
+  }
+
+  public String getCanonicalUrl() {
+    return canonicalUrl;
+  }
+}
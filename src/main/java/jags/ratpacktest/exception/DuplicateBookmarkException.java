@@ -0,0 +1,17 @@
+package jags.ratpacktest.exception;
+
+/**
+ * Thrown when a bookmark would duplicate the canonical URL of an existing one.
+ */
+public class DuplicateBookmarkException extends ValidationException {
+  private final long existingId;
+
+  public DuplicateBookmarkException(long existingId) {
+    super("url is already bookmarked");
+    this.existingId = existingId;
+  }
+
+  public long getExistingId() {
+    return existingId;
+  }
+}
@@ -0,0 +1,11 @@
+package jags.ratpacktest.exception;
+
+/**
+ * Thrown when a write reaches the service of a shard its tenant has been moved away from.
+ */
+public class TenantMovedException extends IllegalStateException {
+
+  public TenantMovedException() {
+    super("tenant has moved to another shard");
+  }
+}
@@ -0,0 +1,17 @@
+package jags.ratpacktest.exception;
+
+/**
+ * Thrown when an update names a version of the bookmark that is no longer the current one.
+ */
+public class VersionConflictException extends ValidationException {
+  private final long currentVersion;
+
+  public VersionConflictException(long currentVersion) {
+    super("bookmark has been changed since version was read");
+    this.currentVersion = currentVersion;
+  }
+
+  public long getCurrentVersion() {
+    return currentVersion;
+  }
+}
@@ -0,0 +1,89 @@
+package jags.ratpacktest.limit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Global admission control for expensive requests.
+ *
+ * <p>Requests are refused when more than {@code maxConcurrent} are in flight, or when a standing
+ * queue has built up: like CoDel, the smallest latency seen during an interval is taken as the
+ * queueing delay, and while that stays above {@code targetDelay} new work is shed.
+ */
+public class AdmissionController {
+
+  private final int maxConcurrent;
+  private final long targetDelayNanos;
+  private final long intervalNanos;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicLong intervalStart;
+  private final AtomicLong intervalMinLatency = new AtomicLong(Long.MAX_VALUE);
+  private volatile long queueDelayNanos;
+  private final LongSupplier nanoClock;
+
+  public AdmissionController(int maxConcurrent, long targetDelay, long interval, TimeUnit unit) {
+    this(maxConcurrent, targetDelay, interval, unit, System::nanoTime);
+  }
+
+  /** @param nanoClock source of {@link System#nanoTime()}-like readings */
+  AdmissionController(int maxConcurrent, long targetDelay, long interval, TimeUnit unit,
+      LongSupplier nanoClock) {
+    this.nanoClock = nanoClock;
+    this.intervalStart = new AtomicLong(nanoClock.getAsLong());
+    this.maxConcurrent = maxConcurrent;
+    this.targetDelayNanos = unit.toNanos(targetDelay);
+    this.intervalNanos = unit.toNanos(interval);
+  }
+
+  /** Returns {@code true} if the request may proceed, in which case {@link #release} is due. */
+  public boolean tryAdmit() {
+    if (queueDelayNanos > targetDelayNanos) {
+      // nothing completes while shedding, so let the estimate expire with the interval
+      roll(nanoClock.getAsLong());
+      if (queueDelayNanos > targetDelayNanos) {
+        return false;
+      }
+    }
+    while (true) {
+      int current = inFlight.get();
+      if (current >= maxConcurrent) {
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  public void release(long latencyNanos) {
+    inFlight.decrementAndGet();
+    long min;
+    do {
+      min = intervalMinLatency.get();
+    } while (latencyNanos < min && !intervalMinLatency.compareAndSet(min, latencyNanos));
+    roll(nanoClock.getAsLong());
+  }
+
+  private void roll(long now) {
+    long start = intervalStart.get();
+    if (now - start >= intervalNanos && intervalStart.compareAndSet(start, now)) {
+      long min = intervalMinLatency.getAndSet(Long.MAX_VALUE);
+      queueDelayNanos = min == Long.MAX_VALUE ? 0 : min;
+    }
+  }
+
+  /** Suggested wait before retrying a refused request. */
+  public long retryAfterNanos() {
+    return Math.max(intervalNanos, queueDelayNanos);
+  }
+
+  public int inFlight() {
+    return inFlight.get();
+  }
+
+  public long queueDelayNanos() {
+    return queueDelayNanos;
+  }
+}
@@ -0,0 +1,84 @@
+package jags.ratpacktest.limit;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Keyed token bucket implemented as a generic cell rate algorithm: each key holds only its
+ * theoretical arrival time, updated with a single CAS, so no locks are taken.
+ */
+public class TokenBucketLimiter {
+
+  private final long intervalNanos;
+  private final long toleranceNanos;
+  private final int maxKeys;
+  private final ConcurrentMap<String, AtomicLong> arrivals = new ConcurrentHashMap<>();
+  private final AtomicBoolean sweeping = new AtomicBoolean();
+  private final LongSupplier nanoClock;
+
+  /**
+   * @param permitsPerSecond sustained rate allowed for each key
+   * @param burst            permits a key can spend at once after being idle
+   * @param maxKeys          number of tracked keys above which idle keys are dropped
+   */
+  public TokenBucketLimiter(double permitsPerSecond, int burst, int maxKeys) {
+    this(permitsPerSecond, burst, maxKeys, System::nanoTime);
+  }
+
+  /** @param nanoClock source of {@link System#nanoTime()}-like readings */
+  TokenBucketLimiter(double permitsPerSecond, int burst, int maxKeys, LongSupplier nanoClock) {
+    this.nanoClock = nanoClock;
+    this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+    this.toleranceNanos = intervalNanos * (Math.max(burst, 1) - 1);
+    this.maxKeys = maxKeys;
+  }
+
+  /**
+   * Takes a permit for {@code key}.
+   *
+   * @return {@code 0} when granted, otherwise the nanoseconds until one would be
+   */
+  public long tryAcquire(String key) {
+    long now = nanoClock.getAsLong();
+    AtomicLong arrival = arrivals.get(key);
+    if (arrival == null) {
+      if (arrivals.size() >= maxKeys) {
+        sweep(now);
+      }
+      AtomicLong created = new AtomicLong(now);
+      arrival = arrivals.putIfAbsent(key, created);
+      if (arrival == null) {
+        arrival = created;
+      }
+    }
+    while (true) {
+      long theoretical = arrival.get();
+      long wait = theoretical - toleranceNanos - now;
+      if (wait > 0) {
+        return wait;
+      }
+      if (arrival.compareAndSet(theoretical, Math.max(theoretical, now) + intervalNanos)) {
+        return 0;
+      }
+    }
+  }
+
+  /** Drops keys whose bucket has refilled completely; they behave the same as new keys. */
+  private void sweep(long now) {
+    if (sweeping.compareAndSet(false, true)) {
+      try {
+        arrivals.values().removeIf(arrival -> arrival.get() <= now);
+      } finally {
+        sweeping.set(false);
+      }
+    }
+  }
+
+  public int size() {
+    return arrivals.size();
+  }
+}
@@ -0,0 +1,90 @@
+package jags.ratpacktest.limit;
+
+import jags.ratpacktest.metrics.Metrics;
+import ratpack.handling.Context;
+import ratpack.handling.Handler;
+import ratpack.http.HttpMethod;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Guards POST and PUT requests: a per client token bucket answers {@code 429} to clients over
+ * their rate, and global admission control answers {@code 503} when the server is saturated.
+ * Both set {@code Retry-After}. Other methods pass straight through.
+ *
+ * <p>Clients are identified by their {@code X-Api-Key} header, or by remote address without one.
+ */
+public class WriteLimitHandler implements Handler {
+
+  private static final int TOO_MANY_REQUESTS = 429;
+
+  private final TokenBucketLimiter limiter;
+  private final AdmissionController admission;
+  private final LongAdder admitted = Metrics.counter("limiter.admitted");
+  private final LongAdder rateLimited = Metrics.counter("limiter.rejected.rate");
+  private final LongAdder shed = Metrics.counter("limiter.rejected.overload");
+
+  public WriteLimitHandler(TokenBucketLimiter limiter, AdmissionController admission) {
+    this.limiter = limiter;
+    this.admission = admission;
+    Metrics.gauge("limiter.clients", limiter::size);
+    Metrics.gauge("limiter.inFlight", admission::inFlight);
+    Metrics.gauge("limiter.queueDelayMillis",
+        () -> TimeUnit.NANOSECONDS.toMillis(admission.queueDelayNanos()));
+  }
+
+  /**
+   * Builds the handler from the {@code ratpacktest.rateLimit.*} and
+   * {@code ratpacktest.admission.*} system properties.
+   */
+  public static WriteLimitHandler fromSystemProperties() {
+    TokenBucketLimiter limiter = new TokenBucketLimiter(
+        Double.parseDouble(System.getProperty("ratpacktest.rateLimit.perSecond", "20")),
+        Integer.getInteger("ratpacktest.rateLimit.burst", 40),
+        Integer.getInteger("ratpacktest.rateLimit.maxClients", 10000));
+    AdmissionController admission = new AdmissionController(
+        Integer.getInteger("ratpacktest.admission.maxConcurrent", 16),
+        Long.getLong("ratpacktest.admission.targetDelayMillis", 100),
+        Long.getLong("ratpacktest.admission.intervalMillis", 500),
+        TimeUnit.MILLISECONDS);
+    return new WriteLimitHandler(limiter, admission);
+  }
+
+  @Override
+  public void handle(Context ctx) throws Exception {
+    HttpMethod method = ctx.getRequest().getMethod();
+    if (!method.isPost() && !method.isPut()) {
+      ctx.next();
+      return;
+    }
+    long wait = limiter.tryAcquire(clientKey(ctx));
+    if (wait > 0) {
+      rateLimited.increment();
+      reject(ctx, TOO_MANY_REQUESTS, wait);
+      return;
+    }
+    if (!admission.tryAdmit()) {
+      shed.increment();
+      reject(ctx, HttpURLConnection.HTTP_UNAVAILABLE, admission.retryAfterNanos());
+      return;
+    }
+    admitted.increment();
+    long start = System.nanoTime();
+    ctx.onClose(outcome -> admission.release(System.nanoTime() - start));
+    ctx.next();
+  }
+
+  private static String clientKey(Context ctx) {
+    String apiKey = ctx.getRequest().getHeaders().get("X-Api-Key");
+    return apiKey != null ? "key:" + apiKey : ctx.getRequest().getRemoteAddress().getHostText();
+  }
+
+  private static void reject(Context ctx, int status, long waitNanos) {
+    long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999_999_999L));
+    ctx.getResponse().getHeaders().set("Retry-After", seconds);
+    ctx.getResponse().status(status);
+    ctx.getResponse().send();
+  }
+}
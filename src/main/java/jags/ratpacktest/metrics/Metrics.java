@@ -0,0 +1,36 @@
+package jags.ratpacktest.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process wide registry of named counters and gauges, exported at {@code /admin/metrics}.
+ */
+public final class Metrics {
+
+  private static final ConcurrentMap<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+
+  private Metrics() {
+  }
+
+  public static LongAdder counter(String name) {
+    LongAdder counter = COUNTERS.get(name);
+    return counter != null ? counter : COUNTERS.computeIfAbsent(name, key -> new LongAdder());
+  }
+
+  public static void gauge(String name, LongSupplier value) {
+    GAUGES.put(name, value);
+  }
+
+  public static Map<String, Long> snapshot() {
+    Map<String, Long> snapshot = new TreeMap<>();
+    COUNTERS.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+    GAUGES.forEach((name, gauge) -> snapshot.put(name, gauge.getAsLong()));
+    return snapshot;
+  }
+}
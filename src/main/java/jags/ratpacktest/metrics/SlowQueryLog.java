@@ -0,0 +1,166 @@
+package jags.ratpacktest.metrics;
+
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.TimingCollector;
+import org.skife.jdbi.v2.tweak.Argument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Records JDBI statements slower than a threshold, with their bound parameters, in a bounded
+ * ring of the most recent ones, exported at {@code /admin/slow-queries}.
+ *
+ * <p>The first time a statement shape is slow, its plan is captured on the statement's own
+ * connection with H2's {@code EXPLAIN}, which only plans it. {@code EXPLAIN ANALYZE} would add
+ * the rows scanned, but it runs the statement a second time on the request's thread.
+ * The shape is the executed SQL with {@code in(?, ?, ...)} lists collapsed, so one
+ * {@code findByTagLabels...} query is explained once whatever the number of labels.
+ */
+public class SlowQueryLog implements TimingCollector {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SlowQueryLog.class);
+  private static final Pattern IN_LIST =
+      Pattern.compile("(?i)(\\bin\\s*\\(\\s*)\\?(\\s*,\\s*\\?)*");
+  // a :name parameter, or a quoted string to skip over
+  private static final Pattern NAMED_PARAMETER = Pattern.compile("'(?:[^']|'')*'|:(\\w+)");
+  private static final int MAX_PLANS = 256;
+
+  private final long thresholdNanos;
+  private final SlowQuery[] ring;
+  private long next;
+  private final ConcurrentMap<String, String> plans = new ConcurrentHashMap<>();
+
+  public SlowQueryLog(long threshold, TimeUnit unit, int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.thresholdNanos = unit.toNanos(threshold);
+    this.ring = new SlowQuery[capacity];
+  }
+
+  /**
+   * Reads {@code ratpacktest.slowQuery.thresholdMillis} (50) and the number of queries kept,
+   * {@code ratpacktest.slowQuery.capacity} (100).
+   */
+  public static SlowQueryLog fromSystemProperties() {
+    return new SlowQueryLog(Long.getLong("ratpacktest.slowQuery.thresholdMillis", 50),
+        TimeUnit.MILLISECONDS, Integer.getInteger("ratpacktest.slowQuery.capacity", 100));
+  }
+
+  @Override
+  public void collect(long elapsedNanos, StatementContext ctx) {
+    if (elapsedNanos < thresholdNanos || ctx.getRewrittenSql() == null) {
+      return;
+    }
+    Metrics.counter("queries.slow").increment();
+    String shape = IN_LIST.matcher(ctx.getRewrittenSql()).replaceAll("$1?...");
+    List<String> names = parameterNames(ctx.getLocatedSql());
+    Map<String, String> parameters = new LinkedHashMap<>();
+    for (String name : names) {
+      parameters.put(name, String.valueOf(ctx.getBinding().forName(name)));
+    }
+    SlowQuery query = new SlowQuery(System.currentTimeMillis(),
+        TimeUnit.NANOSECONDS.toMicros(elapsedNanos), statementName(ctx),
+        (String) ctx.getAttribute("tenant"), shape, parameters);
+    synchronized (this) {
+      ring[(int) (next++ % ring.length)] = query;
+    }
+    if (!plans.containsKey(shape) && plans.size() < MAX_PLANS) {
+      // concurrent slow runs of a new shape may both explain it; the first plan is kept
+      plans.putIfAbsent(shape, explain(ctx, names));
+    }
+  }
+
+  private static String statementName(StatementContext ctx) {
+    if (ctx.getSqlObjectMethod() == null) {
+      return null;
+    }
+    return ctx.getSqlObjectType().getSimpleName() + "." + ctx.getSqlObjectMethod().getName();
+  }
+
+  /** The {@code :name} parameters of {@code sql} in the order they are bound. */
+  private static List<String> parameterNames(String sql) {
+    List<String> names = new ArrayList<>();
+    if (sql == null) {
+      return names;
+    }
+    Matcher matcher = NAMED_PARAMETER.matcher(sql);
+    while (matcher.find()) {
+      if (matcher.group(1) != null) {
+        names.add(matcher.group(1));
+      }
+    }
+    return names;
+  }
+
+  private static String explain(StatementContext ctx, List<String> names) {
+    String sql = ctx.getRewrittenSql();
+    Connection connection = ctx.getConnection();
+    try (PreparedStatement explain = connection.prepareStatement("explain " + sql)) {
+      for (int i = 0; i < names.size(); i++) {
+        Argument argument = ctx.getBinding().forName(names.get(i));
+        if (argument == null) {
+          return "not explained: no value bound for " + names.get(i);
+        }
+        argument.apply(i + 1, explain, ctx);
+      }
+      try (ResultSet plan = explain.executeQuery()) {
+        return plan.next() ? plan.getString(1) : "";
+      }
+    } catch (SQLException | RuntimeException e) {
+      LOGGER.info("could not explain '{}': {}", sql, e.toString());
+      return "not explained: " + e.getMessage();
+    }
+  }
+
+  /** The recorded queries, most recent first. */
+  public synchronized List<Map<String, Object>> recent() {
+    List<Map<String, Object>> recent = new ArrayList<>();
+    for (long i = next - 1; i >= 0 && i >= next - ring.length; i--) {
+      SlowQuery query = ring[(int) (i % ring.length)];
+      Map<String, Object> entry = new LinkedHashMap<>();
+      entry.put("time", query.time);
+      entry.put("micros", query.micros);
+      entry.put("statement", query.statement);
+      entry.put("tenant", query.tenant);
+      entry.put("sql", query.shape);
+      entry.put("parameters", query.parameters);
+      entry.put("plan", plans.get(query.shape));
+      recent.add(entry);
+    }
+    return recent;
+  }
+
+  private static class SlowQuery {
+    private final long time;
+    private final long micros;
+    private final String statement;
+    private final String tenant;
+    private final String shape;
+    private final Map<String, String> parameters;
+
+    private SlowQuery(long time, long micros, String statement, String tenant, String shape,
+        Map<String, String> parameters) {
+      this.time = time;
+      this.micros = micros;
+      this.statement = statement;
+      this.tenant = tenant;
+      this.shape = shape;
+      this.parameters = parameters;
+    }
+  }
+}
@@ -0,0 +1,14 @@
+package jags.ratpacktest.service;
+
+import jags.ratpacktest.domain.Bookmark;
+
+/**
+ * Told about each committed change of a bookmark, in commit order per bookmark.
+ */
+public interface BookmarkChangeListener {
+
+  /** {@code bookmark} is the state after the change, with its tags. */
+  void changed(Bookmark bookmark);
+
+  void deleted(long id);
+}
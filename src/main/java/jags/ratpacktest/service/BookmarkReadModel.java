@@ -0,0 +1,237 @@
+package jags.ratpacktest.service;
+
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.domain.Tag;
+import jags.ratpacktest.domain.Tagging;
+import jags.ratpacktest.util.LongHashSet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * In-memory copy of the bookmark and tag tables used to answer listings without JDBC.
+ *
+ * <p>Readers never lock: every structure is a concurrent map or skip list. Writers are
+ * serialized by the model itself, since {@link #put} and {@link #remove} are synchronized.
+ * {@link BookmarkService} calls them after each committed write, so a reader may briefly see a
+ * bookmark missing from one order while it is being replaced. Returned bookmarks are shared
+ * instances and must not be mutated.
+ */
+public class BookmarkReadModel {
+
+  private static final Comparator<Entry> BY_TITLE = (a, b) -> {
+    int cmp = a.bookmark.getTitle().compareTo(b.bookmark.getTitle());
+    return cmp != 0 ? cmp : Long.compare(a.id, b.id);
+  };
+
+  private static final Comparator<Entry> BY_CREATION_TIMESTAMP = (a, b) -> {
+    int cmp = Long.compare(a.creationTimestamp, b.creationTimestamp);
+    return cmp != 0 ? cmp : Long.compare(a.id, b.id);
+  };
+
+  private final ConcurrentMap<Long, Entry> byId = new ConcurrentHashMap<>();
+  private final NavigableSet<Entry> byTitle = new ConcurrentSkipListSet<>(BY_TITLE);
+  private final NavigableSet<Entry> byCreationTimestamp =
+      new ConcurrentSkipListSet<>(BY_CREATION_TIMESTAMP);
+  private final ConcurrentSkipListMap<String, Tag> tagsByLabel = new ConcurrentSkipListMap<>();
+  // posting lists are copied on write, so readers always see a complete, unchanging set
+  private final ConcurrentMap<String, LongHashSet> bookmarkIdsByLabel =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Fills a new model from the tables before it is shared. Each label's posting list is built
+   * once here; only the single writes of {@link #put} and {@link #remove} copy them.
+   */
+  public synchronized void load(List<Bookmark> bookmarks, List<Tag> tags,
+      List<Tagging> taggings) {
+    if (!byId.isEmpty()) {
+      throw new IllegalStateException("the model is loaded already");
+    }
+    Map<Long, Tag> tagsById = new HashMap<>();
+    for (Tag tag : tags) {
+      tagsById.put(tag.getId(), tag);
+    }
+    Map<Long, List<Tag>> tagsByBookmarkId = new HashMap<>();
+    for (Tagging tagging : taggings) {
+      Tag tag = tagsById.get(tagging.getTagId());
+      if (tag != null) {
+        tagsByBookmarkId.computeIfAbsent(tagging.getBookmarkId(), id -> new ArrayList<>())
+            .add(tag);
+      }
+    }
+    Map<String, LongHashSet> postings = new HashMap<>();
+    for (Bookmark bookmark : bookmarks) {
+      List<Tag> bookmarkTags = tagsByBookmarkId.get(bookmark.getId());
+      Entry entry = new Entry(bookmark,
+          bookmarkTags == null ? Collections.<Tag>emptyList() : bookmarkTags);
+      byId.put(entry.id, entry);
+      byTitle.add(entry);
+      byCreationTimestamp.add(entry);
+      if (bookmarkTags != null) {
+        for (Tag tag : bookmarkTags) {
+          tagsByLabel.put(tag.getLabel(), tag);
+          postings.computeIfAbsent(tag.getLabel(), label -> new LongHashSet()).add(entry.id);
+        }
+      }
+    }
+    bookmarkIdsByLabel.putAll(postings);
+  }
+
+  public synchronized void put(Bookmark bookmark, List<Tag> tags) {
+    Entry entry = new Entry(bookmark, tags);
+    Entry previous = byId.put(entry.id, entry);
+    if (previous != null) {
+      unlink(previous);
+    }
+    byTitle.add(entry);
+    byCreationTimestamp.add(entry);
+    for (Tag tag : tags) {
+      tagsByLabel.put(tag.getLabel(), tag);
+      LongHashSet ids = bookmarkIdsByLabel.get(tag.getLabel());
+      LongHashSet copy = ids == null ? new LongHashSet() : new LongHashSet(ids);
+      copy.add(entry.id);
+      bookmarkIdsByLabel.put(tag.getLabel(), copy);
+    }
+  }
+
+  public synchronized void remove(long id) {
+    Entry previous = byId.remove(id);
+    if (previous != null) {
+      unlink(previous);
+    }
+  }
+
+  private void unlink(Entry entry) {
+    byTitle.remove(entry);
+    byCreationTimestamp.remove(entry);
+    for (String label : entry.labels) {
+      LongHashSet ids = bookmarkIdsByLabel.get(label);
+      if (ids == null || !ids.contains(entry.id)) {
+        continue;
+      }
+      if (ids.size() == 1) {
+        bookmarkIdsByLabel.remove(label);
+        tagsByLabel.remove(label);
+      } else {
+        LongHashSet copy = new LongHashSet(ids);
+        copy.remove(entry.id);
+        bookmarkIdsByLabel.put(label, copy);
+      }
+    }
+  }
+
+  public Bookmark getBookmark(long id) {
+    Entry entry = byId.get(id);
+    if (entry == null) {
+      return null;
+    }
+    Bookmark bookmark = new Bookmark(entry.id, entry.bookmark.getTitle(), entry.bookmark.getUrl(),
+        entry.bookmark.getCreationTimestamp());
+    bookmark.setTenant(entry.bookmark.getTenant());
+    bookmark.setVersion(entry.bookmark.getVersion());
+    bookmark.setTags(entry.tags);
+    return bookmark;
+  }
+
+  public List<Tag> getTags() {
+    return new ArrayList<>(tagsByLabel.values());
+  }
+
+  /**
+   * Lists bookmarks in title or creation order, optionally restricted to those carrying any of
+   * {@code labels}. A negative {@code limit} means no limit.
+   */
+  public List<Bookmark> find(Collection<String> labels, boolean byCreation, int offset,
+      int limit) {
+    NavigableSet<Entry> ordered = byCreation ? byCreationTimestamp : byTitle;
+    if (labels == null || labels.isEmpty()) {
+      return page(ordered.iterator(), null, offset, limit);
+    }
+    LongHashSet ids = new LongHashSet();
+    for (String label : labels) {
+      LongHashSet labelIds = bookmarkIdsByLabel.get(label);
+      if (labelIds != null) {
+        ids.addAll(labelIds);
+      }
+    }
+    if (ids.isEmpty()) {
+      return Collections.emptyList();
+    }
+    // a small match set is cheaper to sort than to find by walking the whole order
+    if ((long) ids.size() * 8 < ordered.size()) {
+      List<Entry> matches = new ArrayList<>(ids.size());
+      ids.forEach(id -> {
+        Entry entry = byId.get(id);
+        if (entry != null) {
+          matches.add(entry);
+        }
+      });
+      matches.sort(byCreation ? BY_CREATION_TIMESTAMP : BY_TITLE);
+      return page(matches.iterator(), null, offset, limit);
+    }
+    return page(ordered.iterator(), ids, offset, limit);
+  }
+
+  private static List<Bookmark> page(Iterator<Entry> it, LongHashSet ids, int offset,
+      int limit) {
+    List<Bookmark> result = new ArrayList<>();
+    int skipped = 0;
+    while (it.hasNext() && (limit < 0 || result.size() < limit)) {
+      Entry entry = it.next();
+      if (ids != null && !ids.contains(entry.id)) {
+        continue;
+      }
+      if (skipped < offset) {
+        skipped++;
+      } else {
+        result.add(entry.bookmark);
+      }
+    }
+    return result;
+  }
+
+  public int size() {
+    return byId.size();
+  }
+
+  private static class Entry {
+    private final long id;
+    private final long creationTimestamp;
+    private final Bookmark bookmark;
+    private final String tags;
+    private final Set<String> labels;
+
+    private Entry(Bookmark bookmark, List<Tag> tags) {
+      this.id = bookmark.getId();
+      this.creationTimestamp = bookmark.getCreationTimestamp() == null
+          ? 0 : bookmark.getCreationTimestamp().getTime();
+      this.bookmark = new Bookmark(bookmark.getId(), bookmark.getTitle(), bookmark.getUrl(),
+          bookmark.getCreationTimestamp());
+      this.bookmark.setTenant(bookmark.getTenant());
+      this.bookmark.setVersion(bookmark.getVersion());
+      this.labels = new HashSet<>();
+      StringBuilder joined = new StringBuilder();
+      for (Tag tag : tags) {
+        if (joined.length() > 0) {
+          joined.append(",");
+        }
+        joined.append(tag.getLabel());
+        labels.add(tag.getLabel());
+      }
+      this.tags = joined.toString();
+    }
+  }
+}
@@ -1,54 +1,367 @@
 package jags.ratpacktest.service;
 
 import jags.ratpacktest.dao.BookmarkDAO;
+import jags.ratpacktest.dao.LongColumnFolder;
 import jags.ratpacktest.dao.TagDAO;
 import jags.ratpacktest.dao.TaggingDAO;
 import jags.ratpacktest.domain.Bookmark;
 import jags.ratpacktest.domain.Tag;
 import jags.ratpacktest.domain.Tagging;
+import jags.ratpacktest.domain.UrlMetadata;
+import jags.ratpacktest.exception.DuplicateBookmarkException;
 import jags.ratpacktest.exception.ValidationException;
+import jags.ratpacktest.exception.TenantMovedException;
+import jags.ratpacktest.exception.VersionConflictException;
+import jags.ratpacktest.metrics.Metrics;
+import jags.ratpacktest.util.LongArrayList;
+import jags.ratpacktest.util.LongObjectHashMap;
+import jags.ratpacktest.util.UrlCanonicalizer;
+import org.h2.api.ErrorCode;
 import org.h2.jdbcx.JdbcConnectionPool;
 import org.h2.util.StringUtils;
 import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Folder2;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
-
-import javax.sql.DataSource;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Created by jose abelardo gutierrez on 7/30/15.
  */
 public class BookmarkService {
 
-  private DataSource ds = JdbcConnectionPool.create("jdbc:h2:mem:test", "sa", "");
-  private DBI dbi = new DBI(ds);
+  private static final Logger LOGGER = LoggerFactory.getLogger(BookmarkService.class);
+  private static final int MAX_URL_LENGTH = 2048;
+  private static final String DELETE_UNUSED_TAGS = "delete from tag "
+      + "where not exists(select 1 from tagging where tagging.tag_id = tag.id)";
+  // keeps the in lists of bulk tag lookups short
+  private static final int LABEL_CHUNK = 500;
+  private static final int PURGE_BATCH = 1000;
+
+  private final DBI dbi;
+  // replaced after bulk changes while readers use it
+  private volatile BookmarkReadModel readModel;
+  private final TagIdDictionary tagIds = new TagIdDictionary();
+  // one write transaction at a time: H2 locks whole tables until a transaction ends, so two
+  // would deadlock raising their read locks to write locks. It also keeps the duplicate check
+  // and the write of a url together, and the listener's order the commit order.
+  private final ReentrantLock transactions = new ReentrantLock();
+  // writes hold it shared; TenantRouter holds it exclusively while it copies the tenant away
+  private final ReentrantReadWriteLock writeGate = new ReentrantReadWriteLock();
+  private volatile boolean retired;
+  // writes committed by each thread, so TenantRouter#call can tell whether a call wrote already
+  private static final ThreadLocal<long[]> COMMITS = ThreadLocal.withInitial(() -> new long[1]);
+  // calls TenantRouter#call is running on this service, which a move waits for
+  private final AtomicInteger routedCalls = new AtomicInteger();
+  // run once no routed call is left; guarded by routedCalls
+  private Runnable afterCalls;
+  private volatile BookmarkChangeListener changeListener;
+  private final VisitCounter visits;
+  private final TagQueryPlanner tagQueries;
+  private final RelatedBookmarks related;
 
   public BookmarkService() {
+    this(new DBI(JdbcConnectionPool.create("jdbc:h2:mem:test", "sa", "")));
+  }
+
+  /** Stores bookmarks in the tables of whatever schema {@code dbi}'s connections are set to. */
+  public BookmarkService(DBI dbi) {
+    this.dbi = dbi;
     try (BookmarkDAO bookmarkDAO = dbi.open(BookmarkDAO.class);
         TagDAO tagDAO = dbi.open(TagDAO.class);
         TaggingDAO taggingDAO = dbi.open(TaggingDAO.class)) {
       bookmarkDAO.createBookmarkTable();
+      bookmarkDAO.addVersionColumn();
+      bookmarkDAO.addDeletedAtColumn();
+      bookmarkDAO.createDeletedAtIndex();
+      bookmarkDAO.createUrlHashIndex();
+      bookmarkDAO.createVisitCountIndex();
+      bookmarkDAO.createTitleIndex();
+      bookmarkDAO.createCreationTimestampIndex();
       tagDAO.createTagTable();
       taggingDAO.createTaggingTable();
-    } catch (Exception ignored) {
+      tagIds.load(tagDAO.findAll());
+    }
+    visits = new VisitCounter(dbi, Integer.getInteger("ratpacktest.visits.ranked", 100));
+    tagQueries = new TagQueryPlanner(dbi, ParallelTagQuery.fromSystemProperties(dbi));
+    tagQueries.load();
+    related = new RelatedBookmarks(dbi);
+    related.load();
+    if (Boolean.getBoolean("ratpacktest.readModel")) {
+      readModel = loadReadModel();
+    }
+  }
+
+  private BookmarkReadModel loadReadModel() {
+    try (BookmarkDAO bookmarkDAO = dbi.open(BookmarkDAO.class);
+         TagDAO tagDAO = dbi.open(TagDAO.class);
+         TaggingDAO taggingDAO = dbi.open(TaggingDAO.class)) {
+      BookmarkReadModel model = new BookmarkReadModel();
+      model.load(bookmarkDAO.findOrderByTitle(), tagDAO.findOrderByLabel(), taggingDAO.findAll());
+      return model;
     }
   }
 
+  public void setChangeListener(BookmarkChangeListener changeListener) {
+    this.changeListener = changeListener;
+  }
+
+  /** A write run by {@link #write}, which adds the ids of the bookmarks it changes. */
+  @FunctionalInterface
+  private interface Write<T, E extends Exception> {
+    T apply(Handle handle, LongArrayList changed) throws E;
+  }
+
+  private <T, E extends Exception> T write(Write<T, E> write) throws E {
+    return write(Collections.<Bookmark>emptyList(), write);
+  }
+
+  /**
+   * Runs {@code write} as one transaction on one handle. The new states of the bookmarks it
+   * changed, and {@code stored}, states it writes as they are, go to the change listener before
+   * the commit, so a journal has them on disk before the database has them; the read model gets
+   * the changed ones after the commit. If the transaction fails once the listener has them, it
+   * is given the states that stayed committed, so the journal ends up agreeing with the store.
+   */
+  private <T, E extends Exception> T write(List<Bookmark> stored, Write<T, E> write) throws E {
+    beginWrite();
+    transactions.lock();
+    try (Handle handle = dbi.open()) {
+      LongArrayList changed = new LongArrayList();
+      Map<Long, List<Tag>> tags = new HashMap<>();
+      boolean published = false;
+      boolean committed = false;
+      handle.begin();
+      try {
+        T result = write.apply(handle, changed);
+        Map<Long, Bookmark> states = readStates(handle, changed, tags);
+        // from the first record on, the journal may hold states that are not committed yet
+        published = true;
+        publish(stored, changed, states);
+        handle.commit();
+        committed = true;
+        COMMITS.get()[0]++;
+        if (readModel != null) {
+          for (int i = 0; i < changed.size(); i++) {
+            Bookmark state = states.get(changed.get(i));
+            if (state == null) {
+              readModel.remove(changed.get(i));
+            } else {
+              readModel.put(state, tags.get(state.getId()));
+            }
+          }
+        }
+        return result;
+      } finally {
+        if (!committed) {
+          handle.rollback();
+          if (published) {
+            republishCommitted(handle, changed, stored);
+          }
+        }
+      }
+    } finally {
+      transactions.unlock();
+      endWrite();
+    }
+  }
+
+  /** Tells the listener the committed states of bookmarks whose rolled back ones it was told. */
+  private void republishCommitted(Handle handle, LongArrayList changed, List<Bookmark> stored) {
+    LongArrayList ids = new LongArrayList(changed.size() + stored.size());
+    for (int i = 0; i < changed.size(); i++) {
+      ids.add(changed.get(i));
+    }
+    for (Bookmark bookmark : stored) {
+      ids.add(bookmark.getId());
+    }
+    try {
+      publish(Collections.<Bookmark>emptyList(), ids,
+          readStates(handle, ids, new HashMap<>()));
+    } catch (RuntimeException e) {
+      LOGGER.error("the change listener may hold states of {} rolled back bookmarks",
+          ids.size(), e);
+    }
+  }
+
+  /**
+   * The bookmarks as {@code handle} sees them, with their tags as a string, and as tags in
+   * {@code tags}; deleted ones are missing.
+   */
+  private Map<Long, Bookmark> readStates(Handle handle, LongArrayList ids,
+      Map<Long, List<Tag>> tags) {
+    Map<Long, Bookmark> states = new HashMap<>();
+    if (readModel == null && changeListener == null) {
+      return states;
+    }
+    BookmarkDAO bookmarkDAO = handle.attach(BookmarkDAO.class);
+    TagDAO tagDAO = handle.attach(TagDAO.class);
+    for (int i = 0; i < ids.size(); i++) {
+      Bookmark bookmark = bookmarkDAO.findById(ids.get(i));
+      if (bookmark != null) {
+        List<Tag> bookmarkTags = tagDAO.findByBookmarkId(bookmark.getId());
+        StringBuilder labels = new StringBuilder();
+        for (Tag tag : bookmarkTags) {
+          labels.append(labels.length() > 0 ? "," : "").append(tag.getLabel());
+        }
+        bookmark.setTags(labels.toString());
+        states.put(bookmark.getId(), bookmark);
+        tags.put(bookmark.getId(), bookmarkTags);
+      }
+    }
+    return states;
+  }
+
+  private void publish(List<Bookmark> stored, LongArrayList changed, Map<Long, Bookmark> states) {
+    BookmarkChangeListener listener = changeListener;
+    if (listener == null) {
+      return;
+    }
+    for (Bookmark bookmark : stored) {
+      listener.changed(bookmark);
+    }
+    for (int i = 0; i < changed.size(); i++) {
+      Bookmark state = states.get(changed.get(i));
+      if (state == null) {
+        listener.deleted(changed.get(i));
+      } else {
+        listener.changed(state);
+      }
+    }
+  }
+
+  /**
+   * Marks a bookmark deleted with a single update. It keeps its taggings, so
+   * {@link #undeleteBookmark} can bring it back until {@link #purgeDeleted} removes it.
+   */
   public void deleteBookmark(long id) {
-    try (BookmarkDAO dao = dbi.open(BookmarkDAO.class)) {
-      deleteTags(id);
-      dao.deleteById(id);
+    write((handle, changed) -> {
+      if (handle.attach(BookmarkDAO.class).softDeleteById(id) > 0) {
+        visits.forget(id);
+        related.deleted(id);
+        changed.add(id);
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Brings back a deleted bookmark that has not been purged yet, with its tags.
+   *
+   * @return the bookmark, or {@code null} if there is no deleted bookmark with the id
+   * @throws DuplicateBookmarkException if a bookmark with the same canonical url has been
+   *     created since
+   */
+  public Bookmark undeleteBookmark(long id) throws ValidationException {
+    Bookmark undeleted = write((handle, changed) -> {
+      BookmarkDAO dao = handle.attach(BookmarkDAO.class);
+      Bookmark deleted = dao.findDeletedById(id);
+      if (deleted == null) {
+        return null;
+      }
+      String canonicalUrl = canonicalize(deleted.getUrl());
+      Bookmark duplicate = findByCanonicalUrl(dao, canonicalUrl,
+          UrlCanonicalizer.hash(canonicalUrl));
+      if (duplicate != null) {
+        throw new DuplicateBookmarkException(duplicate.getId());
+      }
+      dao.undeleteById(id);
+      related.undeleted(id, findTagIds(handle.attach(TaggingDAO.class), id));
+      changed.add(id);
+      return deleted;
+    });
+    return undeleted == null ? null : getBookmark(id);
+  }
+
+  /**
+   * Removes the bookmarks deleted before {@code cutoff} for good, with their taggings and the
+   * tags no other bookmark uses. Each round reads up to {@link #PURGE_BATCH} of them by the
+   * {@code deleted_at} index and removes them with batched statements.
+   *
+   * @return the number of bookmarks removed
+   */
+  public int purgeDeleted(Date cutoff) {
+    Timestamp before = new Timestamp(cutoff.getTime());
+    int purged = 0;
+    int[] round;
+    do {
+      // each round is a transaction; the bookmarks were journaled when they were deleted
+      round = write((handle, changed) -> {
+        LongArrayList ids = handle.createQuery("select id from bookmark "
+            + "where deleted_at < :before limit :limit")
+            .bind("before", before)
+            .bind("limit", PURGE_BATCH)
+            .fold(new LongArrayList(), LongColumnFolder.INSTANCE);
+        return new int[] {ids.size(), ids.isEmpty() ? 0 : purgeBatch(handle, ids, before)};
+      });
+      purged += round[1];
+    } while (round[0] == PURGE_BATCH);
+    Metrics.counter("bookmarks.purged").add(purged);
+    return purged;
+  }
+
+  private int purgeBatch(Handle handle, LongArrayList ids, Timestamp before) {
+    PreparedBatch delete = handle.prepareBatch(
+        "delete from bookmark where id = :id and deleted_at < :before");
+    for (int i = 0; i < ids.size(); i++) {
+      delete.add().bind("id", ids.get(i)).bind("before", before);
+    }
+    // a bookmark undeleted since the ids were read is not deleted, and keeps its taggings
+    int[] deleted = delete.execute();
+    List<Object> purged = new ArrayList<>(ids.size());
+    for (int i = 0; i < deleted.length; i++) {
+      if (deleted[i] > 0) {
+        purged.add(ids.get(i));
+      }
     }
+    if (purged.isEmpty()) {
+      return 0;
+    }
+    List<long[]> usedTags = handle.createQuery("select tagging.tag_id, count(*) "
+        + "from table(id bigint = :ids) i join tagging on(tagging.bookmark_id = i.id) "
+        + "group by tagging.tag_id")
+        .bind("ids", purged.toArray())
+        .map((index, rs, ctx) -> new long[] {rs.getLong(1), rs.getLong(2)})
+        .list();
+    PreparedBatch untag = handle.prepareBatch("delete from tagging where bookmark_id = :id");
+    for (Object id : purged) {
+      untag.add().bind("id", id);
+    }
+    untag.execute();
+    TagDAO tagDAO = handle.attach(TagDAO.class);
+    TaggingDAO taggingDAO = handle.attach(TaggingDAO.class);
+    for (long[] tag : usedTags) {
+      tagQueries.untagged(tag[0], tag[1]);
+      removeTagIfUnused(tagDAO, taggingDAO, tag[0]);
+    }
+    return purged.size();
   }
 
   public Bookmark getBookmark(long id) {
+    if (readModel != null) {
+      return readModel.getBookmark(id);
+    }
     try (BookmarkDAO bookmarkDAO = dbi.open(BookmarkDAO.class)) {
       Bookmark bookmark = bookmarkDAO.findById(id);
       if (bookmark != null) {
@@ -58,40 +371,150 @@ public class BookmarkService {
     }
   }
 
+  /**
+   * Replaces the title, url and tags of a bookmark in one transaction, without reading it first.
+   * If {@code bookmark} has a version, the update, tags included, only applies to that version of
+   * the bookmark; the returned bookmark then has the new version. Without one the update always
+   * applies and the new version is not known.
+   *
+   * @return the updated bookmark, or {@code null} if it doesn't exist
+   * @throws VersionConflictException if the bookmark has another version
+   * @throws DuplicateBookmarkException if another bookmark has the same canonical url
+   */
   public Bookmark updateBookmark(Bookmark bookmark) throws ValidationException {
-    try (BookmarkDAO dao = dbi.open(BookmarkDAO.class)) {
-      validateForUpdate(bookmark);
-      Bookmark existent = dao.findById(bookmark.getId());
-      if (existent != null) {
-        existent.setTitle(bookmark.getTitle());
-        existent.setUrl(bookmark.getUrl());
-        existent.setTags(bookmark.getTags());
-        dao.update(existent);
-        addTags(existent);
+    validateForUpdate(bookmark);
+    String canonicalUrl = canonicalize(bookmark.getUrl());
+    return write((handle, changed) -> {
+      BookmarkDAO dao = handle.attach(BookmarkDAO.class);
+      Bookmark duplicate = findByCanonicalUrl(dao, canonicalUrl,
+          UrlCanonicalizer.hash(canonicalUrl));
+      if (duplicate != null && !duplicate.getId().equals(bookmark.getId())) {
+        throw new DuplicateBookmarkException(duplicate.getId());
       }
-      return existent;
-    }
+      Long expected = bookmark.getVersion();
+      int updated = expected == null ? dao.update(bookmark) : dao.updateIfVersion(bookmark);
+      if (updated == 0) {
+        // only a failed update pays for telling a missing bookmark from a changed one
+        Long current = dao.findVersion(bookmark.getId());
+        if (current == null) {
+          return null;
+        }
+        throw new VersionConflictException(current);
+      }
+      bookmark.setVersion(expected == null ? null : expected + 1);
+      applyTags(handle, bookmark);
+      changed.add(bookmark.getId());
+      return bookmark;
+    });
+  }
+
+  /**
+   * Counts a visit in memory; {@link #flushVisits} adds it to the bookmark's
+   * {@code visit_count}.
+   */
+  public void recordVisit(long id) {
+    visits.record(id);
+  }
+
+  public void flushVisits() {
+    visits.flush();
   }
 
   public List<Tag> getTags() {
+    if (readModel != null) {
+      return readModel.getTags();
+    }
     try (TagDAO dao = dbi.open(TagDAO.class)) {
       return dao.findOrderByLabel();
     }
   }
 
   public void deleteTags(long bookmarkId) {
-    try (TagDAO tagDAO = dbi.open(TagDAO.class);
-         TaggingDAO taggingDAO = dbi.open(TaggingDAO.class)) {
-      List<Long> toDelete = taggingDAO.findTagIdByBookmarkId(bookmarkId);
-      for (Long tagId : toDelete) {
-        taggingDAO.delete(bookmarkId, tagId);
-        if (taggingDAO.countByTagId(tagId) < 1) {
-          tagDAO.deleteById(tagId);
+    write((handle, changed) -> {
+      TagDAO tagDAO = handle.attach(TagDAO.class);
+      TaggingDAO taggingDAO = handle.attach(TaggingDAO.class);
+      LongArrayList toDelete = findTagIds(taggingDAO, bookmarkId);
+      for (int i = 0; i < toDelete.size(); i++) {
+        removeTagging(tagDAO, taggingDAO, bookmarkId, toDelete.get(i));
+      }
+      changed.add(bookmarkId);
+      return null;
+    });
+  }
+
+  private void removeTagging(TagDAO tagDAO, TaggingDAO taggingDAO, long bookmarkId, long tagId) {
+    if (taggingDAO.delete(bookmarkId, tagId) > 0) {
+      tagQueries.untagged(tagId, 1);
+      related.untagged(bookmarkId, tagId);
+    }
+    removeTagIfUnused(tagDAO, taggingDAO, tagId);
+  }
+
+  private void removeTagIfUnused(TagDAO tagDAO, TaggingDAO taggingDAO, long tagId) {
+    if (taggingDAO.countByTagId(tagId) < 1) {
+      try {
+        tagDAO.deleteById(tagId);
+        tagIds.remove(tagId);
+        tagQueries.forget(tagId);
+      } catch (UnableToExecuteStatementException e) {
+        // another writer tagged a bookmark with it after the count, so it is no orphan
+        if (!isSqlError(e, ErrorCode.REFERENTIAL_INTEGRITY_VIOLATED_CHILD_EXISTS_1)) {
+          throw e;
         }
       }
     }
   }
 
+  private void addTagging(TagDAO tagDAO, TaggingDAO taggingDAO, long bookmarkId, String label) {
+    long tagId = resolveTagId(tagDAO, label);
+    try {
+      taggingDAO.insert(new Tagging(bookmarkId, tagId));
+    } catch (UnableToExecuteStatementException e) {
+      if (!isSqlError(e, ErrorCode.REFERENTIAL_INTEGRITY_VIOLATED_PARENT_MISSING_1)) {
+        throw e;
+      }
+      // the cached id belongs to a tag deleted since it was looked up
+      tagIds.remove(tagId);
+      tagId = resolveTagId(tagDAO, label);
+      taggingDAO.insert(new Tagging(bookmarkId, tagId));
+    }
+    tagQueries.tagged(tagId);
+    related.tagged(bookmarkId, tagId);
+  }
+
+  /**
+   * Looks the label up in the dictionary, creating the tag on a miss. {@code MERGE} on the
+   * unique label keeps concurrent writers from inserting the same label twice.
+   */
+  private long resolveTagId(TagDAO tagDAO, String label) {
+    Long id = tagIds.get(label);
+    if (id != null) {
+      return id;
+    }
+    for (int attempt = 0; attempt < 3; attempt++) {
+      tagDAO.merge(label);
+      // an orphan cleanup may remove the row between both statements
+      Tag tag = tagDAO.findByLabel(label);
+      if (tag != null) {
+        tagIds.put(label, tag.getId());
+        return tag.getId();
+      }
+    }
+    throw new IllegalStateException("could not resolve tag " + label);
+  }
+
+  private static boolean isSqlError(Exception e, int errorCode) {
+    return e.getCause() instanceof SQLException
+        && ((SQLException) e.getCause()).getErrorCode() == errorCode;
+  }
+
+  private static LongArrayList findTagIds(TaggingDAO taggingDAO, long bookmarkId) {
+    return taggingDAO.getHandle()
+        .createQuery(TaggingDAO.FIND_TAG_ID_BY_BOOKMARK_ID)
+        .bind("bookmarkId", bookmarkId)
+        .fold(new LongArrayList(), LongColumnFolder.INSTANCE);
+  }
+
   public void setTags(Bookmark bookmark) {
     try (TagDAO tagDAO = dbi.open(TagDAO.class)) {
       List<String> labels = tagDAO.findLabelsByBookmarkId(bookmark.getId());
@@ -107,82 +530,562 @@ public class BookmarkService {
   }
 
   public void addTags(Bookmark bookmark) {
-    try (TagDAO tagDAO = dbi.open(TagDAO.class);
-         TaggingDAO taggingDAO = dbi.open(TaggingDAO.class)) {
-      String tags = bookmark.getTags() == null ? "" : bookmark.getTags();
-      Set<String> newLabels = getTagSet(tags);
-      List<Tag> currentTags = tagDAO.findByBookmarkId(bookmark.getId());
-      List<String> toKeep = new ArrayList<>();
-      List<Long> toDelete = new ArrayList<>();
-      for (Tag tag : currentTags) {
-        if (newLabels.contains(tag.getLabel())) {
-          toKeep.add(tag.getLabel());
-        } else {
-          toDelete.add(tag.getId());
-        }
-      }
-      for (Long tagId: toDelete) {
-        taggingDAO.delete(bookmark.getId(), tagId);
-        if (taggingDAO.countByTagId(tagId) < 1) {
-          tagDAO.deleteById(tagId);
-        }
-      }
-      newLabels.removeAll(toKeep);
-      for (String label : newLabels) {
-        Tag tag = tagDAO.findByLabel(label);
-        if (tag == null) {
-          tag = new Tag(label);
-          tag.setId(tagDAO.insert(tag));
-        }
-        taggingDAO.insert(new Tagging(bookmark.getId(), tag.getId()));
+    write((handle, changed) -> {
+      applyTags(handle, bookmark);
+      changed.add(bookmark.getId());
+      return null;
+    });
+  }
+
+  /** Gives the bookmark exactly the tags of {@code bookmark.getTags()}. */
+  private void applyTags(Handle handle, Bookmark bookmark) {
+    TagDAO tagDAO = handle.attach(TagDAO.class);
+    TaggingDAO taggingDAO = handle.attach(TaggingDAO.class);
+    String tags = bookmark.getTags() == null ? "" : bookmark.getTags();
+    Set<String> newLabels = getTagSet(tags);
+    List<Tag> currentTags = tagDAO.findByBookmarkId(bookmark.getId());
+    LongArrayList toDelete = new LongArrayList(currentTags.size());
+    for (Tag tag : currentTags) {
+      // labels still present are kept as they are, leaving only new ones in newLabels
+      if (!newLabels.remove(tag.getLabel())) {
+        toDelete.add(tag.getId());
       }
     }
+    for (int i = 0; i < toDelete.size(); i++) {
+      removeTagging(tagDAO, taggingDAO, bookmark.getId(), toDelete.get(i));
+    }
+    for (String label : newLabels) {
+      addTagging(tagDAO, taggingDAO, bookmark.getId(), label);
+    }
+  }
+
+  TagQueryPlanner tagQueries() {
+    return tagQueries;
+  }
+
+  RelatedBookmarks relatedBookmarks() {
+    return related;
+  }
+
+  private void beginWrite() {
+    writeGate.readLock().lock();
+    if (retired) {
+      writeGate.readLock().unlock();
+      throw new TenantMovedException();
+    }
+  }
+
+  private void endWrite() {
+    writeGate.readLock().unlock();
+  }
+
+  /** Blocks new writes and waits for running ones; must be followed by thaw or retire. */
+  void freeze() {
+    writeGate.writeLock().lock();
+  }
+
+  void thaw() {
+    writeGate.writeLock().unlock();
   }
 
+  /** The write transactions the calling thread has committed on any service. */
+  static long commitsOnThisThread() {
+    return COMMITS.get()[0];
+  }
+
+  void callStarted() {
+    routedCalls.incrementAndGet();
+  }
+
+  void callEnded() {
+    if (routedCalls.decrementAndGet() == 0) {
+      runAfterCalls();
+    }
+  }
+
+  /** Runs {@code task} once no routed call is running, now or when the last one ends. */
+  void afterCalls(Runnable task) {
+    synchronized (routedCalls) {
+      afterCalls = task;
+    }
+    if (routedCalls.get() == 0) {
+      runAfterCalls();
+    }
+  }
+
+  private void runAfterCalls() {
+    Runnable task;
+    synchronized (routedCalls) {
+      task = afterCalls;
+      afterCalls = null;
+    }
+    if (task != null) {
+      task.run();
+    }
+  }
+
+  int callsRunning() {
+    return routedCalls.get();
+  }
+
+  /**
+   * Rejects all later writes with {@link TenantMovedException}, for a service whose tenant now
+   * lives elsewhere.
+   */
+  void retire() {
+    retired = true;
+    writeGate.writeLock().unlock();
+  }
+
+  /** The labels of a bookmark's tags, which are stored. */
   public static Set<String> getTagSet(String tags) {
-    List<String> inputLabels = new ArrayList<>(Arrays.asList(tags.split(",")));
-    ListIterator<String> it = inputLabels.listIterator();
-    while (it.hasNext()) {
-      String element = it.next().trim();
-      if (element.isEmpty()) {
-        it.remove();
+    Set<String> labels = new HashSet<>();
+    TagTokenizer.tokenize(tags, labels, true);
+    return labels;
+  }
+
+  /**
+   * The labels of a listing's tag filter, or {@code null} for no filter. A filter without any
+   * label, like {@code ",,"}, is no filter, so every listing path answers it alike.
+   */
+  public static Set<String> getTagFilter(String tags) {
+    if (StringUtils.isNullOrEmpty(tags)) {
+      return null;
+    }
+    Set<String> labels = new HashSet<>();
+    TagTokenizer.tokenize(tags, labels, false);
+    return labels.isEmpty() ? null : labels;
+  }
+
+  public List<Bookmark> getBookmarksOrderByTitle(String tagsStr, String order) {
+    return getBookmarksOrderByTitle(tagsStr, order, 0, -1);
+  }
+
+  /**
+   * Same as {@link #getBookmarksOrderByTitle(String, String)} but returning at most
+   * {@code limit} bookmarks after skipping {@code offset}. A negative limit means no limit.
+   */
+  public List<Bookmark> getBookmarksOrderByTitle(String tagsStr, String order, int offset,
+      int limit) {
+    boolean byCreation = !StringUtils.isNullOrEmpty(order) && "creation_timestamp".equals(order);
+    Set<String> tags = getTagFilter(tagsStr);
+    if ("visit_count".equals(order)) {
+      return getBookmarksOrderByVisitCount(tags, offset, limit);
+    }
+    if (readModel != null) {
+      return readModel.find(tags, byCreation, offset, limit);
+    }
+    if (tags != null) {
+      return tagQueries.find(tags, knownTagIds(tags), byCreation, offset, limit);
+    }
+    try (BookmarkDAO dao = dbi.open(BookmarkDAO.class)) {
+      if (byCreation) {
+        return dao.findOrderByCreationTimestamp(offset, limit);
       } else {
-        it.set(element);
+        return dao.findOrderByTitle(offset, limit);
       }
     }
-    return new HashSet<>(inputLabels);
   }
 
-  public List<Bookmark> getBookmarksOrderByTitle(String tagsStr, String order) {
+  /**
+   * Up to {@code limit} other bookmarks sharing the most tags with bookmark {@code id}, most
+   * shared tags first, then by id. At most {@link RelatedBookmarks#MAX_RELATED} are found. For a
+   * while after an import or restore they are found without the bookmarks it brought.
+   *
+   * @return the bookmarks, or {@code null} if there is no bookmark with the id
+   */
+  public List<Bookmark> getRelatedBookmarks(long id, int limit) {
+    long[] ids = related.find(id, limit);
+    if (ids.length == 0) {
+      // only a bookmark without related ones pays for telling a missing one apart
+      try (BookmarkDAO dao = dbi.open(BookmarkDAO.class)) {
+        return dao.findVersion(id) == null ? null : Collections.<Bookmark>emptyList();
+      }
+    }
+    return findByIds(ids, 0, ids.length);
+  }
+
+  /** The ids of the labels, or {@code null} unless the dictionary knows every one. */
+  private long[] knownTagIds(Set<String> labels) {
+    long[] ids = new long[labels.size()];
+    int i = 0;
+    for (String label : labels) {
+      Long id = tagIds.get(label);
+      if (id == null) {
+        return null;
+      }
+      ids[i++] = id;
+    }
+    return ids;
+  }
+
+  /**
+   * Most visited first, as of the last flush. A page within the ranking is read by id; longer
+   * pages and tag filters sort the table on its {@code visit_count} index.
+   */
+  private List<Bookmark> getBookmarksOrderByVisitCount(Set<String> tags, int offset, int limit) {
+    long[] ranked = visits.ranking();
+    if (tags == null && limit >= 0 && (long) offset + limit <= ranked.length) {
+      return findByIds(ranked, offset, Math.min(ranked.length, offset + limit));
+    }
     try (BookmarkDAO dao = dbi.open(BookmarkDAO.class)) {
-      if (!StringUtils.isNullOrEmpty(order) && "creation_timestamp".equals(order)) {
-        if (StringUtils.isNullOrEmpty(tagsStr)) {
-          return dao.findOrderByCreationTimestamp();
-        } else {
-          Set<String> tags = getTagSet(tagsStr);
-          return dao.findByTagLabelsOrderByCreationTimestamp(tags);
-        }
+      if (tags == null) {
+        return dao.findOrderByVisitCount(offset, limit);
       } else {
-        if (StringUtils.isNullOrEmpty(tagsStr)) {
-          return dao.findOrderByTitle();
-        } else {
-          Set<String> tags = getTagSet(tagsStr);
-          return dao.findByTagLabelsOrderByTitle(tags);
+        return dao.findByTagLabelsOrderByVisitCount(tags, offset, limit);
+      }
+    }
+  }
+
+  /** The bookmarks with {@code ids[from..to)} in that order, skipping deleted ones. */
+  private List<Bookmark> findByIds(long[] ids, int from, int to) {
+    List<Bookmark> bookmarks = new ArrayList<>(to - from);
+    if (readModel != null) {
+      for (int i = from; i < to; i++) {
+        Bookmark bookmark = readModel.getBookmark(ids[i]);
+        if (bookmark != null) {
+          bookmarks.add(bookmark);
         }
       }
+      return bookmarks;
+    }
+    if (from == to) {
+      return bookmarks;
+    }
+    LongObjectHashMap<Bookmark> byId = new LongObjectHashMap<>(to - from);
+    try (BookmarkDAO dao = dbi.open(BookmarkDAO.class)) {
+      for (Bookmark bookmark : dao.findByIds(Arrays.copyOfRange(ids, from, to))) {
+        byId.put(bookmark.getId(), bookmark);
+      }
+    }
+    for (int i = from; i < to; i++) {
+      Bookmark bookmark = byId.get(ids[i]);
+      if (bookmark != null) {
+        bookmarks.add(bookmark);
+      }
     }
+    return bookmarks;
   }
 
+  /**
+   * @throws DuplicateBookmarkException if a bookmark with the same canonical url exists
+   */
   public Bookmark createBookmark(Bookmark bookmark) throws ValidationException {
-    try (BookmarkDAO dao = dbi.open(BookmarkDAO.class)) {
-      validateForCreate(bookmark);
-      Long bookmarkId = dao.insert(bookmark);
-      bookmark.setId(bookmarkId);
-      addTags(bookmark);
+    validateForCreate(bookmark);
+    String canonicalUrl = canonicalize(bookmark.getUrl());
+    return write((handle, changed) -> {
+      BookmarkDAO dao = handle.attach(BookmarkDAO.class);
+      Bookmark duplicate = findByCanonicalUrl(dao, canonicalUrl,
+          UrlCanonicalizer.hash(canonicalUrl));
+      if (duplicate != null) {
+        throw new DuplicateBookmarkException(duplicate.getId());
+      }
+      bookmark.setId(dao.insert(bookmark));
+      bookmark.setVersion(0L);
+      applyTags(handle, bookmark);
+      changed.add(bookmark.getId());
       return bookmark;
+    });
+  }
+
+  /**
+   * Bulk-applies bookmark states recovered from a journal in one transaction. Bookmarks are
+   * merged with their own ids and creation times and get exactly their tags; {@code deletedIds}
+   * are marked deleted, to be purged later. Tags left without bookmarks are dropped. No change
+   * listener is told.
+   */
+  public void restore(List<Bookmark> bookmarks, LongArrayList deletedIds) {
+    write((handle, changed) -> {
+      applyStates(handle, bookmarks, deletedIds);
+      handle.execute(DELETE_UNUSED_TAGS);
+      return null;
+    });
+    reloadAfterBulkChange();
+  }
+
+  /**
+   * Imports exported bookmarks block by block, each block in its own transaction. Bookmarks get
+   * new ids and keep their creation times and tags, so an export of another tenant or server
+   * never replaces bookmarks that happen to have the same ids. A bookmark whose url is already
+   * bookmarked, by canonical form as in {@link #createBookmark}, is skipped. Each block is passed
+   * on to the change listener before it is committed, so the journal records the import.
+   *
+   * @return the number of bookmarks imported, without the skipped ones
+   * @throws ValidationException for the first block holding an invalid bookmark; the blocks
+   *     before it stay imported
+   */
+  public long importBookmarks(Iterator<List<Bookmark>> blocks) throws ValidationException {
+    long count = 0;
+    try {
+      while (blocks.hasNext()) {
+        List<Bookmark> block = blocks.next();
+        List<String> canonicalUrls = new ArrayList<>(block.size());
+        for (Bookmark bookmark : block) {
+          validateForUpdate(bookmark);
+          canonicalUrls.add(canonicalize(bookmark.getUrl()));
+        }
+        // filled in by the write, before the listener is told
+        List<Bookmark> imported = new ArrayList<>(block.size());
+        write(imported, (handle, changed) -> {
+          BookmarkDAO dao = handle.attach(BookmarkDAO.class);
+          for (int i = 0; i < block.size(); i++) {
+            Bookmark bookmark = block.get(i);
+            String canonicalUrl = canonicalUrls.get(i);
+            // earlier bookmarks of the block are visible to the transaction too
+            if (findByCanonicalUrl(dao, canonicalUrl,
+                UrlCanonicalizer.hash(canonicalUrl)) == null) {
+              bookmark.setId(dao.insertWithCreationTimestamp(bookmark));
+              bookmark.setVersion(0L);
+              imported.add(bookmark);
+            }
+          }
+          insertTaggings(handle, imported);
+          return null;
+        });
+        count += imported.size();
+      }
+    } finally {
+      // the read model and the tag statistics are reloaded after the import
+      reloadAfterBulkChange();
+    }
+    return count;
+  }
+
+  private static void applyStates(Handle handle, List<Bookmark> bookmarks,
+      LongArrayList deletedIds) {
+    PreparedBatch untag = handle.prepareBatch("delete from tagging where bookmark_id = :id");
+    PreparedBatch delete = handle.prepareBatch("update bookmark "
+        + "set deleted_at = current_timestamp() where id = :id and deleted_at is null");
+    // states without a version still count as a change of the bookmark
+    PreparedBatch merge = handle.prepareBatch("merge into bookmark"
+        + "(id, url, title, creation_timestamp, url_hash, version, deleted_at) key(id) "
+        + "values(:id, :url, :title, :creationTimestamp, :urlHash, coalesce(:version, "
+        + "(select version + 1 from bookmark where id = :id), 0), null)");
+    for (Bookmark bookmark : bookmarks) {
+      untag.add().bind("id", bookmark.getId());
+      merge.add().bindFromProperties(bookmark);
+    }
+    for (int i = 0; i < deletedIds.size(); i++) {
+      delete.add().bind("id", deletedIds.get(i));
+    }
+    executeIfNotEmpty(untag);
+    executeIfNotEmpty(delete);
+    executeIfNotEmpty(merge);
+    insertTaggings(handle, bookmarks);
+  }
+
+  /** Tags {@code bookmarks}, which have no tags yet, with their tags, creating missing ones. */
+  private static void insertTaggings(Handle handle, List<Bookmark> bookmarks) {
+    Set<String> labels = new HashSet<>();
+    for (Bookmark bookmark : bookmarks) {
+      labels.addAll(getTagSet(bookmark.getTags() == null ? "" : bookmark.getTags()));
+    }
+    PreparedBatch mergeTag =
+        handle.prepareBatch("merge into tag(label) key(label) values(:label)");
+    for (String label : labels) {
+      mergeTag.add().bind("label", label);
+    }
+    executeIfNotEmpty(mergeTag);
+
+    Map<String, Long> tagIdsByLabel = findTagIdsByLabel(handle, labels);
+    PreparedBatch tag = handle.prepareBatch(
+        "insert into tagging(bookmark_id, tag_id) values(:bookmarkId, :tagId)");
+    for (Bookmark bookmark : bookmarks) {
+      for (String label : getTagSet(bookmark.getTags() == null ? "" : bookmark.getTags())) {
+        tag.add().bind("bookmarkId", bookmark.getId()).bind("tagId", tagIdsByLabel.get(label));
+      }
+    }
+    executeIfNotEmpty(tag);
+  }
+
+  private static Map<String, Long> findTagIdsByLabel(Handle handle, Set<String> labels) {
+    Map<String, Long> tagIdsByLabel = new HashMap<>();
+    List<String> pending = new ArrayList<>(labels);
+    for (int from = 0; from < pending.size(); from += LABEL_CHUNK) {
+      int to = Math.min(pending.size(), from + LABEL_CHUNK);
+      StringBuilder in = new StringBuilder();
+      for (int i = from; i < to; i++) {
+        in.append(i > from ? ", :label" : ":label").append(i);
+      }
+      Query<Map<String, Object>> query =
+          handle.createQuery("select id, label from tag where label in(" + in + ")");
+      for (int i = from; i < to; i++) {
+        query.bind("label" + i, pending.get(i));
+      }
+      for (Tag tag : query.map(new Tag.Mapper())) {
+        tagIdsByLabel.put(tag.getLabel(), tag.getId());
+      }
+    }
+    return tagIdsByLabel;
+  }
+
+  private void reloadAfterBulkChange() {
+    try (TagDAO tagDAO = dbi.open(TagDAO.class)) {
+      tagIds.clear();
+      tagIds.load(tagDAO.findAll());
+    }
+    // no write may count its taggings while the counts are read, pass on a change the related
+    // bookmarks index neither reads nor replays, or commit into a read model being replaced
+    transactions.lock();
+    try {
+      tagQueries.load();
+      related.invalidate();
+      if (readModel != null) {
+        readModel = loadReadModel();
+      }
+    } finally {
+      transactions.unlock();
+    }
+    visits.invalidate();
+  }
+
+  /**
+   * Pages through all bookmarks in id order with their tags, {@code pageSize} at a time. Each
+   * page is read when it is asked for, so the pages are not one consistent view of the table.
+   */
+  public Iterator<List<Bookmark>> exportBookmarks(int pageSize) {
+    return new Iterator<List<Bookmark>>() {
+      private long afterId = Long.MIN_VALUE;
+      private List<Bookmark> page;
+      private boolean done;
+
+      @Override
+      public boolean hasNext() {
+        if (page == null && !done) {
+          page = findPageAfter(afterId, pageSize);
+          if (page.isEmpty()) {
+            page = null;
+            done = true;
+          } else {
+            afterId = page.get(page.size() - 1).getId();
+          }
+        }
+        return page != null;
+      }
+
+      @Override
+      public List<Bookmark> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        List<Bookmark> next = page;
+        page = null;
+        return next;
+      }
+    };
+  }
+
+  private List<Bookmark> findPageAfter(long afterId, int limit) {
+    try (Handle handle = dbi.open()) {
+      List<Bookmark> page = handle.attach(BookmarkDAO.class).findAfterId(afterId, limit);
+      if (page.isEmpty()) {
+        return page;
+      }
+      Map<Long, StringBuilder> tags = new HashMap<>();
+      for (Bookmark bookmark : page) {
+        tags.put(bookmark.getId(), new StringBuilder());
+      }
+      handle.createQuery("select tg.bookmark_id, t.label from tagging tg "
+          + "join tag t on t.id = tg.tag_id "
+          + "where tg.bookmark_id between :first and :last order by t.label")
+          .bind("first", page.get(0).getId())
+          .bind("last", page.get(page.size() - 1).getId())
+          .fold(tags, (Folder2<Map<Long, StringBuilder>>) (labels, rs, ctx) -> {
+            // bookmarks merged into the range after the page was read have no entry
+            StringBuilder bookmarkLabels = labels.get(rs.getLong(1));
+            if (bookmarkLabels != null) {
+              bookmarkLabels.append(bookmarkLabels.length() > 0 ? "," : "")
+                  .append(rs.getString(2));
+            }
+            return labels;
+          });
+      for (Bookmark bookmark : page) {
+        bookmark.setTags(tags.get(bookmark.getId()).toString());
+      }
+      return page;
     }
   }
 
+  private static void executeIfNotEmpty(PreparedBatch batch) {
+    if (batch.getSize() > 0) {
+      batch.execute();
+    }
+  }
+
+  /**
+   * Finds the bookmark whose url has the same canonical form as {@code url}.
+   *
+   * @return the bookmark with its tags, or {@code null} if there is none or the url is invalid
+   */
+  public Bookmark findByUrl(String url) {
+    if (StringUtils.isNullOrEmpty(url)) {
+      return null;
+    }
+    String canonicalUrl;
+    try {
+      canonicalUrl = UrlCanonicalizer.canonicalize(url);
+    } catch (MalformedURLException e) {
+      return null;
+    }
+    Bookmark bookmark;
+    try (BookmarkDAO dao = dbi.open(BookmarkDAO.class)) {
+      bookmark = findByCanonicalUrl(dao, canonicalUrl, UrlCanonicalizer.hash(canonicalUrl));
+    }
+    if (bookmark != null) {
+      setTags(bookmark);
+    }
+    return bookmark;
+  }
+
+  private static Bookmark findByCanonicalUrl(BookmarkDAO dao, String canonicalUrl,
+      long urlHash) {
+    // the hash narrows the lookup to an index seek; comparing canonical forms rules out collisions
+    for (Bookmark candidate : dao.findByUrlHash(urlHash)) {
+      try {
+        if (canonicalUrl.equals(UrlCanonicalizer.canonicalize(candidate.getUrl()))) {
+          return candidate;
+        }
+      } catch (MalformedURLException e) {
+        // written around validation; can't be the same page as a valid url
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Applies page metadata fetched for version {@code expectedVersion} of a bookmark through
+   * {@link #updateBookmark}. Missing values leave the current ones in place, and so does a
+   * canonical url another bookmark already has.
+   *
+   * @return the updated bookmark, or {@code null} if it no longer exists
+   * @throws VersionConflictException if the bookmark was changed since that version, so the
+   *     metadata would overwrite the change
+   */
+  public Bookmark applyMetadata(long id, long expectedVersion, UrlMetadata metadata)
+      throws ValidationException {
+    Bookmark bookmark = getBookmark(id);
+    if (bookmark == null) {
+      return null;
+    }
+    if (bookmark.getVersion() != null && bookmark.getVersion() != expectedVersion) {
+      throw new VersionConflictException(bookmark.getVersion());
+    }
+    Bookmark updated = new Bookmark(id, bookmark.getTitle(), bookmark.getUrl(), bookmark.getTags());
+    updated.setVersion(expectedVersion);
+    if (!StringUtils.isNullOrEmpty(metadata.getTitle())) {
+      updated.setTitle(metadata.getTitle());
+    }
+    String canonicalUrl = metadata.getCanonicalUrl();
+    if (!StringUtils.isNullOrEmpty(canonicalUrl) && canonicalUrl.length() <= MAX_URL_LENGTH) {
+      Bookmark existing = findByUrl(canonicalUrl);
+      if (existing == null || existing.getId() == id) {
+        updated.setUrl(canonicalUrl);
+      }
+    }
+    // updateBookmark checks again, in its transaction
+    return updateBookmark(updated);
+  }
+
   public static void validateForUpdate(Bookmark bookmark) throws ValidationException {
     if (StringUtils.isNullOrEmpty(bookmark.getTitle())) {
       throw new ValidationException("title can't be empty");
@@ -190,11 +1093,15 @@ public class BookmarkService {
     if (StringUtils.isNullOrEmpty(bookmark.getUrl())) {
       throw new ValidationException("url can't be empty");
     } else {
-      try {
-        new URL(bookmark.getUrl());
-      } catch (MalformedURLException e) {
-        throw new ValidationException("url is not valid");
-      }
+      canonicalize(bookmark.getUrl());
+    }
+  }
+
+  private static String canonicalize(String url) throws ValidationException {
+    try {
+      return UrlCanonicalizer.canonicalize(url);
+    } catch (MalformedURLException e) {
+      throw new ValidationException("url is not valid");
     }
   }
 
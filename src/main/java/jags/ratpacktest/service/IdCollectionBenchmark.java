@@ -0,0 +1,127 @@
+package jags.ratpacktest.service;
+
+import jags.ratpacktest.dao.LongColumnFolder;
+import jags.ratpacktest.dao.TaggingDAO;
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.util.LongArrayList;
+import jags.ratpacktest.util.LongHashSet;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Compares the time and the heap allocated by the boxed id collections the tag paths used
+ * before with the primitive ones: reading a bookmark's tag ids into a {@code List<Long>} or
+ * through {@link LongColumnFolder}, and the union of two tags' bookmarks in a
+ * {@code HashSet<Long>} or a {@link LongHashSet}, as the read model builds it. Allocation is read
+ * from the thread's allocation counter, which HotSpot provides. Run with
+ * {@code gradle idCollectionBenchmark -Pbookmarks=200000}.
+ */
+public final class IdCollectionBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IdCollectionBenchmark.class);
+  private static final int RUNS = 5;
+  private static final int TAGS = 20;
+
+  private IdCollectionBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int count = Integer.getInteger("ratpacktest.benchmark.bookmarks", 200000);
+    JdbcConnectionPool pool =
+        JdbcConnectionPool.create("jdbc:h2:mem:idCollectionBenchmark", "sa", "");
+    DBI dbi = new DBI(pool);
+    BookmarkService service = new BookmarkService(dbi);
+    service.importBookmarks(Collections.singletonList(bookmarks(count)).iterator());
+
+    try (Handle handle = dbi.open()) {
+      TaggingDAO taggingDAO = handle.attach(TaggingDAO.class);
+      int reads = Math.min(count, 20000);
+      measure("tag ids, List<Long>", reads,
+          i -> taggingDAO.findTagIdByBookmarkId((long) i + 1).size());
+      measure("tag ids, folder", reads,
+          i -> handle.createQuery(TaggingDAO.FIND_TAG_ID_BY_BOOKMARK_ID)
+              .bind("bookmarkId", (long) i + 1)
+              .fold(new LongArrayList(), LongColumnFolder.INSTANCE).size());
+
+      List<Set<Long>> boxed = new ArrayList<>();
+      List<LongHashSet> primitive = new ArrayList<>();
+      for (long tagId : handle.createQuery("select id from tag order by id")
+          .fold(new LongArrayList(), LongColumnFolder.INSTANCE).toArray()) {
+        LongArrayList ids = handle.createQuery(TaggingDAO.FIND_BOOKMARK_ID_BY_TAG_ID)
+            .bind("tagId", tagId)
+            .fold(new LongArrayList(), LongColumnFolder.INSTANCE);
+        Set<Long> boxedIds = new HashSet<>();
+        LongHashSet primitiveIds = new LongHashSet(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+          boxedIds.add(ids.get(i));
+          primitiveIds.add(ids.get(i));
+        }
+        boxed.add(boxedIds);
+        primitive.add(primitiveIds);
+      }
+      int unions = 200;
+      measure("union, HashSet<Long>", unions, i -> {
+        Set<Long> either = new HashSet<>(boxed.get(i % boxed.size()));
+        either.addAll(boxed.get((i + 1) % boxed.size()));
+        return either.size();
+      });
+      measure("union, LongHashSet", unions, i -> {
+        LongHashSet either = new LongHashSet(primitive.get(i % primitive.size()));
+        either.addAll(primitive.get((i + 1) % primitive.size()));
+        return either.size();
+      });
+    }
+    pool.dispose();
+  }
+
+  private static void measure(String name, int count, IntToLongFunction operation) {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long bestNanos = Long.MAX_VALUE;
+    long bestBytes = Long.MAX_VALUE;
+    long ids = 0;
+    // the first run warms up
+    for (int run = 0; run <= RUNS; run++) {
+      long bytes = threads.getThreadAllocatedBytes(thread);
+      long start = System.nanoTime();
+      for (int i = 0; i < count; i++) {
+        ids += operation.applyAsLong(i);
+      }
+      long nanos = System.nanoTime() - start;
+      bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+      if (run > 0) {
+        bestNanos = Math.min(bestNanos, nanos);
+        bestBytes = Math.min(bestBytes, bytes);
+      }
+    }
+    LOGGER.info(String.format("%-20s %10.1f ns/op %10.1f bytes/op (%d ids)", name,
+        (double) bestNanos / count, (double) bestBytes / count, ids));
+  }
+
+  /** Bookmarks with one to four of {@link #TAGS} tags each. */
+  private static List<Bookmark> bookmarks(int count) {
+    List<Bookmark> bookmarks = new ArrayList<>(count);
+    for (int i = 1; i <= count; i++) {
+      Bookmark bookmark = new Bookmark("Article " + i, "https://www.example.com/articles/" + i);
+      StringBuilder labels = new StringBuilder();
+      for (int t = 0; t <= i % 4; t++) {
+        labels.append(t > 0 ? "," : "").append("tag").append((i * 7 + t * 3) % TAGS);
+      }
+      bookmark.setTags(labels.toString());
+      bookmarks.add(bookmark);
+    }
+    return bookmarks;
+  }
+}
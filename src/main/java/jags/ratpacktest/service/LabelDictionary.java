@@ -0,0 +1,98 @@
+package jags.ratpacktest.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free intern table for tag labels.
+ *
+ * <p>Lookups hash and compare a region of the source string directly, so a label that is
+ * already known costs no allocation at all. Only the labels of stored bookmarks should be
+ * remembered; the labels of a query are looked up, so client-chosen filters can't fill the
+ * table. Once {@code maxEntries} labels are stored new labels are still returned, just not
+ * remembered.
+ */
+public class LabelDictionary {
+
+  private final AtomicReferenceArray<String> slots;
+  private final AtomicInteger size = new AtomicInteger();
+  private final int maxEntries;
+
+  public LabelDictionary(int maxEntries) {
+    int capacity = 16;
+    while (capacity < maxEntries * 2) {
+      capacity <<= 1;
+    }
+    this.slots = new AtomicReferenceArray<>(capacity);
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Returns the shared instance equal to {@code source[start, end)}, lower-casing ASCII letters
+   * on the way when {@code lowerCase} is set. The region must be ASCII in that case. A label
+   * that isn't known yet is stored only when {@code remember} is set.
+   */
+  public String intern(String source, int start, int end, boolean lowerCase, boolean remember) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + fold(source.charAt(i), lowerCase);
+    }
+    int mask = slots.length() - 1;
+    int slot = spread(hash) & mask;
+    while (true) {
+      String candidate = slots.get(slot);
+      if (candidate == null) {
+        String label = copy(source, start, end, lowerCase);
+        if (!remember || size.get() >= maxEntries) {
+          return label;
+        }
+        if (slots.compareAndSet(slot, null, label)) {
+          size.incrementAndGet();
+          return label;
+        }
+        // lost the race for this slot, look at what the winner stored
+        continue;
+      }
+      if (candidate.hashCode() == hash && matches(candidate, source, start, end, lowerCase)) {
+        return candidate;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  public int size() {
+    return size.get();
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static char fold(char c, boolean lowerCase) {
+    return lowerCase && c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+  }
+
+  private static boolean matches(String candidate, String source, int start, int end,
+      boolean lowerCase) {
+    if (candidate.length() != end - start) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      if (candidate.charAt(i - start) != fold(source.charAt(i), lowerCase)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String copy(String source, int start, int end, boolean lowerCase) {
+    if (!lowerCase) {
+      return source.substring(start, end);
+    }
+    char[] chars = new char[end - start];
+    for (int i = start; i < end; i++) {
+      chars[i - start] = fold(source.charAt(i), true);
+    }
+    return new String(chars);
+  }
+}
@@ -0,0 +1,414 @@
+package jags.ratpacktest.service;
+
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.domain.Tag;
+import jags.ratpacktest.domain.Tagging;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only copy of one tenant's bookmarks and tags in a file that is memory-mapped rather than
+ * loaded, so it answers listings as soon as it is opened, whatever its size. Pages are read from
+ * the file as they are first touched.
+ *
+ * <p>Bookmarks are stored in title order as columns: ids, creation times, and the offsets of
+ * their titles, urls and tags in byte sections. Creation order and id order are permutations of
+ * the title positions, and each tag label has a posting list of the title positions of its
+ * bookmarks. All values are big-endian; the header holds the position of every section.
+ * Listings answer the same as {@link BookmarkReadModel#find}.
+ */
+public final class MappedBookmarkIndex {
+
+  private static final int MAGIC = 0x424b4958;
+  private static final int VERSION = 1;
+  private static final int HEADER_INTS = 18;
+
+  private static final Comparator<Bookmark> BY_TITLE = (a, b) -> {
+    int cmp = a.getTitle().compareTo(b.getTitle());
+    return cmp != 0 ? cmp : Long.compare(a.getId(), b.getId());
+  };
+
+  private final String tenant;
+  private final ByteBuffer buffer;
+  private final int count;
+  private final int tagCount;
+  private final int ids;
+  private final int created;
+  private final int creationOrder;
+  private final int creationRanks;
+  private final int idOrder;
+  private final int titleOffsets;
+  private final int titles;
+  private final int urlOffsets;
+  private final int urls;
+  private final int tagsOffsets;
+  private final int tags;
+  private final int labelOffsets;
+  private final int labels;
+  private final int tagIds;
+  private final int postingOffsets;
+  private final int postings;
+
+  private MappedBookmarkIndex(String tenant, ByteBuffer buffer) throws IOException {
+    this.tenant = tenant;
+    this.buffer = buffer;
+    if (buffer.capacity() < HEADER_INTS * 4 || buffer.getInt(0) != MAGIC
+        || buffer.getInt(4) != VERSION) {
+      throw new IOException("not a bookmark index");
+    }
+    int[] header = new int[HEADER_INTS];
+    for (int i = 0; i < HEADER_INTS; i++) {
+      header[i] = buffer.getInt(i * 4);
+    }
+    count = header[2];
+    tagCount = header[3];
+    ids = header[4];
+    created = header[5];
+    creationOrder = header[6];
+    creationRanks = header[7];
+    idOrder = header[8];
+    titleOffsets = header[9];
+    titles = header[10];
+    urlOffsets = header[11];
+    urls = header[12];
+    tagsOffsets = header[13];
+    tags = header[14];
+    labelOffsets = header[15];
+    labels = header[16];
+    tagIds = header[17];
+    postingOffsets = tagIds + tagCount * 8;
+    postings = postingOffsets + (tagCount + 1) * 4;
+    if (postings + (long) buffer.getInt(postingOffsets + tagCount * 4) * 4
+        != buffer.capacity()) {
+      throw new IOException("truncated bookmark index");
+    }
+  }
+
+  /** Maps {@code file}; the mapping outlives the channel and is released when unreachable. */
+  public static MappedBookmarkIndex open(String tenant, Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(file + " is larger than a mapped buffer");
+      }
+      return new MappedBookmarkIndex(tenant,
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /** Writes the index of the given table contents, as {@code BookmarkReadModel#load} takes. */
+  public static void write(Path file, List<Bookmark> bookmarkList, List<Tag> tagList,
+      List<Tagging> taggings) throws IOException {
+    Bookmark[] byTitle = bookmarkList.toArray(new Bookmark[0]);
+    Arrays.sort(byTitle, BY_TITLE);
+    int count = byTitle.length;
+    Map<Long, Integer> positions = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      positions.put(byTitle[i].getId(), i);
+    }
+    Integer[] creationOrder = positionsSortedBy(count, (a, b) -> {
+      int cmp = Long.compare(millis(byTitle[a]), millis(byTitle[b]));
+      return cmp != 0 ? cmp : Long.compare(byTitle[a].getId(), byTitle[b].getId());
+    });
+    int[] creationRanks = new int[count];
+    for (int rank = 0; rank < count; rank++) {
+      creationRanks[creationOrder[rank]] = rank;
+    }
+    Integer[] idOrder =
+        positionsSortedBy(count, (a, b) -> Long.compare(byTitle[a].getId(), byTitle[b].getId()));
+
+    Tag[] byLabel = tagList.toArray(new Tag[0]);
+    Arrays.sort(byLabel, (a, b) -> a.getLabel().compareTo(b.getLabel()));
+    Map<Long, Integer> labelIndexes = new HashMap<>();
+    for (int i = 0; i < byLabel.length; i++) {
+      labelIndexes.put(byLabel[i].getId(), i);
+    }
+    List<List<Integer>> postingLists = new ArrayList<>();
+    List<List<String>> bookmarkLabels = new ArrayList<>();
+    for (int i = 0; i < byLabel.length; i++) {
+      postingLists.add(new ArrayList<>());
+    }
+    for (int i = 0; i < count; i++) {
+      bookmarkLabels.add(new ArrayList<>());
+    }
+    for (Tagging tagging : taggings) {
+      Integer label = labelIndexes.get(tagging.getTagId());
+      Integer position = positions.get(tagging.getBookmarkId());
+      if (label != null && position != null) {
+        postingLists.get(label).add(position);
+        bookmarkLabels.get(position).add(byLabel[label].getLabel());
+      }
+    }
+    int postingCount = 0;
+    for (List<Integer> postingList : postingLists) {
+      postingList.sort(null);
+      postingCount += postingList.size();
+    }
+
+    byte[][] titleBytes = new byte[count][];
+    byte[][] urlBytes = new byte[count][];
+    byte[][] tagsBytes = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      titleBytes[i] = utf8(byTitle[i].getTitle());
+      urlBytes[i] = utf8(byTitle[i].getUrl());
+      List<String> labelsOfBookmark = bookmarkLabels.get(i);
+      labelsOfBookmark.sort(null);
+      tagsBytes[i] = utf8(String.join(",", labelsOfBookmark));
+    }
+    byte[][] labelBytes = new byte[byLabel.length][];
+    for (int i = 0; i < byLabel.length; i++) {
+      labelBytes[i] = utf8(byLabel[i].getLabel());
+    }
+
+    int[] header = new int[HEADER_INTS];
+    header[0] = MAGIC;
+    header[1] = VERSION;
+    header[2] = count;
+    header[3] = byLabel.length;
+    long position = HEADER_INTS * 4;
+    long[] sizes = {count * 8L, count * 8L, count * 4L, count * 4L, count * 4L,
+        (count + 1) * 4L, totalLength(titleBytes), (count + 1) * 4L, totalLength(urlBytes),
+        (count + 1) * 4L, totalLength(tagsBytes), (byLabel.length + 1) * 4L,
+        totalLength(labelBytes), byLabel.length * 8L};
+    for (int i = 0; i < sizes.length; i++) {
+      header[4 + i] = (int) position;
+      position += sizes[i];
+    }
+    position += (byLabel.length + 1) * 4L + postingCount * 4L;
+    if (position > Integer.MAX_VALUE) {
+      throw new IOException("bookmark index would be larger than a mapped buffer");
+    }
+
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024))) {
+      for (int value : header) {
+        out.writeInt(value);
+      }
+      for (Bookmark bookmark : byTitle) {
+        out.writeLong(bookmark.getId());
+      }
+      for (Bookmark bookmark : byTitle) {
+        out.writeLong(millis(bookmark));
+      }
+      for (Integer titlePosition : creationOrder) {
+        out.writeInt(titlePosition);
+      }
+      for (int rank : creationRanks) {
+        out.writeInt(rank);
+      }
+      for (Integer titlePosition : idOrder) {
+        out.writeInt(titlePosition);
+      }
+      writeStrings(out, titleBytes);
+      writeStrings(out, urlBytes);
+      writeStrings(out, tagsBytes);
+      writeStrings(out, labelBytes);
+      for (Tag tag : byLabel) {
+        out.writeLong(tag.getId());
+      }
+      int offset = 0;
+      for (List<Integer> postingList : postingLists) {
+        out.writeInt(offset);
+        offset += postingList.size();
+      }
+      out.writeInt(offset);
+      for (List<Integer> postingList : postingLists) {
+        for (int titlePosition : postingList) {
+          out.writeInt(titlePosition);
+        }
+      }
+    }
+  }
+
+  public int size() {
+    return count;
+  }
+
+  /**
+   * Lists bookmarks in title or creation order, optionally restricted to those carrying any of
+   * {@code labelSet}. A negative {@code limit} means no limit.
+   */
+  public List<Bookmark> find(Collection<String> labelSet, boolean byCreation, int offset,
+      int limit) {
+    int[] matches = null;
+    int matchCount = count;
+    if (labelSet != null && !labelSet.isEmpty()) {
+      matches = matchingPositions(labelSet);
+      matchCount = matches.length;
+      if (byCreation) {
+        // sort the matches into creation order through their ranks
+        for (int i = 0; i < matchCount; i++) {
+          matches[i] = buffer.getInt(creationRanks + matches[i] * 4);
+        }
+        Arrays.sort(matches);
+        for (int i = 0; i < matchCount; i++) {
+          matches[i] = buffer.getInt(creationOrder + matches[i] * 4);
+        }
+      }
+    }
+    int from = Math.min(Math.max(offset, 0), matchCount);
+    int to = limit < 0 ? matchCount : (int) Math.min(matchCount, (long) from + limit);
+    List<Bookmark> page = new ArrayList<>(to - from);
+    for (int i = from; i < to; i++) {
+      int position;
+      if (matches != null) {
+        position = matches[i];
+      } else {
+        position = byCreation ? buffer.getInt(creationOrder + i * 4) : i;
+      }
+      page.add(bookmarkAt(position));
+    }
+    return page;
+  }
+
+  /** The title positions of the bookmarks carrying any of the labels, in title order. */
+  private int[] matchingPositions(Collection<String> labelSet) {
+    int total = 0;
+    int[][] lists = new int[labelSet.size()][];
+    int next = 0;
+    for (String label : labelSet) {
+      int index = labelIndex(label);
+      if (index < 0) {
+        continue;
+      }
+      int start = buffer.getInt(postingOffsets + index * 4);
+      int end = buffer.getInt(postingOffsets + (index + 1) * 4);
+      int[] list = new int[end - start];
+      for (int i = 0; i < list.length; i++) {
+        list[i] = buffer.getInt(postings + (start + i) * 4);
+      }
+      lists[next++] = list;
+      total += list.length;
+    }
+    int[] positions = new int[total];
+    int length = 0;
+    for (int i = 0; i < next; i++) {
+      System.arraycopy(lists[i], 0, positions, length, lists[i].length);
+      length += lists[i].length;
+    }
+    Arrays.sort(positions);
+    int unique = 0;
+    for (int i = 0; i < positions.length; i++) {
+      if (i == 0 || positions[i] != positions[i - 1]) {
+        positions[unique++] = positions[i];
+      }
+    }
+    return Arrays.copyOf(positions, unique);
+  }
+
+  /** The bookmark with its tags, or {@code null}. */
+  public Bookmark getBookmark(long id) {
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int position = buffer.getInt(idOrder + middle * 4);
+      long middleId = buffer.getLong(ids + position * 8);
+      if (middleId < id) {
+        low = middle + 1;
+      } else if (middleId > id) {
+        high = middle - 1;
+      } else {
+        Bookmark bookmark = bookmarkAt(position);
+        bookmark.setTags(string(tagsOffsets, tags, position));
+        return bookmark;
+      }
+    }
+    return null;
+  }
+
+  public List<Tag> getTags() {
+    List<Tag> tagList = new ArrayList<>(tagCount);
+    for (int i = 0; i < tagCount; i++) {
+      tagList.add(new Tag(buffer.getLong(tagIds + i * 8), string(labelOffsets, labels, i)));
+    }
+    return tagList;
+  }
+
+  private Bookmark bookmarkAt(int position) {
+    Bookmark bookmark = new Bookmark(buffer.getLong(ids + position * 8),
+        string(titleOffsets, titles, position), string(urlOffsets, urls, position),
+        new Date(buffer.getLong(created + position * 8)));
+    bookmark.setTenant(tenant);
+    return bookmark;
+  }
+
+  private int labelIndex(String label) {
+    int low = 0;
+    int high = tagCount - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int cmp = string(labelOffsets, labels, middle).compareTo(label);
+      if (cmp < 0) {
+        low = middle + 1;
+      } else if (cmp > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  private String string(int offsets, int bytes, int index) {
+    int start = buffer.getInt(offsets + index * 4);
+    int end = buffer.getInt(offsets + (index + 1) * 4);
+    byte[] value = new byte[end - start];
+    ByteBuffer slice = buffer.duplicate();
+    slice.position(bytes + start);
+    slice.get(value);
+    return new String(value, StandardCharsets.UTF_8);
+  }
+
+  private static Integer[] positionsSortedBy(int count, Comparator<Integer> order) {
+    Integer[] positions = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      positions[i] = i;
+    }
+    Arrays.sort(positions, order);
+    return positions;
+  }
+
+  private static void writeStrings(DataOutputStream out, byte[][] values) throws IOException {
+    int offset = 0;
+    for (byte[] value : values) {
+      out.writeInt(offset);
+      offset += value.length;
+    }
+    out.writeInt(offset);
+    for (byte[] value : values) {
+      out.write(value);
+    }
+  }
+
+  private static long totalLength(byte[][] values) {
+    long length = 0;
+    for (byte[] value : values) {
+      length += value.length;
+    }
+    return length;
+  }
+
+  private static byte[] utf8(String value) {
+    return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static long millis(Bookmark bookmark) {
+    return bookmark.getCreationTimestamp() == null ? 0 : bookmark.getCreationTimestamp().getTime();
+  }
+}
@@ -0,0 +1,140 @@
+package jags.ratpacktest.service;
+
+import jags.ratpacktest.dao.BookmarkDAO;
+import jags.ratpacktest.dao.TaggingDAO;
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.util.LongHashSet;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Folder2;
+import org.skife.jdbi.v2.Handle;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Alternative plan for tag filters naming many tags. Instead of one join that H2 runs on a
+ * single thread and then sorts for {@code distinct}, each tag's bookmark ids are read on its own
+ * pooled connection, the sets are merged by a fork-join union, and only the requested page of
+ * bookmarks is read, by id.
+ *
+ * <p>Reading the id sets costs a query per tag, so the plan only pays off when there are many
+ * tags and many bookmarks: {@link #isWorthwhile} requires {@code minLabels} tags and a table of
+ * at least {@code minBookmarks} rows. {@link TagQueryPlanner} asks it once the filter is worth
+ * reading by id at all. All services share one pool, whose parallelism also bounds the
+ * connections the plan holds at a time.
+ */
+public class ParallelTagQuery {
+
+  private final DBI dbi;
+  private final int minLabels;
+  private final long minBookmarks;
+
+  public ParallelTagQuery(DBI dbi, int minLabels, long minBookmarks) {
+    this.dbi = dbi;
+    this.minLabels = minLabels;
+    this.minBookmarks = minBookmarks;
+  }
+
+  /**
+   * Reads {@code ratpacktest.parallelTags.minLabels} (4, 0 disables the plan) and
+   * {@code minBookmarks} (100000).
+   */
+  public static ParallelTagQuery fromSystemProperties(DBI dbi) {
+    return new ParallelTagQuery(dbi, Integer.getInteger("ratpacktest.parallelTags.minLabels", 4),
+        Long.getLong("ratpacktest.parallelTags.minBookmarks", 100000));
+  }
+
+  /** Whether filtering on {@code tagCount} known tags of that many bookmarks should use it. */
+  public boolean isWorthwhile(int tagCount, long bookmarks) {
+    return minLabels > 0 && tagCount >= minLabels && bookmarks >= minBookmarks;
+  }
+
+  /**
+   * Same as {@code findByTagLabelsOrderByTitle} or {@code ...OrderByCreationTimestamp} for the
+   * tags with {@code tagIds}.
+   */
+  public List<Bookmark> find(long[] tagIds, boolean byCreation, int offset, int limit) {
+    LongHashSet ids = PoolHolder.INSTANCE.invoke(new UnionTask(dbi, tagIds, 0, tagIds.length));
+    return findPage(dbi, ids, byCreation, offset, limit);
+  }
+
+  /**
+   * The threads of the pool all services share, {@code ratpacktest.parallelTags.threads} (the
+   * number of processors). Each holds at most one connection while the plan runs.
+   */
+  public static int poolThreads() {
+    return Integer.getInteger("ratpacktest.parallelTags.threads",
+        Runtime.getRuntime().availableProcessors());
+  }
+
+  /** The page of the bookmarks with {@code ids} in title or creation order. */
+  static List<Bookmark> findPage(DBI dbi, LongHashSet ids, boolean byCreation, int offset,
+      int limit) {
+    if (ids.isEmpty()) {
+      return Collections.emptyList();
+    }
+    Object[] page = new Object[ids.size()];
+    int[] next = {0};
+    ids.forEach(id -> page[next[0]++] = id);
+    try (BookmarkDAO dao = dbi.open(BookmarkDAO.class)) {
+      return byCreation ? dao.findByIdsOrderByCreationTimestamp(page, offset, limit)
+          : dao.findByIdsOrderByTitle(page, offset, limit);
+    }
+  }
+
+  /** The union of the bookmark ids of {@code tagIds[from..to)}. */
+  private static final class UnionTask extends RecursiveTask<LongHashSet> {
+    private final DBI dbi;
+    private final long[] tagIds;
+    private final int from;
+    private final int to;
+
+    private UnionTask(DBI dbi, long[] tagIds, int from, int to) {
+      this.dbi = dbi;
+      this.tagIds = tagIds;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected LongHashSet compute() {
+      if (to - from <= 1) {
+        return from == to ? new LongHashSet() : bookmarkIds(tagIds[from]);
+      }
+      int middle = (from + to) >>> 1;
+      UnionTask left = new UnionTask(dbi, tagIds, from, middle);
+      left.fork();
+      LongHashSet right = new UnionTask(dbi, tagIds, middle, to).compute();
+      LongHashSet leftIds = left.join();
+      // add the smaller set to the larger one
+      if (leftIds.size() < right.size()) {
+        right.addAll(leftIds);
+        return right;
+      }
+      leftIds.addAll(right);
+      return leftIds;
+    }
+
+    private LongHashSet bookmarkIds(long tagId) {
+      try (Handle handle = dbi.open()) {
+        return addBookmarkIds(handle, tagId, new LongHashSet());
+      }
+    }
+  }
+
+  /** Adds the ids of the bookmarks tagged {@code tagId} to {@code ids}. */
+  static LongHashSet addBookmarkIds(Handle handle, long tagId, LongHashSet ids) {
+    return handle.createQuery(TaggingDAO.FIND_BOOKMARK_ID_BY_TAG_ID)
+        .bind("tagId", tagId)
+        .fold(ids, (Folder2<LongHashSet>) (set, rs, ctx) -> {
+          set.add(rs.getLong(1));
+          return set;
+        });
+  }
+
+  private static class PoolHolder {
+    private static final ForkJoinPool INSTANCE = new ForkJoinPool(poolThreads());
+  }
+}
@@ -0,0 +1,552 @@
+package jags.ratpacktest.service;
+
+import jags.ratpacktest.dao.TaggingDAO;
+import jags.ratpacktest.metrics.Metrics;
+import jags.ratpacktest.util.LongArrayList;
+import jags.ratpacktest.util.LongObjectHashMap;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Folder2;
+import org.skife.jdbi.v2.Handle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Finds the bookmarks sharing the most tags with a bookmark, from an in-memory index of the
+ * tags of live bookmarks: the sorted tag ids of each bookmark and the sorted bookmark ids of each
+ * tag, in maps with primitive keys. The index is read from the tables when the service starts;
+ * in between the service passes on each tagging it adds or removes and each bookmark it deletes
+ * or brings back.
+ *
+ * <p>After a bulk change, {@link #invalidate} reads a new index on a background thread while the
+ * old one keeps serving and taking changes. The changes are also recorded, and replayed onto the
+ * new index when it is swapped in, so it misses none the read did not see. Replaying is safe for
+ * changes the read did see too: each one sets or clears taggings, and the last change of a tagging
+ * wins either way.
+ *
+ * <p>Scoring reads the bookmark's smallest tags first, looking each bookmark met up in the other
+ * tags with a cursor per tag that only moves forward, since ids ascend. A bookmark first met in a
+ * later tag can't share more tags than are left to read, so scoring stops as soon as the best
+ * {@link #MAX_RELATED} are ahead of that bound, and within a tag as soon as ties can only lose.
+ * Results are cached per bookmark. Every change of a tag's bookmarks stamps
+ * it with a new epoch, and a cached result is used while none of the bookmark's tags is newer
+ * than it.
+ */
+class RelatedBookmarks {
+
+  /** The most related bookmarks found for a bookmark; callers may ask for fewer. */
+  static final int MAX_RELATED = 50;
+  // a full cache is emptied instead of tracking which results are used
+  private static final int MAX_CACHED = Integer.getInteger("ratpacktest.related.cached", 10000);
+  private static final long[] NONE = new long[0];
+  private static final Logger LOGGER = LoggerFactory.getLogger(RelatedBookmarks.class);
+  // one thread for the indexes of all tenants; it only runs after bulk changes
+  private static final ThreadPoolExecutor REBUILDS = new ThreadPoolExecutor(1, 1, 60,
+      TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "related-rebuild");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  static {
+    REBUILDS.allowCoreThreadTimeOut(true);
+  }
+
+  private final DBI dbi;
+  private final Executor rebuilds;
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Condition rebuilt = lock.writeLock().newCondition();
+  // guarded by lock
+  private Index index = new Index();
+  private long epoch;
+  // the changes since the running rebuild was asked for, null if none runs
+  private List<Consumer<Index>> changes;
+  // the changes since another rebuild was asked for while one ran, null if none was
+  private List<Consumer<Index>> nextChanges;
+  private final ConcurrentMap<Long, Cached> cache = new ConcurrentHashMap<>();
+  private final LongAdder hits = Metrics.counter("related.hits");
+  private final LongAdder misses = Metrics.counter("related.misses");
+
+  RelatedBookmarks(DBI dbi) {
+    this(dbi, REBUILDS);
+  }
+
+  RelatedBookmarks(DBI dbi, Executor rebuilds) {
+    this.dbi = dbi;
+    this.rebuilds = rebuilds;
+  }
+
+  /** Reads the index from the tables, before the service takes changes. */
+  void load() {
+    Index loaded = read();
+    lock.writeLock().lock();
+    try {
+      swap(loaded);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Has the index read again in the background after a bulk change; the old one serves until
+   * then. Called with no write in flight, so every change the new read might miss is passed on
+   * after this call and is replayed.
+   */
+  void invalidate() {
+    lock.writeLock().lock();
+    try {
+      if (changes == null) {
+        changes = new ArrayList<>();
+        rebuilds.execute(this::rebuild);
+      } else if (nextChanges == null) {
+        // the running read may have started before the bulk change
+        nextChanges = new ArrayList<>();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Waits until no rebuild is running or asked for. */
+  void awaitRebuilt() throws InterruptedException {
+    lock.writeLock().lock();
+    try {
+      while (changes != null) {
+        rebuilt.await();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void rebuild() {
+    Index read;
+    try {
+      read = read();
+    } catch (RuntimeException e) {
+      LOGGER.error("could not read the related bookmarks index again, keeping the old one", e);
+      read = null;
+    }
+    lock.writeLock().lock();
+    try {
+      if (read != null) {
+        for (Consumer<Index> change : changes) {
+          change.accept(read);
+        }
+        swap(read);
+      }
+      changes = nextChanges;
+      nextChanges = null;
+      if (changes == null) {
+        rebuilt.signalAll();
+      } else {
+        rebuilds.execute(this::rebuild);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Called under the write lock. */
+  private void swap(Index read) {
+    index = read;
+    epoch++;
+    cache.clear();
+  }
+
+  private Index read() {
+    Index read = new Index();
+    LongArrayList bookmarkTags = new LongArrayList();
+    long[] bookmarkId = {0};
+    // rows come in bookmark order, so every posting is appended to in ascending order
+    try (Handle handle = dbi.open()) {
+      handle.createQuery(TaggingDAO.FIND_LIVE_ORDER_BY_BOOKMARK_ID)
+          .fold(bookmarkTags, (Folder2<LongArrayList>) (ids, rs, ctx) -> {
+            long id = rs.getLong(1);
+            long tagId = rs.getLong(2);
+            if (id != bookmarkId[0] && !ids.isEmpty()) {
+              read.tagsByBookmark.put(bookmarkId[0], ids.toArray());
+              ids.clear();
+            }
+            bookmarkId[0] = id;
+            ids.add(tagId);
+            Posting posting = read.postingsByTag.get(tagId);
+            if (posting == null) {
+              posting = new Posting();
+              read.postingsByTag.put(tagId, posting);
+            }
+            posting.add(id);
+            return ids;
+          });
+    }
+    if (!bookmarkTags.isEmpty()) {
+      read.tagsByBookmark.put(bookmarkId[0], bookmarkTags.toArray());
+    }
+    return read;
+  }
+
+  void tagged(long bookmarkId, long tagId) {
+    change(index -> index.tag(bookmarkId, tagId));
+  }
+
+  void untagged(long bookmarkId, long tagId) {
+    change(index -> index.untag(bookmarkId, tagId));
+  }
+
+  /** Drops a bookmark that was deleted; its taggings stay in the table until it is purged. */
+  void deleted(long bookmarkId) {
+    change(index -> index.delete(bookmarkId));
+  }
+
+  /** Adds back a bookmark that was undeleted, with the tags it kept. */
+  void undeleted(long bookmarkId, LongArrayList tagIds) {
+    for (int i = 0; i < tagIds.size(); i++) {
+      tagged(bookmarkId, tagIds.get(i));
+    }
+  }
+
+  private void change(Consumer<Index> change) {
+    lock.writeLock().lock();
+    try {
+      change.accept(index);
+      if (changes != null) {
+        changes.add(change);
+      }
+      if (nextChanges != null) {
+        nextChanges.add(change);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * The ids of up to {@code limit} other live bookmarks sharing the most tags with bookmark
+   * {@code id}, most shared tags first and then by id. Empty if the bookmark has no tags or is
+   * not live.
+   */
+  long[] find(long bookmarkId, int limit) {
+    long[] related;
+    lock.readLock().lock();
+    try {
+      long[] tags = index.tagsByBookmark.get(bookmarkId);
+      if (tags == null) {
+        return NONE;
+      }
+      Cached cached = cache.get(bookmarkId);
+      if (cached != null && cached.isCurrent(tags)) {
+        hits.increment();
+        related = cached.relatedIds;
+      } else {
+        misses.increment();
+        Posting[] postings = new Posting[tags.length];
+        for (int i = 0; i < tags.length; i++) {
+          postings[i] = index.postingsByTag.get(tags[i]);
+        }
+        related = score(bookmarkId, tags, postings);
+        if (cache.size() >= MAX_CACHED) {
+          cache.clear();
+        }
+        cache.put(bookmarkId, new Cached(tags, postings, epoch, related));
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return Arrays.copyOf(related, Math.max(0, Math.min(limit, related.length)));
+  }
+
+  private long[] score(long bookmarkId, long[] tags, Posting[] postings) {
+    int n = tags.length;
+    // reading order of the tags, smallest first, and each tag's place in it
+    int[] order = new int[n];
+    for (int i = 0; i < n; i++) {
+      int j = i;
+      while (j > 0 && postings[order[j - 1]].size > postings[i].size) {
+        order[j] = order[j - 1];
+        j--;
+      }
+      order[j] = i;
+    }
+    int[] readAt = new int[n];
+    for (int r = 0; r < n; r++) {
+      readAt[order[r]] = r;
+    }
+    TopK best = new TopK(MAX_RELATED);
+    // where each posting was last looked into; candidates ascend, so lookups only move forward
+    int[] cursors = new int[n];
+    // a bookmark first met in the tag read r-th shares at most the n - r tags left
+    for (int r = 0; r < n && !best.beats(n - r, Long.MIN_VALUE); r++) {
+      Posting posting = postings[order[r]];
+      Arrays.fill(cursors, 0);
+      for (int p = 0; p < posting.size; p++) {
+        long candidate = posting.bookmarkIds[p];
+        if (best.beats(n - r, candidate)) {
+          break;
+        }
+        if (candidate == bookmarkId) {
+          continue;
+        }
+        int shared = 1;
+        for (int k = 0; k < n && shared > 0; k++) {
+          if (k != order[r]) {
+            cursors[k] = postings[k].seek(cursors[k], candidate);
+            if (postings[k].contains(cursors[k], candidate)) {
+              // a bookmark in a tag read before was scored there
+              shared = readAt[k] < r ? 0 : shared + 1;
+            }
+          }
+        }
+        if (shared > 0) {
+          best.offer(candidate, shared);
+        }
+      }
+    }
+    return best.toIds();
+  }
+
+  private static long[] insert(long[] sorted, long value) {
+    int i = -Arrays.binarySearch(sorted, value) - 1;
+    long[] result = new long[sorted.length + 1];
+    System.arraycopy(sorted, 0, result, 0, i);
+    result[i] = value;
+    System.arraycopy(sorted, i, result, i + 1, sorted.length - i);
+    return result;
+  }
+
+  private static long[] remove(long[] sorted, long value) {
+    int i = Arrays.binarySearch(sorted, value);
+    long[] result = new long[sorted.length - 1];
+    System.arraycopy(sorted, 0, result, 0, i);
+    System.arraycopy(sorted, i + 1, result, i, result.length - i);
+    return result;
+  }
+
+  /** The tags of each live bookmark and the live bookmarks of each tag; changed under the lock. */
+  private final class Index {
+
+    private final LongObjectHashMap<long[]> tagsByBookmark = new LongObjectHashMap<>();
+    private final LongObjectHashMap<Posting> postingsByTag = new LongObjectHashMap<>();
+
+    void tag(long bookmarkId, long tagId) {
+      Posting posting = postingsByTag.get(tagId);
+      if (posting == null) {
+        posting = new Posting();
+        postingsByTag.put(tagId, posting);
+      }
+      if (posting.add(bookmarkId)) {
+        posting.changedAt = ++epoch;
+        long[] tags = tagsByBookmark.get(bookmarkId);
+        tagsByBookmark.put(bookmarkId, insert(tags == null ? NONE : tags, tagId));
+      }
+    }
+
+    void untag(long bookmarkId, long tagId) {
+      Posting posting = postingsByTag.get(tagId);
+      if (posting == null || !posting.remove(bookmarkId)) {
+        return;
+      }
+      posting.changedAt = ++epoch;
+      if (posting.size == 0) {
+        postingsByTag.remove(tagId);
+      }
+      long[] tags = remove(tagsByBookmark.get(bookmarkId), tagId);
+      if (tags.length == 0) {
+        tagsByBookmark.remove(bookmarkId);
+      } else {
+        tagsByBookmark.put(bookmarkId, tags);
+      }
+    }
+
+    void delete(long bookmarkId) {
+      long[] tags = tagsByBookmark.get(bookmarkId);
+      if (tags != null) {
+        for (long tagId : tags) {
+          untag(bookmarkId, tagId);
+        }
+      }
+    }
+  }
+
+  /** The ids of a tag's live bookmarks, ascending. */
+  private static final class Posting {
+
+    private long[] bookmarkIds = new long[4];
+    private int size;
+    private long changedAt;
+
+    boolean add(long id) {
+      int i = Arrays.binarySearch(bookmarkIds, 0, size, id);
+      if (i >= 0) {
+        return false;
+      }
+      i = -i - 1;
+      if (size == bookmarkIds.length) {
+        bookmarkIds = Arrays.copyOf(bookmarkIds, size << 1);
+      }
+      System.arraycopy(bookmarkIds, i, bookmarkIds, i + 1, size - i);
+      bookmarkIds[i] = id;
+      size++;
+      return true;
+    }
+
+    /**
+     * The index of the first id not below {@code id}, looking from {@code from} on in doubling
+     * steps, so that nearby ids cost few comparisons in even the largest tags.
+     */
+    int seek(int from, long id) {
+      if (from >= size || bookmarkIds[from] >= id) {
+        return from;
+      }
+      int below = from;
+      int step = 1;
+      while (below + step < size && bookmarkIds[below + step] < id) {
+        below += step;
+        step <<= 1;
+      }
+      int i = Arrays.binarySearch(bookmarkIds, below + 1, Math.min(below + step, size), id);
+      return i >= 0 ? i : -i - 1;
+    }
+
+    boolean contains(int index, long id) {
+      return index < size && bookmarkIds[index] == id;
+    }
+
+    boolean remove(long id) {
+      int i = Arrays.binarySearch(bookmarkIds, 0, size, id);
+      if (i < 0) {
+        return false;
+      }
+      System.arraycopy(bookmarkIds, i + 1, bookmarkIds, i, size - i - 1);
+      size--;
+      return true;
+    }
+  }
+
+  private static final class Cached {
+
+    private final long[] tags;
+    private final Posting[] postings;
+    private final long epoch;
+    private final long[] relatedIds;
+
+    Cached(long[] tags, Posting[] postings, long epoch, long[] relatedIds) {
+      this.tags = tags;
+      this.postings = postings;
+      this.epoch = epoch;
+      this.relatedIds = relatedIds;
+    }
+
+    /** Called under the read lock with the bookmark's current tags. */
+    boolean isCurrent(long[] currentTags) {
+      // tags are replaced, never changed, when the bookmark is tagged or untagged
+      if (tags != currentTags) {
+        return false;
+      }
+      for (Posting posting : postings) {
+        if (posting.changedAt > epoch) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * The best {@code capacity} bookmarks offered, by shared tags and then by lower id, in a heap
+   * with the worst of them on top.
+   */
+  private static final class TopK {
+
+    private final long[] ids;
+    private final int[] scores;
+    private int size;
+
+    TopK(int capacity) {
+      ids = new long[capacity];
+      scores = new int[capacity];
+    }
+
+    /** Whether every kept bookmark is ahead of one scoring {@code score} with id {@code id}. */
+    boolean beats(int score, long id) {
+      return size == ids.length && worse(score, id, scores[0], ids[0]);
+    }
+
+    void offer(long id, int score) {
+      if (size < ids.length) {
+        ids[size] = id;
+        scores[size] = score;
+        siftUp(size++);
+      } else if (worse(scores[0], ids[0], score, id)) {
+        ids[0] = id;
+        scores[0] = score;
+        siftDown(0);
+      }
+    }
+
+    /** The kept ids, best first. */
+    long[] toIds() {
+      long[] result = new long[size];
+      while (size > 0) {
+        result[size - 1] = ids[0];
+        size--;
+        ids[0] = ids[size];
+        scores[0] = scores[size];
+        siftDown(0);
+      }
+      return result;
+    }
+
+    private static boolean worse(int score, long id, int otherScore, long otherId) {
+      return score < otherScore || score == otherScore && id > otherId;
+    }
+
+    private void siftUp(int i) {
+      while (i > 0) {
+        int parent = (i - 1) / 2;
+        if (!worse(scores[i], ids[i], scores[parent], ids[parent])) {
+          return;
+        }
+        swap(i, parent);
+        i = parent;
+      }
+    }
+
+    private void siftDown(int i) {
+      while (true) {
+        int worst = i;
+        for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++) {
+          if (worse(scores[child], ids[child], scores[worst], ids[worst])) {
+            worst = child;
+          }
+        }
+        if (worst == i) {
+          return;
+        }
+        swap(i, worst);
+        i = worst;
+      }
+    }
+
+    private void swap(int i, int j) {
+      long id = ids[i];
+      ids[i] = ids[j];
+      ids[j] = id;
+      int score = scores[i];
+      scores[i] = scores[j];
+      scores[j] = score;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package jags.ratpacktest.service;
+
+import jags.ratpacktest.domain.Tag;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Concurrent label to tag id map, so resolving a known label doesn't need a query.
+ *
+ * <p>Entries can go stale if rows are changed outside {@link BookmarkService}; the service
+ * detects that through the tagging foreign key and calls {@link #remove} before resolving the
+ * label again.
+ */
+public class TagIdDictionary {
+
+  private final ConcurrentMap<String, Long> idsByLabel = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Long, String> labelsById = new ConcurrentHashMap<>();
+
+  public void load(List<Tag> tags) {
+    for (Tag tag : tags) {
+      put(tag.getLabel(), tag.getId());
+    }
+  }
+
+  public void clear() {
+    idsByLabel.clear();
+    labelsById.clear();
+  }
+
+  public Long get(String label) {
+    return idsByLabel.get(label);
+  }
+
+  public void put(String label, long id) {
+    Long previous = idsByLabel.put(label, id);
+    if (previous != null && previous != id) {
+      labelsById.remove(previous, label);
+    }
+    labelsById.put(id, label);
+  }
+
+  public void remove(long id) {
+    String label = labelsById.remove(id);
+    if (label != null) {
+      idsByLabel.remove(label, id);
+    }
+  }
+
+  public int size() {
+    return idsByLabel.size();
+  }
+}
@@ -0,0 +1,156 @@
+package jags.ratpacktest.service;
+
+import jags.ratpacktest.dao.BookmarkDAO;
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.domain.Tag;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.skife.jdbi.v2.DBI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares the single join of {@code findByTagLabelsOrderByTitle} with {@link ParallelTagQuery}
+ * for filters on more and more tags: the best of several runs reading the first page. Then runs
+ * every {@link TagQueryPlanner} plan on tags of very different sizes and shows the one it
+ * picks. Run with {@code gradle tagQueryBenchmark -Pbookmarks=1000000}.
+ */
+public final class TagQueryBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TagQueryBenchmark.class);
+  private static final int RUNS = 5;
+  private static final int TAGS = 200;
+  private static final int PAGE = 50;
+
+  private TagQueryBenchmark() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int count = Integer.getInteger("ratpacktest.benchmark.bookmarks", 200000);
+    JdbcConnectionPool pool =
+        JdbcConnectionPool.create("jdbc:h2:mem:tagQueryBenchmark", "sa", "");
+    pool.setMaxConnections(Runtime.getRuntime().availableProcessors() + 2);
+    DBI dbi = new DBI(pool);
+    BookmarkService service = new BookmarkService(dbi);
+    service.importBookmarks(Collections.singletonList(bookmarks(count)).iterator());
+    List<Tag> tags = service.getTags().stream()
+        .filter(tag -> tag.getLabel().startsWith("tag")).collect(Collectors.toList());
+    ParallelTagQuery parallel = new ParallelTagQuery(dbi, 1, 0);
+
+    for (int tagCount = 2; tagCount <= 64; tagCount *= 2) {
+      long single = Long.MAX_VALUE;
+      long forkJoin = Long.MAX_VALUE;
+      // the first run warms up; every run filters on other tags, since H2 keeps the last
+      // result of a statement and returns it again while the tables are unchanged
+      for (int run = 0; run <= RUNS; run++) {
+        List<String> labels = new ArrayList<>();
+        long[] tagIds = new long[tagCount];
+        for (int i = 0; i < tagCount; i++) {
+          Tag tag = tags.get((run * tagCount + i) % tags.size());
+          labels.add(tag.getLabel());
+          tagIds[i] = tag.getId();
+        }
+        long start = System.nanoTime();
+        List<Bookmark> expected;
+        try (BookmarkDAO dao = dbi.open(BookmarkDAO.class)) {
+          expected = dao.findByTagLabelsOrderByTitle(labels, 0, PAGE);
+        }
+        long singleRun = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        List<Bookmark> actual = parallel.find(tagIds, false, 0, PAGE);
+        long forkJoinRun = System.nanoTime() - start;
+        check(expected, actual);
+        if (run > 0) {
+          single = Math.min(single, singleRun);
+          forkJoin = Math.min(forkJoin, forkJoinRun);
+        }
+      }
+      LOGGER.info("{} of {} tags on {} bookmarks: single query {} ms, parallel {} ms", tagCount,
+          TAGS, count, single / 1000000, forkJoin / 1000000);
+    }
+    comparePlans(dbi, service);
+    pool.dispose();
+  }
+
+  private static void comparePlans(DBI dbi, BookmarkService service) {
+    TagQueryPlanner planner =
+        new TagQueryPlanner(dbi, ParallelTagQuery.fromSystemProperties(dbi));
+    planner.load();
+    Map<String, Long> tagIds = service.getTags().stream()
+        .collect(Collectors.toMap(Tag::getLabel, Tag::getId));
+    String[][] labelSets = {{"half"}, {"tenth"}, {"rare"}, {"half", "tenth"},
+        {"tenth", "tag0", "tag1", "tag2", "tag3"}, {"rare", "tag0", "tag1"}};
+    for (String[] labelSet : labelSets) {
+      Set<String> labels = new HashSet<>(Arrays.asList(labelSet));
+      long[] ids = labels.stream().mapToLong(tagIds::get).toArray();
+      for (int offset : new int[] {0, 1000}) {
+        StringBuilder times = new StringBuilder();
+        for (TagQueryPlanner.Plan plan : TagQueryPlanner.Plan.values()) {
+          long best = Long.MAX_VALUE;
+          // pages one apart, so H2 can't answer from the result it kept
+          for (int run = 0; run <= RUNS; run++) {
+            long start = System.nanoTime();
+            planner.run(plan, labels, ids, false, offset + run, PAGE);
+            if (run > 0) {
+              best = Math.min(best, System.nanoTime() - start);
+            }
+          }
+          times.append(", ").append(plan).append(' ').append(best / 1000000).append(" ms");
+        }
+        LOGGER.info("{} at offset {}: picks {}{}", labels, offset,
+            planner.choose(ids, offset, PAGE), times);
+        List<Bookmark> expected =
+            planner.run(TagQueryPlanner.Plan.JOIN, labels, ids, false, offset, PAGE);
+        for (TagQueryPlanner.Plan plan : TagQueryPlanner.Plan.values()) {
+          check(expected, planner.run(plan, labels, ids, false, offset, PAGE));
+        }
+      }
+    }
+  }
+
+  /** Bookmarks with one to four of {@link #TAGS} tags each and titles that often repeat. */
+  private static List<Bookmark> bookmarks(int count) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    List<Bookmark> bookmarks = new ArrayList<>(count);
+    long created = System.currentTimeMillis() - 365L * 24 * 3600 * 1000;
+    for (int i = 1; i <= count; i++) {
+      created += random.nextInt(60000);
+      Bookmark bookmark = new Bookmark((long) i, "Article " + random.nextInt(count / 4 + 1),
+          "https://www.example.com/articles/" + i, new Date(created));
+      StringBuilder labels = new StringBuilder();
+      for (int t = random.nextInt(4); t >= 0; t--) {
+        labels.append(labels.length() > 0 ? "," : "").append("tag").append(random.nextInt(TAGS));
+      }
+      // and tags of very different sizes for the planner
+      labels.append(i % 2 == 0 ? ",half" : "").append(i % 10 == 0 ? ",tenth" : "")
+          .append(i % 50000 == 7 ? ",rare" : "");
+      bookmark.setTags(labels.toString());
+      bookmarks.add(bookmark);
+    }
+    return bookmarks;
+  }
+
+  /** Two plans must list the same titles; ties between equal titles may be ordered apart. */
+  private static void check(List<Bookmark> expected, List<Bookmark> actual) {
+    if (expected.size() != actual.size()) {
+      throw new IllegalStateException(expected.size() + " != " + actual.size() + " bookmarks");
+    }
+    for (int i = 0; i < expected.size(); i++) {
+      if (!expected.get(i).getTitle().equals(actual.get(i).getTitle())) {
+        throw new IllegalStateException("bookmark " + i + " differs: " + expected.get(i).getTitle()
+            + " != " + actual.get(i).getTitle());
+      }
+    }
+  }
+}
@@ -0,0 +1,189 @@
+package jags.ratpacktest.service;
+
+import jags.ratpacktest.dao.BookmarkDAO;
+import jags.ratpacktest.dao.TaggingDAO;
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.metrics.Metrics;
+import jags.ratpacktest.util.LongHashSet;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Folder2;
+import org.skife.jdbi.v2.Handle;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs tag filters with the plan that suits how many bookmarks the tags have. The service keeps
+ * the count of each tag up to date as it adds and removes taggings and has it recounted after
+ * bulk changes. Counts include the taggings of deleted bookmarks until they are purged, and the
+ * number of bookmarks is H2's row count estimate, so both only guide the choice.
+ *
+ * <ul>
+ *   <li>{@link Plan#JOIN} joins the tags' taggings to their bookmarks; best when they are few.
+ *   <li>{@link Plan#SCAN_PROBE} walks the bookmarks in the requested order, probing the taggings
+ *       of each, and stops at the end of the page: cheap when the tags cover much of the table
+ *       and the page is near the start.
+ *   <li>{@link Plan#IN_MEMORY} unions the tags' bookmark ids in memory, then reads the page by
+ *       id, sparing the join's {@code distinct} over whole rows when several tags share
+ *       bookmarks.
+ *   <li>{@link Plan#PARALLEL} does the same reading each tag on its own connection, see
+ *       {@link ParallelTagQuery}.
+ * </ul>
+ *
+ * <p>Each plan run is counted in the {@code tagQuery.plan.*} metrics.
+ */
+class TagQueryPlanner {
+
+  enum Plan {
+    JOIN("join"), SCAN_PROBE("scanProbe"), IN_MEMORY("inMemory"), PARALLEL("parallel");
+
+    private final LongAdder runs;
+
+    Plan(String metric) {
+      runs = Metrics.counter("tagQuery.plan." + metric);
+    }
+  }
+
+  // up to this many matching taggings the join is as cheap as any plan
+  private static final long JOIN_MAX_MATCHES = 1000;
+  // probing a bookmark costs about twice as much as reading and sorting one by id
+  private static final long PROBE_COST = 2;
+  private static final long ESTIMATE_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  private final DBI dbi;
+  private final ParallelTagQuery parallel;
+  private final ConcurrentMap<Long, LongAdder> bookmarksByTagId = new ConcurrentHashMap<>();
+  private volatile long bookmarkEstimate;
+  private volatile long estimatedAt;
+
+  TagQueryPlanner(DBI dbi, ParallelTagQuery parallel) {
+    this.dbi = dbi;
+    this.parallel = parallel;
+  }
+
+  /**
+   * Recounts the bookmarks of every tag. The counts are merged into the counters the writes
+   * update, which stay in place, so a count must not change while it is read from the table:
+   * callers hold off the writes that call {@link #tagged} and {@link #untagged} meanwhile.
+   */
+  synchronized void load() {
+    Map<Long, Long> counts;
+    try (Handle handle = dbi.open()) {
+      counts = handle.createQuery(TaggingDAO.COUNT_BY_TAG_ID)
+          .fold(new HashMap<>(), (Folder2<Map<Long, Long>>) (map, rs, ctx) -> {
+            map.put(rs.getLong(1), rs.getLong(2));
+            return map;
+          });
+    }
+    for (Map.Entry<Long, LongAdder> entry : bookmarksByTagId.entrySet()) {
+      if (!counts.containsKey(entry.getKey())) {
+        bookmarksByTagId.remove(entry.getKey(), entry.getValue());
+      }
+    }
+    for (Map.Entry<Long, Long> entry : counts.entrySet()) {
+      LongAdder count = bookmarksByTagId.computeIfAbsent(entry.getKey(), id -> new LongAdder());
+      count.add(entry.getValue() - count.sum());
+    }
+    estimatedAt = 0;
+  }
+
+  void tagged(long tagId) {
+    bookmarksByTagId.computeIfAbsent(tagId, id -> new LongAdder()).increment();
+  }
+
+  void untagged(long tagId, long bookmarks) {
+    LongAdder count = bookmarksByTagId.get(tagId);
+    if (count != null) {
+      count.add(-bookmarks);
+    }
+  }
+
+  /** The bookmarks tagged {@code tagId} as counted, 0 for an unknown tag. */
+  long bookmarkCount(long tagId) {
+    LongAdder count = bookmarksByTagId.get(tagId);
+    return count == null ? 0 : count.sum();
+  }
+
+  void forget(long tagId) {
+    bookmarksByTagId.remove(tagId);
+  }
+
+  /**
+   * The bookmarks tagged with any of {@code labels} in title or creation order. {@code tagIds}
+   * are the labels' ids, or {@code null} if some label has none, which leaves only the join.
+   */
+  List<Bookmark> find(Set<String> labels, long[] tagIds, boolean byCreation, int offset,
+      int limit) {
+    Plan plan = tagIds == null ? Plan.JOIN : choose(tagIds, offset, limit);
+    plan.runs.increment();
+    return run(plan, labels, tagIds, byCreation, offset, limit);
+  }
+
+  List<Bookmark> run(Plan plan, Set<String> labels, long[] tagIds, boolean byCreation,
+      int offset, int limit) {
+    switch (plan) {
+      case SCAN_PROBE:
+        try (BookmarkDAO dao = dbi.open(BookmarkDAO.class)) {
+          return byCreation ? dao.probeByTagIdsOrderByCreationTimestamp(tagIds, offset, limit)
+              : dao.probeByTagIdsOrderByTitle(tagIds, offset, limit);
+        }
+      case IN_MEMORY:
+        LongHashSet bookmarkIds = new LongHashSet();
+        try (Handle handle = dbi.open()) {
+          for (long tagId : tagIds) {
+            ParallelTagQuery.addBookmarkIds(handle, tagId, bookmarkIds);
+          }
+        }
+        return ParallelTagQuery.findPage(dbi, bookmarkIds, byCreation, offset, limit);
+      case PARALLEL:
+        return parallel.find(tagIds, byCreation, offset, limit);
+      default:
+        try (BookmarkDAO dao = dbi.open(BookmarkDAO.class)) {
+          return byCreation ? dao.findByTagLabelsOrderByCreationTimestamp(labels, offset, limit)
+              : dao.findByTagLabelsOrderByTitle(labels, offset, limit);
+        }
+    }
+  }
+
+  Plan choose(long[] tagIds, int offset, int limit) {
+    long bookmarks = Math.max(1, estimateBookmarks());
+    long matches = 0;
+    for (long tagId : tagIds) {
+      LongAdder count = bookmarksByTagId.get(tagId);
+      if (count != null) {
+        matches += Math.max(0, count.sum());
+      }
+    }
+    // the tags may share bookmarks, so this is an upper bound
+    matches = Math.min(matches, bookmarks);
+    if (limit >= 0 && matches > 0) {
+      // bookmarks walked to fill the page if the matching ones are spread evenly
+      double scanned = Math.min(bookmarks, (double) (offset + limit) * bookmarks / matches);
+      if (scanned * PROBE_COST < matches) {
+        return Plan.SCAN_PROBE;
+      }
+    }
+    // one tag's join has no duplicates for distinct to remove, so reading by id saves nothing
+    if (matches <= JOIN_MAX_MATCHES || tagIds.length == 1) {
+      return Plan.JOIN;
+    }
+    return parallel.isWorthwhile(tagIds.length, bookmarks) ? Plan.PARALLEL : Plan.IN_MEMORY;
+  }
+
+  private long estimateBookmarks() {
+    long now = System.currentTimeMillis();
+    if (now - estimatedAt > ESTIMATE_MILLIS) {
+      try (BookmarkDAO dao = dbi.open(BookmarkDAO.class)) {
+        bookmarkEstimate = dao.estimateCount();
+      }
+      estimatedAt = now;
+    }
+    return bookmarkEstimate;
+  }
+}
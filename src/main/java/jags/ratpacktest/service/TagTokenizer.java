@@ -0,0 +1,73 @@
+package jags.ratpacktest.service;
+
+import java.text.Normalizer;
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * Splits a comma separated tag string into trimmed labels in a single scan.
+ *
+ * <p>Labels are Unicode NFC normalized, optionally lower-cased
+ * ({@code -Dratpacktest.tags.lowerCase=true}) and interned through a shared
+ * {@link LabelDictionary}, so the common case of an ASCII label that was seen before adds
+ * nothing but the label reference to the target collection. Only the labels of stored
+ * bookmarks are added to the dictionary, the labels of a tag filter are just looked up.
+ */
+public final class TagTokenizer {
+
+  private static final boolean LOWER_CASE = Boolean.getBoolean("ratpacktest.tags.lowerCase");
+  private static final LabelDictionary DICTIONARY =
+      new LabelDictionary(Integer.getInteger("ratpacktest.tags.dictionarySize", 4096));
+
+  private TagTokenizer() {
+  }
+
+  /**
+   * Adds the labels of {@code tags} to {@code into}.
+   *
+   * @param remember whether labels not seen before join the dictionary: set for the tags of a
+   *        stored bookmark, not for a query's
+   */
+  public static void tokenize(String tags, Collection<String> into, boolean remember) {
+    int length = tags.length();
+    int pos = 0;
+    while (pos <= length) {
+      int end = tags.indexOf(',', pos);
+      if (end < 0) {
+        end = length;
+      }
+      int start = pos;
+      boolean ascii = true;
+      // same notion of blank as String.trim()
+      while (start < end && tags.charAt(start) <= ' ') {
+        start++;
+      }
+      int stop = end;
+      while (stop > start && tags.charAt(stop - 1) <= ' ') {
+        stop--;
+      }
+      for (int i = start; i < stop && ascii; i++) {
+        ascii = tags.charAt(i) < 0x80;
+      }
+      if (start < stop) {
+        into.add(ascii ? DICTIONARY.intern(tags, start, stop, LOWER_CASE, remember)
+            : normalize(tags.substring(start, stop), remember));
+      }
+      pos = end + 1;
+    }
+  }
+
+  /** The number of labels the shared dictionary holds. */
+  static int dictionarySize() {
+    return DICTIONARY.size();
+  }
+
+  private static String normalize(String label, boolean remember) {
+    String normalized = Normalizer.isNormalized(label, Normalizer.Form.NFC)
+        ? label : Normalizer.normalize(label, Normalizer.Form.NFC);
+    if (LOWER_CASE) {
+      normalized = normalized.toLowerCase(Locale.ROOT);
+    }
+    return DICTIONARY.intern(normalized, 0, normalized.length(), false, remember);
+  }
+}
@@ -0,0 +1,94 @@
+package jags.ratpacktest.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Compares the time and the heap allocated per tag string of the split, trim and copy chain
+ * {@code getTagSet} used before with {@link TagTokenizer}, for stored tags and for a query's.
+ * Allocation is read from the thread's allocation counter, which HotSpot provides. Run with
+ * {@code gradle tagTokenizerBenchmark -Pstrings=1000000}.
+ */
+public final class TagTokenizerBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TagTokenizerBenchmark.class);
+  private static final int RUNS = 5;
+  private static final String[] VOCABULARY = {"java", "jvm", "ratpack", "netty", "h2", "sql",
+      "gradle", "docker", "linux", "http", "json", "css", "reading-list", "talks", "Performance"};
+
+  private TagTokenizerBenchmark() {
+  }
+
+  public static void main(String[] args) {
+    int count = Integer.getInteger("ratpacktest.benchmark.strings", 1000000);
+    // what a form sends: two to five labels, loosely spaced, now and then an empty one
+    String[] strings = new String[1024];
+    for (int i = 0; i < strings.length; i++) {
+      StringBuilder tags = new StringBuilder();
+      for (int label = 0; label < 2 + i % 4; label++) {
+        tags.append(label == 0 ? "" : i % 5 == 0 ? " , ," : ", ")
+            .append(VOCABULARY[(i * 7 + label * 3) % VOCABULARY.length]);
+      }
+      strings[i] = tags.toString();
+    }
+
+    measure("split chain", strings, count, TagTokenizerBenchmark::splitChain);
+    measure("tokenizer, stored", strings, count, tags -> tokenize(tags, true));
+    measure("tokenizer, query", strings, count, tags -> tokenize(tags, false));
+  }
+
+  private static void measure(String name, String[] strings, int count,
+      Function<String, Set<String>> parse) {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long bestNanos = Long.MAX_VALUE;
+    long bestBytes = Long.MAX_VALUE;
+    long labels = 0;
+    // the first run warms up
+    for (int run = 0; run <= RUNS; run++) {
+      long bytes = threads.getThreadAllocatedBytes(thread);
+      long start = System.nanoTime();
+      for (int i = 0; i < count; i++) {
+        labels += parse.apply(strings[i & (strings.length - 1)]).size();
+      }
+      long nanos = System.nanoTime() - start;
+      bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+      if (run > 0) {
+        bestNanos = Math.min(bestNanos, nanos);
+        bestBytes = Math.min(bestBytes, bytes);
+      }
+    }
+    LOGGER.info(String.format("%-18s %7.1f ns/string %7.1f bytes/string (%d labels)", name,
+        (double) bestNanos / count, (double) bestBytes / count, labels));
+  }
+
+  private static Set<String> splitChain(String tags) {
+    List<String> inputLabels = new ArrayList<>(Arrays.asList(tags.split(",")));
+    ListIterator<String> it = inputLabels.listIterator();
+    while (it.hasNext()) {
+      String element = it.next().trim();
+      if (element.isEmpty()) {
+        it.remove();
+      } else {
+        it.set(element);
+      }
+    }
+    return new HashSet<>(inputLabels);
+  }
+
+  private static Set<String> tokenize(String tags, boolean remember) {
+    Set<String> labels = new HashSet<>();
+    TagTokenizer.tokenize(tags, labels, remember);
+    return labels;
+  }
+}
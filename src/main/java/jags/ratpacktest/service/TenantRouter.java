@@ -0,0 +1,493 @@
+package jags.ratpacktest.service;
+
+import jags.ratpacktest.exception.TenantMovedException;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.TimingCollector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+/**
+ * Maps each tenant to one of several independent H2 databases, each with its own connection
+ * pool, and hands out one {@link BookmarkService} per tenant.
+ *
+ * <p>A tenant's tables live in its own schema of its shard, so the DAOs' SQL is unchanged and
+ * tenants never share a table, index, tag dictionary or lock. The default tenant keeps the
+ * {@code PUBLIC} schema of shard 0, {@code jdbc:h2:mem:test}, and can't be moved. Others are
+ * placed by hash unless {@link #moveTenant} has put them elsewhere.
+ *
+ * <p>With {@code -Dratpacktest.h2.mvcc=true} the shards use H2's multi-version concurrency, so
+ * long reads don't take table locks that writers would wait for. It is off by default because
+ * H2 can't switch it on for an in-memory database that is already open. Either way H2 runs one
+ * command at a time per database, so a long {@code SCRIPT} holds up every writer of its shard;
+ * snapshots copy the tables with {@link #whileFrozen} instead.
+ */
+public class TenantRouter implements AutoCloseable {
+
+  public static final String DEFAULT_TENANT = "default";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TenantRouter.class);
+  private static final Pattern TENANT_NAME = Pattern.compile("[a-z0-9_]{1,32}");
+  private static final String TENANT_SCHEMA_PREFIX = "TENANT_";
+  // parents before children, so foreign keys hold while copying
+  private static final String[] TABLES = {"tag", "bookmark", "tagging"};
+  // how long a move waits for calls on the old service; the last one drops its schema later
+  private static final long CALL_DRAIN_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+  private final JdbcConnectionPool[] shards;
+  private final ConcurrentMap<String, Integer> movedTenants = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, BookmarkService> services = new ConcurrentHashMap<>();
+  // held while a tenant's service is created, and while an uncreated tenant is read frozen
+  private final ConcurrentMap<String, Object> creationLocks = new ConcurrentHashMap<>();
+  private volatile Function<String, BookmarkChangeListener> changeListeners;
+  private volatile TimingCollector timingCollector = TimingCollector.NOP_TIMING_COLLECTOR;
+  private ScheduledExecutorService visitFlusher;
+  private ScheduledExecutorService purger;
+  // set by tests
+  long callDrainMillis = CALL_DRAIN_MILLIS;
+  Runnable whileCopying = () -> { };
+
+  public TenantRouter(int shardCount) {
+    this(shardCount, false);
+  }
+
+  public TenantRouter(int shardCount, boolean mvcc) {
+    // H2's default pool size
+    this(shardCount, mvcc, 10);
+  }
+
+  public TenantRouter(int shardCount, boolean mvcc, int maxConnections) {
+    if (shardCount < 1) {
+      throw new IllegalArgumentException("shardCount must be positive");
+    }
+    String options = mvcc ? ";MVCC=TRUE" : "";
+    shards = new JdbcConnectionPool[shardCount];
+    shards[0] = JdbcConnectionPool.create("jdbc:h2:mem:test" + options, "sa", "");
+    for (int i = 1; i < shardCount; i++) {
+      shards[i] = JdbcConnectionPool.create(
+          "jdbc:h2:mem:shard" + i + ";DB_CLOSE_DELAY=-1" + options, "sa", "");
+    }
+    for (JdbcConnectionPool shard : shards) {
+      shard.setMaxConnections(maxConnections);
+    }
+  }
+
+  /**
+   * Reads {@code -Dratpacktest.shards}, 4 by default, {@code -Dratpacktest.h2.mvcc} and the
+   * connections per shard, {@code -Dratpacktest.h2.maxConnections} (32), and flushes visit
+   * counts every {@code ratpacktest.visits.flushSeconds} (5, 0 disables it). Every
+   * {@code ratpacktest.purge.intervalSeconds} (60, 0 disables it) it purges the bookmarks
+   * deleted more than {@code ratpacktest.purge.retentionMinutes} (60) ago.
+   */
+  public static TenantRouter fromSystemProperties() {
+    TenantRouter router = new TenantRouter(Integer.getInteger("ratpacktest.shards", 4),
+        Boolean.getBoolean("ratpacktest.h2.mvcc"),
+        Integer.getInteger("ratpacktest.h2.maxConnections", 32));
+    router.scheduleVisitFlush(Integer.getInteger("ratpacktest.visits.flushSeconds", 5));
+    router.schedulePurge(Integer.getInteger("ratpacktest.purge.intervalSeconds", 60),
+        TimeUnit.MINUTES.toMillis(Integer.getInteger("ratpacktest.purge.retentionMinutes", 60)));
+    return router;
+  }
+
+  public synchronized void scheduleVisitFlush(long intervalSeconds) {
+    if (intervalSeconds <= 0 || visitFlusher != null) {
+      return;
+    }
+    visitFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "visit-flush");
+      thread.setDaemon(true);
+      return thread;
+    });
+    visitFlusher.scheduleWithFixedDelay(this::flushVisits, intervalSeconds, intervalSeconds,
+        TimeUnit.SECONDS);
+  }
+
+  /** Adds the visits every tenant's service has counted since the last flush to its table. */
+  public void flushVisits() {
+    services.forEach((tenant, service) -> {
+      try {
+        service.flushVisits();
+      } catch (RuntimeException e) {
+        LOGGER.error("could not flush the visits of tenant {}", tenant, e);
+      }
+    });
+  }
+
+  public synchronized void schedulePurge(long intervalSeconds, long retentionMillis) {
+    if (intervalSeconds <= 0 || purger != null) {
+      return;
+    }
+    purger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "bookmark-purge");
+      thread.setDaemon(true);
+      return thread;
+    });
+    purger.scheduleWithFixedDelay(
+        () -> purgeDeleted(new Date(System.currentTimeMillis() - retentionMillis)),
+        intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  /** Removes every tenant's bookmarks deleted before {@code cutoff} for good. */
+  public void purgeDeleted(Date cutoff) {
+    services.forEach((tenant, service) -> {
+      try {
+        int purged = service.purgeDeleted(cutoff);
+        if (purged > 0) {
+          LOGGER.info("purged {} deleted bookmarks of tenant {}", purged, tenant);
+        }
+      } catch (RuntimeException e) {
+        LOGGER.error("could not purge the deleted bookmarks of tenant {}", tenant, e);
+      }
+    });
+  }
+
+  public DataSource shard(int shard) {
+    return shards[shard];
+  }
+
+  /**
+   * Routes every tenant schema found on the shards, e.g. after a snapshot was restored, to the
+   * shard it was found on.
+   */
+  public void discoverTenants() {
+    for (int shard = 0; shard < shards.length; shard++) {
+      for (String tenant : tenantsOn(shard)) {
+        if (!DEFAULT_TENANT.equals(tenant) && shardOf(tenant) != shard) {
+          movedTenants.put(tenant, shard);
+        }
+      }
+    }
+  }
+
+  /** The tenants with tables on {@code shard}, whether or not their service was created. */
+  public List<String> tenantsOn(int shard) {
+    List<String> tenants = new ArrayList<>();
+    try (Connection connection = shards[shard].getConnection();
+         Statement statement = connection.createStatement();
+         ResultSet schemas = statement.executeQuery("select table_schema "
+             + "from information_schema.tables where table_name = 'BOOKMARK'")) {
+      while (schemas.next()) {
+        String schema = schemas.getString(1);
+        if (shard == 0 && "PUBLIC".equals(schema)) {
+          tenants.add(DEFAULT_TENANT);
+        } else if (schema.startsWith(TENANT_SCHEMA_PREFIX)) {
+          String tenant = schema.substring(TENANT_SCHEMA_PREFIX.length()).toLowerCase(Locale.ROOT);
+          if (isValidTenant(tenant)) {
+            tenants.add(tenant);
+          }
+        }
+      }
+    } catch (SQLException e) {
+      throw new IllegalStateException("could not list the schemas of shard " + shard, e);
+    }
+    return tenants;
+  }
+
+  public static boolean isValidTenant(String tenant) {
+    return tenant != null && TENANT_NAME.matcher(tenant).matches();
+  }
+
+  /** The size of each shard's connection pool. */
+  public int maxConnections() {
+    return shards[0].getMaxConnections();
+  }
+
+  public int shardCount() {
+    return shards.length;
+  }
+
+  public int shardOf(String tenant) {
+    checkTenant(tenant);
+    if (DEFAULT_TENANT.equals(tenant)) {
+      return 0;
+    }
+    Integer moved = movedTenants.get(tenant);
+    return moved != null ? moved : Math.floorMod(tenant.hashCode(), shards.length);
+  }
+
+  /** Returns the tenant's service, creating its schema and tables on first use. */
+  public BookmarkService service(String tenant) {
+    BookmarkService service = services.get(tenant);
+    if (service != null) {
+      return service;
+    }
+    checkTenant(tenant);
+    // created outside the map, whose locks would hold up other tenants for the whole creation
+    synchronized (creationLock(tenant)) {
+      service = services.get(tenant);
+      if (service == null) {
+        service = newService(tenant, shardOf(tenant));
+        services.put(tenant, service);
+      }
+      return service;
+    }
+  }
+
+  private Object creationLock(String tenant) {
+    return creationLocks.computeIfAbsent(tenant, t -> new Object());
+  }
+
+  /**
+   * Runs {@code call} on the tenant's service. A call that starts while the tenant is being moved
+   * runs on the service that will serve it afterwards, and a move only drops the tenant's old
+   * schema once the calls running on the old service have returned. A call whose first write
+   * waited for a move and was rejected by the old service is run again on the new one. A call
+   * that had committed writes before is not, since they were copied and would be repeated: its
+   * {@link TenantMovedException} is passed on.
+   */
+  public <T> T call(String tenant, ServiceCall<T> call) throws Exception {
+    while (true) {
+      BookmarkService service = service(tenant);
+      long commits = BookmarkService.commitsOnThisThread();
+      service.callStarted();
+      try {
+        // moved meanwhile: the old schema may go any moment, so take the new service
+        if (services.get(tenant) == service) {
+          return call.apply(service);
+        }
+      } catch (TenantMovedException e) {
+        if (services.get(tenant) == service || BookmarkService.commitsOnThisThread() != commits) {
+          throw e;
+        }
+      } finally {
+        service.callEnded();
+      }
+    }
+  }
+
+  /** Runs {@code task} while no tenant is being moved, so each stays on the shard it is on. */
+  public synchronized <T> T withoutMoves(Callable<T> task) throws Exception {
+    return task.call();
+  }
+
+  /**
+   * Runs {@code read} while none of the tenant's writes is running or can start, e.g. to copy
+   * its tables consistently with each other. Writes wait and go on afterwards; reads don't wait.
+   * A tenant whose service hasn't been created has no writers, and creating it waits instead.
+   */
+  public synchronized <T> T whileFrozen(String tenant, Callable<T> read) throws Exception {
+    checkTenant(tenant);
+    BookmarkService service;
+    synchronized (creationLock(tenant)) {
+      service = services.get(tenant);
+      if (service == null) {
+        return read.call();
+      }
+    }
+    service.freeze();
+    try {
+      return read.call();
+    } finally {
+      service.thaw();
+    }
+  }
+
+  /** The schema holding the tenant's tables on its shard. */
+  public static String schemaOf(String tenant) {
+    return DEFAULT_TENANT.equals(tenant)
+        ? "PUBLIC" : TENANT_SCHEMA_PREFIX + tenant.toUpperCase(Locale.ROOT);
+  }
+
+  /** The tenants whose service has been created since startup, in name order. */
+  public Set<String> activeTenants() {
+    return new TreeSet<>(services.keySet());
+  }
+
+  /** Gives every tenant's service, current and future, the listener made for its tenant. */
+  public void setChangeListeners(Function<String, BookmarkChangeListener> changeListeners) {
+    this.changeListeners = changeListeners;
+    services.forEach((tenant, service) -> service.setChangeListener(changeListeners.apply(tenant)));
+  }
+
+  /** Times every statement of every tenant's service, including those created already. */
+  public void setTimingCollector(TimingCollector timingCollector) {
+    this.timingCollector = timingCollector;
+  }
+
+  private BookmarkService newService(String tenant, int shard) {
+    BookmarkService service = new BookmarkService(open(tenant, shard));
+    Function<String, BookmarkChangeListener> listeners = changeListeners;
+    if (listeners != null) {
+      service.setChangeListener(listeners.apply(tenant));
+    }
+    return service;
+  }
+
+  /**
+   * Copies a tenant to {@code targetShard} and routes it there. Writes to the tenant wait while
+   * its rows are copied and are rejected by the old service afterwards, and {@link #call} runs
+   * them again on the new one; reads keep being served throughout. The old schema is dropped once the new service has taken over and the
+   * {@link #call calls} still running on the old one have returned. Blocks for the whole copy.
+   */
+  public synchronized void moveTenant(String tenant, int targetShard) {
+    checkTenant(tenant);
+    if (DEFAULT_TENANT.equals(tenant)) {
+      throw new IllegalArgumentException("the default tenant stays on shard 0");
+    }
+    if (targetShard < 0 || targetShard >= shards.length) {
+      throw new IllegalArgumentException("no shard " + targetShard);
+    }
+    int sourceShard = shardOf(tenant);
+    if (sourceShard == targetShard) {
+      return;
+    }
+    BookmarkService source = service(tenant);
+    // visits counted after this are lost with the old service
+    source.flushVisits();
+    source.freeze();
+    BookmarkService target;
+    try {
+      whileCopying.run();
+      DBI targetDbi = open(tenant, targetShard);
+      // creates the tables; the tenant's schema on the target has to be empty for the copy
+      new BookmarkService(targetDbi);
+      copyTables(open(tenant, sourceShard), targetDbi);
+      target = newService(tenant, targetShard);
+    } catch (RuntimeException e) {
+      dropSchema(tenant, targetShard);
+      source.thaw();
+      throw e;
+    }
+    movedTenants.put(tenant, targetShard);
+    services.put(tenant, target);
+    source.retire();
+    awaitCalls(tenant, source);
+    // calls still running past the wait go on reading the old schema until they return
+    source.afterCalls(() -> dropSchema(tenant, sourceShard));
+    LOGGER.info("moved tenant {} from shard {} to shard {}", tenant, sourceShard, targetShard);
+  }
+
+  private void awaitCalls(String tenant, BookmarkService service) {
+    long deadline = System.currentTimeMillis() + callDrainMillis;
+    try {
+      while (service.callsRunning() > 0) {
+        if (System.currentTimeMillis() > deadline) {
+          LOGGER.warn("keeping the old schema of tenant {} until its {} running calls return",
+              tenant, service.callsRunning());
+          return;
+        }
+        Thread.sleep(10);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void copyTables(DBI source, DBI target) {
+    try (Handle from = source.open(); Handle to = target.open()) {
+      to.begin();
+      for (String table : TABLES) {
+        List<Map<String, Object>> rows = from.createQuery("select * from " + table).list();
+        if (rows.isEmpty()) {
+          continue;
+        }
+        PreparedBatch batch = to.prepareBatch(insertStatement(table, rows.get(0)));
+        for (Map<String, Object> row : rows) {
+          batch.add(row);
+        }
+        batch.execute();
+      }
+      to.commit();
+    }
+  }
+
+  private static String insertStatement(String table, Map<String, Object> row) {
+    StringBuilder columns = new StringBuilder();
+    StringBuilder values = new StringBuilder();
+    for (String column : row.keySet()) {
+      if (columns.length() > 0) {
+        columns.append(", ");
+        values.append(", ");
+      }
+      columns.append(column);
+      values.append(':').append(column);
+    }
+    return "insert into " + table + "(" + columns + ") values(" + values + ")";
+  }
+
+  /** A DBI whose connections are switched to the tenant's schema, which it creates. */
+  private DBI open(String tenant, int shard) {
+    String schema = schemaOf(tenant);
+    JdbcConnectionPool pool = shards[shard];
+    try (Connection connection = pool.getConnection();
+         Statement statement = connection.createStatement()) {
+      statement.execute("create schema if not exists " + schema);
+    } catch (SQLException e) {
+      throw new IllegalStateException("could not create schema " + schema, e);
+    }
+    DBI dbi = new DBI(() -> {
+      // pooled connections are shared by the shard's tenants, so set it every time
+      Connection connection = pool.getConnection();
+      try (Statement statement = connection.createStatement()) {
+        statement.execute("set schema " + schema);
+      } catch (SQLException e) {
+        connection.close();
+        throw e;
+      }
+      return connection;
+    });
+    dbi.define("tenant", tenant);
+    dbi.setTimingCollector((elapsed, ctx) -> timingCollector.collect(elapsed, ctx));
+    return dbi;
+  }
+
+  private void dropSchema(String tenant, int shard) {
+    try (Connection connection = shards[shard].getConnection();
+         Statement statement = connection.createStatement()) {
+      statement.execute("drop schema if exists " + schemaOf(tenant));
+    } catch (SQLException e) {
+      LOGGER.warn("could not drop schema of tenant {} on shard {}", tenant, shard, e);
+    }
+  }
+
+  private static void checkTenant(String tenant) {
+    if (!isValidTenant(tenant)) {
+      throw new IllegalArgumentException("invalid tenant " + tenant);
+    }
+  }
+
+  @FunctionalInterface
+  public interface ServiceCall<T> {
+    T apply(BookmarkService service) throws Exception;
+  }
+
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (visitFlusher != null) {
+        visitFlusher.shutdownNow();
+      }
+      if (purger != null) {
+        purger.shutdownNow();
+      }
+    }
+    flushVisits();
+    for (JdbcConnectionPool shard : shards) {
+      shard.dispose();
+    }
+  }
+}
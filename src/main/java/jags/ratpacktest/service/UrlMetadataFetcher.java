@@ -0,0 +1,400 @@
+package jags.ratpacktest.service;
+
+import jags.ratpacktest.domain.UrlMetadata;
+import jags.ratpacktest.metrics.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fetches page titles and canonical URLs on a bounded worker pool, away from request threads.
+ *
+ * <p>Each host gets at most {@code perHostLimit} concurrent connections; work for a busy host is
+ * retried a little later instead of holding a worker. Results are cached by normalized URL for
+ * {@code ttlMillis}, and concurrent requests for the same URL share one download.
+ *
+ * <p>Since the URLs come from clients, only public addresses are fetched: the host of the URL
+ * and of every redirect, which are followed here rather than by {@link HttpURLConnection}, is
+ * resolved and refused if any of its addresses is loopback, private, link-local or otherwise
+ * not routable on the internet.
+ */
+public class UrlMetadataFetcher implements AutoCloseable {
+
+  private static final Pattern TITLE =
+      Pattern.compile("<title[^>]*>(.*?)</title>", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+  private static final Pattern LINK = Pattern.compile("<link\\s[^>]*>", Pattern.CASE_INSENSITIVE);
+  private static final Pattern REL_CANONICAL =
+      Pattern.compile("\\brel\\s*=\\s*[\"']?canonical\\b", Pattern.CASE_INSENSITIVE);
+  private static final Pattern HREF =
+      Pattern.compile("\\bhref\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+))",
+          Pattern.CASE_INSENSITIVE);
+  private static final Pattern CHARSET =
+      Pattern.compile("charset=\"?([\\w.:-]+)", Pattern.CASE_INSENSITIVE);
+  private static final int MAX_TITLE_LENGTH = 80;
+  private static final int MAX_RETRIES = 20;
+  private static final long RETRY_DELAY_MILLIS = 100;
+  private static final int MAX_REDIRECTS = 5;
+
+  private final ThreadPoolExecutor workers;
+  private final ScheduledExecutorService retries;
+  private final int perHostLimit;
+  private final int timeoutMillis;
+  private final int maxBytes;
+  private final long ttlMillis;
+  private final int maxCacheEntries;
+  private final Predicate<InetAddress> allowedAddress;
+  // open connections by host, a host is only present while it has some
+  private final ConcurrentMap<String, Integer> hostConnections = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, CachedMetadata> cache = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, CompletableFuture<UrlMetadata>> inFlight =
+      new ConcurrentHashMap<>();
+
+  public UrlMetadataFetcher(int threads, int queueCapacity, int perHostLimit, int timeoutMillis,
+      int maxBytes, long ttlMillis, int maxCacheEntries) {
+    this(threads, queueCapacity, perHostLimit, timeoutMillis, maxBytes, ttlMillis,
+        maxCacheEntries, UrlMetadataFetcher::isPublicAddress);
+  }
+
+  UrlMetadataFetcher(int threads, int queueCapacity, int perHostLimit, int timeoutMillis,
+      int maxBytes, long ttlMillis, int maxCacheEntries, Predicate<InetAddress> allowedAddress) {
+    AtomicInteger threadCount = new AtomicInteger();
+    this.workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+          Thread thread = new Thread(runnable, "url-metadata-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+    this.workers.allowCoreThreadTimeOut(true);
+    this.retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "url-metadata-retry");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.perHostLimit = perHostLimit;
+    this.timeoutMillis = timeoutMillis;
+    this.maxBytes = maxBytes;
+    this.ttlMillis = ttlMillis;
+    this.maxCacheEntries = maxCacheEntries;
+    this.allowedAddress = allowedAddress;
+  }
+
+  /** Builds a fetcher from the {@code ratpacktest.fetch.*} system properties. */
+  public static UrlMetadataFetcher fromSystemProperties() {
+    return new UrlMetadataFetcher(
+        Integer.getInteger("ratpacktest.fetch.threads", 4),
+        Integer.getInteger("ratpacktest.fetch.queueCapacity", 256),
+        Integer.getInteger("ratpacktest.fetch.perHostLimit", 2),
+        Integer.getInteger("ratpacktest.fetch.timeoutMillis", 3000),
+        Integer.getInteger("ratpacktest.fetch.maxBytes", 64 * 1024),
+        Long.getLong("ratpacktest.fetch.ttlMillis", TimeUnit.HOURS.toMillis(1)),
+        Integer.getInteger("ratpacktest.fetch.maxCacheEntries", 10000));
+  }
+
+  /**
+   * Returns the metadata of {@code url}. The future completes on a worker thread, or at once
+   * when the URL is cached, and fails if the page can't be fetched or the pool is saturated.
+   */
+  public CompletableFuture<UrlMetadata> fetch(String url) {
+    String key;
+    try {
+      key = normalize(url);
+    } catch (URISyntaxException | IllegalArgumentException e) {
+      CompletableFuture<UrlMetadata> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+    CachedMetadata cached = cache.get(key);
+    if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+      Metrics.counter("fetch.cacheHits").increment();
+      return CompletableFuture.completedFuture(cached.metadata);
+    }
+    CompletableFuture<UrlMetadata> created = new CompletableFuture<>();
+    CompletableFuture<UrlMetadata> existing = inFlight.putIfAbsent(key, created);
+    if (existing != null) {
+      return existing;
+    }
+    created.whenComplete((metadata, error) -> inFlight.remove(key, created));
+    submit(new Task(key, url, created));
+    return created;
+  }
+
+  private void submit(Task task) {
+    try {
+      workers.execute(() -> run(task));
+    } catch (RejectedExecutionException e) {
+      Metrics.counter("fetch.rejected").increment();
+      task.result.completeExceptionally(e);
+    }
+  }
+
+  private void run(Task task) {
+    if (!tryOpen(task.host)) {
+      if (++task.attempts > MAX_RETRIES) {
+        task.result.completeExceptionally(new IOException("too busy: " + task.host));
+      } else {
+        retries.schedule(() -> submit(task), RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+      }
+      return;
+    }
+    try {
+      Metrics.counter("fetch.requests").increment();
+      UrlMetadata metadata = download(task.url);
+      cache(task.key, metadata);
+      task.result.complete(metadata);
+    } catch (Exception e) {
+      Metrics.counter("fetch.failures").increment();
+      task.result.completeExceptionally(e);
+    } finally {
+      hostConnections.computeIfPresent(task.host, (host, open) -> open == 1 ? null : open - 1);
+    }
+  }
+
+  private boolean tryOpen(String host) {
+    boolean[] opened = {false};
+    hostConnections.compute(host, (key, open) -> {
+      int current = open == null ? 0 : open;
+      if (current >= perHostLimit) {
+        return open;
+      }
+      opened[0] = true;
+      return current + 1;
+    });
+    return opened[0];
+  }
+
+  private void cache(String key, UrlMetadata metadata) {
+    long now = System.currentTimeMillis();
+    if (cache.size() >= maxCacheEntries) {
+      cache.values().removeIf(cached -> cached.expiresAt <= now);
+    }
+    if (cache.size() < maxCacheEntries) {
+      cache.put(key, new CachedMetadata(metadata, now + ttlMillis));
+    }
+  }
+
+  private UrlMetadata download(String url) throws IOException {
+    URL location = new URL(url);
+    for (int hops = 0; ; hops++) {
+      checkAddress(location);
+      HttpURLConnection connection = (HttpURLConnection) location.openConnection();
+      connection.setInstanceFollowRedirects(false);
+      connection.setConnectTimeout(timeoutMillis);
+      connection.setReadTimeout(timeoutMillis);
+      connection.setRequestProperty("Accept", "text/html");
+      connection.setRequestProperty("User-Agent", "ratpacktest-bookmarks");
+      try {
+        int status = connection.getResponseCode();
+        String next = connection.getHeaderField("Location");
+        if (!isRedirect(status) || next == null) {
+          return read(connection, url);
+        }
+        if (hops == MAX_REDIRECTS) {
+          throw new IOException("too many redirects from " + url);
+        }
+        location = new URL(location, next);
+        if (!"http".equals(location.getProtocol()) && !"https".equals(location.getProtocol())) {
+          throw new IOException("redirect to " + location + " from " + url);
+        }
+      } finally {
+        connection.disconnect();
+      }
+    }
+  }
+
+  private static boolean isRedirect(int status) {
+    return status == HttpURLConnection.HTTP_MOVED_PERM
+        || status == HttpURLConnection.HTTP_MOVED_TEMP
+        || status == HttpURLConnection.HTTP_SEE_OTHER || status == 307 || status == 308;
+  }
+
+  /**
+   * Refuses a host with any address the fetcher may not reach. The connection resolves the
+   * host again, normally from the JVM's address cache, which holds the same answer.
+   */
+  private void checkAddress(URL location) throws IOException {
+    for (InetAddress address : InetAddress.getAllByName(location.getHost())) {
+      if (!allowedAddress.test(address)) {
+        Metrics.counter("fetch.refused").increment();
+        throw new IOException("refusing to fetch " + location + " from " + address);
+      }
+    }
+  }
+
+  /** Whether {@code address} is routable on the public internet. */
+  static boolean isPublicAddress(InetAddress address) {
+    if (address.isAnyLocalAddress() || address.isLoopbackAddress()
+        || address.isLinkLocalAddress() || address.isSiteLocalAddress()
+        || address.isMulticastAddress()) {
+      return false;
+    }
+    byte[] bytes = address.getAddress();
+    if (address instanceof Inet4Address) {
+      int first = bytes[0] & 0xff;
+      int second = bytes[1] & 0xff;
+      // 0/8 this network, 100.64/10 carrier-grade NAT, 198.18/15 benchmarking, 240/4 reserved
+      return first != 0 && !(first == 100 && second >= 64 && second < 128)
+          && !(first == 198 && (second == 18 || second == 19)) && first < 240;
+    }
+    if (address instanceof Inet6Address) {
+      // fc00::/7 unique local
+      if ((bytes[0] & 0xfe) == 0xfc) {
+        return false;
+      }
+      // ::a.b.c.d, IPv4-compatible, reaches the IPv4 address; mapped ones arrive as IPv4
+      if (((Inet6Address) address).isIPv4CompatibleAddress()) {
+        try {
+          return isPublicAddress(InetAddress.getByAddress(Arrays.copyOfRange(bytes, 12, 16)));
+        } catch (UnknownHostException e) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private UrlMetadata read(HttpURLConnection connection, String url) throws IOException {
+    int status = connection.getResponseCode();
+    if (status != HttpURLConnection.HTTP_OK) {
+      throw new IOException("unexpected status " + status + " from " + url);
+    }
+    String contentType = connection.getContentType();
+    if (contentType != null && !contentType.toLowerCase(Locale.ROOT).contains("html")) {
+      return new UrlMetadata(null, null);
+    }
+    String html;
+    try (InputStream in = connection.getInputStream()) {
+      html = read(in, charset(contentType));
+    }
+    return parse(html, connection.getURL());
+  }
+
+  private String read(InputStream in, Charset charset) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    // the head is all we need, so stop at maxBytes
+    while (out.size() < maxBytes
+        && (read = in.read(buffer, 0, Math.min(buffer.length, maxBytes - out.size()))) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return new String(out.toByteArray(), charset);
+  }
+
+  private static Charset charset(String contentType) {
+    if (contentType != null) {
+      Matcher matcher = CHARSET.matcher(contentType);
+      if (matcher.find() && Charset.isSupported(matcher.group(1))) {
+        return Charset.forName(matcher.group(1));
+      }
+    }
+    return StandardCharsets.UTF_8;
+  }
+
+  static UrlMetadata parse(String html, URL base) {
+    String title = null;
+    Matcher titleMatcher = TITLE.matcher(html);
+    if (titleMatcher.find()) {
+      title = unescape(titleMatcher.group(1)).replaceAll("\\s+", " ").trim();
+      if (title.length() > MAX_TITLE_LENGTH) {
+        title = title.substring(0, MAX_TITLE_LENGTH);
+      }
+      if (title.isEmpty()) {
+        title = null;
+      }
+    }
+    String canonicalUrl = null;
+    Matcher linkMatcher = LINK.matcher(html);
+    while (canonicalUrl == null && linkMatcher.find()) {
+      String link = linkMatcher.group();
+      Matcher href = HREF.matcher(link);
+      if (REL_CANONICAL.matcher(link).find() && href.find()) {
+        String value = href.group(1) != null ? href.group(1)
+            : href.group(2) != null ? href.group(2) : href.group(3);
+        try {
+          String resolved = new URL(base, unescape(value.trim())).toString();
+          // it becomes the bookmark's url and /go redirects to it, so only http(s) with a host
+          normalize(resolved);
+          canonicalUrl = resolved;
+        } catch (IOException | URISyntaxException ignored) {
+          // keep looking, a later link may be usable
+        }
+      }
+    }
+    return new UrlMetadata(title, canonicalUrl);
+  }
+
+  private static String unescape(String text) {
+    return text.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+        .replace("&#39;", "'").replace("&apos;", "'").replace("&nbsp;", " ")
+        .replace("&amp;", "&");
+  }
+
+  /** Lower-cases scheme and host and drops the fragment, which never reaches the server. */
+  static String normalize(String url) throws URISyntaxException {
+    URI uri = new URI(url);
+    String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.ROOT);
+    if (!("http".equals(scheme) || "https".equals(scheme)) || uri.getHost() == null) {
+      throw new URISyntaxException(url, "absolute http(s) URL expected");
+    }
+    return new URI(scheme, uri.getUserInfo(),
+        uri.getHost().toLowerCase(Locale.ROOT), uri.getPort(), uri.getPath(), uri.getQuery(),
+        null).toString();
+  }
+
+  @Override
+  public void close() {
+    retries.shutdownNow();
+    workers.shutdownNow();
+  }
+
+  private static class Task {
+    private final String key;
+    private final String url;
+    private final String host;
+    private final CompletableFuture<UrlMetadata> result;
+    private int attempts;
+
+    private Task(String key, String url, CompletableFuture<UrlMetadata> result) {
+      this.key = key;
+      this.url = url;
+      this.host = URI.create(key).getHost();
+      this.result = result;
+    }
+  }
+
+  private static class CachedMetadata {
+    private final UrlMetadata metadata;
+    private final long expiresAt;
+
+    private CachedMetadata(UrlMetadata metadata, long expiresAt) {
+      this.metadata = metadata;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -0,0 +1,216 @@
+package jags.ratpacktest.service;
+
+import jags.ratpacktest.metrics.Metrics;
+import jags.ratpacktest.util.LongArrayList;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts bookmark visits in memory and adds them to the {@code visit_count} column in batches,
+ * so a click never writes to H2. Also ranks the most visited bookmarks for
+ * {@code order=visit_count}.
+ *
+ * <p>Each bookmark visited since the last flush has its own {@link LongAdder}, which spreads
+ * concurrent increments over cells instead of contending on one value. A flush takes every
+ * adder out of the map and drains it, applies the deltas in one batch, and offers the new totals
+ * to the ranking. Counts only grow, so the ranking stays
+ * the exact top {@code rankedCount} of the flushed counts. A deleted bookmark leaves a gap that
+ * only the table can fill, so the ranking is reloaded from the index on the next flush. Visits
+ * not yet flushed are neither ranked nor saved.
+ */
+public class VisitCounter {
+
+  private static final Comparator<Ranked> MOST_VISITED = (a, b) -> {
+    int cmp = Long.compare(b.count, a.count);
+    return cmp != 0 ? cmp : Long.compare(a.id, b.id);
+  };
+  // keeps the totals query's in list short
+  private static final int TOTALS_CHUNK = 500;
+
+  private final DBI dbi;
+  private final int rankedCount;
+  private final ConcurrentMap<Long, LongAdder> pending = new ConcurrentHashMap<>();
+  // guarded by this; readers use the published rankedIds
+  private final TreeSet<Ranked> ranking = new TreeSet<>(MOST_VISITED);
+  private final Map<Long, Ranked> rankedById = new HashMap<>();
+  private boolean stale = true;
+  private volatile long[] rankedIds = new long[0];
+
+  public VisitCounter(DBI dbi, int rankedCount) {
+    this.dbi = dbi;
+    this.rankedCount = rankedCount;
+  }
+
+  public void record(long bookmarkId) {
+    LongAdder visits = pending.get(bookmarkId);
+    if (visits == null) {
+      visits = pending.computeIfAbsent(bookmarkId, id -> new LongAdder());
+    }
+    visits.increment();
+    if (pending.get(bookmarkId) != visits) {
+      // a flush took the adder out of the map, maybe before it counted this visit
+      long moved = visits.sumThenReset();
+      if (moved > 0) {
+        pending.computeIfAbsent(bookmarkId, id -> new LongAdder()).add(moved);
+      }
+    }
+    Metrics.counter("visits.recorded").increment();
+  }
+
+  /** Drops the pending visits and the rank of a deleted bookmark. */
+  public void forget(long bookmarkId) {
+    pending.remove(bookmarkId);
+    synchronized (this) {
+      if (rankedById.containsKey(bookmarkId)) {
+        stale = true;
+      }
+    }
+  }
+
+  /** Has the ranking reloaded from the table on the next flush, after a bulk change. */
+  public synchronized void invalidate() {
+    stale = true;
+  }
+
+  /**
+   * The ids of the most visited bookmarks, most visited first, as of the last flush. Ties are
+   * broken by id, as in {@code order by visit_count desc, id}.
+   */
+  public long[] ranking() {
+    return rankedIds;
+  }
+
+  /** Adds the visits counted since the last flush to the table and ranks their new totals. */
+  public synchronized void flush() {
+    LongArrayList ids = new LongArrayList();
+    LongArrayList deltas = new LongArrayList();
+    // each adder leaves the map before it is drained; record moves a visit that lands on it
+    // after the drain into a new adder, for the next flush
+    for (Map.Entry<Long, LongAdder> entry : pending.entrySet()) {
+      if (pending.remove(entry.getKey(), entry.getValue())) {
+        long delta = entry.getValue().sumThenReset();
+        if (delta > 0) {
+          ids.add(entry.getKey());
+          deltas.add(delta);
+        }
+      }
+    }
+    if (ids.size() == 0 && !stale) {
+      return;
+    }
+    try (Handle handle = dbi.open()) {
+      if (ids.size() > 0) {
+        PreparedBatch batch = handle.prepareBatch(
+            "update bookmark set visit_count = visit_count + :delta where id = :id");
+        for (int i = 0; i < ids.size(); i++) {
+          batch.add().bind("id", ids.get(i)).bind("delta", deltas.get(i));
+        }
+        batch.execute();
+      }
+    } catch (RuntimeException e) {
+      for (int i = 0; i < ids.size(); i++) {
+        pending.computeIfAbsent(ids.get(i), id -> new LongAdder()).add(deltas.get(i));
+      }
+      throw e;
+    }
+    Metrics.counter("visits.flushed").add(sum(deltas));
+    try (Handle handle = dbi.open()) {
+      if (stale) {
+        reload(handle);
+      } else {
+        for (int from = 0; from < ids.size(); from += TOTALS_CHUNK) {
+          int to = Math.min(ids.size(), from + TOTALS_CHUNK);
+          for (long[] total : totals(handle, ids, from, to)) {
+            offer(total[0], total[1]);
+          }
+        }
+      }
+    }
+    publish();
+  }
+
+  /** The bookmarks with visits waiting for the next flush. */
+  int pendingCount() {
+    return pending.size();
+  }
+
+  private void reload(Handle handle) {
+    ranking.clear();
+    rankedById.clear();
+    List<long[]> top = handle.createQuery("select id, visit_count from bookmark "
+        + "where visit_count > 0 and deleted_at is null "
+        + "order by visit_count desc, id limit :limit")
+        .bind("limit", rankedCount)
+        .map((index, rs, ctx) -> new long[] {rs.getLong(1), rs.getLong(2)})
+        .list();
+    for (long[] total : top) {
+      offer(total[0], total[1]);
+    }
+    stale = false;
+  }
+
+  private static List<long[]> totals(Handle handle, LongArrayList ids, int from, int to) {
+    StringBuilder in = new StringBuilder();
+    for (int i = from; i < to; i++) {
+      if (in.length() > 0) {
+        in.append(", ");
+      }
+      in.append(ids.get(i));
+    }
+    return handle.createQuery("select id, visit_count from bookmark where id in(" + in + ")")
+        .map((index, rs, ctx) -> new long[] {rs.getLong(1), rs.getLong(2)})
+        .list();
+  }
+
+  private void offer(long id, long count) {
+    Ranked previous = rankedById.remove(id);
+    if (previous != null) {
+      ranking.remove(previous);
+    }
+    Ranked ranked = new Ranked(id, count);
+    if (ranking.size() < rankedCount || MOST_VISITED.compare(ranked, ranking.last()) < 0) {
+      ranking.add(ranked);
+      rankedById.put(id, ranked);
+      if (ranking.size() > rankedCount) {
+        rankedById.remove(ranking.pollLast().id);
+      }
+    }
+  }
+
+  private void publish() {
+    long[] ids = new long[ranking.size()];
+    int i = 0;
+    for (Ranked ranked : ranking) {
+      ids[i++] = ranked.id;
+    }
+    rankedIds = ids;
+  }
+
+  private static long sum(LongArrayList values) {
+    long sum = 0;
+    for (int i = 0; i < values.size(); i++) {
+      sum += values.get(i);
+    }
+    return sum;
+  }
+
+  private static class Ranked {
+    private final long id;
+    private final long count;
+
+    private Ranked(long id, long count) {
+      this.id = id;
+      this.count = count;
+    }
+  }
+}
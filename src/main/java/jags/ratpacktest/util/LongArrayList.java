@@ -0,0 +1,64 @@
+package jags.ratpacktest.util;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive {@code long} values, used instead of {@code List<Long>} for ids.
+ */
+public class LongArrayList {
+
+  private long[] values;
+  private int size;
+
+  public LongArrayList() {
+    this(8);
+  }
+
+  public LongArrayList(int capacity) {
+    values = new long[Math.max(capacity, 1)];
+  }
+
+  public void add(long value) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size << 1);
+    }
+    values[size++] = value;
+  }
+
+  public long get(int index) {
+    if (index >= size) {
+      throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+    }
+    return values[index];
+  }
+
+  public boolean contains(long value) {
+    for (int i = 0; i < size; i++) {
+      if (values[i] == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  public long[] toArray() {
+    return Arrays.copyOf(values, size);
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(toArray());
+  }
+}
@@ -0,0 +1,185 @@
+package jags.ratpacktest.util;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Open-addressing hash set of primitive {@code long} values with linear probing.
+ *
+ * <p>Slot value {@code 0} marks an empty slot, so the key {@code 0} is tracked by a separate
+ * flag. Not thread-safe.
+ */
+public class LongHashSet {
+
+  private static final long EMPTY = 0L;
+
+  private long[] slots;
+  private int size;
+  private boolean containsZero;
+
+  public LongHashSet() {
+    this(8);
+  }
+
+  public LongHashSet(int expectedSize) {
+    slots = new long[capacityFor(expectedSize)];
+  }
+
+  public LongHashSet(LongHashSet other) {
+    slots = other.slots.clone();
+    size = other.size;
+    containsZero = other.containsZero;
+  }
+
+  private static int capacityFor(int expectedSize) {
+    int capacity = 8;
+    while (capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  private static int mix(long value) {
+    long h = value * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  public boolean add(long value) {
+    if (value == EMPTY) {
+      if (containsZero) {
+        return false;
+      }
+      containsZero = true;
+      size++;
+      return true;
+    }
+    int mask = slots.length - 1;
+    int i = mix(value) & mask;
+    while (slots[i] != EMPTY) {
+      if (slots[i] == value) {
+        return false;
+      }
+      i = (i + 1) & mask;
+    }
+    slots[i] = value;
+    if (++size * 2 > slots.length) {
+      rehash(slots.length << 1);
+    }
+    return true;
+  }
+
+  public void addAll(LongHashSet other) {
+    if (other.containsZero) {
+      add(EMPTY);
+    }
+    for (long value : other.slots) {
+      if (value != EMPTY) {
+        add(value);
+      }
+    }
+  }
+
+  public boolean contains(long value) {
+    if (value == EMPTY) {
+      return containsZero;
+    }
+    int mask = slots.length - 1;
+    int i = mix(value) & mask;
+    while (slots[i] != EMPTY) {
+      if (slots[i] == value) {
+        return true;
+      }
+      i = (i + 1) & mask;
+    }
+    return false;
+  }
+
+  public boolean remove(long value) {
+    if (value == EMPTY) {
+      if (!containsZero) {
+        return false;
+      }
+      containsZero = false;
+      size--;
+      return true;
+    }
+    int mask = slots.length - 1;
+    int i = mix(value) & mask;
+    while (slots[i] != value) {
+      if (slots[i] == EMPTY) {
+        return false;
+      }
+      i = (i + 1) & mask;
+    }
+    slots[i] = EMPTY;
+    size--;
+    // shift back the rest of the probe run so lookups never stop at the hole
+    int j = (i + 1) & mask;
+    while (slots[j] != EMPTY) {
+      long moved = slots[j];
+      int home = mix(moved) & mask;
+      if (((j - home) & mask) >= ((j - i) & mask)) {
+        slots[i] = moved;
+        slots[j] = EMPTY;
+        i = j;
+      }
+      j = (j + 1) & mask;
+    }
+    return true;
+  }
+
+  private void rehash(int capacity) {
+    long[] old = slots;
+    slots = new long[capacity];
+    int mask = capacity - 1;
+    for (long value : old) {
+      if (value != EMPTY) {
+        int i = mix(value) & mask;
+        while (slots[i] != EMPTY) {
+          i = (i + 1) & mask;
+        }
+        slots[i] = value;
+      }
+    }
+  }
+
+  public void forEach(LongConsumer action) {
+    if (containsZero) {
+      action.accept(EMPTY);
+    }
+    for (long value : slots) {
+      if (value != EMPTY) {
+        action.accept(value);
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public long[] toArray() {
+    long[] result = new long[size];
+    int n = 0;
+    if (containsZero) {
+      result[n++] = EMPTY;
+    }
+    for (long value : slots) {
+      if (value != EMPTY) {
+        result[n++] = value;
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    long[] values = toArray();
+    Arrays.sort(values);
+    return Arrays.toString(values);
+  }
+}
@@ -0,0 +1,149 @@
+package jags.ratpacktest.util;
+
+/**
+ * Open-addressing hash map from primitive {@code long} keys to objects, with linear probing.
+ *
+ * <p>Slot key {@code 0} marks an empty slot, so the value of key {@code 0} is kept apart. Values
+ * can't be {@code null}. Not thread-safe.
+ */
+public class LongObjectHashMap<V> {
+
+  private static final long EMPTY = 0L;
+
+  private long[] keys;
+  private Object[] values;
+  private int size;
+  private Object zeroValue;
+
+  public LongObjectHashMap() {
+    this(8);
+  }
+
+  public LongObjectHashMap(int expectedSize) {
+    int capacity = 8;
+    while (capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+    keys = new long[capacity];
+    values = new Object[capacity];
+  }
+
+  private static int mix(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    if (key == EMPTY) {
+      return (V) zeroValue;
+    }
+    int mask = keys.length - 1;
+    int i = mix(key) & mask;
+    while (keys[i] != EMPTY) {
+      if (keys[i] == key) {
+        return (V) values[i];
+      }
+      i = (i + 1) & mask;
+    }
+    return null;
+  }
+
+  /** @return the value {@code key} had, or {@code null} */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    if (value == null) {
+      throw new NullPointerException("null value for " + key);
+    }
+    if (key == EMPTY) {
+      V previous = (V) zeroValue;
+      if (previous == null) {
+        size++;
+      }
+      zeroValue = value;
+      return previous;
+    }
+    int mask = keys.length - 1;
+    int i = mix(key) & mask;
+    while (keys[i] != EMPTY) {
+      if (keys[i] == key) {
+        V previous = (V) values[i];
+        values[i] = value;
+        return previous;
+      }
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    values[i] = value;
+    if (++size * 2 > keys.length) {
+      rehash(keys.length << 1);
+    }
+    return null;
+  }
+
+  /** @return the value {@code key} had, or {@code null} */
+  @SuppressWarnings("unchecked")
+  public V remove(long key) {
+    if (key == EMPTY) {
+      V previous = (V) zeroValue;
+      if (previous != null) {
+        zeroValue = null;
+        size--;
+      }
+      return previous;
+    }
+    int mask = keys.length - 1;
+    int i = mix(key) & mask;
+    while (keys[i] != key) {
+      if (keys[i] == EMPTY) {
+        return null;
+      }
+      i = (i + 1) & mask;
+    }
+    V previous = (V) values[i];
+    keys[i] = EMPTY;
+    values[i] = null;
+    size--;
+    // shift back the rest of the probe run so lookups never stop at the hole
+    int j = (i + 1) & mask;
+    while (keys[j] != EMPTY) {
+      long moved = keys[j];
+      int home = mix(moved) & mask;
+      if (((j - home) & mask) >= ((j - i) & mask)) {
+        keys[i] = moved;
+        values[i] = values[j];
+        keys[j] = EMPTY;
+        values[j] = null;
+        i = j;
+      }
+      j = (j + 1) & mask;
+    }
+    return previous;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new long[capacity];
+    values = new Object[capacity];
+    int mask = capacity - 1;
+    for (int k = 0; k < oldKeys.length; k++) {
+      if (oldKeys[k] != EMPTY) {
+        int i = mix(oldKeys[k]) & mask;
+        while (keys[i] != EMPTY) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = oldKeys[k];
+        values[i] = oldValues[k];
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+}
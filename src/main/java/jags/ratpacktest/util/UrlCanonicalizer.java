@@ -0,0 +1,114 @@
+package jags.ratpacktest.util;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reduces URLs of the same page to one canonical string: lower-case scheme and host, no
+ * {@code www.} prefix, default port, fragment or trailing slash, tracking parameters removed
+ * and the remaining parameters sorted.
+ */
+public final class UrlCanonicalizer {
+
+  private static final String[] TRACKING_PREFIXES = {"utm_"};
+  private static final String[] TRACKING_PARAMETERS = {"fbclid", "gclid", "dclid", "msclkid",
+      "mc_cid", "mc_eid", "_ga", "igshid", "yclid"};
+
+  private UrlCanonicalizer() {
+  }
+
+  /**
+   * @throws MalformedURLException when {@code url} isn't a valid URL, which makes this a
+   *     replacement for validating with {@code new URL(url)}
+   */
+  public static String canonicalize(String url) throws MalformedURLException {
+    URL parsed = new URL(url.trim());
+    String protocol = parsed.getProtocol().toLowerCase(Locale.ROOT);
+    String host = parsed.getHost().toLowerCase(Locale.ROOT);
+    if (host.isEmpty()) {
+      // mailto:, file: and friends have nothing else worth normalizing
+      return protocol + ":" + parsed.getFile();
+    }
+    if (host.startsWith("www.") && host.length() > 4) {
+      host = host.substring(4);
+    }
+    StringBuilder canonical = new StringBuilder(url.length()).append(protocol).append("://");
+    if (parsed.getUserInfo() != null) {
+      canonical.append(parsed.getUserInfo()).append('@');
+    }
+    canonical.append(host);
+    int port = parsed.getPort();
+    if (port != -1 && port != parsed.getDefaultPort()) {
+      canonical.append(':').append(port);
+    }
+    String path = parsed.getPath();
+    if (path.isEmpty()) {
+      path = "/";
+    } else if (path.length() > 1 && path.endsWith("/")) {
+      path = path.substring(0, path.length() - 1);
+    }
+    canonical.append(path);
+    String query = canonicalQuery(parsed.getQuery());
+    if (!query.isEmpty()) {
+      canonical.append('?').append(query);
+    }
+    return canonical.toString();
+  }
+
+  private static String canonicalQuery(String query) {
+    if (query == null || query.isEmpty()) {
+      return "";
+    }
+    List<String> parameters = new ArrayList<>();
+    for (String parameter : query.split("&")) {
+      if (!parameter.isEmpty() && !isTracking(parameter)) {
+        parameters.add(parameter);
+      }
+    }
+    Collections.sort(parameters);
+    return String.join("&", parameters);
+  }
+
+  private static boolean isTracking(String parameter) {
+    int equals = parameter.indexOf('=');
+    String name = equals < 0 ? parameter : parameter.substring(0, equals);
+    name = name.toLowerCase(Locale.ROOT);
+    for (String prefix : TRACKING_PREFIXES) {
+      if (name.startsWith(prefix)) {
+        return true;
+      }
+    }
+    for (String tracking : TRACKING_PARAMETERS) {
+      if (name.equals(tracking)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** 64-bit FNV-1a hash of a canonical URL, as stored in {@code bookmark.url_hash}. */
+  public static long hash(String canonicalUrl) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < canonicalUrl.length(); i++) {
+      hash ^= canonicalUrl.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /** Hash of the canonical form of {@code url}, or of {@code url} itself if it isn't valid. */
+  public static long hashOf(String url) {
+    if (url == null) {
+      return 0;
+    }
+    try {
+      return hash(canonicalize(url));
+    } catch (MalformedURLException e) {
+      return hash(url);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package jags.ratpacktest.view;
+
+import freemarker.core.Environment;
+import freemarker.template.TemplateDirectiveBody;
+import freemarker.template.TemplateDirectiveModel;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.utility.DeepUnwrap;
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.domain.Tag;
+import jags.ratpacktest.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@code <@fragment name="bookmark" key=bookmark>...</@fragment>} writes the body as rendered
+ * the last time for an equal key, rendering it only on a miss.
+ *
+ * <p>The key is built from what the body shows: a bookmark's id, title and url, a tag's label,
+ * or each element of a sequence, so an edit changes the key of exactly the fragments it affects
+ * and nothing has to be invalidated. Keys of edited or deleted rows are simply never asked for
+ * again; once {@code maxEntries} fragments are cached the cache is emptied and refills with the
+ * fragments still in use.
+ */
+public class FragmentCacheDirective implements TemplateDirectiveModel {
+
+  private static final char SEPARATOR = '\u0000';
+
+  private final int maxEntries;
+  private final ConcurrentMap<String, String> fragments = new ConcurrentHashMap<>();
+
+  public FragmentCacheDirective(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public void execute(Environment env, Map params, TemplateModel[] loopVars,
+      TemplateDirectiveBody body) throws TemplateException, IOException {
+    TemplateModel name = (TemplateModel) params.get("name");
+    TemplateModel key = (TemplateModel) params.get("key");
+    if (name == null || key == null || body == null) {
+      throw new TemplateModelException("fragment needs a name, a key and a body");
+    }
+    StringBuilder cacheKey = new StringBuilder();
+    appendKey(cacheKey, DeepUnwrap.unwrap(name));
+    appendKey(cacheKey, DeepUnwrap.unwrap(key));
+    String fragment = fragments.get(cacheKey.toString());
+    if (fragment != null) {
+      Metrics.counter("fragment.hits").increment();
+    } else {
+      Metrics.counter("fragment.misses").increment();
+      StringWriter writer = new StringWriter();
+      body.render(writer);
+      fragment = writer.toString();
+      if (fragments.size() >= maxEntries) {
+        fragments.clear();
+      }
+      fragments.put(cacheKey.toString(), fragment);
+    }
+    env.getOut().write(fragment);
+  }
+
+  private static void appendKey(StringBuilder key, Object part) {
+    if (part instanceof Bookmark) {
+      Bookmark bookmark = (Bookmark) part;
+      key.append(bookmark.getId()).append(SEPARATOR)
+          .append(bookmark.getTitle()).append(SEPARATOR)
+          .append(bookmark.getUrl()).append(SEPARATOR);
+    } else if (part instanceof Tag) {
+      key.append(((Tag) part).getLabel()).append(SEPARATOR);
+    } else if (part instanceof Iterable) {
+      for (Object element : (Iterable<?>) part) {
+        appendKey(key, element);
+      }
+      key.append(SEPARATOR);
+    } else if (part instanceof Object[]) {
+      for (Object element : (Object[]) part) {
+        appendKey(key, element);
+      }
+      key.append(SEPARATOR);
+    } else {
+      key.append(part).append(SEPARATOR);
+    }
+  }
+
+  public int size() {
+    return fragments.size();
+  }
+}
@@ -15,6 +15,9 @@ import java.io.StringWriter;
  */
 public class FreemarkerRenderer extends RendererSupport<FreemarkerModel> {
 
+  private static final String[] TEMPLATES = {"index.ftl", "bookmark_list.ftl",
+      "bookmark_form_new.ftl", "bookmark_form_edit.ftl", "bookmark_form_inputs.ftl"};
+
   private Configuration freemarkerConfig;
 
   public FreemarkerRenderer() throws IOException {
@@ -24,6 +27,20 @@ public class FreemarkerRenderer extends RendererSupport<FreemarkerModel> {
     // During web page *development* TemplateExceptionHandler.HTML_DEBUG_HANDLER is better.
     freemarkerConfig.setTemplateExceptionHandler(TemplateExceptionHandler.HTML_DEBUG_HANDLER);
     // cfg.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
+    // lets the list re-render only the rows that changed since the last view
+    freemarkerConfig.setSharedVariable("fragment", new FragmentCacheDirective(
+        Integer.getInteger("ratpacktest.fragmentCache.maxEntries", 10000)));
+  }
+
+  /**
+   * Parses every template into the configuration's cache, so the first page view doesn't pay
+   * for it.
+   */
+  public FreemarkerRenderer preload() throws IOException {
+    for (String name : TEMPLATES) {
+      freemarkerConfig.getTemplate(name);
+    }
+    return this;
   }
 
   public Configuration getFreemarkerConfig() {
@@ -2,6 +2,9 @@
   <h2>Edit Bookmark</h2>
   <form action="/freemarker/bookmarks/${bookmark.id}" method="post">
     <input type="hidden" name="_method" value="put">
+    <#if bookmark.version??>
+      <input type="hidden" name="version" value="${bookmark.version?c}">
+    </#if>
     <#include "bookmark_form_inputs.ftl">
   </form>
 </#escape>
\ No newline at end of file
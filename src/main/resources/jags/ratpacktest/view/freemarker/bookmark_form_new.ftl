@@ -1,6 +1,10 @@
 <#escape x as x?html>
   <h2>New Bookmark</h2>
   <form action="/freemarker/bookmarks" method="post">
+    <label>
+      <input type="checkbox" name="fetch_title" value="true">
+      Fetch title from the page
+    </label>
     <#include "bookmark_form_inputs.ftl">
   </form>
 </#escape>
\ No newline at end of file
@@ -1,19 +1,28 @@
 <#escape x as x?html>
   <a href="/freemarker/bookmarks/new">Add New Bookmark</a> <h2>List of Bookmarks (FreeMarker)</h2>
+  Order by:
+  <a href="/freemarker/bookmarks?order=title">Title</a> |
+  <a href="/freemarker/bookmarks?order=creation_timestamp">Creation</a> |
+  <a href="/freemarker/bookmarks?order=visit_count&amp;limit=20">Most visited</a>
+  <@fragment name="bookmarks" key=bookmarks>
   <ul>
     <#list bookmarks as bookmark>
+      <@fragment name="bookmark" key=bookmark>
       <li>
         <form action="/freemarker/bookmarks/${bookmark.id}" method="post">
-          <a href="${bookmark.url}">${bookmark.title}</a> (<a href="/api/bookmarks/${bookmark.id}">${bookmark.id}</a>)
+          <a href="/go/${bookmark.id}">${bookmark.title}</a> (<a href="/api/bookmarks/${bookmark.id}">${bookmark.id}</a>)
           <a href="/freemarker/bookmarks/${bookmark.id}">Edit</a>
           <input type="hidden" name="_method" value="delete">
           <input type="submit" value="Delete">
         </form>
       </li>
+      </@fragment>
     </#list>
   </ul>
+  </@fragment>
 <br>
   <#if tags?? && (tags?size > 0)>
+    <@fragment name="tags" key=tags>
     <h2>Tags (<a href="/freemarker/bookmarks">All</a>)</h2>
     <ul>
       <#list tags as tag>
@@ -22,5 +31,6 @@
         </li>
       </#list>
     </ul>
+    </@fragment>
   </#if>
 </#escape>
\ No newline at end of file
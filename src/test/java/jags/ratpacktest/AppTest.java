@@ -31,6 +31,8 @@ import ratpack.test.http.TestHttpClient;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.net.HttpURLConnection;
+import java.net.URLEncoder;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -105,6 +107,8 @@ public class AppTest {
     assertThat(retrieved.getId()).isEqualTo(id);
     assertThat(retrieved.getTitle()).isEqualTo("Test");
     assertThat(retrieved.getUrl()).isEqualTo("http://www.test.com");
+    // the tenant is routing state, not part of the bookmark
+    assertThat(response.getBody().getText()).doesNotContain("tenant");
   }
 
   @Test
@@ -127,6 +131,43 @@ public class AppTest {
     assertThat(getTaggingLastSize()).isEqualTo(taggingsLastSize + 1);
   }
 
+  @Test
+  public void createDuplicateBookmarkTest() throws Exception {
+    long id = getNewBookmark().getId();
+    int bookmarksLastSize = getBookmarkLastSize();
+
+    Bookmark bookmark = new Bookmark("Duplicate", "HTTP://Test.com/?utm_source=feed#top");
+    ReceivedResponse response =
+        client.requestSpec(jsonRequestBody(bookmark)).post("/api/bookmarks");
+    assertThat(response.getStatus().getCode()).isEqualTo(HttpURLConnection.HTTP_CONFLICT);
+    assertThat(response.getBody().getText()).isEqualTo("/api/bookmarks/" + id);
+    assertThat(getBookmarkLastSize()).isEqualTo(bookmarksLastSize);
+  }
+
+  @Test
+  public void lookupBookmarkTest() throws Exception {
+    long id = getNewBookmark().getId();
+
+    ReceivedResponse response = client.get("/api/bookmarks/lookup?url="
+        + URLEncoder.encode("https://test.com/?fbclid=1", "UTF-8"));
+    assertThat(response.getStatus().getCode()).isEqualTo(HttpURLConnection.HTTP_NOT_FOUND);
+
+    response = client.get("/api/bookmarks/lookup?url="
+        + URLEncoder.encode("http://test.com/?fbclid=1", "UTF-8"));
+    Bookmark retrieved = mapper.readValue(response.getBody().getText(), Bookmark.class);
+    assertThat(response.getStatus().getCode()).isEqualTo(HttpURLConnection.HTTP_OK);
+    assertThat(retrieved.getId()).isEqualTo(id);
+    assertThat(retrieved.getUrl()).isEqualTo("http://www.test.com");
+  }
+
+  @Test
+  public void visitNonexistentBookmarkTest() throws Exception {
+    long id = getNewBookmark().getId() + 1;
+
+    ReceivedResponse response = client.get("/go/" + id);
+    assertThat(response.getStatus().getCode()).isEqualTo(HttpURLConnection.HTTP_NOT_FOUND);
+  }
+
   @Test
   public void nonexistentBookmarkUpdateTest() throws JsonProcessingException {
     Bookmark bookmark = getNewBookmark();
@@ -167,6 +208,25 @@ public class AppTest {
     assertThat(getTagLastSize()).isEqualTo(tagsLastSize);
   }
 
+  @Test
+  public void staleVersionUpdateTest() throws Exception {
+    Bookmark bookmark = getNewBookmark();
+    long id = bookmark.getId();
+
+    bookmark.setVersion(0L);
+    bookmark.setTitle("First");
+    ReceivedResponse response =
+        client.requestSpec(jsonRequestBody(bookmark)).put("/api/bookmarks/" + id);
+    assertThat(response.getStatus().getCode()).isEqualTo(HttpURLConnection.HTTP_NO_CONTENT);
+    assertThat(response.getHeaders().get("ETag")).isEqualTo("\"1\"");
+
+    bookmark.setTitle("Second");
+    response = client.requestSpec(jsonRequestBody(bookmark)).put("/api/bookmarks/" + id);
+    assertThat(response.getStatus().getCode()).isEqualTo(HttpURLConnection.HTTP_CONFLICT);
+    assertThat(response.getHeaders().get("ETag")).isEqualTo("\"1\"");
+    assertThat(bookmarkDAO.findById(id).getTitle()).isEqualTo("First");
+  }
+
   @Test
   public void deleteBookmarkTest() throws Exception {
     long id = getNewBookmark().getId();
@@ -178,6 +238,44 @@ public class AppTest {
     assertThat(bookmark).isNull();
   }
 
+  @Test
+  public void restoreBookmarkTest() throws Exception {
+    long id = getNewBookmark().getId();
+    client.delete("/api/bookmarks/" + id);
+
+    ReceivedResponse response = client.post("/api/bookmarks/" + id + "/restore");
+    assertThat(response.getStatus().getCode()).isEqualTo(HttpURLConnection.HTTP_OK);
+    Bookmark restored = mapper.readValue(response.getBody().getText(), Bookmark.class);
+    assertThat(restored.getTags()).isEqualTo("tagLabel");
+    assertThat(bookmarkDAO.findById(id)).isNotNull();
+
+    response = client.post("/api/bookmarks/" + id + "/restore");
+    assertThat(response.getStatus().getCode()).isEqualTo(HttpURLConnection.HTTP_NOT_FOUND);
+  }
+
+  @Test
+  public void getRelatedBookmarksTest() throws Exception {
+    Bookmark bookmark = getNewBookmark("Title1", "http://www.test.com/1", "java,web,ratpack");
+    Bookmark twoShared = getNewBookmark("Title2", "http://www.test.com/2", "java,web");
+    Bookmark oneShared = getNewBookmark("Title3", "http://www.test.com/3", "ratpack,h2");
+    getNewBookmark("Title4", "http://www.test.com/4", "h2");
+
+    assertThat(getRelated(bookmark.getId(), "")).extracting("id")
+        .containsExactly(twoShared.getId(), oneShared.getId());
+    assertThat(getRelated(bookmark.getId(), "?limit=1")).extracting("id")
+        .containsExactly(twoShared.getId());
+
+    // tag changes and deletes are seen past the cached result
+    oneShared.setTags("ratpack,h2,java,web");
+    App.addTags(oneShared);
+    client.delete("/api/bookmarks/" + twoShared.getId());
+    assertThat(getRelated(bookmark.getId(), "")).extracting("id")
+        .containsExactly(oneShared.getId());
+
+    ReceivedResponse response = client.get("/api/bookmarks/" + twoShared.getId() + "/related");
+    assertThat(response.getStatus().getCode()).isEqualTo(HttpURLConnection.HTTP_NOT_FOUND);
+  }
+
   @Test
   public void getBookmarksOrderTest() throws Exception {
 
@@ -245,6 +343,26 @@ public class AppTest {
         .contains(bookmark1.getTitle(), bookmark2.getTitle(), bookmark3.getTitle());
   }
 
+  @Test
+  public void getBookmarksWithoutTagLabelsTest() throws Exception {
+    getNewBookmark("Title1", "http://www.test.com/1", "Tag1");
+    getNewBookmark("Title2", "http://www.test.com/2", "");
+
+    ReceivedResponse response = client.get("/api/bookmarks?tags=,,");
+    assertThat(response.getStatus().getCode()).isEqualTo(HttpURLConnection.HTTP_OK);
+    assertThat(mapper.readValue(response.getBody().getText(), Bookmark[].class))
+        .extracting("title").containsExactly("Title1", "Title2");
+  }
+
+  @Test
+  public void invalidPagingTest() {
+    for (String query : new String[] {"?offset=ten", "?limit=1.5", "?limit=%20"}) {
+      ReceivedResponse response = client.get("/api/bookmarks" + query);
+      assertThat(response.getStatus().getCode()).as(query)
+          .isEqualTo(HttpURLConnection.HTTP_BAD_REQUEST);
+    }
+  }
+
   @Test
   public void getTagsTest() throws Exception {
     getNewBookmark("Title1", "http://www.test.com/1", "Tag1");
@@ -348,6 +466,27 @@ public class AppTest {
     StrictAssertions.assertThat(response.getBody().getText()).containsIgnoringCase("url");
   }
 
+  @Test
+  public void oversizedBookmarkTest() throws JsonProcessingException {
+    char[] title = new char[64 * 1024];
+    Arrays.fill(title, 'x');
+    Bookmark bookmark = new Bookmark(new String(title), "http://www.test.com");
+    int lastSize = getBookmarkLastSize();
+    ReceivedResponse response =
+        client.requestSpec(jsonRequestBody(bookmark)).post("/api/bookmarks");
+    StrictAssertions.assertThat(response.getStatus().getCode()).isEqualTo(413);
+    StrictAssertions.assertThat(getBookmarkLastSize()).isEqualTo(lastSize);
+  }
+
+  @Test
+  public void malformedBookmarkTest() {
+    ReceivedResponse response = client.requestSpec(requestSpec -> requestSpec.getBody()
+        .type(MediaType.APPLICATION_JSON)
+        .text("{\"title\": \"Test\", \"url\": ")).post("/api/bookmarks");
+    StrictAssertions.assertThat(response.getStatus().getCode())
+        .isEqualTo(HttpURLConnection.HTTP_BAD_REQUEST);
+  }
+
   @Test
   public void nonexistentFreemarkerBookmarkUpdateTest() throws JsonProcessingException {
     Bookmark bookmark = getNewBookmark();
@@ -360,6 +499,19 @@ public class AppTest {
         .isEqualTo(HttpURLConnection.HTTP_NOT_FOUND);
   }
   
+  @Test
+  public void freemarkerUpdateBadVersionTest() throws JsonProcessingException {
+    Bookmark bookmark = getNewBookmark();
+    ReceivedResponse updateResponse = client.requestSpec(requestSpec -> requestSpec.getBody()
+        .type(MediaType.APPLICATION_FORM)
+        .text("_method=put&title=Updated&url=http://www.test.com&version=latest"))
+        .post("/freemarker/bookmarks/" + bookmark.getId());
+    StrictAssertions.assertThat(updateResponse.getStatus().getCode())
+        .isEqualTo(HttpURLConnection.HTTP_BAD_REQUEST);
+    StrictAssertions.assertThat(bookmarkDAO.findById(bookmark.getId()).getTitle())
+        .isEqualTo("Test");
+  }
+
   private int getBookmarkLastSize() {
     return bookmarkDAO.count();
   }
@@ -378,6 +530,12 @@ public class AppTest {
         .text(mapper.writeValueAsString(bookmark));
   }
 
+  private Bookmark[] getRelated(long id, String query) throws IOException {
+    ReceivedResponse response = client.get("/api/bookmarks/" + id + "/related" + query);
+    assertThat(response.getStatus().getCode()).isEqualTo(HttpURLConnection.HTTP_OK);
+    return mapper.readValue(response.getBody().getText(), Bookmark[].class);
+  }
+
   private Bookmark getNewBookmark() throws JsonProcessingException {
     return getNewBookmark("Test", "http://www.test.com", "tagLabel");
   }
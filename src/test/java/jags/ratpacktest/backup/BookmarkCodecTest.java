@@ -0,0 +1,147 @@
+package jags.ratpacktest.backup;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import jags.ratpacktest.domain.Bookmark;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Round trips a library catalogue through {@link BookmarkCodec}, reading through a channel that
+ * returns a few bytes at a time so every value crosses buffer refills.
+ */
+public class BookmarkCodecTest {
+
+  private static final String[] SHELVES = {"novels", "poetry", "history", "travel", "cookery"};
+  private static final long CATALOGUED_AT = 946684800000L;
+
+  @Test
+  public void roundTripTest() throws IOException {
+    List<Bookmark> books = new ArrayList<>();
+    // more than a block, so the reader refills its dictionary of shelves across blocks
+    for (long id = 1; id <= BookmarkCodec.BLOCK_SIZE + 10; id++) {
+      books.add(book(id * 3, "Cien a\u00f1os de soledad, copy " + id,
+          "https://library.example/catalogue/978-0-06-" + id,
+          SHELVES[(int) (id % SHELVES.length)] + ",lending"));
+    }
+    // ids and times out of order, no title or shelves, a url longer than the codec's buffer
+    books.add(book(2, null, "https://library.example/search?q=" + repeat('x', 100000), ""));
+    books.add(new Bookmark(7L, "\u00c9tranger, L'", "https://library.example/catalogue/lost",
+        (Date) null));
+
+    List<Bookmark> read = readAll(trickle(write(books)));
+
+    assertThat(read).hasSize(books.size());
+    for (int i = 0; i < books.size(); i++) {
+      Bookmark expected = books.get(i);
+      Bookmark actual = read.get(i);
+      assertThat(actual.getId()).isEqualTo(expected.getId());
+      assertThat(actual.getTitle()).isEqualTo(expected.getTitle());
+      assertThat(actual.getUrl()).isEqualTo(expected.getUrl());
+      assertThat(actual.getTags()).isEqualTo(expected.getTags() == null ? "" : expected.getTags());
+      long created = expected.getCreationTimestamp() == null
+          ? 0 : expected.getCreationTimestamp().getTime();
+      assertThat(actual.getCreationTimestamp().getTime()).isEqualTo(created);
+    }
+  }
+
+  @Test
+  public void dictionaryEncodesTagsTest() throws IOException {
+    List<Bookmark> shelved = new ArrayList<>();
+    List<Bookmark> unshelved = new ArrayList<>();
+    for (long id = 1; id <= 1000; id++) {
+      shelved.add(book(id, "Odes", "https://library.example/catalogue/odes", "poetry"));
+      unshelved.add(book(id, "Odes", "https://library.example/catalogue/odes", ""));
+    }
+    int perBook = (write(shelved).length - write(unshelved).length) / 1000;
+    // a one byte code per book, nowhere near another "poetry"
+    assertThat(perBook).isEqualTo(1);
+  }
+
+  @Test
+  public void truncatedExportTest() throws IOException {
+    byte[] export = write(Arrays.asList(book(1, "Odes", "https://library.example/o", "poetry")));
+    Iterator<List<Bookmark>> blocks = BookmarkCodec.read(
+        Channels.newChannel(new ByteArrayInputStream(Arrays.copyOf(export, export.length - 1))));
+    assertThat(blocks.next()).hasSize(1);
+    try {
+      blocks.hasNext();
+      fail("read past the end");
+    } catch (UncheckedIOException e) {
+      assertThat(e.getMessage()).contains("end marker");
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void notAnExportTest() throws IOException {
+    BookmarkCodec.read(Channels.newChannel(new ByteArrayInputStream("[{}]   ".getBytes())));
+  }
+
+  private static Bookmark book(long id, String title, String url, String shelves) {
+    // one book catalogued a day
+    Bookmark book = new Bookmark(id, title, url, new Date(CATALOGUED_AT + id * 86400000L));
+    book.setTags(shelves);
+    return book;
+  }
+
+  private static byte[] write(List<Bookmark> bookmarks) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BookmarkCodec.write(Arrays.asList(bookmarks).iterator(), Channels.newChannel(out));
+    return out.toByteArray();
+  }
+
+  private static List<Bookmark> readAll(ReadableByteChannel channel) throws IOException {
+    List<Bookmark> bookmarks = new ArrayList<>();
+    Iterator<List<Bookmark>> blocks = BookmarkCodec.read(channel);
+    while (blocks.hasNext()) {
+      bookmarks.addAll(blocks.next());
+    }
+    return bookmarks;
+  }
+
+  /** A channel over {@code bytes} that reads at most 7 bytes at a time. */
+  private static ReadableByteChannel trickle(byte[] bytes) {
+    ByteBuffer source = ByteBuffer.wrap(bytes);
+    return new ReadableByteChannel() {
+      @Override
+      public int read(ByteBuffer target) {
+        if (!source.hasRemaining()) {
+          return -1;
+        }
+        int length = Math.min(7, Math.min(source.remaining(), target.remaining()));
+        for (int i = 0; i < length; i++) {
+          target.put(source.get());
+        }
+        return length;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  private static String repeat(char c, int count) {
+    char[] chars = new char[count];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+}
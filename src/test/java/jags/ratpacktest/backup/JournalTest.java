@@ -0,0 +1,188 @@
+package jags.ratpacktest.backup;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.service.BookmarkChangeListener;
+import jags.ratpacktest.service.BookmarkService;
+import jags.ratpacktest.service.TenantRouter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a birdwatcher's field notes, on their own and as a club's tenant, in a journaled
+ * in-memory store, then starts over from the journal as a restart after a crash would.
+ */
+public class JournalTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private TenantRouter router;
+  private Journal journal;
+  private Path directory;
+
+  @Before
+  public void openJournal() {
+    directory = folder.getRoot().toPath().resolve("journal");
+    router = new TenantRouter(1);
+    journal = new Journal(directory, Journal.SyncPolicy.ALWAYS);
+    journal.open();
+    router.setChangeListeners(journal::listener);
+  }
+
+  @After
+  public void close() {
+    journal.close();
+    router.close();
+  }
+
+  @Test
+  public void replayTest() throws Exception {
+    BookmarkService notes = router.service(TenantRouter.DEFAULT_TENANT);
+    Bookmark heron = notes.createBookmark(new Bookmark(null, "Grey heron",
+        "https://birds.example/grey-heron", "wading,resident"));
+    Bookmark egret = notes.createBookmark(new Bookmark(null, "Little egret",
+        "https://birds.example/little-egret", "wading"));
+    Bookmark swift = notes.createBookmark(new Bookmark(null, "Common swift",
+        "https://birds.example/swift", "migrant"));
+    notes.updateBookmark(new Bookmark(egret.getId(), "Little egret, first of the year",
+        "https://birds.example/little-egret", "wading,migrant"));
+    notes.deleteTags(heron.getId());
+    notes.deleteBookmark(swift.getId());
+    router.service("club").createBookmark(new Bookmark(null, "Spring count results",
+        "https://club.example/counts/spring", "counts"));
+
+    restart(directory);
+    BookmarkService replayed = router.service(TenantRouter.DEFAULT_TENANT);
+    assertThat(replayed.getBookmarksOrderByTitle(null, null)).extracting("title")
+        .containsExactly("Grey heron", "Little egret, first of the year");
+    assertThat(replayed.getBookmark(heron.getId()).getTags()).isEmpty();
+    assertThat(replayed.getBookmark(swift.getId())).isNull();
+    assertThat(replayed.getBookmarksOrderByTitle("migrant", null)).extracting("id")
+        .containsExactly(egret.getId());
+    assertThat(router.service("club").getBookmarksOrderByTitle("counts", null))
+        .extracting("title").containsExactly("Spring count results");
+  }
+
+  @Test(timeout = 30000)
+  public void crashBetweenAppendAndCommitTest() throws Exception {
+    Path atCrash = folder.getRoot().toPath().resolve("journal-at-crash");
+    CountDownLatch appended = new CountDownLatch(1);
+    CountDownLatch crashed = new CountDownLatch(1);
+    router.setChangeListeners(tenant -> new BookmarkChangeListener() {
+      private final BookmarkChangeListener journaled = journal.listener(tenant);
+
+      @Override
+      public void changed(Bookmark bookmark) {
+        journaled.changed(bookmark);
+        if (bookmark.getTitle().startsWith("Bittern")) {
+          appended.countDown();
+          awaitUninterruptibly(crashed);
+          throw new IllegalStateException("the process died before the commit");
+        }
+      }
+
+      @Override
+      public void deleted(long id) {
+        journaled.deleted(id);
+      }
+    });
+    BookmarkService notes = router.service(TenantRouter.DEFAULT_TENANT);
+    notes.createBookmark(new Bookmark(null, "Kingfisher", "https://birds.example/kingfisher",
+        "resident"));
+
+    ExecutorService writer = Executors.newSingleThreadExecutor();
+    try {
+      Future<Bookmark> bittern = writer.submit(() -> notes.createBookmark(new Bookmark(null,
+          "Bittern, booming at dusk", "https://birds.example/bittern", "reedbed")));
+      assertThat(appended.await(10, TimeUnit.SECONDS)).isTrue();
+      // what the disk held when the process died: the record is there, the commit isn't
+      copy(directory, atCrash);
+      crashed.countDown();
+      try {
+        bittern.get();
+      } catch (Exception expected) {
+        // rolled back
+      }
+    } finally {
+      writer.shutdownNow();
+    }
+    assertThat(notes.findByUrl("https://birds.example/bittern")).isNull();
+
+    restart(atCrash);
+    assertThat(router.service(TenantRouter.DEFAULT_TENANT)
+        .getBookmarksOrderByTitle(null, null)).extracting("title")
+        .containsExactly("Bittern, booming at dusk", "Kingfisher");
+
+    // the writer lived on instead and told the journal that the rollback left no bookmark
+    restart(directory);
+    assertThat(router.service(TenantRouter.DEFAULT_TENANT)
+        .getBookmarksOrderByTitle(null, null)).extracting("title")
+        .containsExactly("Kingfisher");
+  }
+
+  @Test
+  public void tornTailTest() throws Exception {
+    BookmarkService notes = router.service(TenantRouter.DEFAULT_TENANT);
+    notes.createBookmark(new Bookmark(null, "Osprey", "https://birds.example/osprey",
+        "raptor"));
+    journal.close();
+    Path segment;
+    try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory)) {
+      segment = segments.iterator().next();
+    }
+    // the length of a record whose body never made it to disk
+    Files.write(segment, new byte[] {0, 0, 0, 90, 1, 2}, StandardOpenOption.APPEND);
+
+    restart(directory);
+    assertThat(router.service(TenantRouter.DEFAULT_TENANT)
+        .getBookmarksOrderByTitle("raptor", null)).extracting("title")
+        .containsExactly("Osprey");
+  }
+
+  /** Drops the in-memory store and rebuilds it from the journal in {@code from}. */
+  private void restart(Path from) {
+    journal.close();
+    router.close();
+    router = new TenantRouter(1);
+    journal = new Journal(from, Journal.SyncPolicy.ALWAYS);
+    journal.replay(router);
+    journal.open();
+    router.setChangeListeners(journal::listener);
+  }
+
+  private static void copy(Path from, Path to) throws IOException {
+    Files.createDirectories(to);
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(from)) {
+      for (Path file : files) {
+        Files.copy(file, to.resolve(file.getFileName()));
+      }
+    }
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    while (true) {
+      try {
+        latch.await();
+        return;
+      } catch (InterruptedException e) {
+        // keep holding the transaction open until the test lets go
+      }
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package jags.ratpacktest.backup;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.service.BookmarkService;
+import jags.ratpacktest.service.MappedBookmarkIndex;
+import jags.ratpacktest.service.TenantRouter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Snapshots a web archive of fifty thousand crawled pages, and a small team's reading list
+ * next to it, while the archive's user keeps bookmarking.
+ */
+public class SnapshotManagerTest {
+
+  private static final int PAGES = 50000;
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private TenantRouter router;
+  private BookmarkService archive;
+  private ExecutorService executor;
+
+  @Before
+  public void crawl() throws Exception {
+    router = new TenantRouter(1);
+    archive = router.service(TenantRouter.DEFAULT_TENANT);
+    try (Connection connection = router.shard(0).getConnection();
+         Statement statement = connection.createStatement()) {
+      for (int from = 1; from <= PAGES; from += 500) {
+        statement.executeUpdate("insert into bookmark(url, title, creation_timestamp, url_hash) "
+            + "select 'https://archive.example/crawl/' || x, 'Crawled page ' || x, "
+            + "dateadd('second', x, timestamp '2015-07-01 00:00:00'), x "
+            + "from system_range(" + from + ", " + (from + 499) + ")");
+      }
+    }
+    BookmarkService team = router.service("team");
+    team.createBookmark(new Bookmark(null, "Release checklist", "https://wiki.example/release",
+        "process,release"));
+    team.createBookmark(new Bookmark(null, "On-call handbook", "https://wiki.example/on-call",
+        "process"));
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void after() {
+    executor.shutdownNow();
+    router.close();
+  }
+
+  @Test(timeout = 60000)
+  public void writesDontWaitForScriptTest() throws Exception {
+    SnapshotManager snapshots = new SnapshotManager(router, folder.getRoot().toPath(), 2);
+    Future<Path> snapshot = executor.submit(snapshots::snapshot);
+    Path shardFile = null;
+    while (shardFile == null) {
+      try (Stream<Path> files = Files.walk(folder.getRoot().toPath())) {
+        shardFile = files.filter(file -> file.toString().endsWith(".sql.zip"))
+            .findFirst().orElse(null);
+      }
+      Thread.sleep(1);
+    }
+
+    for (int i = 1; i <= 20; i++) {
+      archive.createBookmark(new Bookmark(null, "Reading list " + i,
+          "https://reading.example/list/" + i, "later"));
+    }
+    // scripting the shard directly, these writes waited until the file was complete
+    long writtenDuringWrites = Files.size(shardFile);
+    Path taken = snapshot.get();
+    assertThat(writtenDuringWrites).isLessThan(Files.size(taken.resolve("shard-0.sql.zip")));
+    assertThat(archive.getBookmarksOrderByTitle("later", null)).hasSize(20);
+  }
+
+  @Test(timeout = 60000)
+  public void indexMatchesScriptTest() throws Exception {
+    SnapshotManager snapshots = new SnapshotManager(router, folder.getRoot().toPath(), 2);
+    Future<Path> snapshot = executor.submit(snapshots::snapshot);
+    int later = 0;
+    while (!snapshot.isDone()) {
+      later++;
+      archive.createBookmark(new Bookmark(null, "Reading list " + later,
+          "https://reading.example/list/" + later, "later"));
+    }
+    Path taken = snapshot.get();
+    router.close();
+
+    router = new TenantRouter(1);
+    new SnapshotManager(router, folder.getRoot().toPath(), 2)
+        .restore(taken.getFileName().toString());
+    List<Long> restored = router.service(TenantRouter.DEFAULT_TENANT)
+        .getBookmarksOrderByTitle("later", null).stream().map(Bookmark::getId)
+        .collect(Collectors.toList());
+    // the reading list grew while the snapshot was written; the index stops where the script did
+    assertThat(restored.size()).isLessThan(later);
+    MappedBookmarkIndex archiveIndex = MappedBookmarkIndex.open(TenantRouter.DEFAULT_TENANT,
+        taken.resolve("index-" + TenantRouter.DEFAULT_TENANT + ".bkix"));
+    assertThat(archiveIndex.find(Collections.singleton("later"), false, 0, -1))
+        .extracting("id").containsExactlyElementsOf(restored);
+    assertThat(archiveIndex.size()).isEqualTo(PAGES + restored.size());
+    MappedBookmarkIndex teamIndex = MappedBookmarkIndex.open("team",
+        taken.resolve("index-team.bkix"));
+    assertThat(teamIndex.find(Collections.singleton("release"), false, 0, -1))
+        .extracting("title").containsExactly("Release checklist");
+  }
+
+  @Test(timeout = 60000)
+  public void restoreTest() throws Exception {
+    SnapshotManager snapshots = new SnapshotManager(router, folder.getRoot().toPath(), 2);
+    String name = snapshots.snapshot().getFileName().toString();
+    archive.createBookmark(new Bookmark(null, "After the snapshot", "https://reading.example/",
+        "later"));
+    router.close();
+
+    router = new TenantRouter(1);
+    new SnapshotManager(router, folder.getRoot().toPath(), 2).restore(name);
+    try (Connection connection = router.shard(0).getConnection();
+         Statement statement = connection.createStatement();
+         ResultSet count = statement.executeQuery("select count(*) from bookmark")) {
+      count.next();
+      assertThat(count.getInt(1)).isEqualTo(PAGES);
+    }
+    BookmarkService team = router.service("team");
+    assertThat(team.getBookmarksOrderByTitle("release", null)).extracting("title")
+        .containsExactly("Release checklist");
+    // the copied sequences go on after the copied ids
+    Bookmark added = team.createBookmark(new Bookmark(null, "Incident review template",
+        "https://wiki.example/incidents", "process"));
+    assertThat(added.getId()).isEqualTo(3L);
+    assertThat(team.getTags()).extracting("label").containsOnly("process", "release");
+  }
+}
@@ -0,0 +1,60 @@
+package jags.ratpacktest.dao;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import jags.ratpacktest.domain.Bookmark;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Checks that ids given to {@link BindLongIn} select the same bookmarks as the ids bound one by
+ * one would, for an empty array and ids that are missing too.
+ */
+public class BindLongInTest {
+
+  private static JdbcConnectionPool pool;
+  private static DBI dbi;
+
+  @BeforeClass
+  public static void bookmarkMuseums() {
+    pool = JdbcConnectionPool.create("jdbc:h2:mem:bindLongInTest", "sa", "");
+    dbi = new DBI(pool);
+    try (BookmarkDAO dao = dbi.open(BookmarkDAO.class)) {
+      dao.createBookmarkTable();
+      for (String museum : new String[] {"Louvre", "Prado", "Rijksmuseum", "Uffizi"}) {
+        dao.insert(new Bookmark(museum, "https://museums.example/" + museum.toLowerCase()));
+      }
+    }
+  }
+
+  @AfterClass
+  public static void dispose() {
+    pool.dispose();
+  }
+
+  @Test
+  public void findByIdsTest() {
+    try (BookmarkDAO dao = dbi.open(BookmarkDAO.class)) {
+      assertThat(titles(dao.findByIds(new long[] {4, 2}))).containsOnly("Prado", "Uffizi");
+      assertThat(titles(dao.findByIds(new long[] {-3, 0, 3, 99}))).containsExactly("Rijksmuseum");
+      assertThat(dao.findByIds(new long[0])).isEmpty();
+    }
+  }
+
+  @Test
+  public void literalsTest() {
+    assertThat(BindLongIn.CustomizerFactory.literals(new long[] {Long.MIN_VALUE, 0, 42}))
+        .isEqualTo("-9223372036854775808,0,42");
+    assertThat(BindLongIn.CustomizerFactory.literals(new long[0])).isEqualTo("null");
+  }
+
+  private static List<String> titles(List<Bookmark> bookmarks) {
+    return bookmarks.stream().map(Bookmark::getTitle).collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,70 @@
+package jags.ratpacktest.dao;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import jags.ratpacktest.util.LongArrayList;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+
+/**
+ * Checks on a table of ledger entries that {@link LongColumnFolder} collects the first column of
+ * every row in order, past the list's first array, and adds to a list already holding values.
+ */
+public class LongColumnFolderTest {
+
+  private static final int ENTRIES = 1000;
+
+  private static JdbcConnectionPool pool;
+  private static DBI dbi;
+
+  @BeforeClass
+  public static void createLedger() {
+    pool = JdbcConnectionPool.create("jdbc:h2:mem:longColumnFolderTest", "sa", "");
+    dbi = new DBI(pool);
+    try (Handle handle = dbi.open()) {
+      handle.execute("create table ledger(entry bigint primary key, amount bigint)");
+      // credits and debits, one of them zero
+      for (int entry = 1; entry <= ENTRIES; entry++) {
+        handle.execute("insert into ledger(entry, amount) values(?, ?)", entry,
+            (entry - ENTRIES / 2) * 100L);
+      }
+    }
+  }
+
+  @AfterClass
+  public static void dispose() {
+    pool.dispose();
+  }
+
+  @Test
+  public void foldTest() {
+    try (Handle handle = dbi.open()) {
+      LongArrayList amounts = handle.createQuery("select amount, entry from ledger order by entry")
+          .fold(new LongArrayList(), LongColumnFolder.INSTANCE);
+      assertThat(amounts.size()).isEqualTo(ENTRIES);
+      for (int i = 0; i < ENTRIES; i++) {
+        assertThat(amounts.get(i)).isEqualTo((i + 1 - ENTRIES / 2) * 100L);
+      }
+      assertThat(amounts.contains(0)).isTrue();
+    }
+  }
+
+  @Test
+  public void foldIntoListTest() {
+    LongArrayList entries = new LongArrayList();
+    entries.add(-1);
+    try (Handle handle = dbi.open()) {
+      handle.createQuery("select entry from ledger where amount > :amount order by entry")
+          .bind("amount", (ENTRIES / 2 - 3) * 100L)
+          .fold(entries, LongColumnFolder.INSTANCE);
+      handle.createQuery("select entry from ledger where amount > :amount")
+          .bind("amount", Long.MAX_VALUE)
+          .fold(entries, LongColumnFolder.INSTANCE);
+    }
+    assertThat(entries.toArray()).containsExactly(-1L, 998L, 999L, 1000L);
+  }
+}
@@ -0,0 +1,66 @@
+package jags.ratpacktest.limit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admits and sheds requests of a controller for 2 concurrent requests, a target delay of 100 ms
+ * and an interval of 500 ms, on a clock that only moves when the test says so.
+ */
+public class AdmissionControllerTest {
+
+  private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final AtomicLong clock = new AtomicLong(1234 * MILLI);
+  private final AdmissionController admission =
+      new AdmissionController(2, 100, 500, TimeUnit.MILLISECONDS, clock::get);
+
+  @Test
+  public void concurrencyTest() {
+    assertThat(admission.tryAdmit()).isTrue();
+    assertThat(admission.tryAdmit()).isTrue();
+    assertThat(admission.tryAdmit()).isFalse();
+    assertThat(admission.inFlight()).isEqualTo(2);
+
+    admission.release(10 * MILLI);
+    assertThat(admission.tryAdmit()).isTrue();
+  }
+
+  @Test
+  public void standingQueueTest() {
+    admission.tryAdmit();
+    admission.release(150 * MILLI);
+    clock.addAndGet(600 * MILLI);
+    admission.tryAdmit();
+    admission.release(400 * MILLI);
+    // the fastest request of the interval waited 150 ms, above the target
+    assertThat(admission.queueDelayNanos()).isEqualTo(150 * MILLI);
+    assertThat(admission.tryAdmit()).isFalse();
+    assertThat(admission.retryAfterNanos()).isEqualTo(500 * MILLI);
+
+    // nothing completed during the next interval, so the estimate expires
+    clock.addAndGet(499 * MILLI);
+    assertThat(admission.tryAdmit()).isFalse();
+    clock.addAndGet(MILLI);
+    assertThat(admission.tryAdmit()).isTrue();
+    assertThat(admission.queueDelayNanos()).isZero();
+  }
+
+  @Test
+  public void burstWithoutQueueTest() {
+    // a slow request or two don't shed while another one of the interval was quick
+    admission.tryAdmit();
+    admission.release(900 * MILLI);
+    admission.tryAdmit();
+    admission.release(20 * MILLI);
+    clock.addAndGet(500 * MILLI);
+    admission.tryAdmit();
+    admission.release(300 * MILLI);
+    assertThat(admission.queueDelayNanos()).isEqualTo(20 * MILLI);
+    assertThat(admission.tryAdmit()).isTrue();
+  }
+}
@@ -0,0 +1,77 @@
+package jags.ratpacktest.limit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spends the permits of a 10 per second bucket with a burst of 3 on a clock that only moves when
+ * the test says so.
+ */
+public class TokenBucketLimiterTest {
+
+  private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  // nanoTime may start anywhere, even below zero
+  private final AtomicLong clock = new AtomicLong(-42 * MILLI);
+  private final TokenBucketLimiter limiter = new TokenBucketLimiter(10, 3, 2, clock::get);
+
+  @Test
+  public void burstTest() {
+    assertThat(limiter.tryAcquire("alice")).isZero();
+    assertThat(limiter.tryAcquire("alice")).isZero();
+    assertThat(limiter.tryAcquire("alice")).isZero();
+    assertThat(limiter.tryAcquire("alice")).isEqualTo(100 * MILLI);
+    // another client has a bucket of its own
+    assertThat(limiter.tryAcquire("bob")).isZero();
+  }
+
+  @Test
+  public void refillTest() {
+    for (int i = 0; i < 3; i++) {
+      limiter.tryAcquire("alice");
+    }
+    clock.addAndGet(40 * MILLI);
+    assertThat(limiter.tryAcquire("alice")).isEqualTo(60 * MILLI);
+
+    clock.addAndGet(60 * MILLI);
+    assertThat(limiter.tryAcquire("alice")).isZero();
+    assertThat(limiter.tryAcquire("alice")).isEqualTo(100 * MILLI);
+
+    // idle for long, the bucket holds no more than the burst
+    clock.addAndGet(10000 * MILLI);
+    for (int i = 0; i < 3; i++) {
+      assertThat(limiter.tryAcquire("alice")).isZero();
+    }
+    assertThat(limiter.tryAcquire("alice")).isPositive();
+  }
+
+  @Test
+  public void rejectionDoesNotSpendTest() {
+    for (int i = 0; i < 3; i++) {
+      limiter.tryAcquire("alice");
+    }
+    for (int i = 0; i < 50; i++) {
+      assertThat(limiter.tryAcquire("alice")).isEqualTo(100 * MILLI);
+    }
+    clock.addAndGet(100 * MILLI);
+    assertThat(limiter.tryAcquire("alice")).isZero();
+  }
+
+  @Test
+  public void sweepTest() {
+    limiter.tryAcquire("alice");
+    limiter.tryAcquire("bob");
+    limiter.tryAcquire("bob");
+    clock.addAndGet(150 * MILLI);
+    // alice is full again, bob is not, so only alice makes room for carol
+    limiter.tryAcquire("carol");
+    assertThat(limiter.size()).isEqualTo(2);
+    assertThat(limiter.tryAcquire("bob")).isZero();
+    assertThat(limiter.tryAcquire("bob")).isZero();
+    assertThat(limiter.tryAcquire("bob")).isPositive();
+  }
+}
@@ -0,0 +1,127 @@
+package jags.ratpacktest.metrics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Query;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Logs every query against a small music library as slow, and counts how often H2 really
+ * reads its tracks.
+ */
+public class SlowQueryLogTest {
+
+  private static final AtomicInteger READS = new AtomicInteger();
+
+  private JdbcConnectionPool pool;
+  private DBI dbi;
+
+  /** Called by H2 for each track a query reads. */
+  public static int read(int track) {
+    READS.incrementAndGet();
+    return track;
+  }
+
+  @Before
+  public void createLibrary() {
+    pool = JdbcConnectionPool.create("jdbc:h2:mem:slowQueryLogTest", "sa", "");
+    dbi = new DBI(pool);
+    try (Handle handle = dbi.open()) {
+      handle.execute("create table track(id int primary key, album varchar, title varchar)");
+      handle.execute("insert into track values (1, 'Kind of Blue', 'So What'), "
+          + "(2, 'Kind of Blue', 'Blue in Green'), (3, 'A Love Supreme', 'Acknowledgement')");
+      handle.execute("create alias read_track for \"" + SlowQueryLogTest.class.getName()
+          + ".read\"");
+    }
+    READS.set(0);
+  }
+
+  @After
+  public void dropLibrary() {
+    pool.dispose();
+  }
+
+  @Test
+  public void explainDoesNotRunTheQueryAgainTest() {
+    SlowQueryLog log = new SlowQueryLog(0, TimeUnit.MILLISECONDS, 10);
+    dbi.setTimingCollector(log);
+    try (Handle handle = dbi.open()) {
+      handle.createQuery("select read_track(id) from track where album = :album")
+          .bind("album", "Kind of Blue")
+          .list();
+    }
+    assertThat(READS.get()).isEqualTo(2);
+
+    Map<String, Object> slow = log.recent().get(0);
+    assertThat(slow.get("parameters")).isEqualTo(singletonParameter("album", "'Kind of Blue'"));
+    assertThat((String) slow.get("plan")).contains("PUBLIC.TRACK").doesNotContain("scanCount");
+  }
+
+  @Test
+  public void inListsShareOnePlanTest() {
+    SlowQueryLog log = new SlowQueryLog(0, TimeUnit.MILLISECONDS, 10);
+    dbi.setTimingCollector(log);
+    try (Handle handle = dbi.open()) {
+      for (List<Integer> ids : Arrays.asList(Arrays.asList(1), Arrays.asList(1, 3))) {
+        StringBuilder in = new StringBuilder();
+        for (int i = 0; i < ids.size(); i++) {
+          in.append(i == 0 ? ":id" : ", :id").append(i);
+        }
+        Query<Map<String, Object>> query =
+            handle.createQuery("select title from track where id in(" + in + ")");
+        for (int i = 0; i < ids.size(); i++) {
+          query.bind("id" + i, ids.get(i));
+        }
+        query.list();
+      }
+    }
+    List<Map<String, Object>> recent = log.recent();
+    assertThat(recent).hasSize(2);
+    assertThat(recent.get(0).get("sql")).isEqualTo(recent.get(1).get("sql"));
+    assertThat(recent.get(0).get("plan")).isNotNull();
+  }
+
+  @Test
+  public void ringKeepsTheMostRecentTest() {
+    SlowQueryLog log = new SlowQueryLog(0, TimeUnit.MILLISECONDS, 2);
+    dbi.setTimingCollector(log);
+    try (Handle handle = dbi.open()) {
+      for (int track = 1; track <= 3; track++) {
+        handle.createQuery("select title from track where id = :id").bind("id", track).list();
+      }
+    }
+    assertThat(log.recent()).extracting("parameters")
+        .containsExactly(singletonParameter("id", "3"), singletonParameter("id", "2"));
+  }
+
+  @Test
+  public void fastQueriesAreNotLoggedTest() {
+    SlowQueryLog log = new SlowQueryLog(1, TimeUnit.MINUTES, 10);
+    dbi.setTimingCollector(log);
+    try (Handle handle = dbi.open()) {
+      handle.createQuery("select title from track").list();
+    }
+    assertThat(log.recent()).isEmpty();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void noCapacityTest() {
+    new SlowQueryLog(50, TimeUnit.MILLISECONDS, 0);
+  }
+
+  private static Map<String, String> singletonParameter(String name, String value) {
+    return Collections.singletonMap(name, value);
+  }
+}
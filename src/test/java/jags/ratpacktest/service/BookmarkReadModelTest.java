@@ -0,0 +1,130 @@
+package jags.ratpacktest.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.domain.Tag;
+import jags.ratpacktest.domain.Tagging;
+import jags.ratpacktest.exception.ValidationException;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Lists a handful of recipe bookmarks through {@link BookmarkReadModel} as they are replaced and
+ * removed, and checks that a listing answers the same with and without the model.
+ */
+public class BookmarkReadModelTest {
+
+  private static final Tag SOUP = new Tag(1L, "soup");
+  private static final Tag VEGAN = new Tag(2L, "vegan");
+  private static final Tag QUICK = new Tag(3L, "quick");
+
+  private BookmarkReadModel model;
+
+  @Before
+  public void loadRecipes() {
+    model = new BookmarkReadModel();
+    model.load(Arrays.asList(
+        recipe(10, "Minestrone", 3),
+        recipe(11, "Gazpacho", 1),
+        recipe(12, "Bread", 2),
+        recipe(13, "Dal", 4)),
+        Arrays.asList(SOUP, VEGAN, QUICK),
+        Arrays.asList(new Tagging(10L, 1L), new Tagging(10L, 2L), new Tagging(11L, 1L),
+            new Tagging(11L, 3L), new Tagging(13L, 2L)));
+  }
+
+  @Test
+  public void findTest() {
+    assertThat(model.find(null, false, 0, -1)).extracting("title")
+        .containsExactly("Bread", "Dal", "Gazpacho", "Minestrone");
+    assertThat(model.find(null, true, 1, 2)).extracting("title")
+        .containsExactly("Bread", "Minestrone");
+    assertThat(model.find(labels("soup"), false, 0, -1)).extracting("title")
+        .containsExactly("Gazpacho", "Minestrone");
+    // any of the labels, each bookmark once
+    assertThat(model.find(labels("vegan", "quick"), true, 0, -1)).extracting("title")
+        .containsExactly("Gazpacho", "Minestrone", "Dal");
+    assertThat(model.find(labels("dessert"), false, 0, -1)).isEmpty();
+    assertThat(model.getBookmark(10).getTags()).isEqualTo("soup,vegan");
+  }
+
+  @Test
+  public void putAndRemoveTest() {
+    model.put(new Bookmark(11L, "Cold gazpacho", "http://recipes.example/11", new Date(1000)),
+        Collections.singletonList(VEGAN));
+    assertThat(model.find(labels("soup"), false, 0, -1)).extracting("title")
+        .containsExactly("Minestrone");
+    assertThat(model.find(labels("quick"), false, 0, -1)).isEmpty();
+    assertThat(model.getTags()).extracting("label").containsExactly("soup", "vegan");
+
+    model.remove(10);
+    assertThat(model.find(labels("soup"), false, 0, -1)).isEmpty();
+    assertThat(model.find(labels("vegan"), false, 0, -1)).extracting("title")
+        .containsExactly("Cold gazpacho", "Dal");
+    assertThat(model.getBookmark(10)).isNull();
+    assertThat(model.size()).isEqualTo(3);
+  }
+
+  @Test(timeout = 10000)
+  public void loadPopularLabelTest() {
+    // a label on every bookmark took quadratic time when each one copied its posting list
+    List<Bookmark> bookmarks = new ArrayList<>();
+    List<Tagging> taggings = new ArrayList<>();
+    for (long id = 1; id <= 200000; id++) {
+      bookmarks.add(recipe(id, "Recipe " + id, id % 365));
+      taggings.add(new Tagging(id, id % 7 == 0 ? 3L : 2L));
+    }
+    BookmarkReadModel large = new BookmarkReadModel();
+    large.load(bookmarks, Arrays.asList(VEGAN, QUICK), taggings);
+    assertThat(large.find(labels("vegan"), false, 0, -1)).hasSize(200000 - 200000 / 7);
+    // sevens made on day 0 come first, by id
+    assertThat(large.find(labels("quick"), true, 0, 3)).extracting("id")
+        .containsExactly(2555L, 5110L, 7665L);
+  }
+
+  @Test
+  public void emptyTagFilterTest() throws ValidationException {
+    List<String> withModel = titles("readModelOn", true);
+    List<String> withoutModel = titles("readModelOff", false);
+    assertThat(withModel).containsExactly("Bread", "Gazpacho");
+    assertThat(withoutModel).isEqualTo(withModel);
+  }
+
+  /** Titles listed for a filter of only commas by a service with or without the read model. */
+  private static List<String> titles(String database, boolean readModel)
+      throws ValidationException {
+    JdbcConnectionPool pool = JdbcConnectionPool.create("jdbc:h2:mem:" + database, "sa", "");
+    System.setProperty("ratpacktest.readModel", String.valueOf(readModel));
+    try {
+      BookmarkService service = new BookmarkService(new DBI(pool));
+      Bookmark bread = new Bookmark(null, "Bread", "http://recipes.example/bread", "baking");
+      Bookmark gazpacho = new Bookmark(null, "Gazpacho", "http://recipes.example/gazpacho", "");
+      service.createBookmark(bread);
+      service.createBookmark(gazpacho);
+      List<Bookmark> listed = service.getBookmarksOrderByTitle(", ,,", null, 0, -1);
+      return listed.stream().map(Bookmark::getTitle).collect(Collectors.toList());
+    } finally {
+      System.clearProperty("ratpacktest.readModel");
+      pool.dispose();
+    }
+  }
+
+  private static Bookmark recipe(long id, String title, long day) {
+    return new Bookmark(id, title, "http://recipes.example/" + id, new Date(day * 86400000L));
+  }
+
+  private static HashSet<String> labels(String... labels) {
+    return new HashSet<>(Arrays.asList(labels));
+  }
+}
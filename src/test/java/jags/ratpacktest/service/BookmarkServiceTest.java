@@ -0,0 +1,187 @@
+package jags.ratpacktest.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.domain.Tag;
+import jags.ratpacktest.domain.UrlMetadata;
+import jags.ratpacktest.exception.DuplicateBookmarkException;
+import jags.ratpacktest.exception.ValidationException;
+import jags.ratpacktest.exception.VersionConflictException;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Edits a small reading list through {@link BookmarkService} on a private in-memory database.
+ */
+public class BookmarkServiceTest {
+
+  private JdbcConnectionPool pool;
+  private BookmarkService service;
+  private Bookmark memoryModel;
+  private Bookmark collectors;
+
+  @Before
+  public void createReadingList() throws ValidationException {
+    pool = JdbcConnectionPool.create("jdbc:h2:mem:bookmarkServiceTest", "sa", "");
+    service = new BookmarkService(new DBI(pool));
+    memoryModel = service.createBookmark(new Bookmark(null, "The Java memory model",
+        "https://www.articles.example/jmm?utm_source=feed", "java,concurrency"));
+    collectors = service.createBookmark(new Bookmark(null, "Garbage collectors compared",
+        "https://articles.example/gc", "java"));
+  }
+
+  @After
+  public void dropDatabase() {
+    pool.dispose();
+  }
+
+  @Test
+  public void updateToBookmarkedUrlTest() throws ValidationException {
+    Bookmark moved = new Bookmark(collectors.getId(), "Garbage collectors compared",
+        "HTTPS://articles.example/jmm/#happens-before", "java");
+    try {
+      service.updateBookmark(moved);
+      fail("two bookmarks of https://articles.example/jmm");
+    } catch (DuplicateBookmarkException e) {
+      assertThat(e.getExistingId()).isEqualTo(memoryModel.getId());
+    }
+    assertThat(service.getBookmark(collectors.getId()).getUrl())
+        .isEqualTo("https://articles.example/gc");
+
+    // another spelling of its own url is no duplicate
+    Bookmark respelled = new Bookmark(memoryModel.getId(), "The Java memory model",
+        "https://articles.example/jmm", "java,concurrency");
+    assertThat(service.updateBookmark(respelled)).isNotNull();
+    assertThat(service.getBookmark(memoryModel.getId()).getUrl())
+        .isEqualTo("https://articles.example/jmm");
+  }
+
+  @Test
+  public void metadataWithBookmarkedCanonicalUrlTest() throws ValidationException {
+    // the collectors page claims the memory model article as its canonical page
+    Bookmark applied = service.applyMetadata(collectors.getId(), collectors.getVersion(),
+        new UrlMetadata("GC tuning, part 1", "https://articles.example/jmm"));
+    assertThat(applied.getTitle()).isEqualTo("GC tuning, part 1");
+    assertThat(applied.getUrl()).isEqualTo("https://articles.example/gc");
+
+    service.applyMetadata(collectors.getId(), applied.getVersion(),
+        new UrlMetadata(null, "https://articles.example/gc-tuning/1"));
+    assertThat(service.getBookmark(collectors.getId()).getUrl())
+        .isEqualTo("https://articles.example/gc-tuning/1");
+  }
+
+  @Test
+  public void metadataAfterAnEditIsDroppedTest() throws ValidationException {
+    // the reader renames the article while its page is still being fetched
+    Bookmark renamed = new Bookmark(collectors.getId(), "GC, the short version",
+        "https://articles.example/gc", "java,gc");
+    service.updateBookmark(renamed);
+    try {
+      service.applyMetadata(collectors.getId(), collectors.getVersion(),
+          new UrlMetadata("Garbage Collectors Compared | Articles", null));
+      fail("metadata of version " + collectors.getVersion() + " applied over an edit");
+    } catch (VersionConflictException e) {
+      assertThat(e.getCurrentVersion()).isEqualTo(collectors.getVersion() + 1);
+    }
+    assertThat(service.getBookmark(collectors.getId()).getTitle())
+        .isEqualTo("GC, the short version");
+    assertThat(service.applyMetadata(collectors.getId() + 100, 0,
+        new UrlMetadata("Gone", null))).isNull();
+  }
+
+  @Test
+  public void importKeepsExistingBookmarksTest() throws ValidationException {
+    // a friend's export, whose ids happen to be those of this reading list
+    Bookmark sharedArticle = new Bookmark(memoryModel.getId(), "JMM, annotated",
+        "https://articles.example/jmm#annotated", new Date(1262304000000L));
+    sharedArticle.setTags("java");
+    Bookmark newArticle = new Bookmark(collectors.getId(), "Escape analysis",
+        "https://articles.example/escape-analysis", new Date(1262390400000L));
+    newArticle.setTags("java,jit");
+    Bookmark sameArticleTwice = new Bookmark(collectors.getId() + 1, "Escape analysis, again",
+        "https://ARTICLES.example/escape-analysis", new Date(1262476800000L));
+    sameArticleTwice.setTags("jit");
+
+    long imported = service.importBookmarks(Collections.singletonList(
+        Arrays.asList(sharedArticle, newArticle, sameArticleTwice)).iterator());
+
+    assertThat(imported).isEqualTo(1);
+    assertThat(service.getBookmark(memoryModel.getId()).getTitle())
+        .isEqualTo("The Java memory model");
+    assertThat(service.getBookmark(collectors.getId()).getTitle())
+        .isEqualTo("Garbage collectors compared");
+    Bookmark escapeAnalysis = service.findByUrl("https://articles.example/escape-analysis");
+    assertThat(escapeAnalysis.getId()).isNotIn(memoryModel.getId(), collectors.getId());
+    assertThat(escapeAnalysis.getCreationTimestamp().getTime()).isEqualTo(1262390400000L);
+    assertThat(service.getBookmarksOrderByTitle("jit", null)).extracting("title")
+        .containsExactly("Escape analysis");
+  }
+
+  @Test(timeout = 30000)
+  public void concurrentConditionalUpdatesTest() throws Exception {
+    ExecutorService editors = Executors.newFixedThreadPool(2);
+    try {
+      for (int round = 0; round < 20; round++) {
+        long version = service.getBookmark(memoryModel.getId()).getVersion();
+        CyclicBarrier start = new CyclicBarrier(2);
+        Future<Bookmark> retagged = editors.submit(() -> edit(start, version, "java,jmm"));
+        Future<Bookmark> renamed = editors.submit(() -> edit(start, version, "concurrency,gc"));
+        Bookmark winner = retagged.get() != null ? retagged.get() : renamed.get();
+        // the loser's update, tags included, was refused as a whole
+        assertThat(retagged.get() == null).isNotEqualTo(renamed.get() == null);
+        assertThat(winner.getVersion()).isEqualTo(version + 1);
+        assertThat(service.getBookmark(memoryModel.getId()).getTags())
+            .isEqualTo(winner.getTags());
+      }
+    } finally {
+      editors.shutdownNow();
+    }
+  }
+
+  @Test
+  public void purgeCountsOnlyPurgedTaggingsTest() throws ValidationException {
+    Bookmark lockFree = service.createBookmark(new Bookmark(null, "Lock-free queues",
+        "https://articles.example/lock-free", "java,concurrency"));
+    service.deleteBookmark(collectors.getId());
+    service.deleteBookmark(lockFree.getId());
+    service.deleteBookmark(memoryModel.getId());
+    // brought back before the purge
+    service.undeleteBookmark(memoryModel.getId());
+
+    int purged = service.purgeDeleted(new Date(System.currentTimeMillis() + 60000));
+
+    assertThat(purged).isEqualTo(2);
+    assertThat(BookmarkService.getTagSet(service.getBookmark(memoryModel.getId()).getTags()))
+        .containsOnly("java", "concurrency");
+    for (Tag tag : service.getTags()) {
+      assertThat(service.tagQueries().bookmarkCount(tag.getId())).as(tag.getLabel())
+          .isEqualTo(1);
+    }
+  }
+
+  /** Updates the memory model article if it still has {@code version}, else returns null. */
+  private Bookmark edit(CyclicBarrier start, long version, String tags) throws Exception {
+    Bookmark edit = new Bookmark(memoryModel.getId(), "The Java memory model",
+        "https://articles.example/jmm", tags);
+    edit.setVersion(version);
+    start.await();
+    try {
+      return service.updateBookmark(edit);
+    } catch (VersionConflictException e) {
+      return null;
+    }
+  }
+}
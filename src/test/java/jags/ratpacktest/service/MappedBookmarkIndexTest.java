@@ -0,0 +1,105 @@
+package jags.ratpacktest.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.domain.Tag;
+import jags.ratpacktest.domain.Tagging;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Writes a {@link MappedBookmarkIndex} of a recipe box, maps it and checks that it lists
+ * bookmarks the way {@link BookmarkReadModel} does.
+ */
+public class MappedBookmarkIndexTest {
+
+  private static final int RECIPES = 100;
+  // seven dishes, each in many variants, so titles tie often
+  private static final String[] DISHES = {"Pancakes", "Dal", "Paella", "Gazpacho", "Ph\u1edf",
+      "Bibimbap", "Cr\u00e8me br\u00fbl\u00e9e"};
+  private static final long COPIED_AT = 1262304000000L;
+
+  private static Path file;
+  private static MappedBookmarkIndex index;
+  private static BookmarkReadModel model;
+
+  @BeforeClass
+  public static void writeIndex() throws IOException {
+    List<Bookmark> recipes = new ArrayList<>();
+    List<Tagging> taggings = new ArrayList<>();
+    for (long id = 1; id <= RECIPES; id++) {
+      // copied from a notebook whose pages are in no particular order
+      long page = id * 41 % RECIPES;
+      recipes.add(new Bookmark(id, DISHES[(int) (id % DISHES.length)],
+          "https://recipes.example/box/" + id, new Date(COPIED_AT + page * 3600000)));
+      // breakfast, main or dessert
+      taggings.add(new Tagging(id, id % 3 + 1));
+      if (id % 5 == 0) {
+        taggings.add(new Tagging(id, 4L));
+      }
+    }
+    List<Tag> tags = Arrays.asList(new Tag(1L, "breakfast"), new Tag(2L, "main"),
+        new Tag(3L, "dessert"), new Tag(4L, "vegetarian"), new Tag(5L, "offal"));
+    file = Files.createTempFile("index-", ".bkix");
+    MappedBookmarkIndex.write(file, recipes, tags, taggings);
+    index = MappedBookmarkIndex.open("default", file);
+    model = new BookmarkReadModel();
+    model.load(recipes, tags, taggings);
+  }
+
+  @AfterClass
+  public static void deleteIndex() throws IOException {
+    index = null;
+    // the mapping may still be open until it is collected, which some platforms don't allow
+    file.toFile().deleteOnExit();
+  }
+
+  @Test
+  public void findTest() {
+    List<List<String>> labelSets = Arrays.asList(null, Collections.singletonList("breakfast"),
+        Arrays.asList("main", "vegetarian"), Collections.singletonList("brunch"));
+    for (List<String> labels : labelSets) {
+      for (boolean byCreation : new boolean[] {false, true}) {
+        assertThat(ids(index.find(labels, byCreation, 0, -1)))
+            .isEqualTo(ids(model.find(labels, byCreation, 0, -1)));
+        assertThat(ids(index.find(labels, byCreation, 3, 10)))
+            .isEqualTo(ids(model.find(labels, byCreation, 3, 10)));
+      }
+    }
+    assertThat(index.find(null, false, 200, 10)).isEmpty();
+  }
+
+  @Test
+  public void getBookmarkTest() {
+    Bookmark gazpacho = index.getBookmark(10);
+    assertThat(gazpacho.getTitle()).isEqualTo("Gazpacho");
+    assertThat(gazpacho.getUrl()).isEqualTo("https://recipes.example/box/10");
+    assertThat(gazpacho.getCreationTimestamp().getTime()).isEqualTo(COPIED_AT + 10 * 3600000);
+    assertThat(gazpacho.getTags()).isEqualTo("main,vegetarian");
+    assertThat(gazpacho.getTenant()).isEqualTo("default");
+    assertThat(index.getBookmark(13).getTitle()).isEqualTo("Cr\u00e8me br\u00fbl\u00e9e");
+    assertThat(index.getBookmark(RECIPES + 1)).isNull();
+  }
+
+  @Test
+  public void getTagsTest() {
+    assertThat(index.getTags().stream().map(Tag::getLabel).collect(Collectors.toList()))
+        .containsExactly("breakfast", "dessert", "main", "offal", "vegetarian");
+  }
+
+  private static List<Long> ids(List<Bookmark> bookmarks) {
+    return bookmarks.stream().map(Bookmark::getId).collect(Collectors.toList());
+  }
+}
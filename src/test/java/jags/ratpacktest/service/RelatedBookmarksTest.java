@@ -0,0 +1,173 @@
+package jags.ratpacktest.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.exception.ValidationException;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Checks the related talks of a conference programme the service finds against counting the
+ * shared topics of every pair of talks, before and after topics change and talks are dropped and
+ * brought back, and while the programme is read again in the background.
+ */
+public class RelatedBookmarksTest {
+
+  private static final int TALKS = 400;
+  private static final String[] TRACKS = {"jvm", "web", "data"};
+  // after the tracks, from the topics most talks are about to the ones only a few are
+  private static final String[] TOPICS = {"jvm", "web", "data", "performance", "testing",
+      "security", "cloud", "databases", "concurrency", "functional", "mobile", "devops",
+      "machine-learning", "accessibility", "graphql", "wasm", "rust", "kotlin", "scala",
+      "clojure", "elm", "legacy", "career", "ethics", "hardware"};
+  private static final long OPENS_AT = 1443686400000L;
+
+  private JdbcConnectionPool pool;
+  private DBI dbi;
+  private BookmarkService service;
+  private final Map<Long, Set<String>> tagsById = new HashMap<>();
+  private final Random random = new Random(42);
+
+  @Before
+  public void importProgramme() throws ValidationException, InterruptedException {
+    pool = JdbcConnectionPool.create("jdbc:h2:mem:relatedBookmarksTest", "sa", "");
+    dbi = new DBI(pool);
+    service = new BookmarkService(dbi);
+    List<Bookmark> talks = new ArrayList<>();
+    for (long id = 1; id <= TALKS; id++) {
+      // eight rooms, a 45 minute slot each; the import numbers the talks from 1 in this order
+      Bookmark talk = new Bookmark(null, "Talk " + id + " \u2013 room " + (char) ('A' + id % 8),
+          "https://conference.example/2015/talks/" + id,
+          new Date(OPENS_AT + id / 8 * 2700000));
+      talk.setTags(randomTopics());
+      talks.add(talk);
+      tagsById.put(id, BookmarkService.getTagSet(talk.getTags()));
+    }
+    service.importBookmarks(Collections.singletonList(talks).iterator());
+    service.relatedBookmarks().awaitRebuilt();
+  }
+
+  @After
+  public void dispose() {
+    pool.dispose();
+  }
+
+  @Test
+  public void findTest() {
+    for (long id = 1; id <= TALKS; id++) {
+      assertRelated(id, 10);
+    }
+    assertRelated(1, RelatedBookmarks.MAX_RELATED);
+    assertThat(service.getRelatedBookmarks(1, 0)).isEmpty();
+    assertThat(service.getRelatedBookmarks(TALKS + 1, 10)).isNull();
+  }
+
+  @Test
+  public void changesTest() throws ValidationException {
+    for (long id = 1; id <= TALKS; id++) {
+      // fills the cache, which the changes below must invalidate
+      service.getRelatedBookmarks(id, 10);
+    }
+    for (int change = 0; change < 100; change++) {
+      long id = 1 + random.nextInt(TALKS);
+      if (!tagsById.containsKey(id)) {
+        service.undeleteBookmark(id);
+        tagsById.put(id, BookmarkService.getTagSet(service.getBookmark(id).getTags()));
+      } else if (change % 10 == 0) {
+        service.deleteBookmark(id);
+        tagsById.remove(id);
+      } else {
+        Bookmark talk = service.getBookmark(id);
+        talk.setTags(randomTopics());
+        service.addTags(talk);
+        tagsById.put(id, BookmarkService.getTagSet(talk.getTags()));
+      }
+      for (long related = 1; related <= TALKS; related += 7) {
+        if (tagsById.containsKey(related)) {
+          assertRelated(related, 10);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void rebuildTest() {
+    List<Runnable> rebuilds = new ArrayList<>();
+    RelatedBookmarks related = new RelatedBookmarks(dbi, rebuilds::add);
+    related.load();
+    long[] before = related.find(1, 10);
+    assertThat(before).containsExactly(ids(service.getRelatedBookmarks(1, 10)));
+
+    // the programme drops a talk; until the new index is in, the old one is served
+    long cancelled = before[0];
+    try (Handle handle = dbi.open()) {
+      handle.execute("update bookmark set deleted_at = current_timestamp() where id = ?",
+          cancelled);
+    }
+    related.invalidate();
+    related.invalidate();
+    assertThat(rebuilds).hasSize(1);
+    assertThat(related.find(1, 10)).containsExactly(before);
+
+    // a change the read doesn't see, as from a write committed after it, is replayed
+    long moved = before[1];
+    related.deleted(moved);
+    rebuilds.remove(0).run();
+    assertThat(rebuilds).hasSize(1);
+    rebuilds.remove(0).run();
+    assertThat(rebuilds).isEmpty();
+    List<Long> expected = new ArrayList<>();
+    for (long id : before) {
+      if (id != cancelled && id != moved) {
+        expected.add(id);
+      }
+    }
+    assertThat(related.find(1, 8)).containsExactly(
+        expected.stream().mapToLong(Long::longValue).toArray());
+  }
+
+  /** A track and up to three more topics, the first topics far more common than the last. */
+  private String randomTopics() {
+    StringBuilder topics = new StringBuilder(TRACKS[random.nextInt(TRACKS.length)]);
+    for (int i = random.nextInt(4); i > 0; i--) {
+      topics.append(',').append(
+          TOPICS[random.nextInt(TRACKS.length + random.nextInt(TOPICS.length - TRACKS.length))]);
+    }
+    return topics.toString();
+  }
+
+  private static long[] ids(List<Bookmark> talks) {
+    return talks.stream().mapToLong(Bookmark::getId).toArray();
+  }
+
+  private void assertRelated(long id, int limit) {
+    Set<String> tags = tagsById.get(id);
+    List<Map.Entry<Long, Long>> expected = tagsById.entrySet().stream()
+        .filter(other -> other.getKey() != id)
+        .map(other -> new HashMap.SimpleEntry<>(other.getKey(),
+            other.getValue().stream().filter(tags::contains).count()))
+        .filter(other -> other.getValue() > 0)
+        .sorted(Map.Entry.<Long, Long>comparingByValue().reversed()
+            .thenComparing(Map.Entry.comparingByKey()))
+        .limit(limit)
+        .collect(Collectors.toList());
+    assertThat(service.getRelatedBookmarks(id, limit)).extracting("id").as("related to " + id)
+        .containsExactlyElementsOf(
+            expected.stream().map(Map.Entry::getKey).collect(Collectors.toList()));
+  }
+}
@@ -0,0 +1,147 @@
+package jags.ratpacktest.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.domain.Tag;
+import jags.ratpacktest.exception.ValidationException;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Checks on a photo library that every {@link TagQueryPlanner} plan pages through a filter the
+ * same way, that the planner picks the scan for large tags and the join for small ones, and that
+ * reloading its counts merges them into the ones it keeps.
+ */
+public class TagQueryPlannerTest {
+
+  private static final int PHOTOS = 3000;
+  private static final long SHOT_AT = 1420070400000L;
+
+  private static JdbcConnectionPool pool;
+  private static TagQueryPlanner planner;
+  private static Map<String, Long> tagIds;
+
+  @BeforeClass
+  public static void importPhotos() throws ValidationException {
+    pool = JdbcConnectionPool.create("jdbc:h2:mem:tagQueryPlannerTest", "sa", "");
+    DBI dbi = new DBI(pool);
+    BookmarkService service = new BookmarkService(dbi);
+    List<Bookmark> photos = new ArrayList<>();
+    for (long id = 1; id <= PHOTOS; id++) {
+      // the camera counts file names up to 250 and starts over and shoots bursts of three in a
+      // minute; uploads mix up the days, so neither order follows the ids
+      Bookmark photo = new Bookmark(null, "DSC_" + (1000 + id % 250) + ".jpg",
+          "https://photos.example/library/" + id,
+          new Date(SHOT_AT + id * 7919 % PHOTOS / 3 * 60000));
+      photo.setTags((id % 2 == 0 ? "landscape," : "") + (id % 3 == 0 ? "family," : "")
+          + (id % 1000 == 1 ? "wedding," : "") + "photo");
+      photos.add(photo);
+    }
+    service.importBookmarks(Collections.singletonList(photos).iterator());
+    planner = new TagQueryPlanner(dbi, new ParallelTagQuery(dbi, 1, 0));
+    planner.load();
+    tagIds = service.getTags().stream().collect(Collectors.toMap(Tag::getLabel, Tag::getId));
+  }
+
+  @AfterClass
+  public static void dispose() {
+    pool.dispose();
+  }
+
+  @Test
+  public void plansAgreeTest() {
+    for (String[] labelSet : new String[][] {{"landscape"}, {"wedding"},
+        {"landscape", "family"}, {"wedding", "family"}}) {
+      Set<String> labels = new HashSet<>(Arrays.asList(labelSet));
+      long[] ids = ids(labels);
+      for (boolean byCreation : new boolean[] {false, true}) {
+        for (int offset : new int[] {0, 1990}) {
+          List<Long> expected = bookmarkIds(planner.run(TagQueryPlanner.Plan.JOIN, labels, ids,
+              byCreation, offset, 20));
+          for (TagQueryPlanner.Plan plan : TagQueryPlanner.Plan.values()) {
+            assertThat(bookmarkIds(planner.run(plan, labels, ids, byCreation, offset, 20)))
+                .as(plan + " " + labels + " from " + offset).isEqualTo(expected);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void pagesThroughTiesTest() {
+    // about four of these photos share each file name and up to three a minute, so page
+    // boundaries fall inside ties
+    Set<String> labels = new HashSet<>(Arrays.asList("family", "wedding"));
+    long[] ids = ids(labels);
+    for (boolean byCreation : new boolean[] {false, true}) {
+      List<Long> expected = null;
+      for (TagQueryPlanner.Plan plan : TagQueryPlanner.Plan.values()) {
+        List<Long> paged = new ArrayList<>();
+        List<Bookmark> page;
+        do {
+          page = planner.run(plan, labels, ids, byCreation, paged.size(), 50);
+          paged.addAll(bookmarkIds(page));
+        } while (page.size() == 50);
+        assertThat(paged).as(plan + (byCreation ? " by creation" : " by title"))
+            .hasSize(1002).doesNotHaveDuplicates();
+        if (expected == null) {
+          expected = paged;
+        } else {
+          assertThat(paged).as(plan + (byCreation ? " by creation" : " by title"))
+              .isEqualTo(expected);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void chooseTest() {
+    assertThat(planner.choose(ids(Collections.singleton("photo")), 0, 20))
+        .isEqualTo(TagQueryPlanner.Plan.SCAN_PROBE);
+    assertThat(planner.choose(ids(Collections.singleton("wedding")), 0, 20))
+        .isEqualTo(TagQueryPlanner.Plan.JOIN);
+    // the page is far into the filter, so probing would walk most of the table
+    assertThat(planner.choose(ids(new HashSet<>(Arrays.asList("landscape", "family"))), 1900,
+        20)).isIn(TagQueryPlanner.Plan.IN_MEMORY, TagQueryPlanner.Plan.PARALLEL);
+    assertThat(planner.choose(ids(Collections.singleton("landscape")), 1400, 20))
+        .isEqualTo(TagQueryPlanner.Plan.JOIN);
+  }
+
+  @Test
+  public void loadTest() {
+    long landscape = tagIds.get("landscape");
+    assertThat(planner.bookmarkCount(landscape)).isEqualTo(PHOTOS / 2);
+    assertThat(planner.bookmarkCount(tagIds.get("wedding"))).isEqualTo(3);
+
+    // drifted counts are set back, and a tag the table doesn't have is dropped
+    planner.untagged(landscape, 40);
+    planner.tagged(Long.MAX_VALUE);
+    planner.load();
+    assertThat(planner.bookmarkCount(landscape)).isEqualTo(PHOTOS / 2);
+    assertThat(planner.bookmarkCount(Long.MAX_VALUE)).isZero();
+    planner.load();
+    assertThat(planner.bookmarkCount(tagIds.get("photo"))).isEqualTo(PHOTOS);
+  }
+
+  private static long[] ids(Set<String> labels) {
+    return labels.stream().mapToLong(tagIds::get).toArray();
+  }
+
+  private static List<Long> bookmarkIds(List<Bookmark> bookmarks) {
+    return bookmarks.stream().map(Bookmark::getId).collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,70 @@
+package jags.ratpacktest.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Splits hand-typed tag strings with {@link TagTokenizer} and checks which labels end up in the
+ * {@link LabelDictionary}.
+ */
+public class TagTokenizerTest {
+
+  @Test
+  public void tokenizeTest() {
+    assertThat(labels(" jvm ,,\tgradle\n, ,jvm,", true)).containsExactly("jvm", "gradle");
+    assertThat(labels("", true)).isEmpty();
+    assertThat(labels(" , ,", false)).isEmpty();
+    // a decomposed e and acute accent is stored as the single composed character
+    assertThat(labels("cafe\u0301, na\u00efve", true))
+        .containsExactly("caf\u00e9", "na\u00efve");
+  }
+
+  @Test
+  public void storedLabelsAreSharedTest() {
+    String stored = labels("netty-stored", true).iterator().next();
+    String queried = labels(new String("netty-stored"), false).iterator().next();
+    assertThat(queried).isSameAs(stored);
+  }
+
+  @Test
+  public void queryLabelsAreNotRememberedTest() {
+    int before = TagTokenizer.dictionarySize();
+    for (int i = 0; i < 1000; i++) {
+      assertThat(labels("probe-" + i + ", r\u00e9sum\u00e9-" + i, false)).hasSize(2);
+    }
+    assertThat(TagTokenizer.dictionarySize()).isEqualTo(before);
+
+    String first = labels(new String("probe-7"), false).iterator().next();
+    assertThat(labels(new String("probe-7"), false).iterator().next()).isNotSameAs(first);
+  }
+
+  @Test
+  public void boundedDictionaryTest() {
+    LabelDictionary dictionary = new LabelDictionary(2);
+    String source = "[h2,JDBI,ratpack]";
+    String h2 = dictionary.intern(source, 1, 3, false, true);
+    String jdbi = dictionary.intern(source, 4, 8, true, true);
+    String ratpack = dictionary.intern(source, 9, 16, false, true);
+    assertThat(jdbi).isEqualTo("jdbi");
+    assertThat(ratpack).isEqualTo("ratpack");
+    assertThat(dictionary.size()).isEqualTo(2);
+
+    assertThat(dictionary.intern("h2", 0, 2, false, false)).isSameAs(h2);
+    assertThat(dictionary.intern("jdbi", 0, 4, false, false)).isSameAs(jdbi);
+    // the table was full, so ratpack was handed out but not kept
+    assertThat(dictionary.intern("ratpack", 0, 7, false, true)).isNotSameAs(ratpack);
+    assertThat(dictionary.size()).isEqualTo(2);
+  }
+
+  private static Set<String> labels(String tags, boolean remember) {
+    List<String> labels = new ArrayList<>();
+    TagTokenizer.tokenize(tags, labels, remember);
+    return new LinkedHashSet<>(labels);
+  }
+}
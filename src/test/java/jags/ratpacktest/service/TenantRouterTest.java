@@ -0,0 +1,238 @@
+package jags.ratpacktest.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import jags.ratpacktest.domain.Bookmark;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routes two small teams' bookmarks through a {@link TenantRouter} of two shards and moves one
+ * team between them.
+ */
+public class TenantRouterTest {
+
+  private TenantRouter router;
+  private ExecutorService executor;
+
+  @Before
+  public void before() {
+    router = new TenantRouter(2);
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void after() {
+    executor.shutdownNow();
+    router.close();
+  }
+
+  @Test
+  public void routingTest() {
+    assertThat(router.shardOf(TenantRouter.DEFAULT_TENANT)).isZero();
+    assertThat(TenantRouter.isValidTenant("team_42")).isTrue();
+    assertThat(TenantRouter.isValidTenant("Team-42")).isFalse();
+    assertThat(TenantRouter.isValidTenant("")).isFalse();
+    try {
+      router.service("../public");
+      fail("routed an invalid tenant");
+    } catch (IllegalArgumentException expected) {
+      // the name ends up in a schema name
+    }
+    try {
+      router.moveTenant(TenantRouter.DEFAULT_TENANT, 1);
+      fail("moved the default tenant");
+    } catch (IllegalArgumentException expected) {
+      // it owns the PUBLIC schema of shard 0
+    }
+  }
+
+  @Test
+  public void tenantsAreIsolatedTest() throws Exception {
+    router.service("design").createBookmark(
+        new Bookmark(null, "Type scale", "https://design.example/type", "type"));
+    router.service("support").createBookmark(
+        new Bookmark(null, "Refund policy", "https://support.example/refunds", "policy"));
+    // the same page may be bookmarked by both
+    router.service("support").createBookmark(
+        new Bookmark(null, "Type scale", "https://design.example/type", "docs"));
+
+    assertThat(titles("design")).containsExactly("Type scale");
+    assertThat(titles("support")).containsExactly("Refund policy", "Type scale");
+    assertThat(router.service("design").getTags()).extracting("label").containsExactly("type");
+    assertThat(router.activeTenants()).contains("design", "support");
+  }
+
+  @Test
+  public void moveTenantTest() throws Exception {
+    BookmarkService design = router.service("design_move");
+    design.createBookmark(
+        new Bookmark(null, "Grid systems", "https://design.example/grids", "layout"));
+    design.createBookmark(
+        new Bookmark(null, "Color contrast", "https://design.example/contrast", "a11y,color"));
+    int source = router.shardOf("design_move");
+    int target = 1 - source;
+
+    router.moveTenant("design_move", target);
+
+    assertThat(router.shardOf("design_move")).isEqualTo(target);
+    assertThat(titles("design_move")).containsExactly("Color contrast", "Grid systems");
+    assertThat(router.service("design_move").getTags()).extracting("label")
+        .containsExactly("a11y", "color", "layout");
+    assertThat(schemaExists(source, "TENANT_DESIGN_MOVE")).isFalse();
+    assertThat(schemaExists(target, "TENANT_DESIGN_MOVE")).isTrue();
+    try {
+      design.createBookmark(
+          new Bookmark(null, "Spacing", "https://design.example/spacing", "layout"));
+      fail("wrote through the service of the old shard");
+    } catch (IllegalStateException expected) {
+      // retired
+    }
+  }
+
+  @Test
+  public void moveWaitsForRunningCallsTest() throws Exception {
+    router.service("support_move").createBookmark(
+        new Bookmark(null, "Escalations", "https://support.example/escalations", "process"));
+    int source = router.shardOf("support_move");
+    int target = 1 - source;
+    CountDownLatch reading = new CountDownLatch(1);
+    CountDownLatch finishRead = new CountDownLatch(1);
+    Future<Integer> read = executor.submit(() -> router.call("support_move", service -> {
+      reading.countDown();
+      finishRead.await();
+      return service.getBookmarksOrderByTitle(null, null).size();
+    }));
+    reading.await();
+    BookmarkService old = router.service("support_move");
+
+    Future<?> move = executor.submit(() -> {
+      router.moveTenant("support_move", target);
+      return null;
+    });
+    while (router.service("support_move") == old) {
+      Thread.sleep(5);
+    }
+    // new calls are served by the new shard while the old read still runs on the old one
+    BookmarkService current = router.call("support_move", service -> service);
+    assertThat(current).isNotSameAs(old);
+    Thread.sleep(100);
+    assertThat(move.isDone()).isFalse();
+    assertThat(schemaExists(source, "TENANT_SUPPORT_MOVE")).isTrue();
+
+    finishRead.countDown();
+    assertThat(read.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+    move.get(5, TimeUnit.SECONDS);
+    assertThat(schemaExists(source, "TENANT_SUPPORT_MOVE")).isFalse();
+  }
+
+  @Test
+  public void writeDuringMoveTest() throws Exception {
+    BookmarkService old = router.service("ops_move");
+    old.createBookmark(
+        new Bookmark(null, "Runbook", "https://ops.example/runbook", "incidents"));
+    int target = 1 - router.shardOf("ops_move");
+    CountDownLatch copying = new CountDownLatch(1);
+    CountDownLatch finishCopy = new CountDownLatch(1);
+    router.whileCopying = () -> {
+      copying.countDown();
+      try {
+        finishCopy.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    };
+    Future<?> move = executor.submit(() -> {
+      router.moveTenant("ops_move", target);
+      return null;
+    });
+    copying.await();
+
+    // the write waits for the copy, is rejected by the old service and goes to the new one
+    Future<Bookmark> write = executor.submit(() -> router.call("ops_move",
+        service -> service.createBookmark(
+            new Bookmark(null, "Pager rota", "https://ops.example/rota", "on-call"))));
+    Thread.sleep(100);
+    assertThat(write.isDone()).isFalse();
+    finishCopy.countDown();
+    move.get(5, TimeUnit.SECONDS);
+    assertThat(write.get(5, TimeUnit.SECONDS).getId()).isNotNull();
+
+    assertThat(router.service("ops_move")).isNotSameAs(old);
+    assertThat(titles("ops_move")).containsExactly("Pager rota", "Runbook");
+  }
+
+  @Test
+  public void schemaOutlivesLongCallsTest() throws Exception {
+    router.service("billing_move").createBookmark(
+        new Bookmark(null, "Invoice template", "https://billing.example/invoice", "templates"));
+    int source = router.shardOf("billing_move");
+    CountDownLatch reading = new CountDownLatch(1);
+    CountDownLatch finishRead = new CountDownLatch(1);
+    Future<Integer> read = executor.submit(() -> router.call("billing_move", service -> {
+      reading.countDown();
+      finishRead.await();
+      return service.getBookmarksOrderByTitle(null, null).size();
+    }));
+    reading.await();
+
+    // the move stops waiting for the read, but leaves it the old schema
+    router.callDrainMillis = 0;
+    router.moveTenant("billing_move", 1 - source);
+    assertThat(schemaExists(source, "TENANT_BILLING_MOVE")).isTrue();
+
+    finishRead.countDown();
+    assertThat(read.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+    assertThat(schemaExists(source, "TENANT_BILLING_MOVE")).isFalse();
+  }
+
+  @Test
+  public void frozenReadOfNewTenantTest() throws Exception {
+    CountDownLatch reading = new CountDownLatch(1);
+    CountDownLatch finishRead = new CountDownLatch(1);
+    Future<?> frozen = executor.submit(() -> router.whileFrozen("legal", () -> {
+      reading.countDown();
+      finishRead.await();
+      return null;
+    }));
+    reading.await();
+
+    // other tenants are created meanwhile; creating the frozen one waits for the read
+    router.service("marketing").createBookmark(
+        new Bookmark(null, "Brand guide", "https://marketing.example/brand", "brand"));
+    Future<BookmarkService> legal = executor.submit(() -> router.service("legal"));
+    Thread.sleep(100);
+    assertThat(legal.isDone()).isFalse();
+
+    finishRead.countDown();
+    frozen.get(5, TimeUnit.SECONDS);
+    assertThat(legal.get(5, TimeUnit.SECONDS)).isNotNull();
+  }
+
+  private Iterable<String> titles(String tenant) {
+    return () -> router.service(tenant).getBookmarksOrderByTitle(null, null).stream()
+        .map(Bookmark::getTitle).iterator();
+  }
+
+  private boolean schemaExists(int shard, String schema) throws SQLException {
+    try (Connection connection = router.shard(shard).getConnection();
+         Statement statement = connection.createStatement();
+         ResultSet found = statement.executeQuery("select count(*) from "
+             + "information_schema.schemata where schema_name = '" + schema + "'")) {
+      found.next();
+      return found.getInt(1) > 0;
+    }
+  }
+}
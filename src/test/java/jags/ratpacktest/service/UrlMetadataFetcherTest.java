@@ -0,0 +1,187 @@
+package jags.ratpacktest.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jags.ratpacktest.domain.UrlMetadata;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link UrlMetadataFetcher} against a stub HTTP server on localhost. The fetcher under test
+ * may reach loopback addresses except 127.0.0.2, which stands in for an internal host.
+ */
+public class UrlMetadataFetcherTest {
+
+  private static final String PAGE = "<html><head><title>\n  Stub &amp; Page \n</title>"
+      + "<link href=\"/canonical\" rel=\"canonical\"></head><body></body></html>";
+
+  private HttpServer server;
+  private UrlMetadataFetcher fetcher;
+  private final AtomicInteger hits = new AtomicInteger();
+
+  @Before
+  public void before() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/page", exchange -> {
+      hits.incrementAndGet();
+      byte[] body = PAGE.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    server.createContext("/slow", exchange -> {
+      try {
+        Thread.sleep(2000);
+        exchange.sendResponseHeaders(200, -1);
+      } catch (InterruptedException ignored) {
+        Thread.currentThread().interrupt();
+      } finally {
+        exchange.close();
+      }
+    });
+    server.createContext("/moved", exchange -> redirect(exchange, "page"));
+    server.createContext("/loop", exchange -> redirect(exchange, "/loop"));
+    server.createContext("/internal", exchange ->
+        redirect(exchange, "http://127.0.0.2:" + server.getAddress().getPort() + "/page"));
+    server.createContext("/file", exchange -> redirect(exchange, "file:///etc/passwd"));
+    server.createContext("/missing", exchange -> {
+      exchange.sendResponseHeaders(404, -1);
+      exchange.close();
+    });
+    server.start();
+    fetcher = new UrlMetadataFetcher(2, 16, 1, 500, 64 * 1024, TimeUnit.MINUTES.toMillis(1), 100,
+        address -> address.isLoopbackAddress() && !"127.0.0.2".equals(address.getHostAddress()));
+  }
+
+  private static void redirect(HttpExchange exchange, String location) throws IOException {
+    exchange.getResponseHeaders().set("Location", location);
+    exchange.sendResponseHeaders(302, -1);
+    exchange.close();
+  }
+
+  @After
+  public void after() {
+    fetcher.close();
+    server.stop(0);
+  }
+
+  private String url(String path) {
+    return "http://localhost:" + server.getAddress().getPort() + path;
+  }
+
+  @Test
+  public void fetchTitleAndCanonicalUrlTest() throws Exception {
+    UrlMetadata metadata = fetcher.fetch(url("/page")).get(5, TimeUnit.SECONDS);
+    assertThat(metadata.getTitle()).isEqualTo("Stub & Page");
+    assertThat(metadata.getCanonicalUrl()).isEqualTo(url("/canonical"));
+  }
+
+  @Test
+  public void cachedByNormalizedUrlTest() throws Exception {
+    fetcher.fetch(url("/page")).get(5, TimeUnit.SECONDS);
+    String sameUrl = "HTTP://LOCALHOST:" + server.getAddress().getPort() + "/page#section";
+    UrlMetadata metadata = fetcher.fetch(sameUrl).get(5, TimeUnit.SECONDS);
+    assertThat(metadata.getTitle()).isEqualTo("Stub & Page");
+    assertThat(hits.get()).isEqualTo(1);
+  }
+
+  @Test(expected = ExecutionException.class)
+  public void timeoutTest() throws Exception {
+    fetcher.fetch(url("/slow")).get(5, TimeUnit.SECONDS);
+  }
+
+  @Test(expected = ExecutionException.class)
+  public void errorStatusTest() throws Exception {
+    fetcher.fetch(url("/missing")).get(5, TimeUnit.SECONDS);
+  }
+
+  @Test(expected = ExecutionException.class)
+  public void onlyHttpTest() throws Exception {
+    fetcher.fetch("file:///etc/passwd").get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void redirectTest() throws Exception {
+    UrlMetadata metadata = fetcher.fetch(url("/moved")).get(5, TimeUnit.SECONDS);
+    assertThat(metadata.getTitle()).isEqualTo("Stub & Page");
+    assertThat(metadata.getCanonicalUrl()).isEqualTo(url("/canonical"));
+  }
+
+  @Test
+  public void canonicalUrlOnlyHttpTest() throws Exception {
+    URL base = new URL("https://pages.example/articles/1");
+    for (String href : new String[] {"file:///etc/passwd", "jar:file:/app.jar!/secret",
+        "ftp://pages.example/1", "mailto:editor@pages.example", "https:///no-host"}) {
+      String html = "<link rel=\"canonical\" href=\"" + href + "\">";
+      assertThat(UrlMetadataFetcher.parse(html, base).getCanonicalUrl()).as(href).isNull();
+    }
+    // a usable link after a refused one is still taken
+    String html = "<link rel=\"canonical\" href=\"file:///etc/passwd\">"
+        + "<link rel=\"canonical\" href=\"/articles/first\">";
+    assertThat(UrlMetadataFetcher.parse(html, base).getCanonicalUrl())
+        .isEqualTo("https://pages.example/articles/first");
+  }
+
+  @Test
+  public void redirectLoopTest() throws Exception {
+    assertThat(failure(url("/loop"))).hasMessageContaining("too many redirects");
+  }
+
+  @Test
+  public void redirectToRefusedAddressTest() throws Exception {
+    assertThat(failure(url("/internal"))).hasMessageContaining("refusing to fetch");
+    assertThat(failure(url("/file"))).hasMessageContaining("redirect to file:");
+    assertThat(hits.get()).isZero();
+  }
+
+  @Test
+  public void localAddressesRefusedByDefaultTest() throws Exception {
+    try (UrlMetadataFetcher publicOnly = new UrlMetadataFetcher(1, 16, 1, 500, 64 * 1024,
+        TimeUnit.MINUTES.toMillis(1), 100)) {
+      publicOnly.fetch(url("/page")).get(5, TimeUnit.SECONDS);
+      fail("fetched a loopback address");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).hasMessageContaining("refusing to fetch");
+    }
+    assertThat(hits.get()).isZero();
+  }
+
+  @Test
+  public void publicAddressTest() throws Exception {
+    for (String address : new String[] {"127.0.0.1", "10.1.2.3", "172.16.0.1", "192.168.1.1",
+        "169.254.169.254", "100.64.0.1", "0.0.0.0", "224.0.0.1", "::1", "::", "fe80::1",
+        "fd00::1", "::127.0.0.1", "::ffff:10.0.0.1"}) {
+      assertThat(UrlMetadataFetcher.isPublicAddress(InetAddress.getByName(address)))
+          .as(address).isFalse();
+    }
+    for (String address : new String[] {"93.184.216.34", "8.8.8.8", "2606:2800:220:1::1"}) {
+      assertThat(UrlMetadataFetcher.isPublicAddress(InetAddress.getByName(address)))
+          .as(address).isTrue();
+    }
+  }
+
+  private Throwable failure(String url) throws Exception {
+    try {
+      fetcher.fetch(url).get(5, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      return e.getCause();
+    }
+    throw new AssertionError("fetched " + url);
+  }
+}
@@ -0,0 +1,140 @@
+package jags.ratpacktest.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import jags.ratpacktest.domain.Bookmark;
+import jags.ratpacktest.exception.ValidationException;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Counts the plays of a few podcast episodes and ranks the most played ones.
+ */
+public class VisitCounterTest {
+
+  private JdbcConnectionPool pool;
+  private DBI dbi;
+  private VisitCounter plays;
+  private long pilot;
+  private long interview;
+  private long finale;
+
+  @Before
+  public void publishEpisodes() throws ValidationException {
+    pool = JdbcConnectionPool.create("jdbc:h2:mem:visitCounterTest", "sa", "");
+    dbi = new DBI(pool);
+    BookmarkService episodes = new BookmarkService(dbi);
+    pilot = episodes.createBookmark(new Bookmark(null, "Episode 1: the pilot",
+        "https://podcast.example/1", "season1")).getId();
+    interview = episodes.createBookmark(new Bookmark(null, "Episode 2: an interview",
+        "https://podcast.example/2", "season1,guest")).getId();
+    finale = episodes.createBookmark(new Bookmark(null, "Episode 3: the finale",
+        "https://podcast.example/3", "season1")).getId();
+    plays = new VisitCounter(dbi, 2);
+  }
+
+  @After
+  public void dropDatabase() {
+    pool.dispose();
+  }
+
+  @Test
+  public void countingTest() {
+    plays.record(pilot);
+    plays.record(pilot);
+    plays.record(finale);
+    assertThat(plays.pendingCount()).isEqualTo(2);
+    assertThat(playCount(pilot)).isZero();
+
+    plays.flush();
+    assertThat(playCount(pilot)).isEqualTo(2);
+    assertThat(playCount(finale)).isEqualTo(1);
+    assertThat(plays.pendingCount()).isZero();
+
+    plays.record(finale);
+    plays.flush();
+    assertThat(playCount(finale)).isEqualTo(2);
+    assertThat(playCount(interview)).isZero();
+    assertThat(plays.pendingCount()).isZero();
+  }
+
+  @Test
+  public void rankingTest() {
+    assertThat(plays.ranking()).isEmpty();
+    record(interview, 3);
+    record(pilot, 1);
+    record(finale, 1);
+    plays.flush();
+    // only two are ranked; the pilot wins the tie by its lower id
+    assertThat(plays.ranking()).containsExactly(interview, pilot);
+
+    record(finale, 5);
+    plays.flush();
+    assertThat(plays.ranking()).containsExactly(finale, interview);
+
+    try (Handle handle = dbi.open()) {
+      handle.execute("update bookmark set deleted_at = current_timestamp() where id = ?", finale);
+    }
+    plays.forget(finale);
+    plays.flush();
+    assertThat(plays.ranking()).containsExactly(interview, pilot);
+  }
+
+  @Test(timeout = 30000)
+  public void flushWhileRecordingTest() throws Exception {
+    int listeners = 4;
+    int playsEach = 20000;
+    ExecutorService executor = Executors.newFixedThreadPool(listeners);
+    try {
+      List<Future<?>> done = new ArrayList<>();
+      for (int i = 0; i < listeners; i++) {
+        done.add(executor.submit(() -> record(pilot, playsEach)));
+      }
+      while (!allDone(done)) {
+        plays.flush();
+      }
+      for (Future<?> listener : done) {
+        listener.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    plays.flush();
+    assertThat(playCount(pilot)).isEqualTo(listeners * playsEach);
+    assertThat(plays.pendingCount()).isZero();
+  }
+
+  private void record(long episode, int times) {
+    for (int i = 0; i < times; i++) {
+      plays.record(episode);
+    }
+  }
+
+  private long playCount(long episode) {
+    try (Handle handle = dbi.open()) {
+      return handle.createQuery("select visit_count from bookmark where id = :id")
+          .bind("id", episode)
+          .map((index, rs, ctx) -> rs.getLong(1))
+          .first();
+    }
+  }
+
+  private static boolean allDone(List<Future<?>> futures) {
+    for (Future<?> future : futures) {
+      if (!future.isDone()) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
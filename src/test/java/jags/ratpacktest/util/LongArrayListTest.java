@@ -0,0 +1,50 @@
+package jags.ratpacktest.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link LongArrayList} keeps its values in order as it grows from the smallest
+ * array, and that {@code clear} empties it for reuse.
+ */
+public class LongArrayListTest {
+
+  @Test
+  public void growTest() {
+    LongArrayList list = new LongArrayList(0);
+    for (long value = -1000; value < 1000; value++) {
+      list.add(value * 31);
+    }
+    assertThat(list.size()).isEqualTo(2000);
+    for (int i = 0; i < 2000; i++) {
+      assertThat(list.get(i)).isEqualTo((i - 1000) * 31L);
+    }
+    assertThat(list.contains(0)).isTrue();
+    assertThat(list.contains(-31000)).isTrue();
+    assertThat(list.contains(1)).isFalse();
+    long[] values = list.toArray();
+    assertThat(values).hasSize(2000);
+    assertThat(values[1999]).isEqualTo(999 * 31L);
+  }
+
+  @Test
+  public void clearTest() {
+    LongArrayList list = new LongArrayList();
+    list.add(7);
+    list.add(0);
+    list.clear();
+    assertThat(list.isEmpty()).isTrue();
+    assertThat(list.contains(7)).isFalse();
+    assertThat(list.toArray()).isEmpty();
+    list.add(-2);
+    assertThat(list.toArray()).containsExactly(-2L);
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void getPastSizeTest() {
+    LongArrayList list = new LongArrayList(16);
+    list.add(1);
+    list.get(1);
+  }
+}
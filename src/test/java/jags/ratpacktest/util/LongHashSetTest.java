@@ -0,0 +1,124 @@
+package jags.ratpacktest.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks {@link LongHashSet} against a {@link HashSet} of the same values: through growth from
+ * its smallest table, through removals from the middle of long probe runs, and for the value
+ * {@code 0}, which it keeps apart from the table.
+ */
+public class LongHashSetTest {
+
+  @Test
+  public void resizeTest() {
+    LongHashSet set = new LongHashSet();
+    int count = 100000;
+    // spread over the whole range, negative values and 0 included
+    for (int i = 0; i < count; i++) {
+      long value = (i - count / 2) * 0x5DEECE66DL;
+      assertThat(set.add(value)).isTrue();
+      assertThat(set.size()).isEqualTo(i + 1);
+    }
+    for (int i = 0; i < count; i++) {
+      assertThat(set.contains((i - count / 2) * 0x5DEECE66DL)).isTrue();
+    }
+    assertThat(set.contains(1)).isFalse();
+    assertThat(set.add(0)).isFalse();
+    assertThat(set.size()).isEqualTo(count);
+    assertThat(set.toArray()).hasSize(count);
+  }
+
+  @Test
+  public void collisionsTest() {
+    // few values in a small table, so most of them share probe runs, some of them wrapping around
+    LongHashSet set = new LongHashSet();
+    Set<Long> expected = new HashSet<>();
+    Random random = new Random(11);
+    for (int op = 0; op < 200000; op++) {
+      long value = random.nextInt(24) - 4;
+      if (random.nextInt(3) == 0) {
+        assertThat(set.remove(value)).as("remove " + value).isEqualTo(expected.remove(value));
+      } else {
+        assertThat(set.add(value)).as("add " + value).isEqualTo(expected.add(value));
+      }
+      assertThat(set.size()).isEqualTo(expected.size());
+      if (op % 1000 == 0) {
+        for (long v = -4; v < 20; v++) {
+          assertThat(set.contains(v)).as("contains " + v).isEqualTo(expected.contains(v));
+        }
+      }
+    }
+    Set<Long> visited = new HashSet<>();
+    set.forEach(visited::add);
+    assertThat(visited).isEqualTo(expected);
+  }
+
+  @Test
+  public void removeEverythingTest() {
+    LongHashSet set = new LongHashSet(4);
+    for (long value = -500; value <= 500; value++) {
+      set.add(value);
+    }
+    // every other value first, leaving holes in every run
+    for (long value = -500; value <= 500; value += 2) {
+      assertThat(set.remove(value)).isTrue();
+    }
+    for (long value = -500; value <= 500; value++) {
+      assertThat(set.contains(value)).as("contains " + value).isEqualTo(value % 2 != 0);
+    }
+    for (long value = -499; value <= 500; value += 2) {
+      assertThat(set.remove(value)).isTrue();
+    }
+    assertThat(set.isEmpty()).isTrue();
+    assertThat(set.remove(0)).isFalse();
+    assertThat(set.remove(1)).isFalse();
+    assertThat(set.toArray()).isEmpty();
+  }
+
+  @Test
+  public void zeroTest() {
+    LongHashSet set = new LongHashSet();
+    assertThat(set.contains(0)).isFalse();
+    assertThat(set.add(0)).isTrue();
+    assertThat(set.add(0)).isFalse();
+    assertThat(set.contains(0)).isTrue();
+    assertThat(set.size()).isEqualTo(1);
+    assertThat(set.toArray()).containsExactly(0L);
+    assertThat(set.remove(0)).isTrue();
+    assertThat(set.contains(0)).isFalse();
+    assertThat(set.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void addAllTest() {
+    // the tag postings of a read model: bookmark ids of two labels that share some bookmarks
+    LongHashSet cooking = new LongHashSet();
+    LongHashSet baking = new LongHashSet();
+    for (long id = 0; id < 300; id += 3) {
+      cooking.add(id);
+    }
+    for (long id = 0; id < 300; id += 5) {
+      baking.add(id);
+    }
+    baking.add(-1);
+    LongHashSet either = new LongHashSet(cooking);
+    either.addAll(baking);
+    assertThat(either.size()).isEqualTo(100 + 60 - 20 + 1);
+    for (long id = -1; id < 300; id++) {
+      assertThat(either.contains(id)).as("contains " + id)
+          .isEqualTo(id == -1 || id % 3 == 0 || id % 5 == 0);
+    }
+    // the copy is its own table
+    assertThat(cooking.size()).isEqualTo(100);
+    assertThat(cooking.contains(5)).isFalse();
+    assertThat(cooking.contains(0)).isTrue();
+    either.remove(0);
+    assertThat(cooking.contains(0)).isTrue();
+  }
+}
@@ -0,0 +1,86 @@
+package jags.ratpacktest.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks {@link LongObjectHashMap} against a {@link HashMap} of the same entries: through growth
+ * from its smallest table, and through removals from the middle of long probe runs.
+ */
+public class LongObjectHashMapTest {
+
+  @Test
+  public void resizeTest() {
+    LongObjectHashMap<String> map = new LongObjectHashMap<>();
+    int count = 100000;
+    // spread over the whole range, negative keys and key 0 included
+    for (int i = 0; i < count; i++) {
+      long key = (i - count / 2) * 0x5DEECE66DL;
+      assertThat(map.put(key, "v" + i)).isNull();
+      assertThat(map.size()).isEqualTo(i + 1);
+    }
+    for (int i = 0; i < count; i++) {
+      long key = (i - count / 2) * 0x5DEECE66DL;
+      assertThat(map.get(key)).isEqualTo("v" + i);
+    }
+    assertThat(map.get(1)).isNull();
+    assertThat(map.put(0, "zero")).isEqualTo("v" + count / 2);
+    assertThat(map.size()).isEqualTo(count);
+  }
+
+  @Test
+  public void collisionsTest() {
+    // few keys in a small table, so most of them share probe runs, some of them wrapping around
+    LongObjectHashMap<Long> map = new LongObjectHashMap<>();
+    Map<Long, Long> expected = new HashMap<>();
+    Random random = new Random(7);
+    for (int op = 0; op < 200000; op++) {
+      long key = random.nextInt(24) - 4;
+      if (random.nextInt(3) == 0) {
+        assertThat(map.remove(key)).as("remove " + key).isEqualTo(expected.remove(key));
+      } else {
+        long value = random.nextLong();
+        assertThat(map.put(key, value)).as("put " + key).isEqualTo(expected.put(key, value));
+      }
+      assertThat(map.size()).isEqualTo(expected.size());
+      if (op % 1000 == 0) {
+        for (long k = -4; k < 20; k++) {
+          assertThat(map.get(k)).as("get " + k).isEqualTo(expected.get(k));
+        }
+      }
+    }
+    for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+      assertThat(map.get(entry.getKey())).isEqualTo(entry.getValue());
+    }
+  }
+
+  @Test
+  public void removeEverythingTest() {
+    LongObjectHashMap<Integer> map = new LongObjectHashMap<>(4);
+    for (int key = 1; key <= 1000; key++) {
+      map.put(key, key);
+    }
+    // every other key first, leaving holes in every run
+    for (int key = 2; key <= 1000; key += 2) {
+      assertThat(map.remove(key)).isEqualTo(key);
+    }
+    for (int key = 1; key <= 1000; key++) {
+      assertThat(map.get(key)).isEqualTo(key % 2 == 1 ? key : null);
+    }
+    for (int key = 1; key <= 1000; key += 2) {
+      assertThat(map.remove(key)).isEqualTo(key);
+    }
+    assertThat(map.isEmpty()).isTrue();
+    assertThat(map.remove(1)).isNull();
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void nullValueTest() {
+    new LongObjectHashMap<String>().put(1, null);
+  }
+}